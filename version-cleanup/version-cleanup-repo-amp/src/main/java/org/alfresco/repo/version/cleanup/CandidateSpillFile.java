@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+
+/**
+ * The node database IDs of all the candidates of a run, written once to a temporary file and read back by the
+ * workers. The heap used does not depend on the number of candidates (100M nodes use 800MB of disk) and the file
+ * is a stable snapshot of the candidates for the whole run; a position in the run is just an index in the file,
+ * so a paused run can be reopened after a restart with {@link #open(File, long)}.
+ * <p>
+ * The file is not memory-mapped: the IDs are written through a buffer and read through a window of 64K IDs, so
+ * nothing is left mapped once the file is deleted. IDs must all be appended before they are read.
+ *
+ * @author Philippe Dubois
+ */
+public class CandidateSpillFile
+{
+    private static final String PREFIX = "version-cleaner-";
+    private static final String SUFFIX = ".ids";
+    private static final int WINDOW_SHIFT = 16;
+    private static final int WINDOW_IDS = 1 << WINDOW_SHIFT;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WINDOW_IDS * 8);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(WINDOW_IDS * 8);
+    /** index of the first ID in the read window, -1 when it holds nothing */
+    private long windowStart = -1L;
+    private int windowIds;
+    /** IDs written to the file, the IDs appended after them are in the write buffer */
+    private long written;
+    private long size;
+
+    private CandidateSpillFile(File file, long size) throws IOException
+    {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.written = size;
+        this.size = size;
+    }
+
+    /**
+     * Create an empty spill file
+     *
+     * @param directory the directory of the file, null for the default temporary directory
+     */
+    public static CandidateSpillFile create(File directory) throws IOException
+    {
+        return new CandidateSpillFile(File.createTempFile(PREFIX, SUFFIX, directory), 0L);
+    }
+
+    /**
+     * Reopen the spill file of a paused run
+     *
+     * @param size the number of IDs of the file
+     * @throws IOException if the file is missing or shorter than size IDs
+     */
+    public static CandidateSpillFile open(File file, long size) throws IOException
+    {
+        if (!file.isFile() || file.length() < size * 8L)
+        {
+            throw new IOException("Spill file missing or truncated: " + file);
+        }
+        return new CandidateSpillFile(file, size);
+    }
+
+    /**
+     * Delete the spill files of a directory, left behind by runs that did not complete
+     *
+     * @param directory the directory of the files, null for the default temporary directory
+     * @param keep a spill file not to delete, may be null
+     * @return the number of files deleted
+     */
+    public static int deleteStale(File directory, File keep)
+    {
+        if (directory == null)
+        {
+            directory = new File(System.getProperty("java.io.tmpdir"));
+        }
+        File[] files = directory.listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                }
+            });
+        int deleted = 0;
+        if (files != null)
+        {
+            for (File stale : files)
+            {
+                if (!stale.equals(keep) && stale.delete())
+                {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    public synchronized void append(long id) throws IOException
+    {
+        if (!writeBuffer.hasRemaining())
+        {
+            flush();
+        }
+        writeBuffer.putLong(id);
+        size++;
+    }
+
+    public void append(NodeIdBuffer ids) throws IOException
+    {
+        for (int i = 0; i < ids.size(); i++)
+        {
+            append(ids.get(i));
+        }
+    }
+
+    /**
+     * Write the IDs appended so far to the file, so that it can be reopened
+     */
+    public synchronized void flush() throws IOException
+    {
+        writeBuffer.flip();
+        long position = written * 8L;
+        while (writeBuffer.hasRemaining())
+        {
+            position += channel.write(writeBuffer, position);
+        }
+        writeBuffer.clear();
+        written = size;
+    }
+
+    /**
+     * @param index the position of the ID in the file
+     * @return the node database ID
+     */
+    public synchronized long get(long index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        if (index < windowStart || index >= windowStart + windowIds)
+        {
+            readWindow(index & ~((long) WINDOW_IDS - 1L));
+        }
+        return readBuffer.getLong((int) (index - windowStart) << 3);
+    }
+
+    private void readWindow(long start)
+    {
+        try
+        {
+            if (written < size)
+            {
+                flush();
+            }
+            windowStart = -1L;
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(WINDOW_IDS, size - start) << 3);
+            long position = start * 8L;
+            while (readBuffer.hasRemaining())
+            {
+                int read = channel.read(readBuffer, position);
+                if (read < 0)
+                {
+                    throw new IOException("Unexpected end of the spill file at " + position + ": " + file);
+                }
+                position += read;
+            }
+            windowStart = start;
+            windowIds = readBuffer.limit() >> 3;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to read the spill file " + file, e);
+        }
+    }
+
+    /**
+     * Hand a range of the IDs over to a BatchProcessor, reading the file sequentially
+     *
+     * @param from index of the first ID
+     * @param to index after the last ID
+     * @param chunkSize the number of IDs returned by each call to getNextWork
+     */
+    public BatchProcessWorkProvider<Long> getWorkProvider(final long from, final long to, final int chunkSize)
+    {
+        return new BatchProcessWorkProvider<Long>()
+            {
+                private long next = from;
+
+                public int getTotalEstimatedWorkSize()
+                {
+                    return (int) Math.min(Integer.MAX_VALUE, to - from);
+                }
+
+                public synchronized Collection<Long> getNextWork()
+                {
+                    if (next >= to)
+                    {
+                        return Collections.emptyList();
+                    }
+                    long end = Math.min(to, next + chunkSize);
+                    List<Long> work = new ArrayList<Long>((int) (end - next));
+                    for (; next < end; next++)
+                    {
+                        work.add(get(next));
+                    }
+                    return work;
+                }
+            };
+    }
+
+    /**
+     * Read a range of the IDs in memory
+     *
+     * @param from index of the first ID
+     * @param to index after the last ID
+     */
+    public NodeIdBuffer read(long from, long to)
+    {
+        NodeIdBuffer ids = new NodeIdBuffer((int) (to - from));
+        for (long index = from; index < to; index++)
+        {
+            ids.add(get(index));
+        }
+        return ids;
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Close and remove the file
+     */
+    public synchronized void delete()
+    {
+        try
+        {
+            channel.close();
+            randomAccessFile.close();
+        }
+        catch (IOException e)
+        {
+            // nothing more can be done, a file that cannot be deleted stays until the next deleteStale
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+
+/**
+ * Counts the content properties referencing a content URL, over all the nodes of the repository including the
+ * frozen nodes of the versions, with a query on the content tables. There is no service giving this count: the
+ * content data of every d:content property is a row of alf_content_data pointing to its row of alf_content_url,
+ * which is looked up by its short form and CRC like the content DAO does.
+ * <p>
+ * The query uses its own connection, it does not see the changes of the current transaction.
+ *
+ * @author Philippe Dubois
+ */
+public class ContentReferenceCounter
+{
+    private static final String COUNT_QUERY = "select count(*) from alf_content_data d"
+            + " join alf_content_url u on u.id = d.content_url_id"
+            + " where u.content_url_short = ? and u.content_url_crc = ?";
+
+    private final DataSource dataSource;
+
+    public ContentReferenceCounter(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @return the number of content properties referencing the URL
+     */
+    public int countReferences(String contentUrl)
+    {
+        try
+        {
+            Connection connection = dataSource.getConnection();
+            try
+            {
+                PreparedStatement statement = connection.prepareStatement(COUNT_QUERY);
+                try
+                {
+                    statement.setString(1, ContentUrlEntity.getContentUrlShort(contentUrl));
+                    statement.setLong(2, ContentUrlEntity.getContentUrlCrc(contentUrl));
+                    ResultSet results = statement.executeQuery();
+                    try
+                    {
+                        return results.next() ? results.getInt(1) : 0;
+                    }
+                    finally
+                    {
+                        results.close();
+                    }
+                }
+                finally
+                {
+                    statement.close();
+                }
+            }
+            finally
+            {
+                connection.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to count the references to " + contentUrl, e);
+        }
+    }
+}
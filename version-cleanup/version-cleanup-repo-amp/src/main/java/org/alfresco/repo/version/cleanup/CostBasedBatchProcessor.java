@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.apache.commons.logging.Log;
+
+/**
+ * An alternative to the BatchProcessor for entries of very different costs. The entries are packed into
+ * transactions holding at most costBudget units of work (or maxEntriesPerTxn entries) instead of a fixed number of
+ * entries. The transactions are run by a fixed pool of workerThreads threads taking the most expensive pending
+ * transaction first, so a few expensive transactions do not leave the other threads idle at the end.
+ * <p>
+ * The costs are estimated by the calling thread, a chunk of entries per read-only transaction, while the workers
+ * already run the transactions packed so far. An entry whose cost is above the budget gets a transaction of its
+ * own. A failed transaction is counted as one error per entry, like the BatchProcessor does.
+ *
+ * @author Philippe Dubois
+ */
+public class CostBasedBatchProcessor<T>
+{
+    private static final int ESTIMATION_CHUNK = 1000;
+
+    /**
+     * Estimates the cost of an entry, called in a read-only transaction
+     */
+    public interface CostEstimator<T>
+    {
+        /**
+         * @return the estimated cost of the entry, at least 1
+         */
+        int estimateCost(T entry);
+    }
+
+    private final String processName;
+    private final RetryingTransactionHelper retryingTransactionHelper;
+    private final int workerThreads;
+    private final int costBudget;
+    private final int maxEntriesPerTxn;
+    private final Log logger;
+    private final AtomicInteger successfullyProcessedEntries = new AtomicInteger();
+    private final AtomicInteger totalErrors = new AtomicInteger();
+    private volatile Throwable lastError;
+
+    public CostBasedBatchProcessor(String processName, RetryingTransactionHelper retryingTransactionHelper,
+            int workerThreads, int costBudget, int maxEntriesPerTxn, Log logger)
+    {
+        this.processName = processName;
+        this.retryingTransactionHelper = retryingTransactionHelper;
+        this.workerThreads = workerThreads;
+        this.costBudget = costBudget;
+        this.maxEntriesPerTxn = maxEntriesPerTxn;
+        this.logger = logger;
+    }
+
+    /**
+     * Estimate, pack and process the entries, returns once all the transactions have ended
+     *
+     * @return the number of entries processed successfully
+     */
+    public int process(List<T> entries, CostEstimator<T> estimator, BatchProcessWorker<T> worker)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        int packets = 0;
+        try
+        {
+            Packet current = new Packet(worker);
+            for (int from = 0; from < entries.size(); from += ESTIMATION_CHUNK)
+            {
+                List<T> chunk = entries.subList(from, Math.min(entries.size(), from + ESTIMATION_CHUNK));
+                int[] costs = estimate(chunk, estimator);
+                for (int i = 0; i < chunk.size(); i++)
+                {
+                    int cost = Math.max(1, costs[i]);
+                    if (!current.entries.isEmpty()
+                            && (current.cost + cost > costBudget || current.entries.size() >= maxEntriesPerTxn))
+                    {
+                        executor.execute(current);
+                        packets++;
+                        current = new Packet(worker);
+                    }
+                    current.entries.add(chunk.get(i));
+                    current.cost += cost;
+                }
+            }
+            if (!current.entries.isEmpty())
+            {
+                executor.execute(current);
+                packets++;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(processName + ": " + entries.size() + " entries packed in " + packets
+                        + " transactions");
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        if (totalErrors.get() > 0)
+        {
+            logger.warn(processName + ": " + totalErrors.get() + " entries failed, last error: " + lastError);
+        }
+        return successfullyProcessedEntries.get();
+    }
+
+    public int getSuccessfullyProcessedEntries()
+    {
+        return successfullyProcessedEntries.get();
+    }
+
+    public int getTotalErrors()
+    {
+        return totalErrors.get();
+    }
+
+    /**
+     * @return the costs of the entries, the minimum cost if the estimation fails
+     */
+    private int[] estimate(final List<T> entries, final CostEstimator<T> estimator)
+    {
+        final int[] costs = new int[entries.size()];
+        RetryingTransactionCallback<Void> estimateCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (int i = 0; i < entries.size(); i++)
+                    {
+                        costs[i] = estimator.estimateCost(entries.get(i));
+                    }
+                    return null;
+                }
+            };
+        try
+        {
+            retryingTransactionHelper.doInTransaction(estimateCallback, true, true);
+        }
+        catch (Throwable e)
+        {
+            logger.warn(processName + ": cost estimation failed: " + e);
+        }
+        return costs;
+    }
+
+    private void processPacket(final Packet packet)
+    {
+        final BatchProcessWorker<T> worker = packet.worker;
+        RetryingTransactionCallback<Void> packetCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (T entry : packet.entries)
+                    {
+                        worker.process(entry);
+                    }
+                    return null;
+                }
+            };
+        try
+        {
+            worker.beforeProcess();
+            try
+            {
+                retryingTransactionHelper.doInTransaction(packetCallback, false, true);
+            }
+            finally
+            {
+                worker.afterProcess();
+            }
+            successfullyProcessedEntries.addAndGet(packet.entries.size());
+        }
+        catch (Throwable e)
+        {
+            totalErrors.addAndGet(packet.entries.size());
+            lastError = e;
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(processName + ": transaction of " + packet.entries.size() + " entries (cost "
+                        + packet.cost + ") failed", e);
+            }
+        }
+    }
+
+    /**
+     * Entries run in one transaction, the most expensive packets are taken first from the queue of the pool
+     */
+    private class Packet implements Runnable, Comparable<Packet>
+    {
+        private final List<T> entries = new ArrayList<T>();
+        private final BatchProcessWorker<T> worker;
+        private int cost;
+
+        Packet(BatchProcessWorker<T> worker)
+        {
+            this.worker = worker;
+        }
+
+        public void run()
+        {
+            processPacket(this);
+        }
+
+        public int compareTo(Packet other)
+        {
+            return other.cost < cost ? -1 : (other.cost == cost ? 0 : 1);
+        }
+    }
+
+    private class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, processName + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Nodes taken out of their batch because of a concurrency or lock error, waiting to be retried. Each new attempt
+ * waits twice as long as the previous one.
+ *
+ * @author Philippe Dubois
+ */
+public class DeferredNodeQueue
+{
+    private final DelayQueue<DeferredNode> queue = new DelayQueue<DeferredNode>();
+    private final long initialBackoff;
+
+    /**
+     * @param initialBackoff wait before the first retry in milliseconds
+     */
+    public DeferredNodeQueue(long initialBackoff)
+    {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * @param attempts the number of attempts already made for the node
+     */
+    public void defer(NodeRef nodeRef, Throwable error, int attempts)
+    {
+        long backoff = initialBackoff << Math.min(attempts - 1, 16);
+        queue.add(new DeferredNode(nodeRef, error, attempts, System.currentTimeMillis() + backoff));
+    }
+
+    /**
+     * Wait for the next node whose backoff has expired
+     *
+     * @return the node or null if the queue is empty
+     */
+    public DeferredNode take() throws InterruptedException
+    {
+        if (queue.isEmpty())
+        {
+            return null;
+        }
+        return queue.take();
+    }
+
+    public int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Remove all the nodes
+     *
+     * @return the number of nodes removed
+     */
+    public int clear()
+    {
+        int size = queue.size();
+        queue.clear();
+        return size;
+    }
+
+    public static class DeferredNode implements Delayed
+    {
+        private final NodeRef nodeRef;
+        private final Throwable lastError;
+        private final int attempts;
+        private final long retryAt;
+
+        DeferredNode(NodeRef nodeRef, Throwable lastError, int attempts, long retryAt)
+        {
+            this.nodeRef = nodeRef;
+            this.lastError = lastError;
+            this.attempts = attempts;
+            this.retryAt = retryAt;
+        }
+
+        public NodeRef getNodeRef()
+        {
+            return nodeRef;
+        }
+
+        public Throwable getLastError()
+        {
+            return lastError;
+        }
+
+        public int getAttempts()
+        {
+            return attempts;
+        }
+
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(retryAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other)
+        {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
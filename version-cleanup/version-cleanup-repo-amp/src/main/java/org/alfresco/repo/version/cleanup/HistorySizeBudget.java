@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.namespace.NamespacePrefixResolver;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Maximum content size of a version history, globally and per content type. The sizes are given in bytes or with
+ * a unit: <code>500k</code>, <code>200m</code>, <code>2g</code> or <code>1t</code> (powers of 1024). The types are
+ * given as <code>cm:content</code> or <code>{uri}name</code> and only match nodes of exactly that type. A budget
+ * of 0 means no budget.
+ *
+ * @author Philippe Dubois
+ */
+public class HistorySizeBudget
+{
+    private final long defaultMaxBytes;
+    private final Map<QName, Long> maxBytesByType;
+
+    public HistorySizeBudget(long defaultMaxBytes, Map<QName, Long> maxBytesByType)
+    {
+        this.defaultMaxBytes = defaultMaxBytes;
+        this.maxBytesByType = maxBytesByType;
+    }
+
+    /**
+     * @param defaultMaxBytes the budget of the types not listed
+     * @param maxBytesByType the budgets per type, may be null
+     * @param prefixResolver resolves the prefixed type names, may be null if none is used
+     * @throws AlfrescoRuntimeException if a size or a type is not valid
+     */
+    public static HistorySizeBudget parse(String defaultMaxBytes, Map<String, String> maxBytesByType,
+            NamespacePrefixResolver prefixResolver)
+    {
+        Map<QName, Long> budgets = new HashMap<QName, Long>();
+        if (maxBytesByType != null)
+        {
+            for (Map.Entry<String, String> entry : maxBytesByType.entrySet())
+            {
+                String type = entry.getKey().trim();
+                QName typeQName;
+                if (type.startsWith("{"))
+                {
+                    typeQName = QName.createQName(type);
+                }
+                else if (prefixResolver != null)
+                {
+                    typeQName = QName.createQName(type, prefixResolver);
+                }
+                else
+                {
+                    throw new AlfrescoRuntimeException("Type '" + type
+                            + "' of a history size budget must be given as {uri}name without a namespace service");
+                }
+                budgets.put(typeQName, parseSize(entry.getValue()));
+            }
+        }
+        return new HistorySizeBudget(parseSize(defaultMaxBytes), Collections.unmodifiableMap(budgets));
+    }
+
+    /**
+     * @return the number of bytes of a size such as 1048576, 1024k or 1m, 0 if the size is empty
+     */
+    public static long parseSize(String size)
+    {
+        if (size == null || size.trim().length() == 0)
+        {
+            return 0L;
+        }
+        String value = size.trim().toLowerCase();
+        if (value.endsWith("b"))
+        {
+            value = value.substring(0, value.length() - 1);
+        }
+        long multiplier = 1L;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1))
+        {
+        case 'k':
+            multiplier = 1L << 10;
+            break;
+        case 'm':
+            multiplier = 1L << 20;
+            break;
+        case 'g':
+            multiplier = 1L << 30;
+            break;
+        case 't':
+            multiplier = 1L << 40;
+            break;
+        default:
+            break;
+        }
+        if (multiplier > 1L)
+        {
+            value = value.substring(0, value.length() - 1);
+        }
+        try
+        {
+            long bytes = Long.parseLong(value.trim());
+            if (bytes < 0L)
+            {
+                throw new NumberFormatException();
+            }
+            return bytes * multiplier;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new AlfrescoRuntimeException("Invalid size '" + size + "', expected bytes or a number with k, m, g"
+                    + " or t");
+        }
+    }
+
+    /**
+     * @return true if a history may have a budget
+     */
+    public boolean isEnabled()
+    {
+        if (defaultMaxBytes > 0L)
+        {
+            return true;
+        }
+        for (Long maxBytes : maxBytesByType.values())
+        {
+            if (maxBytes > 0L)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the budget depends on the type of the node
+     */
+    public boolean isPerType()
+    {
+        return !maxBytesByType.isEmpty();
+    }
+
+    /**
+     * @param type the type of the versioned node, may be null if the budget is not per type
+     * @return the budget of the history in bytes, 0 for none
+     */
+    public long getMaxBytes(QName type)
+    {
+        Long maxBytes = type == null ? null : maxBytesByType.get(type);
+        return maxBytes == null ? defaultMaxBytes : maxBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistorySizeBudget[default=" + defaultMaxBytes + ", byType=" + maxBytesByType + "]";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+
+/**
+ * Finds the versions having the same content as the next newer version of their history, e.g. created by a
+ * metadata-only save or by uploading the same file again. The history is read once, newest first, comparing each
+ * version with its newer neighbour: the same content URL settles it, different sizes too, and only two versions
+ * of the same size stored at different URLs have their content read and digested. A digest is computed at most
+ * once per URL.
+ *
+ * @author Philippe Dubois
+ */
+public class IdenticalContentDetector
+{
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final ContentService contentService;
+
+    /**
+     * @param contentService used to read the content of the versions with the same size, if null such versions are
+     *            considered different
+     */
+    public IdenticalContentDetector(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+    /**
+     * @param contents the content of the versions, newest first, null for a version without content
+     * @return for each version true if its content is identical to the one of the previous (newer) version
+     */
+    public boolean[] findIdentical(ContentData[] contents)
+    {
+        String[] contentUrls = new String[contents.length];
+        long[] sizes = new long[contents.length];
+        for (int index = 0; index < contents.length; index++)
+        {
+            if (contents[index] != null)
+            {
+                contentUrls[index] = contents[index].getContentUrl();
+                sizes[index] = contents[index].getSize();
+            }
+        }
+        return findIdentical(contentUrls, sizes);
+    }
+
+    /**
+     * @param contentUrls the content URLs of the versions, newest first, null for a version without content
+     * @param sizes the content sizes of the versions
+     * @return for each version true if its content is identical to the one of the previous (newer) version
+     */
+    public boolean[] findIdentical(String[] contentUrls, long[] sizes)
+    {
+        boolean[] identical = new boolean[contentUrls.length];
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        for (int index = 1; index < contentUrls.length; index++)
+        {
+            identical[index] = isIdentical(contentUrls[index - 1], sizes[index - 1], contentUrls[index],
+                    sizes[index], digests);
+        }
+        return identical;
+    }
+
+    private boolean isIdentical(String newerUrl, long newerSize, String olderUrl, long olderSize,
+            Map<String, byte[]> digests)
+    {
+        if (newerUrl == null || olderUrl == null)
+        {
+            return false;
+        }
+        if (newerUrl.equals(olderUrl))
+        {
+            return true;
+        }
+        if (newerSize != olderSize || contentService == null)
+        {
+            return false;
+        }
+        byte[] newerDigest = digest(newerUrl, digests);
+        if (newerDigest == null)
+        {
+            return false;
+        }
+        byte[] olderDigest = digest(olderUrl, digests);
+        return olderDigest != null && Arrays.equals(newerDigest, olderDigest);
+    }
+
+    /**
+     * @return the digest of the content or null if it cannot be read
+     */
+    private byte[] digest(String contentUrl, Map<String, byte[]> digests)
+    {
+        if (digests.containsKey(contentUrl))
+        {
+            return digests.get(contentUrl);
+        }
+        byte[] digest = null;
+        ContentReader reader = contentService.getRawReader(contentUrl);
+        if (reader != null && reader.exists())
+        {
+            try
+            {
+                MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                InputStream is = reader.getContentInputStream();
+                try
+                {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = is.read(buffer)) != -1)
+                    {
+                        messageDigest.update(buffer, 0, read);
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                digest = messageDigest.digest();
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new AlfrescoRuntimeException("Digest algorithm not available: " + DIGEST_ALGORITHM, e);
+            }
+            catch (IOException e)
+            {
+                // considered different
+                digest = null;
+            }
+        }
+        digests.put(contentUrl, digest);
+        return digest;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compressed set of node database IDs in the spirit of Roaring bitmaps. IDs are grouped by their high bits in
+ * chunks of 65536; a sparse chunk is a sorted array of the low 16 bits (2 bytes per ID) and a chunk with more
+ * than 4096 IDs is a plain bitmap (8KB). Database IDs are allocated sequentially, so 50M nodes take a few
+ * MB. All the methods are thread safe.
+ *
+ * @author Philippe Dubois
+ */
+public class NodeIdBitmap
+{
+    private static final int ARRAY_MAX = 4096;
+
+    private final Map<Long, Object> chunks = new HashMap<Long, Object>();
+    private long cardinality;
+
+    /**
+     * @return true if the ID was not already in the set
+     */
+    public synchronized boolean add(long id)
+    {
+        Long key = Long.valueOf(id >>> 16);
+        char low = (char) (id & 0xFFFF);
+        Object chunk = chunks.get(key);
+        if (chunk == null)
+        {
+            chunks.put(key, new char[] { low });
+            cardinality++;
+            return true;
+        }
+        if (chunk instanceof long[])
+        {
+            long[] bits = (long[]) chunk;
+            long mask = 1L << (low & 63);
+            if ((bits[low >>> 6] & mask) != 0)
+            {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+            cardinality++;
+            return true;
+        }
+        char[] values = (char[]) chunk;
+        int index = Arrays.binarySearch(values, low);
+        if (index >= 0)
+        {
+            return false;
+        }
+        index = -index - 1;
+        if (values.length < ARRAY_MAX)
+        {
+            char[] newValues = new char[values.length + 1];
+            System.arraycopy(values, 0, newValues, 0, index);
+            newValues[index] = low;
+            System.arraycopy(values, index, newValues, index + 1, values.length - index);
+            chunks.put(key, newValues);
+        }
+        else
+        {
+            long[] bits = new long[1024];
+            for (char value : values)
+            {
+                bits[value >>> 6] |= 1L << (value & 63);
+            }
+            bits[low >>> 6] |= 1L << (low & 63);
+            chunks.put(key, bits);
+        }
+        cardinality++;
+        return true;
+    }
+
+    public synchronized void addAll(Collection<Long> ids)
+    {
+        for (Long id : ids)
+        {
+            add(id.longValue());
+        }
+    }
+
+    public synchronized boolean contains(long id)
+    {
+        Object chunk = chunks.get(Long.valueOf(id >>> 16));
+        if (chunk == null)
+        {
+            return false;
+        }
+        char low = (char) (id & 0xFFFF);
+        if (chunk instanceof long[])
+        {
+            return (((long[]) chunk)[low >>> 6] & (1L << (low & 63))) != 0;
+        }
+        return Arrays.binarySearch((char[]) chunk, low) >= 0;
+    }
+
+    /**
+     * @return the number of IDs in the set
+     */
+    public synchronized long size()
+    {
+        return cardinality;
+    }
+
+    /**
+     * @return an estimation of the memory used by the chunks in bytes
+     */
+    public synchronized long getMemoryUsage()
+    {
+        long bytes = 0L;
+        for (Object chunk : chunks.values())
+        {
+            bytes += (chunk instanceof long[]) ? 8192L : 2L * ((char[]) chunk).length;
+        }
+        return bytes;
+    }
+}
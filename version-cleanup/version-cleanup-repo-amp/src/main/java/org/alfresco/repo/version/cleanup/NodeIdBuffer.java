@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+
+/**
+ * A growable list of node database IDs kept in a primitive array. A page of candidates costs 8 bytes per node
+ * instead of a NodeRef with its StoreRef and UUID string; the IDs are resolved to NodeRefs by the workers.
+ *
+ * @author Philippe Dubois
+ */
+public class NodeIdBuffer
+{
+    private long[] ids;
+    private int size;
+
+    public NodeIdBuffer(int initialCapacity)
+    {
+        ids = new long[Math.max(initialCapacity, 16)];
+    }
+
+    public void add(long id)
+    {
+        if (size == ids.length)
+        {
+            long[] newIds = new long[ids.length + (ids.length >> 1)];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            ids = newIds;
+        }
+        ids[size++] = id;
+    }
+
+    public long get(int index)
+    {
+        if (index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return ids[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return a read-only view of the IDs, boxed one at a time when read
+     */
+    public List<Long> asList()
+    {
+        return new AbstractList<Long>()
+            {
+                @Override
+                public Long get(int index)
+                {
+                    return NodeIdBuffer.this.get(index);
+                }
+
+                @Override
+                public int size()
+                {
+                    return size;
+                }
+            };
+    }
+
+    /**
+     * Hand the IDs over to a BatchProcessor in chunks so that only a chunk at a time is boxed
+     *
+     * @param chunkSize the number of IDs returned by each call to getNextWork
+     */
+    public BatchProcessWorkProvider<Long> getWorkProvider(final int chunkSize)
+    {
+        return new BatchProcessWorkProvider<Long>()
+            {
+                private int next = 0;
+
+                public int getTotalEstimatedWorkSize()
+                {
+                    return size;
+                }
+
+                public synchronized Collection<Long> getNextWork()
+                {
+                    if (next >= size)
+                    {
+                        return Collections.emptyList();
+                    }
+                    int end = Math.min(size, next + chunkSize);
+                    List<Long> work = new ArrayList<Long>(end - next);
+                    for (; next < end; next++)
+                    {
+                        work.add(ids[next]);
+                    }
+                    return work;
+                }
+            };
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Groups a page of candidates by primary parent so that the nodes of a folder are cleaned in the same transaction
+ * by one worker. When the candidates are split in index order the workers delete versions of sibling nodes at the
+ * same time, contend on the rows of their parent and have their transactions retried.
+ * <p>
+ * The parents are read in read-only transactions run by a small pool. The candidates are then sorted by parent and
+ * packed into batches of at most batchSize nodes without splitting a parent unless it has more candidates than a
+ * batch. The batches are ordered so that the successive batches of a large parent are not run at the same time
+ * as long as other parents are left.
+ *
+ * @author Philippe Dubois
+ */
+public class ParentPartitioner
+{
+    private static Log logger = LogFactory.getLog(ParentPartitioner.class);
+
+    private static final int PARENT_CHUNK = 1000;
+    private static final long NO_PARENT = -1L;
+
+    private final TransactionService transactionService;
+    private final NodeService nodeService;
+    private final int threads;
+    private final int batchSize;
+
+    public ParentPartitioner(TransactionService transactionService, NodeService nodeService, int threads,
+            int batchSize)
+    {
+        this.transactionService = transactionService;
+        this.nodeService = nodeService;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the candidates in batches grouped by parent
+     */
+    public List<List<Long>> partition(NodeIdBuffer nodeIds)
+    {
+        return pack(nodeIds, readParents(nodeIds), batchSize);
+    }
+
+    /**
+     * Sort the candidates by parent and pack them into batches. Batch n of every parent comes before batch n + 1 of
+     * any parent.
+     *
+     * @param parentIds the database ID of the parent of each candidate, -1 if unknown
+     */
+    public static List<List<Long>> pack(final NodeIdBuffer nodeIds, final long[] parentIds, int batchSize)
+    {
+        int size = nodeIds.size();
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer index1, Integer index2)
+                {
+                    int result = Long.compare(parentIds[index1], parentIds[index2]);
+                    return result != 0 ? result : Long.compare(nodeIds.get(index1), nodeIds.get(index2));
+                }
+            });
+        // rounds.get(n) holds the n-th batch of each parent, the batches mixing small parents are in the first round
+        List<List<List<Long>>> rounds = new ArrayList<List<List<Long>>>();
+        rounds.add(new ArrayList<List<Long>>());
+        List<Long> shared = new ArrayList<Long>();
+        int start = 0;
+        while (start < size)
+        {
+            int end = start + 1;
+            while (end < size && parentIds[order[end]] == parentIds[order[start]])
+            {
+                end++;
+            }
+            if (end - start <= batchSize)
+            {
+                if (shared.size() + end - start > batchSize)
+                {
+                    rounds.get(0).add(shared);
+                    shared = new ArrayList<Long>();
+                }
+                for (int i = start; i < end; i++)
+                {
+                    shared.add(nodeIds.get(order[i]));
+                }
+            }
+            else
+            {
+                for (int from = start, round = 0; from < end; from += batchSize, round++)
+                {
+                    if (rounds.size() == round)
+                    {
+                        rounds.add(new ArrayList<List<Long>>());
+                    }
+                    List<Long> batch = new ArrayList<Long>(Math.min(batchSize, end - from));
+                    for (int i = from; i < Math.min(end, from + batchSize); i++)
+                    {
+                        batch.add(nodeIds.get(order[i]));
+                    }
+                    rounds.get(round).add(batch);
+                }
+            }
+            start = end;
+        }
+        if (!shared.isEmpty())
+        {
+            rounds.get(0).add(shared);
+        }
+        List<List<Long>> batches = new ArrayList<List<Long>>();
+        for (List<List<Long>> round : rounds)
+        {
+            batches.addAll(round);
+        }
+        return batches;
+    }
+
+    /**
+     * @return the database ID of the primary parent of each candidate, -1 if it could not be read
+     */
+    private long[] readParents(final NodeIdBuffer nodeIds)
+    {
+        final long[] parentIds = new long[nodeIds.size()];
+        Arrays.fill(parentIds, NO_PARENT);
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (int from = 0; from < nodeIds.size(); from += PARENT_CHUNK)
+            {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(nodeIds.size(), from + PARENT_CHUNK);
+                executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (runAsUser != null)
+                            {
+                                AuthenticationUtil.setFullyAuthenticatedUser(runAsUser);
+                            }
+                            readParentChunk(nodeIds, parentIds, chunkFrom, chunkTo);
+                        }
+                    });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return parentIds;
+    }
+
+    private void readParentChunk(final NodeIdBuffer nodeIds, final long[] parentIds, final int from, final int to)
+    {
+        RetryingTransactionCallback<Void> parentCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (int i = from; i < to; i++)
+                    {
+                        NodeRef nodeRef = nodeService.getNodeRef(nodeIds.get(i));
+                        ChildAssociationRef parentAssoc = nodeRef == null ? null : nodeService
+                                .getPrimaryParent(nodeRef);
+                        NodeRef parentRef = parentAssoc == null ? null : parentAssoc.getParentRef();
+                        NodeRef.Status parentStatus = parentRef == null ? null : nodeService.getNodeStatus(parentRef);
+                        if (parentStatus != null)
+                        {
+                            parentIds[i] = parentStatus.getDbId();
+                        }
+                    }
+                    return null;
+                }
+            };
+        try
+        {
+            transactionService.getRetryingTransactionHelper().doInTransaction(parentCallback, true, true);
+        }
+        catch (Throwable e)
+        {
+            // the nodes are still cleaned, only not grouped
+            logger.warn("Unable to read the parents of " + (to - from) + " nodes: " + e);
+        }
+    }
+}
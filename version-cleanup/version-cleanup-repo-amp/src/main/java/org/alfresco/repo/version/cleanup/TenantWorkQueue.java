@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Work queue shared by the tenants of a run. Each tenant has its own queue and the workers take from the tenants in
+ * turn, so a tenant with a large backlog gets the same share of the workers as a small one instead of holding them
+ * until its backlog is done. The producer bounds the backlog of each tenant with {@link #size(String)}.
+ *
+ * @author Philippe Dubois
+ */
+public class TenantWorkQueue<T>
+{
+    private final Map<String, LinkedList<T>> queues = new HashMap<String, LinkedList<T>>();
+    /** the tenants having pending entries, in the order they are served */
+    private final LinkedList<String> turns = new LinkedList<String>();
+    private boolean closed;
+
+    /**
+     * Add an entry at the end of the queue of a tenant
+     */
+    public synchronized void put(String tenantDomain, T entry)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The queue is closed");
+        }
+        LinkedList<T> queue = queues.get(tenantDomain);
+        if (queue == null)
+        {
+            queue = new LinkedList<T>();
+            queues.put(tenantDomain, queue);
+        }
+        if (queue.isEmpty())
+        {
+            turns.addLast(tenantDomain);
+        }
+        queue.addLast(entry);
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next entry of the next tenant in turn
+     *
+     * @return the entry or null once the queue is closed and empty
+     */
+    public synchronized T take() throws InterruptedException
+    {
+        while (turns.isEmpty())
+        {
+            if (closed)
+            {
+                return null;
+            }
+            wait();
+        }
+        String tenantDomain = turns.removeFirst();
+        LinkedList<T> queue = queues.get(tenantDomain);
+        T entry = queue.removeFirst();
+        if (!queue.isEmpty())
+        {
+            turns.addLast(tenantDomain);
+        }
+        notifyAll();
+        return entry;
+    }
+
+    /**
+     * @return the number of pending entries of a tenant
+     */
+    public synchronized int size(String tenantDomain)
+    {
+        LinkedList<T> queue = queues.get(tenantDomain);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Wait until an entry is taken, or the timeout
+     */
+    public synchronized void awaitTake(long timeout) throws InterruptedException
+    {
+        if (!turns.isEmpty())
+        {
+            wait(timeout);
+        }
+    }
+
+    /**
+     * No more entries are added, the workers stop once the pending entries are taken
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Remove all the pending entries
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int clear()
+    {
+        int size = 0;
+        for (LinkedList<T> queue : queues.values())
+        {
+            size += queue.size();
+            queue.clear();
+        }
+        turns.clear();
+        notifyAll();
+        return size;
+    }
+}
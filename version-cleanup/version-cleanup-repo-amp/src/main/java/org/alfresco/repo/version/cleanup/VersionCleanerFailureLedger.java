@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+
+/**
+ * Persistent list of the nodes that could not be cleaned, kept with the {@link AttributeService} so that it
+ * survives restarts and is visible from every node of a cluster. Each entry holds the number of failed attempts,
+ * the last error and its date. Entries are written in their own transactions.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerFailureLedger
+{
+    static final String KEY_ROOT = "VersionCleaner";
+    private static final String KEY_FAILURES = "failures";
+
+    public static final String ATTEMPTS = "attempts";
+    public static final String LAST_ERROR = "lastError";
+    public static final String LAST_FAILURE = "lastFailure";
+
+    private final AttributeService attributeService;
+    private final TransactionService transactionService;
+
+    public VersionCleanerFailureLedger(AttributeService attributeService, TransactionService transactionService)
+    {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * Record a failure for a node, adding the attempts to the ones already recorded
+     */
+    public void recordFailure(final NodeRef nodeRef, final Throwable error, final int attempts)
+    {
+        RetryingTransactionCallback<Void> recordCallback = new RetryingTransactionCallback<Void>()
+            {
+                @SuppressWarnings("unchecked")
+                public Void execute() throws Throwable
+                {
+                    String key = nodeRef.toString();
+                    HashMap<String, Serializable> entry = (HashMap<String, Serializable>) attributeService
+                            .getAttribute(KEY_ROOT, KEY_FAILURES, key);
+                    int previousAttempts = 0;
+                    if (entry == null)
+                    {
+                        entry = new HashMap<String, Serializable>();
+                    }
+                    else if (entry.get(ATTEMPTS) != null)
+                    {
+                        previousAttempts = (Integer) entry.get(ATTEMPTS);
+                    }
+                    entry.put(ATTEMPTS, previousAttempts + attempts);
+                    entry.put(LAST_ERROR, String.valueOf(error));
+                    entry.put(LAST_FAILURE, new Date());
+                    attributeService.setAttribute(entry, KEY_ROOT, KEY_FAILURES, key);
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(recordCallback, false, true);
+    }
+
+    /**
+     * Forget the failures of a node once it has been cleaned
+     */
+    public void clearFailure(final NodeRef nodeRef)
+    {
+        RetryingTransactionCallback<Void> clearCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    if (attributeService.exists(KEY_ROOT, KEY_FAILURES, nodeRef.toString()))
+                    {
+                        attributeService.removeAttribute(KEY_ROOT, KEY_FAILURES, nodeRef.toString());
+                    }
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(clearCallback, false, true);
+    }
+
+    /**
+     * @return the failures recorded, by node
+     */
+    public Map<String, Map<String, Serializable>> getFailures()
+    {
+        final Map<String, Map<String, Serializable>> failures = new TreeMap<String, Map<String, Serializable>>();
+        final AttributeService.AttributeQueryCallback queryCallback = new AttributeService.AttributeQueryCallback()
+            {
+                @SuppressWarnings("unchecked")
+                public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                {
+                    failures.put((String) keys[2], (Map<String, Serializable>) value);
+                    return true;
+                }
+            };
+        RetryingTransactionCallback<Void> readCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    failures.clear();
+                    attributeService.getAttributes(queryCallback, KEY_ROOT, KEY_FAILURES);
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(readCallback, true);
+        return failures;
+    }
+
+    /**
+     * Forget all the failures
+     */
+    public void clear()
+    {
+        RetryingTransactionCallback<Void> clearCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.removeAttributes(KEY_ROOT, KEY_FAILURES);
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(clearCallback, false, true);
+    }
+}
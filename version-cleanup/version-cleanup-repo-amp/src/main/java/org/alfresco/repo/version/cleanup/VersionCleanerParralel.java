@@ -24,14 +24,47 @@
  */
 package org.alfresco.repo.version.cleanup;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
 import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.lock.NodeLockedException;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
@@ -54,6 +87,11 @@ import org.apache.commons.logging.LogFactory;
 import org.alfresco.repo.batch.BatchProcessor;
 import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
 import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.tenant.Tenant;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.tenant.TenantUtil.TenantRunAsWork;
 import org.alfresco.repo.security.authentication.*;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
@@ -79,11 +117,16 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
     private static final Comparator<Version> VERSION_DATE_COMPARATOR_REVERSE = new VersionDateComparatorReverse();
     //private static final String VERSION_SEARCH_STRING = "+ASPECT:\"{http://www.alfresco.org/model/content/1.0}versionable\"" +
     //                                                     "  -ASPECT:\"{http://www.alfresco.org/model/content/1.0}workingcopy\"";
+    private static final String VISITED_TXN_KEY = "VersionCleanerParralel.visited";
+    private static final String OUTCOME_TXN_KEY = "VersionCleanerParralel.outcome";
+    private static final String RESULT_TXN_KEY = "VersionCleanerParralel.result";
+    private static final String KEY_SPILL = "spill";
     private static final String VERSION_SEARCH_STRING = "ASPECT:\"{http://www.alfresco.org/model/content/1.0}versionable\"";
     private int bigPageLen = 50000;
     private TransactionService transactionService;
     private VersionService versionService;
     private SearchService searchService;
+    private ContentService contentService;
     private NodeService nodeService;
     private JobLockService jobLockService;
     private DescriptorService descriptorService;
@@ -92,11 +135,72 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
     private int maxVersionsToKeep = 50;
     private int minVersionsToKeep = 10;
     private int maxDaysToKeep = 365 * 15; // Approx 15 years by default
+    private String thinningSchedule = "";
     private int threadNumber = 2;
     private String searchLimiter;
+    private int targetedThreadNumber = 2;
+    private int targetedBatchSize = 20;
     private Date startDate;
     private Date endDate;
     private Boolean isRunning;
+    private volatile VersionCleanerResult lastResult;
+    private volatile VersionCleanerRunToken runToken;
+    /** first page to read by a resumed run, keyed by store; the stores without an entry start from the beginning */
+    private final Map<String, Integer> resumePositions = new ConcurrentHashMap<String, Integer>();
+    /** nodes cleaned by the paused run, keyed like resumePositions, they are skipped by the resumed run */
+    private final Map<String, NodeIdBitmap> resumeVisited = new ConcurrentHashMap<String, NodeIdBitmap>();
+    private boolean trackVisitedNodes = true;
+    private boolean deferContendedNodes = false;
+    private int deferredRetries = 3;
+    private long deferredBackoff = 1000L;
+    private AttributeService attributeService;
+    private VersionCleanerFailureLedger failureLedger;
+    private boolean spillCandidates = false;
+    private String spillDirectory;
+    /** candidates of a spilled run, only kept between runs when the run is paused */
+    private volatile CandidateSpillFile spillFile;
+    private volatile long spillResumeFrom;
+    private volatile NodeIdBitmap spillVisited;
+    /** whether the spill files left before the start have been looked at */
+    private boolean spillFilesChecked = false;
+    private boolean costBasedScheduling = false;
+    private int transactionCostBudget = 500;
+    private int maxNodesPerTransaction = 5000;
+    private int estimateSampleSize = 1000;
+    private double millisPerDeletion = 20.0;
+    private boolean versionStoreCandidates = false;
+    private boolean ageOnlyFastPath = false;
+    private int ageOnlyFastPathMinVersions = 20;
+    /** ageOnlyFastPath set and the version store found indexed at the start of the run */
+    private volatile boolean ageOnlyFastPathUsable = false;
+    private VersionCleanerRunLedger runLedger;
+    private int maxRunHistory = 100;
+    private int throughputWindow = 10;
+    private double throughputAlertRatio = 0.5;
+    private VersionCleanerTracer tracer = new VersionCleanerTracer(10000L);
+    private List<VersionCleanerStore> stores = Collections.emptyList();
+    private boolean collapseIdenticalVersions = false;
+    private boolean sweepOrphanedHistories = false;
+    private boolean orphanSweepDryRun = true;
+    private int orphanSweepBatchSize = 20;
+    private boolean planInReadOnlyTransactions = false;
+    private int planChunkSize = 100;
+    private int planApplyBatchSize = 50;
+    private String maxBytesPerHistory = "0";
+    private Map<String, String> maxBytesPerHistoryByType = Collections.emptyMap();
+    private NamespaceService namespaceService;
+    private HistorySizeBudget historySizeBudget;
+    private boolean offloadVersionContent = false;
+    private String contentStoreDirectory;
+    private String offloadDirectory;
+    private DataSource dataSource;
+    private TenantAdminService tenantAdminService;
+    private boolean cleanAllTenants = false;
+    private int tenantPageLen = 5000;
+    private int tenantBatchSize = 100;
+    private boolean partitionByParent = false;
+    private int partitionBatchSize = 500;
+    private volatile Map<String, VersionCleanerResult> lastTenantResults = Collections.emptyMap();
     /**
      * Running end date of the version cleaning process
      */
@@ -122,6 +226,76 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
         return isRunning;
     }
 
+    /**
+     * Is there a paused run that can be resumed
+     */
+    public Boolean getIsPaused()
+    {
+        return (!resumePositions.isEmpty() && runToken == null) || (spillFile != null && runToken == null);
+    }
+
+    /**
+     * Ask the running cleaning process to stop as soon as possible while keeping its position so that it can be
+     * continued with {@link #resume()}. The nodes being cleaned are finished and their transactions committed,
+     * the remaining nodes of the current page are skipped.
+     */
+    public void pause()
+    {
+        VersionCleanerRunToken token = runToken;
+        if (token != null)
+        {
+            token.pause();
+        }
+    }
+
+    /**
+     * Ask the running cleaning process to stop as soon as possible. A paused run is forgotten, the next run will
+     * start from the beginning.
+     */
+    public void cancel()
+    {
+        VersionCleanerRunToken token = runToken;
+        if (token != null)
+        {
+            token.cancel();
+        }
+        else if (spillFile != null)
+        {
+            // paused spilled run
+            spillFile.delete();
+            spillFile = null;
+            saveSpillPosition(false);
+        }
+        resumePositions.clear();
+        resumeVisited.clear();
+        spillVisited = null;
+    }
+
+    /**
+     * Continue a paused run from the page it was stopped on. Does a full run if there is no paused run.
+     */
+    public void resume()
+    {
+        execute();
+    }
+
+    /**
+     * Summary of the current or last full cleaning run, null if no run has been started yet
+     */
+    public VersionCleanerResult getLastResult()
+    {
+        return lastResult;
+    }
+
+    /**
+     * Summary per tenant of the current or last run cleaning all the tenants, keyed by tenant domain with the
+     * default tenant under "". The summaries add up to {@link #getLastResult()}.
+     */
+    public Map<String, VersionCleanerResult> getLastTenantResults()
+    {
+        return lastTenantResults;
+    }
+
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
     {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -158,10 +332,27 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
     }
     
     
+    /**
+     * @param targetedThreadNumber Set the number of threads used by {@link #cleanNodes(Collection)}
+     */
+    public void setTargetedThreadNumber(int targetedThreadNumber)
+    {
+        this.targetedThreadNumber = targetedThreadNumber;
+    }
+
+    /**
+     * @param targetedBatchSize Set the number of nodes cleaned per transaction by {@link #cleanNodes(Collection)}
+     */
+    public void setTargetedBatchSize(int targetedBatchSize)
+    {
+        this.targetedBatchSize = targetedBatchSize;
+    }
+
     /**
      * Not all the nodeRef of the node having to be checked are give to the 
      * BatchProcessor because it would be necessary to load all the nodeRefs in 
-     * memory. Paginate calls to BatchProcessor.
+     * memory. Paginate calls to BatchProcessor. A page is kept as an array of 
+     * node database IDs (8 bytes per node), resolved to nodeRefs by the workers.
      * @param bigPageLen nodes are given to BatchProcessor per iteration. 
      */
     public void setBigPageLen(int bigPageLen)
@@ -170,390 +361,3454 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
     }
 
     /**
-     * @param jobLockService service used to ensure that cleanup runs are not duplicated
+     * @param deferContendedNodes if true each node is cleaned in its own transaction, run by the cleaner threads
+     *            instead of the batch transactions. A node failing because of a concurrent update or a lock no
+     *            longer stalls its batch: it is retried later with a backoff, and recorded in the failure ledger if
+     *            it keeps failing. The cost based and grouped by folder batches do not apply.
      */
-    public void setJobLockService(JobLockService jobLockService)
+    public void setDeferContendedNodes(boolean deferContendedNodes)
     {
-        this.jobLockService = jobLockService;
+        this.deferContendedNodes = deferContendedNodes;
     }
 
-    public VersionCleanerParralel()
+    /**
+     * @param deferredRetries number of retries of a deferred node before it is recorded as failed
+     */
+    public void setDeferredRetries(int deferredRetries)
     {
-        this.listeners = new ArrayList<VersionStoreCleanerListener>(0);
+        this.deferredRetries = deferredRetries;
     }
 
     /**
-     * @param descriptorService used to determine the current Alfresco version
+     * @param deferredBackoff wait in milliseconds before the first retry of a deferred node, doubled on each retry
      */
-    public void setDescriptorService(DescriptorService descriptorService)
+    public void setDeferredBackoff(long deferredBackoff)
     {
-        this.descriptorService = descriptorService;
+        this.deferredBackoff = deferredBackoff;
     }
 
     /**
-     * @param versionService used to delete older versions
+     * @param attributeService used to persist the nodes that could not be cleaned
      */
-    public void setVersionService(VersionService versionService)
+    public void setAttributeService(AttributeService attributeService)
     {
-        this.versionService = versionService;
+        this.attributeService = attributeService;
     }
 
     /**
-     * @param queryService used to retrieve older versions
+     * @param trackVisitedNodes if true the IDs of the nodes cleaned are kept in a compressed bitmap for the
+     *            duration of the run so that nodes moving between pages while the index changes are cleaned once,
+     *            and pages are overlapped when candidates may have been skipped. A paused run keeps them, the
+     *            resumed run does not clean again the nodes of the page it restarts.
      */
-    public void setSearchService(SearchService searchService)
+    public void setTrackVisitedNodes(boolean trackVisitedNodes)
     {
-        this.searchService = searchService;
+        this.trackVisitedNodes = trackVisitedNodes;
     }
 
     /**
-     * @param transactionService the component to ensure proper transactional wrapping
+     * @param spillCandidates if true all the candidates are first written to a temporary file in one pass and
+     *            then cleaned from that file. The file is not memory-mapped: the IDs are written through a buffer
+     *            and read through a window of 64K IDs (see {@link CandidateSpillFile}). The heap used does not
+     *            depend on the number of nodes and the candidates are a stable snapshot for the whole run.
      */
-    public void setTransactionService(TransactionService transactionService)
+    public void setSpillCandidates(boolean spillCandidates)
     {
-        this.transactionService = transactionService;
+        this.spillCandidates = spillCandidates;
     }
 
     /**
-     * @param listeners the listeners that can react to deletions
+     * @param spillDirectory directory of the candidate file used when spillCandidates or versionStoreCandidates is
+     *            set, defaults to the temporary directory. It should be local to the server: the position of a paused
+     *            spilled run is kept with the attributeService so that the run resumes after a restart, and the first
+     *            spilled run after a start deletes the spill files left in the directory by the runs that were not
+     *            paused. Without an attributeService a restart loses the position and the next run spills again.
      */
-    public void setListeners(List<VersionStoreCleanerListener> listeners)
+    public void setSpillDirectory(String spillDirectory)
     {
-        this.listeners = listeners;
+        this.spillDirectory = spillDirectory;
     }
 
     /**
-     * Set the age in days that determines which of the versions that lie between the minVersionsToKeep and
-     * maxVersionsToKeep are deleted. A Version will be deleted if: ( It is older than the maxVersionsToKeep'th version
-     * ) OR ( (it is older than the minVersionsToKeep'th version) AND (it is older than maxDaysToKep) ) Default is 10
-     * 
-     * @param maxDaysToKeep Age cutoff (in days) for versions to keep.
+     * @param costBasedScheduling if true the transactions are sized by the number of versions expected to be
+     *            deleted instead of a fixed number of nodes, and the threads run the most expensive pending
+     *            transactions first. Ignored when planInReadOnlyTransactions or deferContendedNodes is set.
      */
-    public void setMaxDaysToKeep(int maxDaysToKeep)
+    public void setCostBasedScheduling(boolean costBasedScheduling)
     {
-        this.maxDaysToKeep = maxDaysToKeep;
+        this.costBasedScheduling = costBasedScheduling;
     }
 
     /**
-     * Set the maximum numbers of versions to keep. All versions older than this version will be deleted. This must be
-     * greater than minVersionsToKeep Default is 10
-     * 
-     * @param maxVersionsToKeep Cutoff (in number of versions ) for versions to keep
+     * @param transactionCostBudget approximate number of versions deleted per transaction when costBasedScheduling
+     *            is set. A node above the budget is cleaned in its own transaction.
      */
-    public void setMaxVersionsToKeep(int maxVersionsToKeep)
+    public void setTransactionCostBudget(int transactionCostBudget)
     {
-        this.maxVersionsToKeep = maxVersionsToKeep;
+        this.transactionCostBudget = transactionCostBudget;
     }
 
     /**
-     * Return the maximum number of version that will be kept
+     * @param maxNodesPerTransaction upper bound of the number of nodes per transaction when costBasedScheduling is
+     *            set
      */
-    public int getMaxVersionsToKeep()
+    public void setMaxNodesPerTransaction(int maxNodesPerTransaction)
     {
-        return this.maxVersionsToKeep;
+        this.maxNodesPerTransaction = maxNodesPerTransaction;
     }
 
     /**
-     * Set the minimum numbers of versions to keep. No versions younger than this version will be deleted. This must be
-     * smaller than maxVersionsToKeep Default is 2
-     * 
-     * @param minVersionsToKeep Cutoff (in number of versions ) for versions to delete
+     * @param planInReadOnlyTransactions if true the versions to delete are computed first in read-only
+     *            transactions, then deleted in short write transactions. A plan is only applied if the version
+     *            count and head version of the history have not changed since, otherwise the node is planned again
+     *            in the write transaction. Takes precedence over costBasedScheduling and partitionByParent, the
+     *            order of all the modes is given in the README.
      */
-    public void setMinVersionsToKeep(int minVersionsToKeep)
+    public void setPlanInReadOnlyTransactions(boolean planInReadOnlyTransactions)
     {
-        this.minVersionsToKeep = minVersionsToKeep;
+        this.planInReadOnlyTransactions = planInReadOnlyTransactions;
     }
 
     /**
-     * Limit the searches for versionable nodes. This string is appended to VERSION_SEARCH_STRING to return the nodes to
-     * check for histories
-     * 
-     * @param searchLimiter
+     * @param planChunkSize number of nodes planned per read-only transaction when planInReadOnlyTransactions is set
      */
-    public void setSearchLimiter(String searchLimiter)
+    public void setPlanChunkSize(int planChunkSize)
     {
-        this.searchLimiter = searchLimiter;
+        this.planChunkSize = planChunkSize;
     }
 
     /**
-     * Perform basic checks to ensure that the necessary dependencies were injected.
+     * @param planApplyBatchSize number of plans applied per write transaction when planInReadOnlyTransactions is set
      */
-    private void checkProperties()
+    public void setPlanApplyBatchSize(int planApplyBatchSize)
     {
-        PropertyCheck.mandatory(this, "versionService", versionService);
-        PropertyCheck.mandatory(this, "transactionService", transactionService);
-        PropertyCheck.mandatory(this, "searchService", searchService);
+        this.planApplyBatchSize = planApplyBatchSize;
+    }
 
-        if (Integer.parseInt(descriptorService.getCurrentRepositoryDescriptor().getVersionMajor()) < 3)
-        {
-            if ((minVersionsToKeep == 0) && (maxVersionsToKeep == 0))
-            {
-                logger
-                        .warn("minVersionsToKeep and maxVersionsToKeep are both set to zero. All found version histories will be deleted.");
-            }
-            else
-            {
-                throw new AlfrescoRuntimeException(
-                        "Deleting partial version histories is not supported prior to Alfresco version 3");
-            }
-            return;
-        }
+    /**
+     * @param partitionByParent if true each page of candidates is grouped by primary parent before being cleaned,
+     *            so that the nodes of a folder are cleaned by one worker, see {@link ParentPartitioner}. Ignored
+     *            when planInReadOnlyTransactions, deferContendedNodes or costBasedScheduling is set, and by the
+     *            spilled runs.
+     */
+    public void setPartitionByParent(boolean partitionByParent)
+    {
+        this.partitionByParent = partitionByParent;
+    }
 
-        // check the protect days
-        if (maxDaysToKeep <= 0)
-        {
-            logger.warn("Property 'maxDaysToKeep' is set to 0.");
-        }
-        else
-        {
-            logger.info("maxDaysToKeep set to " + maxDaysToKeep);
-        }
+    /**
+     * @param partitionBatchSize maximum number of nodes per transaction when the candidates are grouped by parent
+     */
+    public void setPartitionBatchSize(int partitionBatchSize)
+    {
+        this.partitionBatchSize = partitionBatchSize;
+    }
 
-        // check maxVersionsToKeep and minVersionsToKeep
-        if ((minVersionsToKeep < 0) || (maxVersionsToKeep < 0) || (minVersionsToKeep > maxVersionsToKeep))
-        {
-            String message = "";
-            if (maxVersionsToKeep < 0)
-            {
-                message = "Property 'maxVersionsToKeep' must be 0 or greater (0 is not recommended)";
-            }
-            else if (maxVersionsToKeep < 0)
-            {
-                message = "Property 'minVersionsToKeep' must be 0 or greater (0 is not recommended)";
-            }
-            else
-            {
-                message = "Property 'minVersionsToKeep' must be less than 'maxVersionsToKeep'";
-            }
-            throw new AlfrescoRuntimeException(message);
+    /**
+     * @param versionStoreCandidates if true the candidates are found by querying the version store for the
+     *            versions older than maxDaysToKeep, instead of scanning all the versionable nodes. Only the nodes with
+     *            old versions are cleaned; the version store must be indexed.
+     */
+    public void setVersionStoreCandidates(boolean versionStoreCandidates)
+    {
+        this.versionStoreCandidates = versionStoreCandidates;
+    }
 
-        }
-        else
-        {
-            if ((maxVersionsToKeep == 0) && (minVersionsToKeep == 0))
-            {
-                logger
-                        .warn("Property 'maxVersionsToKeep' and 'minVersionsToKeep' are set to 0. All versions will be deleted.");
-            }
-            else
-            {
-                logger.info("maxVersionsToKeep is set to " + maxVersionsToKeep);
-                logger.info("minVersionsToKeep is set to " + minVersionsToKeep);
-            }
-        }
+    /**
+     * @param ageOnlyFastPath if true the number of versions to delete is first computed from the size of the
+     *            history and a range query counting its versions older than maxDaysToKeep; the history is only
+     *            loaded when there is something to delete. Worth it when most nodes have nothing to delete and
+     *            maxVersionsToKeep is rarely reached. The version store must be indexed: the setting is ignored
+     *            with a warning by the runs that do not find it indexed, and the history of a node is loaded
+     *            anyway when the index does not hold all its versions.
+     */
+    public void setAgeOnlyFastPath(boolean ageOnlyFastPath)
+    {
+        this.ageOnlyFastPath = ageOnlyFastPath;
     }
 
-    public void execute()
+    /**
+     * @param ageOnlyFastPathMinVersions the histories with fewer versions are loaded without querying the index
+     *            when ageOnlyFastPath is set: the two index queries cost more than loading a short history
+     */
+    public void setAgeOnlyFastPathMinVersions(int ageOnlyFastPathMinVersions)
     {
-        checkProperties();
+        this.ageOnlyFastPathMinVersions = ageOnlyFastPathMinVersions;
+    }
 
-        // Bypass if the system is in read-only mode
-        if (transactionService.isReadOnly())
-        {
-            logger.debug("Version store cleaner bypassed; the system is read-only.");
-            return;
-        }
+    /**
+     * @param collapseIdenticalVersions if true the versions whose content is identical to the one of the next newer
+     *            version (metadata-only changes, same file uploaded again) are deleted first and do not count in
+     *            maxVersionsToKeep, minVersionsToKeep is still honoured. The age only fast path is not used.
+     */
+    public void setCollapseIdenticalVersions(boolean collapseIdenticalVersions)
+    {
+        this.collapseIdenticalVersions = collapseIdenticalVersions;
+    }
 
-        if (logger.isDebugEnabled())
-        {
-            logger.debug("Starting version store cleanup.");
-        }
-        refreshLock();
-        // Repeat attempts six times waiting 10 minutes between
-        startDate = new Date();
-        isRunning = true;
-        try
-        {
+    /**
+     * @param sweepOrphanedHistories if true each completed run is followed by a sweep of the version histories
+     *            whose node is gone or no longer versionable. The version store must be indexed.
+     * @see #sweepOrphanedHistories(boolean)
+     */
+    public void setSweepOrphanedHistories(boolean sweepOrphanedHistories)
+    {
+        this.sweepOrphanedHistories = sweepOrphanedHistories;
+    }
 
-            executeInternal();
-        }
-        catch (VmShutdownException e)
-        {
-            // Aborted
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("   Content store cleanup aborted.");
-            }
-        }
-        finally
-        {
-            endDate = new Date();
-            isRunning = false;
-            releaseLock();
-        }
+    /**
+     * @param orphanSweepDryRun if true the sweep following a run only reports the orphaned histories
+     */
+    public void setOrphanSweepDryRun(boolean orphanSweepDryRun)
+    {
+        this.orphanSweepDryRun = orphanSweepDryRun;
+    }
 
+    /**
+     * @param orphanSweepBatchSize number of orphaned histories deleted per transaction
+     */
+    public void setOrphanSweepBatchSize(int orphanSweepBatchSize)
+    {
+        this.orphanSweepBatchSize = orphanSweepBatchSize;
     }
 
-    public void executeInternal()
+    /**
+     * @param maxRunHistory number of run records kept
+     */
+    public void setMaxRunHistory(int maxRunHistory)
     {
-        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
-        int startingElement = 0;
-        int lot = 0;
-        while (true)
-        {
-            lot++;
-            // search by page
-            refreshLock();
-            final int staticStartingElement = startingElement;
-            // execute in READ-WRITE txn
-            RetryingTransactionCallback<Collection<NodeRef>> executeCallback = new RetryingTransactionCallback<Collection<NodeRef>>()
-                {
-                    public Collection<NodeRef> execute() throws Exception
-                    {
-                        StoreRef storeRef = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "SpacesStore");
-                        String limitedSearchString = VERSION_SEARCH_STRING + searchLimiter;
-                        // Get VersionableNodes
-                        Collection<NodeRef> versionableNodes = executeQuery(storeRef, searchService,
-                                limitedSearchString, staticStartingElement, bigPageLen);
-                        return versionableNodes;
-                    };
-                };
+        this.maxRunHistory = maxRunHistory;
+    }
 
-            try
-            {
-                if (vmShutdownListener.isVmShuttingDown())
-                {
-                    throw new VmShutdownException();
-                }
-                Collection<NodeRef> nodesToCleaned = transactionService.getRetryingTransactionHelper().doInTransaction(
-                        executeCallback, true);
-                final BatchProcessor<NodeRef> groupProcessor = new BatchProcessor<NodeRef>("VersionCleaner", this.transactionService.getRetryingTransactionHelper(), nodesToCleaned, threadNumber,
-                        5000,this.applicationEventPublisher, logger, 500);
-                final Date deleteOlder = new Date(System.currentTimeMillis() - (long) maxDaysToKeep * 3600L * 1000L
-                        * 24L);
-                class NodeVersionCleaner implements BatchProcessWorker<NodeRef>
-                {
-                    public String getIdentifier(NodeRef entry)
-                    {
-                        return entry.toString();
-                    }
+    /**
+     * @param throughputWindow number of previous completed runs whose median throughput is compared to the
+     *            throughput of a run
+     */
+    public void setThroughputWindow(int throughputWindow)
+    {
+        this.throughputWindow = throughputWindow;
+    }
 
-                    public void process(NodeRef currentNode) throws Throwable
-                    {
-                        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
-                        // Clean one node
-                        if (!nodeService.exists(currentNode))
-                            return;
-                        VersionHistory history = versionService.getVersionHistory(currentNode);
-                        if (history == null)
-                            return;
-                        List<Version> versions = new ArrayList<Version>(history.getAllVersions());
+    /**
+     * @param throughputAlertRatio a warning is logged when the throughput of a run (nodes per second) is below this
+     *            fraction of the median throughput of the previous runs
+     */
+    public void setThroughputAlertRatio(double throughputAlertRatio)
+    {
+        this.throughputAlertRatio = throughputAlertRatio;
+    }
+
+    /**
+     * @param slowNodeThreshold duration in milliseconds above which the cleaning of a node is logged at WARN with
+     *            its timing breakdown, 0 to disable. The timings of every page, node and commit are logged at TRACE
+     *            level by {@link VersionCleanerTracer}.
+     */
+    public void setSlowNodeThreshold(long slowNodeThreshold)
+    {
+        this.tracer = new VersionCleanerTracer(slowNodeThreshold);
+    }
+
+    /**
+     * @param stores the stores scanned by a run, each with its own worker threads and optionally its own retention
+     *            rules. The stores are cleaned concurrently. Defaults to workspace://SpacesStore with the settings of
+     *            the cleaner. The spilled and version store modes only clean workspace://SpacesStore.
+     */
+    public void setStores(List<VersionCleanerStore> stores)
+    {
+        this.stores = stores;
+    }
+
+    /**
+     * @param estimateSampleSize number of nodes sampled by estimate()
+     */
+    public void setEstimateSampleSize(int estimateSampleSize)
+    {
+        this.estimateSampleSize = estimateSampleSize;
+    }
+
+    /**
+     * @param millisPerDeletion time taken by the deletion of one version, used to project the runtime of a run
+     */
+    public void setMillisPerDeletion(double millisPerDeletion)
+    {
+        this.millisPerDeletion = millisPerDeletion;
+    }
+
+    /**
+     * @param jobLockService service used to ensure that cleanup runs are not duplicated
+     */
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    public VersionCleanerParralel()
+    {
+        this.listeners = new ArrayList<VersionStoreCleanerListener>(0);
+    }
+
+    /**
+     * @param descriptorService used to determine the current Alfresco version
+     */
+    public void setDescriptorService(DescriptorService descriptorService)
+    {
+        this.descriptorService = descriptorService;
+    }
+
+    /**
+     * @param versionService used to delete older versions
+     */
+    public void setVersionService(VersionService versionService)
+    {
+        this.versionService = versionService;
+    }
+
+    /**
+     * @param queryService used to retrieve older versions
+     */
+    public void setSearchService(SearchService searchService)
+    {
+        this.searchService = searchService;
+    }
+
+    /**
+     * @param contentService used to compare the content of versions, needed by collapseIdenticalVersions
+     */
+    public void setContentService(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+    /**
+     * @param namespaceService resolves the prefixed type names of maxBytesPerHistoryByType
+     */
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    /**
+     * @param maxBytesPerHistory maximum content size of a version history, e.g. 2g. The oldest versions beyond
+     *            minVersionsToKeep are deleted until the history fits. 0 disables the budget.
+     */
+    public synchronized void setMaxBytesPerHistory(String maxBytesPerHistory)
+    {
+        this.maxBytesPerHistory = maxBytesPerHistory;
+        this.historySizeBudget = null;
+    }
+
+    /**
+     * @param maxBytesPerHistoryByType maximum content size of the version history of the nodes of a type, e.g.
+     *            cm:content=500m, overriding maxBytesPerHistory for that exact type
+     */
+    public synchronized void setMaxBytesPerHistoryByType(Map<String, String> maxBytesPerHistoryByType)
+    {
+        this.maxBytesPerHistoryByType = maxBytesPerHistoryByType;
+        this.historySizeBudget = null;
+    }
+
+    /**
+     * @param offloadVersionContent if true the versions selected by the retention rules are not deleted, their
+     *            content is moved from contentStoreDirectory to offloadDirectory once the transaction marking them
+     *            with vcl:contentOffloaded has committed, see {@link VersionContentOffloader}. The versions marked
+     *            are skipped by the next runs. The content shared with a kept version or another node stays.
+     */
+    public void setOffloadVersionContent(boolean offloadVersionContent)
+    {
+        this.offloadVersionContent = offloadVersionContent;
+    }
+
+    /**
+     * @param contentStoreDirectory the root of the primary file content store, e.g. ${dir.contentstore}
+     */
+    public void setContentStoreDirectory(String contentStoreDirectory)
+    {
+        this.contentStoreDirectory = contentStoreDirectory;
+    }
+
+    /**
+     * @param offloadDirectory the root of the secondary file content store receiving the offloaded content
+     */
+    public void setOffloadDirectory(String offloadDirectory)
+    {
+        this.offloadDirectory = offloadDirectory;
+    }
+
+    /**
+     * @param dataSource the repository database, needed by offloadVersionContent to leave alone the content shared
+     *            with other nodes, see {@link ContentReferenceCounter}
+     */
+    public void setDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    public void setTenantAdminService(TenantAdminService tenantAdminService)
+    {
+        this.tenantAdminService = tenantAdminService;
+    }
+
+    /**
+     * @param cleanAllTenants if true and multi-tenancy is enabled, each run cleans the stores of all the enabled
+     *            tenants with a pool of threadNumber threads shared fairly between the tenants. The planned, cost
+     *            based, grouped by folder and per store thread settings do not apply to such runs, the spilled and
+     *            version store modes only clean the default tenant.
+     */
+    public void setCleanAllTenants(boolean cleanAllTenants)
+    {
+        this.cleanAllTenants = cleanAllTenants;
+    }
+
+    /**
+     * @param tenantPageLen number of candidates read per query when cleaning all the tenants
+     */
+    public void setTenantPageLen(int tenantPageLen)
+    {
+        this.tenantPageLen = tenantPageLen;
+    }
+
+    /**
+     * @param tenantBatchSize number of nodes per transaction when cleaning all the tenants, the workers move to the
+     *            next tenant after each batch
+     */
+    public void setTenantBatchSize(int tenantBatchSize)
+    {
+        this.tenantBatchSize = tenantBatchSize;
+    }
+
+    private synchronized HistorySizeBudget getHistorySizeBudget()
+    {
+        if (historySizeBudget == null)
+        {
+            historySizeBudget = HistorySizeBudget.parse(maxBytesPerHistory, maxBytesPerHistoryByType,
+                    namespaceService);
+        }
+        return historySizeBudget;
+    }
+
+    /**
+     * @param transactionService the component to ensure proper transactional wrapping
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param listeners the listeners that can react to deletions
+     */
+    public void setListeners(List<VersionStoreCleanerListener> listeners)
+    {
+        this.listeners = listeners;
+    }
+
+    /**
+     * Set the age in days that determines which of the versions that lie between the minVersionsToKeep and
+     * maxVersionsToKeep are deleted. A Version will be deleted if: ( It is older than the maxVersionsToKeep'th version
+     * ) OR ( (it is older than the minVersionsToKeep'th version) AND (it is older than maxDaysToKep) ) Default is 10
+     * 
+     * @param maxDaysToKeep Age cutoff (in days) for versions to keep.
+     */
+    public void setMaxDaysToKeep(int maxDaysToKeep)
+    {
+        this.maxDaysToKeep = maxDaysToKeep;
+    }
+
+    /**
+     * Thin the versions out with age instead of applying maxVersionsToKeep and maxDaysToKeep, e.g.
+     * "1d:all,7d:1d,30d:7d,365d:30d" keeps all the versions of the last day, then one per day for a week, one per
+     * week for a month and one per month for a year. minVersionsToKeep still applies. Empty to disable.
+     * 
+     * @param thinningSchedule a {@link VersionThinningSchedule}
+     */
+    public void setThinningSchedule(String thinningSchedule)
+    {
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    /**
+     * Set the maximum numbers of versions to keep. All versions older than this version will be deleted. This must be
+     * greater than minVersionsToKeep Default is 10
+     * 
+     * @param maxVersionsToKeep Cutoff (in number of versions ) for versions to keep
+     */
+    public void setMaxVersionsToKeep(int maxVersionsToKeep)
+    {
+        this.maxVersionsToKeep = maxVersionsToKeep;
+    }
+
+    /**
+     * Return the maximum number of version that will be kept
+     */
+    public int getMaxVersionsToKeep()
+    {
+        return this.maxVersionsToKeep;
+    }
+
+    /**
+     * Set the minimum numbers of versions to keep. No versions younger than this version will be deleted. This must be
+     * smaller than maxVersionsToKeep Default is 2
+     * 
+     * @param minVersionsToKeep Cutoff (in number of versions ) for versions to delete
+     */
+    public void setMinVersionsToKeep(int minVersionsToKeep)
+    {
+        this.minVersionsToKeep = minVersionsToKeep;
+    }
+
+    /**
+     * Limit the searches for versionable nodes. This string is appended to VERSION_SEARCH_STRING to return the nodes to
+     * check for histories
+     * 
+     * @param searchLimiter
+     */
+    public void setSearchLimiter(String searchLimiter)
+    {
+        this.searchLimiter = searchLimiter;
+    }
+
+    /**
+     * Perform basic checks to ensure that the necessary dependencies were injected.
+     */
+    private void checkProperties()
+    {
+        PropertyCheck.mandatory(this, "versionService", versionService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "searchService", searchService);
+        if (collapseIdenticalVersions)
+        {
+            PropertyCheck.mandatory(this, "contentService", contentService);
+        }
+        if (offloadVersionContent)
+        {
+            PropertyCheck.mandatory(this, "contentStoreDirectory", contentStoreDirectory);
+            PropertyCheck.mandatory(this, "offloadDirectory", offloadDirectory);
+            PropertyCheck.mandatory(this, "dataSource", dataSource);
+            if (!new File(contentStoreDirectory).isDirectory())
+            {
+                throw new AlfrescoRuntimeException("Content store directory not found: " + contentStoreDirectory);
+            }
+            logger.info("Version content offloaded from " + contentStoreDirectory + " to " + offloadDirectory);
+        }
+        if (cleanAllTenants)
+        {
+            PropertyCheck.mandatory(this, "tenantAdminService", tenantAdminService);
+            if (tenantPageLen <= 0 || tenantBatchSize <= 0)
+            {
+                throw new AlfrescoRuntimeException("Properties 'tenantPageLen' and 'tenantBatchSize' must be positive");
+            }
+            if (tenantAdminService.isEnabled())
+            {
+                warnTenantSettings();
+            }
+        }
+        if (partitionByParent && partitionBatchSize <= 0)
+        {
+            throw new AlfrescoRuntimeException("Property 'partitionBatchSize' must be positive");
+        }
+        warnIgnoredModes();
+        // fail early on an invalid budget
+        if (getHistorySizeBudget().isEnabled())
+        {
+            logger.info("Version history size budget: " + getHistorySizeBudget());
+        }
+
+        if (Integer.parseInt(descriptorService.getCurrentRepositoryDescriptor().getVersionMajor()) < 3)
+        {
+            if ((minVersionsToKeep == 0) && (maxVersionsToKeep == 0))
+            {
+                logger
+                        .warn("minVersionsToKeep and maxVersionsToKeep are both set to zero. All found version histories will be deleted.");
+            }
+            else
+            {
+                throw new AlfrescoRuntimeException(
+                        "Deleting partial version histories is not supported prior to Alfresco version 3");
+            }
+            return;
+        }
+
+        // check the protect days
+        if (maxDaysToKeep <= 0)
+        {
+            logger.warn("Property 'maxDaysToKeep' is set to 0.");
+        }
+        else
+        {
+            logger.info("maxDaysToKeep set to " + maxDaysToKeep);
+        }
+
+        // check maxVersionsToKeep and minVersionsToKeep
+        if ((minVersionsToKeep < 0) || (maxVersionsToKeep < 0) || (minVersionsToKeep > maxVersionsToKeep))
+        {
+            String message = "";
+            if (maxVersionsToKeep < 0)
+            {
+                message = "Property 'maxVersionsToKeep' must be 0 or greater (0 is not recommended)";
+            }
+            else if (maxVersionsToKeep < 0)
+            {
+                message = "Property 'minVersionsToKeep' must be 0 or greater (0 is not recommended)";
+            }
+            else
+            {
+                message = "Property 'minVersionsToKeep' must be less than 'maxVersionsToKeep'";
+            }
+            throw new AlfrescoRuntimeException(message);
+
+        }
+        else
+        {
+            if ((maxVersionsToKeep == 0) && (minVersionsToKeep == 0))
+            {
+                logger
+                        .warn("Property 'maxVersionsToKeep' and 'minVersionsToKeep' are set to 0. All versions will be deleted.");
+            }
+            else
+            {
+                logger.info("maxVersionsToKeep is set to " + maxVersionsToKeep);
+                logger.info("minVersionsToKeep is set to " + minVersionsToKeep);
+            }
+        }
+
+        // the stores fall back on the settings above, resolving them checks their own settings
+        logger.info("Stores cleaned: " + getStores());
+    }
+
+    public void execute()
+    {
+        checkProperties();
+
+        // Bypass if the system is in read-only mode
+        if (transactionService.isReadOnly())
+        {
+            logger.debug("Version store cleaner bypassed; the system is read-only.");
+            return;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Starting version store cleanup.");
+        }
+        refreshLock();
+        // Repeat attempts six times waiting 10 minutes between
+        startDate = new Date();
+        isRunning = true;
+        try
+        {
+
+            executeInternal();
+        }
+        catch (VmShutdownException e)
+        {
+            // Aborted
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("   Content store cleanup aborted.");
+            }
+        }
+        finally
+        {
+            endDate = new Date();
+            isRunning = false;
+            releaseLock();
+        }
+
+    }
+
+    public void executeInternal()
+    {
+        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
+        final VersionCleanerResult result = new VersionCleanerResult();
+        result.start();
+        lastResult = result;
+        lastTenantResults = Collections.emptyMap();
+        final VersionCleanerRunToken token = new VersionCleanerRunToken();
+        runToken = token;
+        String status = "failed";
+        boolean completed = false;
+        try
+        {
+            ageOnlyFastPathUsable = ageOnlyFastPath && isVersionStoreIndexed();
+            if (versionStoreCandidates)
+            {
+                executeVersionStore(result, token);
+            }
+            else if (spillCandidates)
+            {
+                executeSpilled(result, token);
+            }
+            else if (cleanAllTenants && tenantAdminService.isEnabled())
+            {
+                executeTenants(result, token);
+            }
+            else
+            {
+                executeStores(result, token);
+            }
+            status = token.isCancelRequested() ? "cancelled" : (token.isPauseRequested() ? "paused" : "completed");
+            completed = !token.isStopRequested();
+        }
+        finally
+        {
+            result.end();
+            runToken = null;
+            recordRun(result, status);
+        }
+        if (result.getTransactionsRolledBack() > 0)
+        {
+            logger.info("Version cleanup rolled back " + result.getTransactionsRolledBack() + " of "
+                    + (result.getTransactionsCommitted() + result.getTransactionsRolledBack()) + " transactions ("
+                    + Math.round(result.getRetryRate() * 1000.0) / 10.0 + "%), partitionByParent="
+                    + partitionByParent);
+        }
+        if (completed && sweepOrphanedHistories)
+        {
+            runSweep(orphanSweepDryRun);
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Version cleanup finished: " + result);
+        }
+    }
+
+    /**
+     * Find the version histories whose node has been purged, is no longer versionable or that have no version,
+     * and delete them unless dryRun is set. The histories of the nodes in the trashcan are kept. The sweep takes
+     * the cleaner job lock so it does not run at the same time as a cleaning run. The version store must be
+     * indexed.
+     * 
+     * @return the number of orphaned histories found and deleted
+     */
+    public VersionHistorySweeper.SweepResult sweepOrphanedHistories(boolean dryRun)
+    {
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "searchService", searchService);
+        if (!dryRun && transactionService.isReadOnly())
+        {
+            throw new AlfrescoRuntimeException(
+                    "Orphaned version histories cannot be deleted, the system is read-only");
+        }
+        refreshLock();
+        try
+        {
+            return runSweep(dryRun);
+        }
+        finally
+        {
+            releaseLock();
+        }
+    }
+
+    private VersionHistorySweeper.SweepResult runSweep(boolean dryRun)
+    {
+        Runnable lockRefresher = new Runnable()
+            {
+                public void run()
+                {
+                    refreshLock();
+                }
+            };
+        VersionHistorySweeper sweeper = new VersionHistorySweeper(transactionService, searchService, nodeService,
+                applicationEventPublisher, bigPageLen, threadNumber, orphanSweepBatchSize, lockRefresher);
+        VersionCleanerRunToken token = new VersionCleanerRunToken();
+        runToken = token;
+        try
+        {
+            return sweeper.sweep(dryRun, token);
+        }
+        finally
+        {
+            runToken = null;
+        }
+    }
+
+    /**
+     * Persist the record of a run and warn if its throughput dropped compared to the previous runs
+     */
+    private void recordRun(VersionCleanerResult result, String status)
+    {
+        if (attributeService == null)
+        {
+            return;
+        }
+        try
+        {
+            String server;
+            try
+            {
+                server = InetAddress.getLocalHost().getHostName();
+            }
+            catch (UnknownHostException e)
+            {
+                server = "unknown";
+            }
+            HashMap<String, Serializable> record = VersionCleanerRunLedger.createRecord(result, status, server,
+                    getConfiguration());
+            double median = getRunLedger().getMedianThroughput(throughputWindow);
+            double throughput = (Double) record.get(VersionCleanerRunLedger.THROUGHPUT);
+            boolean alert = "completed".equals(status) && result.getNodesProcessed() > 0 && median > 0.0
+                    && throughput < median * throughputAlertRatio;
+            record.put(VersionCleanerRunLedger.THROUGHPUT_ALERT, alert);
+            getRunLedger().recordRun(record);
+            if (alert)
+            {
+                logger.warn("Version cleanup throughput dropped to " + Math.round(throughput * 10.0) / 10.0
+                        + " nodes/s, the median of the previous runs is " + Math.round(median * 10.0) / 10.0
+                        + " nodes/s: " + result);
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Unable to record the version cleanup run: " + e);
+        }
+    }
+
+    /**
+     * @return the settings recorded with each run
+     */
+    private HashMap<String, Serializable> getConfiguration()
+    {
+        HashMap<String, Serializable> configuration = new HashMap<String, Serializable>();
+        configuration.put("minVersionsToKeep", minVersionsToKeep);
+        configuration.put("maxVersionsToKeep", maxVersionsToKeep);
+        configuration.put("maxDaysToKeep", maxDaysToKeep);
+        configuration.put("thinningSchedule", thinningSchedule);
+        configuration.put("threadNumber", threadNumber);
+        configuration.put("bigPageLen", bigPageLen);
+        configuration.put("searchLimiter", searchLimiter);
+        configuration.put("deferContendedNodes", deferContendedNodes);
+        configuration.put("spillCandidates", spillCandidates);
+        configuration.put("costBasedScheduling", costBasedScheduling);
+        configuration.put("planInReadOnlyTransactions", planInReadOnlyTransactions);
+        configuration.put("versionStoreCandidates", versionStoreCandidates);
+        configuration.put("ageOnlyFastPath", ageOnlyFastPath);
+        configuration.put("ageOnlyFastPathMinVersions", ageOnlyFastPathMinVersions);
+        configuration.put("collapseIdenticalVersions", collapseIdenticalVersions);
+        configuration.put("maxBytesPerHistory", maxBytesPerHistory);
+        configuration.put("maxBytesPerHistoryByType", String.valueOf(maxBytesPerHistoryByType));
+        configuration.put("offloadVersionContent", offloadVersionContent);
+        configuration.put("cleanAllTenants", cleanAllTenants);
+        configuration.put("partitionByParent", partitionByParent);
+        configuration.put("stores", getStores().toString());
+        return configuration;
+    }
+
+    private synchronized VersionCleanerRunLedger getRunLedger()
+    {
+        if (runLedger == null)
+        {
+            runLedger = new VersionCleanerRunLedger(attributeService, transactionService, maxRunHistory);
+        }
+        return runLedger;
+    }
+
+    /**
+     * @return the records of the previous runs of all the servers, newest first
+     */
+    public List<Map<String, Serializable>> getRunHistory()
+    {
+        if (attributeService == null)
+        {
+            return Collections.emptyList();
+        }
+        return getRunLedger().getRuns();
+    }
+
+    /**
+     * Forget the records of the previous runs
+     */
+    public void clearRunHistory()
+    {
+        if (attributeService != null)
+        {
+            getRunLedger().clear();
+        }
+    }
+
+    /**
+     * @return workspace://SpacesStore with the settings of the cleaner
+     */
+    private VersionCleanerStore getDefaultStore()
+    {
+        return new VersionCleanerStore(StoreRef.PROTOCOL_WORKSPACE + "://SpacesStore").resolve(threadNumber,
+                minVersionsToKeep, maxVersionsToKeep, maxDaysToKeep, thinningSchedule);
+    }
+
+    /**
+     * @return the stores to clean with their settings resolved
+     */
+    private ArrayList<VersionCleanerStore> getStores()
+    {
+        ArrayList<VersionCleanerStore> resolved = new ArrayList<VersionCleanerStore>();
+        if (stores == null || stores.isEmpty())
+        {
+            resolved.add(getDefaultStore());
+        }
+        else
+        {
+            for (VersionCleanerStore store : stores)
+            {
+                resolved.add(store.resolve(threadNumber, minVersionsToKeep, maxVersionsToKeep, maxDaysToKeep,
+                        thinningSchedule));
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Clean the stores, each one in its own thread when there are several. The job lock is held and refreshed by
+     * the calling thread while it waits for the stores.
+     */
+    private void executeStores(final VersionCleanerResult result, final VersionCleanerRunToken token)
+    {
+        List<VersionCleanerStore> resolvedStores = getStores();
+        if (resolvedStores.size() == 1)
+        {
+            executePaged(result, token, resolvedStores.get(0), true);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(resolvedStores.size());
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final VersionCleanerStore store : resolvedStores)
+            {
+                futures.add(executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
+                            executePaged(result, token, store, false);
+                        }
+                    }));
+            }
+            for (Future<?> future : futures)
+            {
+                while (true)
+                {
+                    try
+                    {
+                        future.get(60L, TimeUnit.SECONDS);
+                        break;
+                    }
+                    catch (TimeoutException e)
+                    {
+                        refreshLock();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            token.pause();
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof VmShutdownException)
+            {
+                throw (VmShutdownException) e.getCause();
+            }
+            throw new AlfrescoRuntimeException("Version cleanup failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Clean the stores of the default tenant and of all the enabled tenants. The calling thread holds the job lock
+     * and reads the candidates of the tenants by pages of tenantPageLen, each under the system user of its tenant,
+     * queueing them in batches of tenantBatchSize. A pool of threadNumber workers shared by all the tenants takes
+     * the batches from the tenants in turn (see {@link TenantWorkQueue}) so a large tenant does not hold the
+     * workers while the small ones wait. A paused run keeps a position per tenant store: the first page that has
+     * not been fully cleaned.
+     */
+    private void executeTenants(VersionCleanerResult result, final VersionCleanerRunToken token)
+    {
+        Map<String, VersionCleanerResult> tenantResults = new LinkedHashMap<String, VersionCleanerResult>();
+        List<TenantStoreRun> storeRuns = new ArrayList<TenantStoreRun>();
+        for (String tenantDomain : getTenantDomains())
+        {
+            VersionCleanerResult tenantResult = new VersionCleanerResult(result);
+            tenantResult.start();
+            tenantResults.put(tenantDomain, tenantResult);
+            for (VersionCleanerStore store : getStores())
+            {
+                TenantStoreRun storeRun = new TenantStoreRun(tenantDomain, store, tenantResult, token);
+                Integer resumeFrom = resumePositions.remove(storeRun.toString());
+                if (resumeFrom != null)
+                {
+                    storeRun.startingElement = resumeFrom;
+                    logger.info("Resuming version cleanup of " + storeRun + " at:" + resumeFrom);
+                }
+                storeRuns.add(storeRun);
+            }
+        }
+        lastTenantResults = Collections.unmodifiableMap(tenantResults);
+        logger.info("Cleaning the versions of " + tenantResults.size() + " tenants");
+
+        final TenantWorkQueue<TenantBatch> queue = new TenantWorkQueue<TenantBatch>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNumber);
+        for (int i = 0; i < threadNumber; i++)
+        {
+            executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            TenantBatch batch;
+                            while ((batch = queue.take()) != null)
+                            {
+                                cleanTenantBatch(batch);
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        }
+        try
+        {
+            queueTenantPages(storeRuns, queue, token);
+        }
+        finally
+        {
+            queue.close();
+            executor.shutdown();
+            try
+            {
+                while (!executor.awaitTermination(60L, TimeUnit.SECONDS))
+                {
+                    refreshLock();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                token.pause();
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (token.isStopRequested())
+        {
+            for (TenantStoreRun storeRun : storeRuns)
+            {
+                // the pages read after the first one left are cleaned again on resume
+                Integer pageStart = storeRun.pagesInFlight.isEmpty() ? (storeRun.exhausted ? null
+                        : storeRun.startingElement) : storeRun.pagesInFlight.first();
+                if (pageStart != null)
+                {
+                    stopRun(token, storeRun.toString(), pageStart, null);
+                }
+            }
+        }
+
+        for (final TenantStoreRun storeRun : storeRuns)
+        {
+            if (storeRun.isolated != null)
+            {
+                TenantUtil.runAsSystemTenant(new TenantRunAsWork<Void>()
+                    {
+                        public Void doWork() throws Exception
+                        {
+                            storeRun.isolated.retryDeferredNodes();
+                            return null;
+                        }
+                    }, storeRun.tenantDomain);
+            }
+        }
+        for (Map.Entry<String, VersionCleanerResult> entry : tenantResults.entrySet())
+        {
+            entry.getValue().end();
+            logger.info("Version cleanup of tenant "
+                    + (TenantService.DEFAULT_DOMAIN.equals(entry.getKey()) ? "default" : entry.getKey()) + ": "
+                    + entry.getValue());
+        }
+    }
+
+    /**
+     * Warn about the modes set together that do not combine. The transactions of a page of candidates are built by
+     * the first mode set in this order:
+     * <ol>
+     * <li>planInReadOnlyTransactions: the plans are applied in batches of planApplyBatchSize, or one node per
+     * transaction if deferContendedNodes is set as well</li>
+     * <li>deferContendedNodes: one node per transaction</li>
+     * <li>costBasedScheduling: batches sized by estimated cost</li>
+     * <li>partitionByParent: batches holding whole folders</li>
+     * <li>batches of 5000 nodes</li>
+     * </ol>
+     * The spilled runs do not plan nor group by folder, the runs of all the tenants have their own batches (see
+     * {@link #warnTenantSettings()}).
+     */
+    private void warnIgnoredModes()
+    {
+        String winner = null;
+        List<String> ignored = new ArrayList<String>();
+        if (planInReadOnlyTransactions)
+        {
+            winner = "planInReadOnlyTransactions";
+        }
+        if (deferContendedNodes && winner == null)
+        {
+            winner = "deferContendedNodes";
+        }
+        if (costBasedScheduling)
+        {
+            if (winner == null)
+            {
+                winner = "costBasedScheduling";
+            }
+            else
+            {
+                ignored.add("costBasedScheduling");
+            }
+        }
+        if (partitionByParent && winner != null)
+        {
+            ignored.add("partitionByParent");
+        }
+        if (!ignored.isEmpty())
+        {
+            logger.warn("Properties " + ignored + " are ignored, '" + winner + "' takes precedence");
+        }
+        if (spillCandidates && !versionStoreCandidates && (planInReadOnlyTransactions || partitionByParent))
+        {
+            logger.warn("Properties 'planInReadOnlyTransactions' and 'partitionByParent' are ignored by the spilled"
+                    + " runs");
+        }
+    }
+
+    /**
+     * Warn about the settings that do not apply when all the tenants are cleaned
+     */
+    private void warnTenantSettings()
+    {
+        if (versionStoreCandidates || spillCandidates)
+        {
+            logger.warn("Property 'cleanAllTenants' is ignored, only the default tenant is cleaned when '"
+                    + (versionStoreCandidates ? "versionStoreCandidates" : "spillCandidates") + "' is set");
+            return;
+        }
+        List<String> ignored = new ArrayList<String>();
+        if (planInReadOnlyTransactions)
+        {
+            ignored.add("planInReadOnlyTransactions");
+        }
+        if (costBasedScheduling)
+        {
+            ignored.add("costBasedScheduling");
+        }
+        if (partitionByParent)
+        {
+            ignored.add("partitionByParent");
+        }
+        for (VersionCleanerStore store : getStores())
+        {
+            if (store.getThreadNumber() != threadNumber)
+            {
+                ignored.add("threadNumber of " + store.getStore());
+            }
+        }
+        if (!ignored.isEmpty())
+        {
+            logger.warn("Property 'cleanAllTenants' is set, the tenants are cleaned in batches of 'tenantBatchSize'"
+                    + " nodes by a pool of 'threadNumber' threads and these settings are ignored: " + ignored);
+        }
+    }
+
+    /**
+     * @return the default tenant followed by the enabled tenants
+     */
+    private List<String> getTenantDomains()
+    {
+        RetryingTransactionCallback<List<String>> tenantsCallback = new RetryingTransactionCallback<List<String>>()
+            {
+                public List<String> execute() throws Throwable
+                {
+                    List<String> tenantDomains = new ArrayList<String>();
+                    tenantDomains.add(TenantService.DEFAULT_DOMAIN);
+                    for (Tenant tenant : tenantAdminService.getAllTenants())
+                    {
+                        if (tenant.isEnabled())
+                        {
+                            tenantDomains.add(tenant.getTenantDomain());
+                        }
+                    }
+                    return tenantDomains;
+                }
+            };
+        return transactionService.getRetryingTransactionHelper().doInTransaction(tenantsCallback, true);
+    }
+
+    /**
+     * Read the pages of the tenant stores in turn, a store getting its next page once fewer than threadNumber
+     * batches of its tenant are left in the queue, until all the candidates are queued or the run is stopped
+     */
+    private void queueTenantPages(List<TenantStoreRun> storeRuns, TenantWorkQueue<TenantBatch> queue,
+            VersionCleanerRunToken token)
+    {
+        LinkedList<TenantStoreRun> pending = new LinkedList<TenantStoreRun>(storeRuns);
+        try
+        {
+            while (!pending.isEmpty())
+            {
+                refreshLock();
+                if (vmShutdownListener.isVmShuttingDown())
+                {
+                    throw new VmShutdownException();
+                }
+                if (token.isStopRequested())
+                {
+                    logger.info("Version cleanup of the tenants " + (token.isPauseRequested() ? "paused" : "cancelled")
+                            + ", " + queue.clear() + " batches dropped.");
+                    return;
+                }
+                boolean queued = false;
+                for (Iterator<TenantStoreRun> it = pending.iterator(); it.hasNext();)
+                {
+                    TenantStoreRun storeRun = it.next();
+                    if (queue.size(storeRun.tenantDomain) < threadNumber)
+                    {
+                        queued = true;
+                        if (!queueTenantPage(storeRun, queue))
+                        {
+                            storeRun.exhausted = true;
+                            it.remove();
+                        }
+                    }
+                }
+                if (!queued)
+                {
+                    queue.awaitTake(1000L);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            token.pause();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read the next page of candidates of a tenant store under the tenant system user and queue it in batches
+     * 
+     * @return false if there is no page left
+     */
+    private boolean queueTenantPage(final TenantStoreRun storeRun, TenantWorkQueue<TenantBatch> queue)
+    {
+        final int startingElement = storeRun.startingElement;
+        long queryStart = System.nanoTime();
+        CandidatePage page;
+        try
+        {
+            page = TenantUtil.runAsSystemTenant(new TenantRunAsWork<CandidatePage>()
+                {
+                    public CandidatePage doWork() throws Exception
+                    {
+                        return queryPage(storeRun.store, startingElement, tenantPageLen);
+                    }
+                }, storeRun.tenantDomain);
+        }
+        catch (Throwable e)
+        {
+            logger.error("Version cleaning of " + storeRun + " stopped by an error at:" + startingElement, e);
+            return false;
+        }
+        long queryNanos = System.nanoTime() - queryStart;
+        storeRun.result.addPhaseTime("query", queryNanos / 1000000L);
+        tracer.pageQueried(storeRun.toString(), startingElement, page.rows, queryNanos);
+        int size = page.nodeIds.size();
+        if (size > 0)
+        {
+            // the page is in flight until its last batch is cleaned
+            AtomicInteger batchesLeft = new AtomicInteger((size + tenantBatchSize - 1) / tenantBatchSize);
+            storeRun.pagesInFlight.add(startingElement);
+            for (int from = 0; from < size; from += tenantBatchSize)
+            {
+                queue.put(storeRun.tenantDomain, new TenantBatch(storeRun, page.nodeIds, from, Math.min(size, from
+                        + tenantBatchSize), startingElement, batchesLeft));
+            }
+        }
+        storeRun.startingElement = nextPageStart(startingElement, page, storeRun.previousNumberFound,
+                storeRun.result, tenantPageLen);
+        storeRun.previousNumberFound = page.numberFound;
+        return page.rows >= tenantPageLen;
+    }
+
+    /**
+     * Clean a batch of candidates of a tenant in one transaction under the tenant system user. A failed batch is
+     * counted as one error per node, like the BatchProcessor does. A batch cut short by a stop request leaves its
+     * page in flight so that a resumed run reads it again.
+     */
+    private void cleanTenantBatch(final TenantBatch batch)
+    {
+        final TenantStoreRun storeRun = batch.storeRun;
+        final RetryingTransactionCallback<Void> batchCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (int i = batch.from; i < batch.to; i++)
+                    {
+                        storeRun.unitOfWork.process(batch.nodeIds.get(i));
+                    }
+                    return null;
+                }
+            };
+        long cleanStart = System.currentTimeMillis();
+        try
+        {
+            TenantUtil.runAsSystemTenant(new TenantRunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        if (storeRun.isolated != null)
+                        {
+                            for (int i = batch.from; i < batch.to && !storeRun.token.isStopRequested(); i++)
+                            {
+                                storeRun.isolated.cleanNodeId(batch.nodeIds.get(i));
+                            }
+                            return null;
+                        }
+                        transactionService.getRetryingTransactionHelper().doInTransaction(batchCallback, false, true);
+                        return null;
+                    }
+                }, storeRun.tenantDomain);
+        }
+        catch (Throwable e)
+        {
+            storeRun.result.addErrors(batch.to - batch.from);
+            logger.warn("Version cleaning of " + (batch.to - batch.from) + " nodes of " + storeRun + " failed: " + e);
+        }
+        finally
+        {
+            storeRun.result.addPhaseTime("clean", System.currentTimeMillis() - cleanStart);
+        }
+        if (!storeRun.token.isStopRequested() && batch.pageBatchesLeft.decrementAndGet() == 0)
+        {
+            storeRun.pagesInFlight.remove(batch.pageStart);
+        }
+    }
+
+    /**
+     * Query the candidates page by page and clean each page before querying the next one
+     */
+    private void executePaged(VersionCleanerResult result, VersionCleanerRunToken token, VersionCleanerStore store,
+            boolean holdsLock)
+    {
+        int startingElement = 0;
+        Integer resumeFrom = resumePositions.remove(store.getStore());
+        NodeIdBitmap visited = resumeVisited.remove(store.getStore());
+        if (resumeFrom != null)
+        {
+            startingElement = resumeFrom;
+            logger.info("Resuming version cleanup of " + store.getStore() + " at:" + startingElement);
+        }
+        else
+        {
+            visited = null;
+        }
+        if (visited == null && trackVisitedNodes)
+        {
+            visited = new NodeIdBitmap();
+        }
+        long previousNumberFound = -1L;
+        int lot = 0;
+        while (true)
+        {
+            lot++;
+            // search by page
+            if (holdsLock)
+            {
+                refreshLock();
+            }
+            final int staticStartingElement = startingElement;
+
+            try
+            {
+                if (vmShutdownListener.isVmShuttingDown())
+                {
+                    throw new VmShutdownException();
+                }
+                long queryStart = System.nanoTime();
+                CandidatePage page = queryPage(store, staticStartingElement);
+                long queryNanos = System.nanoTime() - queryStart;
+                result.addPhaseTime("query", queryNanos / 1000000L);
+                tracer.pageQueried(store.getStore(), staticStartingElement, page.rows, queryNanos);
+                NodeIdBuffer nodesToCleaned = page.nodeIds;
+                final Date deleteOlder = store.getDeleteOlder();
+                if (token.isStopRequested())
+                {
+                    stopRun(token, store.getStore(), staticStartingElement, visited);
+                    break;
+                }
+                cleanNodeIds(nodesToCleaned, store, deleteOlder, visited, result, token);
+                if (token.isStopRequested())
+                {
+                    // the page is restarted on resume, its nodes already cleaned are skipped
+                    stopRun(token, store.getStore(), staticStartingElement, visited);
+                    break;
+                }
+
+                startingElement = nextPageStart(staticStartingElement, page, previousNumberFound, result);
+                previousNumberFound = page.numberFound;
+                // Done
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("  Cleaning iteration:" + staticStartingElement);
+                }
+                if (page.rows < bigPageLen)
+                    break;
+            }
+            catch (VmShutdownException e)
+            {
+                // Aborted
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Version cleanup aborted.");
+                }
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                logger.error("Version cleaning of " + store.getStore() + " stopped by an error at:"
+                        + staticStartingElement, e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Clean a page of candidates given by their database IDs, then retry the nodes deferred
+     */
+    private void cleanNodeIds(NodeIdBuffer nodeIds, VersionCleanerStore store, Date deleteOlder,
+            NodeIdBitmap visited, VersionCleanerResult result, VersionCleanerRunToken token)
+    {
+        VersionRetentionPlanner planner = store.createPlanner();
+        IsolatedNodeCleaner isolated = deferContendedNodes ? new IsolatedNodeCleaner(deleteOlder, planner, visited,
+                result, token) : null;
+        NodeIdVersionCleaner unitOfWork = new NodeIdVersionCleaner(new NodeVersionCleaner(deleteOlder, planner,
+                result, token), visited, result);
+        long cleanStart = System.currentTimeMillis();
+        if (planInReadOnlyTransactions)
+        {
+            List<VersionDeletionPlan> plans = planNodeIds(nodeIds, store, deleteOlder, planner, visited, result,
+                    token);
+            long planEnd = System.currentTimeMillis();
+            result.addPhaseTime("plan", planEnd - cleanStart);
+            cleanStart = planEnd;
+            if (isolated != null)
+            {
+                isolated.applyPlans(plans, store.getThreadNumber());
+            }
+            else
+            {
+                BatchProcessor<VersionDeletionPlan> applyProcessor = new BatchProcessor<VersionDeletionPlan>(
+                        "VersionCleanerApply", transactionService.getRetryingTransactionHelper(), plans,
+                        store.getThreadNumber(), planApplyBatchSize, applicationEventPublisher, logger, 500);
+                applyProcessor.process(new VersionDeletionPlanApplier(deleteOlder, planner, visited, result,
+                        token), true);
+                result.addErrors(applyProcessor.getTotalErrors());
+            }
+        }
+        else if (isolated != null)
+        {
+            isolated.cleanNodeIds(nodeIds.asList(), store.getThreadNumber());
+        }
+        else if (costBasedScheduling)
+        {
+            processCostBased(nodeIds, store, unitOfWork, result);
+        }
+        else if (partitionByParent)
+        {
+            ParentPartitioner partitioner = new ParentPartitioner(transactionService, nodeService,
+                    store.getThreadNumber(), partitionBatchSize);
+            List<List<Long>> batches = partitioner.partition(nodeIds);
+            long partitionEnd = System.currentTimeMillis();
+            result.addPhaseTime("partition", partitionEnd - cleanStart);
+            cleanStart = partitionEnd;
+            // the BatchProcessor re-cuts the work in batches of its own size: a batch is one entry, one group
+            BatchProcessor<List<Long>> groupProcessor = new BatchProcessor<List<Long>>("VersionCleaner",
+                    transactionService.getRetryingTransactionHelper(), batches, store.getThreadNumber(), 1,
+                    applicationEventPublisher, logger, 10);
+            NodeIdGroupCleaner groupCleaner = new NodeIdGroupCleaner(unitOfWork);
+            groupProcessor.process(groupCleaner, true);
+            if (groupProcessor.getTotalErrors() > 0)
+            {
+                result.addErrors(nodeIds.size() - groupCleaner.committed.get());
+            }
+        }
+        else
+        {
+            BatchProcessor<Long> groupProcessor = new BatchProcessor<Long>("VersionCleaner",
+                    transactionService.getRetryingTransactionHelper(), nodeIds.getWorkProvider(5000),
+                    store.getThreadNumber(), 5000, applicationEventPublisher, logger, 500);
+            groupProcessor.process(unitOfWork, true);
+            result.addErrors(groupProcessor.getTotalErrors());
+        }
+        result.addPhaseTime("clean", System.currentTimeMillis() - cleanStart);
+        if (isolated != null)
+        {
+            isolated.retryDeferredNodes();
+        }
+    }
+
+    /**
+     * Find the nodes having versions older than maxDaysToKeep in the version store, then clean them. A stopped run
+     * is not resumable, the version store is queried again by the next run.
+     */
+    private void executeVersionStore(VersionCleanerResult result, VersionCleanerRunToken token)
+    {
+        VersionCleanerStore store = getDefaultStore();
+        final Date deleteOlder = store.getDeleteOlder();
+        refreshLock();
+        VersionStoreCandidateSource source = new VersionStoreCandidateSource(transactionService, searchService,
+                nodeService, bigPageLen);
+        CandidateSpillFile candidates;
+        try
+        {
+            candidates = CandidateSpillFile.create(getSpillDirectory());
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to create the version cleaner spill file", e);
+        }
+        try
+        {
+            long queryStart = System.nanoTime();
+            boolean complete;
+            try
+            {
+                complete = source.findCandidates(deleteOlder, minVersionsToKeep, token, candidates);
+                candidates.flush();
+            }
+            catch (IOException e)
+            {
+                throw new AlfrescoRuntimeException("Unable to write the version cleaner spill file", e);
+            }
+            long queryNanos = System.nanoTime() - queryStart;
+            result.addPhaseTime("query", queryNanos / 1000000L);
+            tracer.pageQueried("versionStore", 0, (int) candidates.size(), queryNanos);
+            if (!complete)
+            {
+                logger.info("Version cleanup stopped while querying the version store.");
+                return;
+            }
+            NodeIdBitmap visited = trackVisitedNodes ? new NodeIdBitmap() : null;
+            for (long start = 0; start < candidates.size(); start += bigPageLen)
+            {
+                refreshLock();
+                if (vmShutdownListener.isVmShuttingDown())
+                {
+                    throw new VmShutdownException();
+                }
+                if (token.isStopRequested())
+                {
+                    logger.info("Version cleanup stopped at:" + start + " of " + candidates.size());
+                    return;
+                }
+                NodeIdBuffer page = candidates.read(start, Math.min(candidates.size(), start + bigPageLen));
+                cleanNodeIds(page, store, deleteOlder, visited, result, token);
+            }
+        }
+        finally
+        {
+            candidates.delete();
+        }
+    }
+
+    /**
+     * Query all the candidates first, spilling their IDs to a temporary file, then clean them reading the file
+     * sequentially. A paused run keeps the file and restarts from the segment it stopped in.
+     */
+    private void executeSpilled(VersionCleanerResult result, VersionCleanerRunToken token)
+    {
+        restoreSpillFile();
+        long startingElement = 0L;
+        NodeIdBitmap visited = spillVisited;
+        spillVisited = null;
+        if (spillFile != null)
+        {
+            startingElement = spillResumeFrom;
+            logger.info("Resuming spilled version cleanup at:" + startingElement + " of " + spillFile.size());
+        }
+        else
+        {
+            visited = null;
+            spillFile = spillCandidates(token, result);
+            if (spillFile == null)
+            {
+                logger.info("Version cleanup stopped while spilling the candidates.");
+                return;
+            }
+        }
+        VersionCleanerStore store = getDefaultStore();
+        final Date deleteOlder = store.getDeleteOlder();
+        VersionRetentionPlanner planner = store.createPlanner();
+        // the nodes cleaned before a pause are skipped, unless the server has been restarted in between
+        if (visited == null && trackVisitedNodes)
+        {
+            visited = new NodeIdBitmap();
+        }
+        boolean paused = false;
+        try
+        {
+            while (startingElement < spillFile.size())
+            {
+                refreshLock();
+                if (vmShutdownListener.isVmShuttingDown())
+                {
+                    throw new VmShutdownException();
+                }
+                if (token.isStopRequested())
+                {
+                    paused = token.isPauseRequested();
+                    break;
+                }
+                long end = Math.min(spillFile.size(), startingElement + bigPageLen);
+                IsolatedNodeCleaner isolated = deferContendedNodes ? new IsolatedNodeCleaner(deleteOlder, planner,
+                        visited, result, token) : null;
+                NodeIdVersionCleaner unitOfWork = new NodeIdVersionCleaner(new NodeVersionCleaner(deleteOlder,
+                        planner, result, token), visited, result);
+                long cleanStart = System.currentTimeMillis();
+                if (isolated != null)
+                {
+                    isolated.cleanNodeIds(spillFile.read(startingElement, end).asList(), threadNumber);
+                }
+                else if (costBasedScheduling)
+                {
+                    processCostBased(spillFile.read(startingElement, end), store, unitOfWork, result);
+                }
+                else
+                {
+                    BatchProcessor<Long> groupProcessor = new BatchProcessor<Long>("VersionCleaner",
+                            transactionService.getRetryingTransactionHelper(), spillFile.getWorkProvider(
+                                    startingElement, end, 5000), threadNumber, 5000, applicationEventPublisher,
+                            logger, 500);
+                    groupProcessor.process(unitOfWork, true);
+                    result.addErrors(groupProcessor.getTotalErrors());
+                }
+                result.addPhaseTime("clean", System.currentTimeMillis() - cleanStart);
+                if (isolated != null)
+                {
+                    isolated.retryDeferredNodes();
+                }
+                if (token.isStopRequested())
+                {
+                    // the segment has only been partially processed, it is restarted on resume
+                    paused = token.isPauseRequested();
+                    break;
+                }
+                startingElement = end;
+            }
+        }
+        finally
+        {
+            if (paused)
+            {
+                spillResumeFrom = startingElement;
+                spillVisited = visited;
+                logger.info("Version cleanup paused at:" + startingElement + " of " + spillFile.size());
+            }
+            else
+            {
+                spillFile.delete();
+                spillFile = null;
+            }
+            saveSpillPosition(paused);
+        }
+    }
+
+    /**
+     * On the first spilled run after a start, reopen the spill file of a run paused before the restart and delete
+     * the spill files left by the runs that were not paused. The runs that do not spill never read the position.
+     */
+    private void restoreSpillFile()
+    {
+        if (!spillFilesChecked)
+        {
+            spillFilesChecked = true;
+            if (spillFile == null && attributeService != null)
+            {
+                RetryingTransactionCallback<Serializable> readCallback = new RetryingTransactionCallback<Serializable>()
+                    {
+                        public Serializable execute() throws Throwable
+                        {
+                            return attributeService.getAttribute(VersionCleanerFailureLedger.KEY_ROOT, KEY_SPILL);
+                        }
+                    };
+                @SuppressWarnings("unchecked")
+                Map<String, Serializable> position = (Map<String, Serializable>) transactionService
+                        .getRetryingTransactionHelper().doInTransaction(readCallback, true);
+                if (position != null)
+                {
+                    File file = new File((String) position.get("file"));
+                    try
+                    {
+                        spillFile = CandidateSpillFile.open(file, (Long) position.get("size"));
+                        spillResumeFrom = (Long) position.get("resumeFrom");
+                        logger.info("Spilled version cleanup paused before the restart found in: " + file);
+                    }
+                    catch (IOException e)
+                    {
+                        logger.warn("The spilled version cleanup paused before the restart starts over: " + e);
+                        saveSpillPosition(false);
+                    }
+                }
+            }
+            int deleted = CandidateSpillFile.deleteStale(getSpillDirectory(), spillFile == null ? null : spillFile
+                    .getFile());
+            if (deleted > 0)
+            {
+                logger.info("Deleted " + deleted + " spill files left by previous runs.");
+            }
+        }
+    }
+
+    /**
+     * Keep the position of a paused spilled run with the attributeService, or forget it once the run is over
+     */
+    private void saveSpillPosition(final boolean paused)
+    {
+        if (attributeService == null)
+        {
+            return;
+        }
+        final CandidateSpillFile candidates = spillFile;
+        final long resumeFrom = spillResumeFrom;
+        RetryingTransactionCallback<Void> saveCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    if (paused && candidates != null)
+                    {
+                        HashMap<String, Serializable> position = new HashMap<String, Serializable>();
+                        position.put("file", candidates.getFile().getAbsolutePath());
+                        position.put("size", candidates.size());
+                        position.put("resumeFrom", resumeFrom);
+                        attributeService.setAttribute(position, VersionCleanerFailureLedger.KEY_ROOT, KEY_SPILL);
+                    }
+                    else if (attributeService.exists(VersionCleanerFailureLedger.KEY_ROOT, KEY_SPILL))
+                    {
+                        attributeService.removeAttribute(VersionCleanerFailureLedger.KEY_ROOT, KEY_SPILL);
+                    }
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(saveCallback, false, true);
+    }
+
+    /**
+     * @return the directory of the spill files, null for the temporary directory
+     */
+    private File getSpillDirectory()
+    {
+        return (spillDirectory == null || spillDirectory.trim().length() == 0) ? null : new File(spillDirectory);
+    }
+
+    /**
+     * Run the candidate query over all the pages and write the IDs found to a new spill file
+     * 
+     * @return the spill file or null if the run has been stopped
+     */
+    private CandidateSpillFile spillCandidates(VersionCleanerRunToken token, VersionCleanerResult result)
+    {
+        CandidateSpillFile candidates;
+        try
+        {
+            candidates = CandidateSpillFile.create(getSpillDirectory());
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to create the version cleaner spill file", e);
+        }
+        boolean complete = false;
+        try
+        {
+            int startingElement = 0;
+            long previousNumberFound = -1L;
+            while (true)
+            {
+                if (token.isStopRequested() || vmShutdownListener.isVmShuttingDown())
+                {
+                    return null;
+                }
+                refreshLock();
+                long queryStart = System.nanoTime();
+                CandidatePage page = queryPage(getDefaultStore(), startingElement);
+                long queryNanos = System.nanoTime() - queryStart;
+                result.addPhaseTime("query", queryNanos / 1000000L);
+                tracer.pageQueried("spill", startingElement, page.rows, queryNanos);
+                candidates.append(page.nodeIds);
+                startingElement = nextPageStart(startingElement, page, previousNumberFound, result);
+                previousNumberFound = page.numberFound;
+                if (page.rows < bigPageLen)
+                    break;
+            }
+            // a run paused before reading the file can be reopened after a restart
+            candidates.flush();
+            complete = true;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to write the version cleaner spill file", e);
+        }
+        finally
+        {
+            if (!complete)
+            {
+                candidates.delete();
+            }
+        }
+        logger.info("Version cleanup candidates spilled to " + candidates.getFile() + ": " + candidates.size());
+        return candidates;
+    }
+
+    /**
+     * Compute the deletion plans of a page of candidates in read-only transactions of planChunkSize nodes, run by
+     * the threads of the store. The nodes with nothing to delete are counted as processed and marked as visited.
+     * 
+     * @return the plans with versions to delete
+     */
+    private List<VersionDeletionPlan> planNodeIds(final NodeIdBuffer nodeIds, VersionCleanerStore store,
+            final Date deleteOlder, final VersionRetentionPlanner planner, final NodeIdBitmap visited,
+            final VersionCleanerResult result, final VersionCleanerRunToken token)
+    {
+        final List<VersionDeletionPlan> plans = Collections.synchronizedList(new ArrayList<VersionDeletionPlan>());
+        ExecutorService executor = Executors.newFixedThreadPool(store.getThreadNumber());
+        try
+        {
+            for (int from = 0; from < nodeIds.size(); from += planChunkSize)
+            {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(nodeIds.size(), from + planChunkSize);
+                executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            planChunk(nodeIds, chunkFrom, chunkTo, deleteOlder, planner, visited, result, token,
+                                    plans);
+                        }
+                    });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            token.pause();
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return plans;
+    }
+
+    private void planChunk(final NodeIdBuffer nodeIds, final int from, final int to, final Date deleteOlder,
+            final VersionRetentionPlanner planner, final NodeIdBitmap visited, final VersionCleanerResult result,
+            VersionCleanerRunToken token, List<VersionDeletionPlan> plans)
+    {
+        if (token.isStopRequested() || vmShutdownListener.isVmShuttingDown())
+        {
+            return;
+        }
+        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
+        RetryingTransactionCallback<List<VersionDeletionPlan>> planCallback;
+        planCallback = new RetryingTransactionCallback<List<VersionDeletionPlan>>()
+            {
+                public List<VersionDeletionPlan> execute() throws Throwable
+                {
+                    List<VersionDeletionPlan> chunkPlans = new ArrayList<VersionDeletionPlan>(to - from);
+                    for (int i = from; i < to; i++)
+                    {
+                        long nodeId = nodeIds.get(i);
+                        if (visited != null && visited.contains(nodeId))
+                        {
+                            continue;
+                        }
+                        NodeRef currentNode = nodeService.getNodeRef(nodeId);
+                        if (currentNode != null)
+                        {
+                            chunkPlans.add(planNode(nodeId, currentNode, deleteOlder, planner, result));
+                        }
+                    }
+                    return chunkPlans;
+                }
+            };
+        try
+        {
+            List<VersionDeletionPlan> chunkPlans = transactionService.getRetryingTransactionHelper().doInTransaction(
+                    planCallback, true, true);
+            for (VersionDeletionPlan plan : chunkPlans)
+            {
+                if (!plan.isEmpty())
+                {
+                    plans.add(plan);
+                    continue;
+                }
+                result.nodeProcessed(0);
+                if (visited != null)
+                {
+                    visited.add(plan.getNodeId());
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Unable to plan the version cleanup of " + (to - from) + " nodes: " + e);
+            result.addErrors(to - from);
+        }
+    }
+
+    /**
+     * Clean a page of candidates in transactions packed by estimated cost: the cost of a node is the number of
+     * versions it can lose, read from the number of children of its version history.
+     */
+    private void processCostBased(NodeIdBuffer nodeIds, final VersionCleanerStore store,
+            NodeIdVersionCleaner unitOfWork, VersionCleanerResult result)
+    {
+        final VersionStoreHelper versionStoreHelper = new VersionStoreHelper(nodeService);
+        CostBasedBatchProcessor.CostEstimator<Long> estimator = new CostBasedBatchProcessor.CostEstimator<Long>()
+            {
+                public int estimateCost(Long nodeId)
+                {
+                    NodeRef nodeRef = nodeService.getNodeRef(nodeId);
+                    if (nodeRef == null)
+                    {
+                        return 1;
+                    }
+                    int versionCount = versionStoreHelper.countVersions(nodeRef);
+                    return Math.max(0, versionCount - store.getMinVersionsToKeep()) + 1;
+                }
+            };
+        CostBasedBatchProcessor<Long> groupProcessor = new CostBasedBatchProcessor<Long>("VersionCleaner",
+                transactionService.getRetryingTransactionHelper(), store.getThreadNumber(), transactionCostBudget,
+                maxNodesPerTransaction, logger);
+        groupProcessor.process(nodeIds.asList(), estimator, unitOfWork);
+        result.addErrors(groupProcessor.getTotalErrors());
+    }
+
+    /**
+     * Estimate the version statistics of the repository and the effect of the current retention settings from a
+     * random sample of estimateSampleSize candidates. Nothing is deleted.
+     */
+    public VersionStatistics estimate()
+    {
+        return estimate(estimateSampleSize, minVersionsToKeep, maxVersionsToKeep, maxDaysToKeep);
+    }
+
+    /**
+     * Estimate the version statistics of the repository and the effect of a retention policy from a random sample
+     * of the candidates. Nothing is deleted.
+     */
+    public VersionStatistics estimate(int sampleSize, int minVersionsToKeep, int maxVersionsToKeep,
+            int maxDaysToKeep)
+    {
+        VersionStatisticsEstimator estimator = new VersionStatisticsEstimator(transactionService, searchService,
+                nodeService, versionService, threadNumber);
+        if (collapseIdenticalVersions)
+        {
+            estimator.setIdenticalContentDetector(new IdenticalContentDetector(contentService));
+        }
+        estimator.setHistorySizeBudget(getHistorySizeBudget());
+        VersionStatistics statistics = estimator.estimate(VERSION_SEARCH_STRING + searchLimiter, sampleSize,
+                new VersionRetentionPlanner(minVersionsToKeep, maxVersionsToKeep, VersionThinningSchedule
+                        .parse(thinningSchedule)), maxDaysToKeep, millisPerDeletion, threadNumber);
+        logger.info("Version statistics estimated: " + statistics);
+        return statistics;
+    }
+
+    /**
+     * Write the metadata of all the versions of the candidates (node ID, label, frozen date, content size and URL)
+     * to a {@link VersionMetadataFile} that {@link VersionRetentionSimulator} evaluates offline. The candidates are
+     * read page by page and their histories in read-only transactions of 100 nodes, nothing is deleted.
+     * 
+     * @param path the file to write
+     * @return the number of versions exported
+     */
+    public long exportVersionMetadata(String path) throws IOException
+    {
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "searchService", searchService);
+        VersionCleanerStore store = getDefaultStore();
+        VersionMetadataFile.Writer writer = new VersionMetadataFile.Writer(new File(path), new Date(),
+                VersionMetadataFile.DEFAULT_BLOCK_SIZE);
+        NodeIdBitmap exported = new NodeIdBitmap();
+        VersionCleanerResult pages = new VersionCleanerResult();
+        try
+        {
+            int startingElement = 0;
+            long previousNumberFound = -1L;
+            while (true)
+            {
+                CandidatePage page = queryPage(store, startingElement);
+                for (int from = 0; from < page.nodeIds.size(); from += 100)
+                {
+                    for (ExportedHistory history : readHistories(page.nodeIds, from, Math.min(from + 100,
+                            page.nodeIds.size()), exported))
+                    {
+                        writer.append(history.nodeId, history.labels, history.frozenModifiedDates, history.sizes,
+                                history.contentUrls);
+                        exported.add(history.nodeId);
+                    }
+                }
+                startingElement = nextPageStart(startingElement, page, previousNumberFound, pages);
+                previousNumberFound = page.numberFound;
+                if (page.rows < bigPageLen)
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        logger.info("Version metadata exported to " + path + ": " + writer.getVersionCount() + " versions");
+        return writer.getVersionCount();
+    }
+
+    /**
+     * Read the histories of a range of candidates in a read-only transaction
+     */
+    private List<ExportedHistory> readHistories(final NodeIdBuffer nodeIds, final int from, final int to,
+            final NodeIdBitmap exported)
+    {
+        RetryingTransactionCallback<List<ExportedHistory>> readCallback;
+        readCallback = new RetryingTransactionCallback<List<ExportedHistory>>()
+            {
+                public List<ExportedHistory> execute() throws Throwable
+                {
+                    List<ExportedHistory> histories = new ArrayList<ExportedHistory>();
+                    for (int index = from; index < to; index++)
+                    {
+                        long nodeId = nodeIds.get(index);
+                        NodeRef nodeRef = exported.contains(nodeId) ? null : nodeService.getNodeRef(nodeId);
+                        VersionHistory history = nodeRef == null ? null : versionService.getVersionHistory(nodeRef);
+                        if (history == null)
+                        {
+                            continue;
+                        }
+                        List<Version> versions = new ArrayList<Version>(history.getAllVersions());
                         Collections.sort(versions, VERSION_DATE_COMPARATOR);
+                        ExportedHistory exportedHistory = new ExportedHistory(nodeId, versions.size());
+                        for (int version = 0; version < versions.size(); version++)
+                        {
+                            exportedHistory.labels[version] = versions.get(version).getVersionLabel();
+                            exportedHistory.frozenModifiedDates[version] = versions.get(version)
+                                    .getFrozenModifiedDate();
+                            Serializable content = nodeService.getProperty(versions.get(version)
+                                    .getFrozenStateNodeRef(), ContentModel.PROP_CONTENT);
+                            if (content instanceof ContentData)
+                            {
+                                exportedHistory.sizes[version] = ((ContentData) content).getSize();
+                                exportedHistory.contentUrls[version] = ((ContentData) content).getContentUrl();
+                            }
+                        }
+                        histories.add(exportedHistory);
+                    }
+                    return histories;
+                }
+            };
+        return transactionService.getRetryingTransactionHelper().doInTransaction(readCallback, true);
+    }
+
+    /**
+     * The version metadata of a node, newest version first
+     */
+    private static class ExportedHistory
+    {
+        private final long nodeId;
+        private final String[] labels;
+        private final Date[] frozenModifiedDates;
+        private final long[] sizes;
+        private final String[] contentUrls;
+
+        ExportedHistory(long nodeId, int versionCount)
+        {
+            this.nodeId = nodeId;
+            labels = new String[versionCount];
+            frozenModifiedDates = new Date[versionCount];
+            sizes = new long[versionCount];
+            contentUrls = new String[versionCount];
+        }
+    }
+
+    /**
+     * Read one page of candidates in a read-only transaction
+     */
+    private CandidatePage queryPage(VersionCleanerStore store, int startingElement)
+    {
+        return queryPage(store, startingElement, bigPageLen);
+    }
+
+    private CandidatePage queryPage(final VersionCleanerStore store, final int startingElement, final int pageLen)
+    {
+        RetryingTransactionCallback<CandidatePage> executeCallback = new RetryingTransactionCallback<CandidatePage>()
+            {
+                public CandidatePage execute() throws Exception
+                {
+                    StoreRef storeRef = store.getStoreRef();
+                    String limitedSearchString = VERSION_SEARCH_STRING + searchLimiter;
+                    // Get VersionableNodes
+                    return executeQuery(storeRef, searchService, limitedSearchString, startingElement, pageLen);
+                };
+            };
+        return transactionService.getRetryingTransactionHelper().doInTransaction(executeCallback, true);
+    }
+
+    /**
+     * Offset of the page following a page. The pages are read by offset while the index changes: when the number
+     * of candidates found drops, candidates move before the offset already reached and would never be read. This
+     * is counted as a gap and, when the visited nodes are tracked, the next page starts earlier by the same amount
+     * so that they are read; the candidates read twice are then dropped by the visited set.
+     */
+    private int nextPageStart(int startingElement, CandidatePage page, long previousNumberFound,
+            VersionCleanerResult result)
+    {
+        return nextPageStart(startingElement, page, previousNumberFound, result, bigPageLen);
+    }
+
+    private int nextPageStart(int startingElement, CandidatePage page, long previousNumberFound,
+            VersionCleanerResult result, int pageLen)
+    {
+        int next = startingElement + pageLen;
+        if (previousNumberFound >= 0 && page.numberFound < previousNumberFound)
+        {
+            int gap = (int) Math.min(previousNumberFound - page.numberFound, (long) pageLen);
+            result.addGapsDetected(gap);
+            if (trackVisitedNodes)
+            {
+                next -= gap;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Candidates found dropped by " + gap + " at:" + startingElement);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @param key the store, or the tenant store, stopped
+     * @param visited the nodes cleaned so far, kept for the resumed run, null if not tracked
+     */
+    private void stopRun(VersionCleanerRunToken token, String key, int pageStart, NodeIdBitmap visited)
+    {
+        if (token.isPauseRequested())
+        {
+            resumePositions.put(key, pageStart);
+            if (visited != null)
+            {
+                resumeVisited.put(key, visited);
+            }
+            logger.info("Version cleanup of " + key + " paused at:" + pageStart);
+        }
+        else
+        {
+            logger.info("Version cleanup of " + key + " cancelled at:" + pageStart);
+        }
+    }
+
+    /**
+     * Apply the retention rules to an explicit list of nodes, e.g. the nodes touched by a migration or a bulk
+     * import. The nodes are cleaned in parallel by a small dedicated pool of targetedThreadNumber threads using
+     * short transactions of targetedBatchSize nodes. This does not take the cleaner job lock so it can be called
+     * while a full run is in progress.
+     * 
+     * @param nodeRefs the nodes to clean, nodes that do not exist or are not versioned are ignored
+     * @return a summary of the cleaning
+     */
+    public VersionCleanerResult cleanNodes(Collection<NodeRef> nodeRefs)
+    {
+        checkProperties();
+        VersionCleanerResult result = new VersionCleanerResult();
+        result.start();
+        if (transactionService.isReadOnly())
+        {
+            logger.debug("Targeted version cleanup bypassed; the system is read-only.");
+            result.end();
+            return result;
+        }
+        VersionCleanerStore store = getDefaultStore();
+        final Date deleteOlder = store.getDeleteOlder();
+        VersionRetentionPlanner planner = store.createPlanner();
+        VersionCleanerRunToken token = new VersionCleanerRunToken();
+        if (deferContendedNodes)
+        {
+            IsolatedNodeCleaner isolated = new IsolatedNodeCleaner(deleteOlder, planner, null, result, token);
+            isolated.cleanNodes(new ArrayList<NodeRef>(nodeRefs), targetedThreadNumber);
+            isolated.retryDeferredNodes();
+        }
+        else
+        {
+            BatchProcessor<NodeRef> groupProcessor = new BatchProcessor<NodeRef>("TargetedVersionCleaner",
+                    transactionService.getRetryingTransactionHelper(), nodeRefs, targetedThreadNumber,
+                    targetedBatchSize, applicationEventPublisher, logger, 1000);
+            groupProcessor.process(new NodeVersionCleaner(deleteOlder, planner, result, token), true);
+            result.addErrors(groupProcessor.getTotalErrors());
+        }
+        result.end();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Targeted version cleanup finished: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Apply the retention rules to all the versionable nodes below a folder (the folder included). The tree is
+     * walked through the primary child associations rather than searched so nodes that are not indexed yet, e.g.
+     * just imported, are cleaned as well.
+     * 
+     * @param folderRef the root of the subtree to clean
+     * @return a summary of the cleaning
+     * @see #cleanNodes(Collection)
+     */
+    public VersionCleanerResult cleanSubtree(final NodeRef folderRef)
+    {
+        RetryingTransactionCallback<List<NodeRef>> collectCallback = new RetryingTransactionCallback<List<NodeRef>>()
+            {
+                public List<NodeRef> execute() throws Exception
+                {
+                    AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getSystemUserName());
+                    return collectVersionableNodes(folderRef);
+                }
+            };
+        List<NodeRef> versionableNodes = transactionService.getRetryingTransactionHelper().doInTransaction(
+                collectCallback, true);
+        return cleanNodes(versionableNodes);
+    }
+
+    private List<NodeRef> collectVersionableNodes(NodeRef rootRef)
+    {
+        List<NodeRef> versionableNodes = new ArrayList<NodeRef>();
+        if (!nodeService.exists(rootRef))
+        {
+            return versionableNodes;
+        }
+        LinkedList<NodeRef> toVisit = new LinkedList<NodeRef>();
+        toVisit.add(rootRef);
+        while (!toVisit.isEmpty())
+        {
+            NodeRef nodeRef = toVisit.removeFirst();
+            if (nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE))
+            {
+                versionableNodes.add(nodeRef);
+            }
+            for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(nodeRef))
+            {
+                if (childAssoc.isPrimary())
+                {
+                    toVisit.add(childAssoc.getChildRef());
+                }
+            }
+        }
+        return versionableNodes;
+    }
+
+    /**
+     * Run count pieces of work on a pool of threads authenticated as the calling thread, until they are all done
+     * or the run is stopped
+     */
+    private void runOnPool(int threads, final int count, final IndexedWork work, final VersionCleanerRunToken token)
+    {
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (runAsUser != null)
+                        {
+                            AuthenticationUtil.setFullyAuthenticatedUser(runAsUser);
+                        }
+                        int index;
+                        while ((index = next.getAndIncrement()) < count && !token.isStopRequested()
+                                && !vmShutdownListener.isVmShuttingDown())
+                        {
+                            work.run(index);
+                        }
+                    }
+                });
+        }
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            token.pause();
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A piece of work given by its index, see {@link VersionCleanerParralel#runOnPool}
+     */
+    private interface IndexedWork
+    {
+        void run(int index);
+    }
+
+    /**
+     * Authenticate the thread as the system user of the tenant of the current run as user, of the default tenant if
+     * there is none or multi-tenancy is not enabled
+     */
+    private void authenticateAsSystemUser()
+    {
+        String systemUser = AuthenticationUtil.getSystemUserName();
+        String runAsUser = AuthenticationUtil.getRunAsUser();
+        if (tenantAdminService != null && runAsUser != null && tenantAdminService.isEnabled())
+        {
+            String tenantDomain = tenantAdminService.getUserDomain(runAsUser);
+            if (!TenantService.DEFAULT_DOMAIN.equals(tenantDomain))
+            {
+                systemUser = tenantAdminService.getDomainUser(systemUser, tenantDomain);
+            }
+        }
+        AuthenticationUtil.setFullyAuthenticatedUser(systemUser);
+    }
 
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("Checking versions for node " + currentNode.getId());
-                        }
-                        // First delete all the versions over the maxVersionsToKeep
-                        for (int index = maxVersionsToKeep; index < versions.size(); index++)
+    /**
+     * @return true if the error is caused by a concurrent update or a lock, i.e. it may succeed later
+     */
+    private static boolean isContention(Throwable e)
+    {
+        if (RetryingTransactionHelper.extractRetryCause(e) != null)
+        {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof NodeLockedException)
+            {
+                return true;
+            }
+            if (cause.getCause() == cause)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private synchronized VersionCleanerFailureLedger getFailureLedger()
+    {
+        if (failureLedger == null)
+        {
+            failureLedger = new VersionCleanerFailureLedger(attributeService, transactionService);
+        }
+        return failureLedger;
+    }
+
+    /**
+     * @return the nodes that could not be cleaned, with the number of attempts and the last error, by nodeRef
+     */
+    public Map<String, Map<String, Serializable>> getFailedNodes()
+    {
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        return getFailureLedger().getFailures();
+    }
+
+    /**
+     * Forget the nodes that could not be cleaned
+     */
+    public void clearFailedNodes()
+    {
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        getFailureLedger().clear();
+    }
+
+    /**
+     * @return true if the version store is indexed, needed by the age only fast path
+     */
+    private boolean isVersionStoreIndexed()
+    {
+        RetryingTransactionCallback<Boolean> checkCallback = new RetryingTransactionCallback<Boolean>()
+            {
+                public Boolean execute() throws Throwable
+                {
+                    return new VersionStoreHelper(nodeService, searchService).isIndexed();
+                }
+            };
+        boolean indexed = transactionService.getRetryingTransactionHelper().doInTransaction(checkCallback, true);
+        if (!indexed)
+        {
+            logger.warn("ageOnlyFastPath is ignored, the version store " + VersionStoreHelper.VERSION_STORE
+                    + " is not indexed.");
+        }
+        return indexed;
+    }
+
+    /**
+     * Count the versions to delete without loading the history, from the number of versions and the number of
+     * versions older than deleteOlder given by the index. The index is only queried for the histories of at least
+     * ageOnlyFastPathMinVersions versions.
+     *
+     * @return the number of versions to delete or -1 if the index cannot tell or the history is short
+     */
+    private int countAgeOnlyDeletions(NodeRef currentNode, Date deleteOlder, VersionRetentionPlanner planner)
+    {
+        VersionStoreHelper versionStoreHelper = new VersionStoreHelper(nodeService, searchService);
+        NodeRef historyRef = versionStoreHelper.getVersionHistoryNodeRef(currentNode);
+        if (historyRef == null)
+        {
+            return 0;
+        }
+        int versionCount = nodeService.countChildAssocs(historyRef, true);
+        if (versionCount <= planner.getMinVersionsToKeep())
+        {
+            return 0;
+        }
+        if (versionCount < ageOnlyFastPathMinVersions)
+        {
+            return -1;
+        }
+        int deletions;
+        try
+        {
+            deletions = planner.countDeletions(versionCount, versionStoreHelper.countVersionsOlderThan(historyRef,
+                    deleteOlder));
+            // nothing to delete is only trusted if the index holds all the versions, else old versions may be missed
+            if (deletions == 0 && versionStoreHelper.countIndexedVersions(historyRef) != versionCount)
+            {
+                deletions = -1;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (isContention(e))
+            {
+                throw e;
+            }
+            deletions = -1;
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Node " + currentNode.getId() + " - " + versionCount + " versions, " + deletions
+                    + " to delete");
+        }
+        return deletions;
+    }
+
+    /**
+     * Apply the retention rules to one node
+     * 
+     * @return the number of versions deleted
+     */
+    private int cleanNode(NodeRef currentNode, Date deleteOlder, VersionRetentionPlanner planner,
+            VersionCleanerResult result)
+    {
+        // Clean one node
+        if (!nodeService.exists(currentNode))
+            return 0;
+        if (skipHistory(currentNode, deleteOlder, planner, result))
+        {
+            return 0;
+        }
+        tracer.nodeInTransaction();
+        long loadStart = System.nanoTime();
+        VersionHistory history = versionService.getVersionHistory(currentNode);
+        if (history == null)
+            return 0;
+        long planStart = System.nanoTime();
+        VersionDeletionPlan plan = planHistory(-1L, currentNode, history, deleteOlder, planner);
+        long deleteStart = System.nanoTime();
+        int deleted = deleteVersions(plan, history, result);
+        tracer.nodeCleaned(currentNode, plan.getVersionCount(), deleted, planStart - loadStart, deleteStart
+                - planStart, System.nanoTime() - deleteStart);
+        return deleted;
+    }
+
+    /**
+     * @return true if the age only fast path finds nothing to delete, the history does not need to be loaded
+     */
+    private boolean skipHistory(NodeRef currentNode, Date deleteOlder, VersionRetentionPlanner planner,
+            VersionCleanerResult result)
+    {
+        if (ageOnlyFastPathUsable && !collapseIdenticalVersions && planner.getThinningSchedule() == null
+                && !getHistorySizeBudget().isEnabled()
+                && countAgeOnlyDeletions(currentNode, deleteOlder, planner) == 0)
+        {
+            getTxnResult(result).addHistoryNotLoaded();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compute the versions of one node to delete, nothing is changed
+     * 
+     * @return the plan, empty if the node does not exist, has no history or nothing to delete
+     */
+    private VersionDeletionPlan planNode(long nodeId, NodeRef currentNode, Date deleteOlder,
+            VersionRetentionPlanner planner, VersionCleanerResult result)
+    {
+        if (nodeService.exists(currentNode) && !skipHistory(currentNode, deleteOlder, planner, result))
+        {
+            VersionHistory history = versionService.getVersionHistory(currentNode);
+            if (history != null)
+            {
+                return planHistory(nodeId, currentNode, history, deleteOlder, planner);
+            }
+        }
+        return new VersionDeletionPlan(nodeId, currentNode, 0, null, Collections.<String> emptyList(), 0, 0, 0L,
+                Collections.<String> emptyList());
+    }
+
+    /**
+     * Compute the versions of a history to delete, nothing is changed
+     * 
+     * @param nodeId the database ID of the node or -1 if it is not known
+     */
+    private VersionDeletionPlan planHistory(long nodeId, NodeRef currentNode, VersionHistory history,
+            Date deleteOlder, VersionRetentionPlanner planner)
+    {
+        List<Version> versions = new ArrayList<Version>(history.getAllVersions());
+        Collections.sort(versions, VERSION_DATE_COMPARATOR);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Checking versions for node " + currentNode.getId());
+        }
+        // Versions over maxVersionsToKeep, then the ones older than deleteOlder
+        // keeping at least minVersionsToKeep
+        Date[] frozenModifiedDates = new Date[versions.size()];
+        for (int index = 0; index < versions.size(); index++)
+        {
+            frozenModifiedDates[index] = versions.get(index).getFrozenModifiedDate();
+        }
+        // The content properties of the frozen nodes, read once when needed by the plan
+        HistorySizeBudget budget = getHistorySizeBudget();
+        long maxBytes = budget.isEnabled() ? budget.getMaxBytes(budget.isPerType() ? nodeService
+                .getType(currentNode) : null) : 0L;
+        ContentData[] contents = null;
+        if (collapseIdenticalVersions || maxBytes > 0L || offloadVersionContent)
+        {
+            contents = new ContentData[versions.size()];
+            for (int index = 0; index < versions.size(); index++)
+            {
+                Serializable content = nodeService.getProperty(versions.get(index).getFrozenStateNodeRef(),
+                        ContentModel.PROP_CONTENT);
+                contents[index] = content instanceof ContentData ? (ContentData) content : null;
+            }
+        }
+        // Versions already offloaded by a previous run are left alone
+        boolean[] offloaded = null;
+        if (offloadVersionContent)
+        {
+            offloaded = new boolean[versions.size()];
+            for (int index = 0; index < versions.size(); index++)
+            {
+                offloaded[index] = nodeService.hasAspect(versions.get(index).getFrozenStateNodeRef(),
+                        VersionCleanerModel.ASPECT_CONTENT_OFFLOADED);
+            }
+        }
+        // Versions identical to the newer one go first
+        boolean[] identical = null;
+        if (collapseIdenticalVersions)
+        {
+            identical = new IdenticalContentDetector(contentService).findIdentical(contents);
+        }
+        boolean[] toDelete = planner.plan(frozenModifiedDates, identical, deleteOlder);
+        boolean[] overBudget = null;
+        if (maxBytes > 0L)
+        {
+            long[] sizes = new long[versions.size()];
+            for (int index = 0; index < versions.size(); index++)
+            {
+                sizes[index] = contents[index] == null ? 0L : contents[index].getSize();
+            }
+            overBudget = toDelete.clone();
+            planner.applySizeBudget(toDelete, sizes, maxBytes);
+        }
+        List<String> labels = new ArrayList<String>();
+        int collapsed = 0;
+        int overBudgetCount = 0;
+        long bytes = 0L;
+        for (int index = 0; index < versions.size(); index++)
+        {
+            if (!toDelete[index] || (offloaded != null && offloaded[index]))
+            {
+                continue;
+            }
+            if (overBudget != null && !overBudget[index])
+            {
+                overBudgetCount++;
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Deleting version " + versions.get(index).getVersionLabel()
+                            + " to fit the history in " + maxBytes + " bytes");
+                }
+            }
+            else if (identical != null && identical[index])
+            {
+                collapsed++;
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Deleting version " + versions.get(index).getVersionLabel()
+                            + " identical to the next version");
+                }
+            }
+            else if (logger.isDebugEnabled())
+            {
+                if (planner.getThinningSchedule() != null)
+                {
+                    logger.debug("Deleting version " + versions.get(index).getVersionLabel()
+                            + " thinned out by " + planner.getThinningSchedule());
+                }
+                else if (index >= planner.getMaxVersionsToKeep())
+                {
+                    logger.debug("Node " + currentNode.getId() + " - Version "
+                            + versions.get(index).getVersionLabel() + " is greater than "
+                            + planner.getMaxVersionsToKeep() + " - deleting.");
+                }
+                else
+                {
+                    logger.debug("Deleting version " + versions.get(index).getVersionLabel()
+                            + " older than " + deleteOlder.toString());
+                }
+            }
+            Serializable content = contents != null ? contents[index] : nodeService.getProperty(versions.get(
+                    index).getFrozenStateNodeRef(), ContentModel.PROP_CONTENT);
+            if (content instanceof ContentData)
+            {
+                bytes += ((ContentData) content).getSize();
+            }
+            labels.add(versions.get(index).getVersionLabel());
+        }
+        List<String> contentUrls = offloadVersionContent ? getOffloadableUrls(currentNode, contents, toDelete,
+                offloaded) : Collections.<String> emptyList();
+        Version head = history.getHeadVersion();
+        return new VersionDeletionPlan(nodeId, currentNode, versions.size(), head == null ? null
+                : head.getVersionLabel(), labels, collapsed, overBudgetCount, bytes, contentUrls);
+    }
+
+    /**
+     * Delete the versions of a plan from the history it has been computed from, or a history with the same
+     * fingerprint
+     * 
+     * @return the number of versions deleted
+     */
+    private int deleteVersions(VersionDeletionPlan plan, VersionHistory history, VersionCleanerResult result)
+    {
+        if (offloadVersionContent)
+        {
+            return offloadVersions(plan, history, result);
+        }
+        NodeRef currentNode = plan.getNodeRef();
+        int deleted = 0;
+        for (String label : plan.getLabels())
+        {
+            for (VersionStoreCleanerListener listener : listeners)
+            {
+                listener.beforeDelete(versionService.getVersionHistory(currentNode));
+            }
+            versionService.deleteVersion(currentNode, history.getVersion(label));
+            deleted++;
+        }
+        VersionCleanerResult txnResult = getTxnResult(result);
+        txnResult.addBytesDeleted(plan.getBytes());
+        txnResult.addVersionsCollapsed(plan.getCollapsed());
+        txnResult.addVersionsOverBudget(plan.getOverBudget());
+        return deleted;
+    }
+
+    /**
+     * @return the content URLs of the versions selected and not offloaded yet that neither the node, a version kept
+     *         nor another node uses
+     */
+    private List<String> getOffloadableUrls(NodeRef currentNode, ContentData[] contents, boolean[] selected,
+            boolean[] offloaded)
+    {
+        Set<String> used = new HashSet<String>();
+        Serializable current = nodeService.getProperty(currentNode, ContentModel.PROP_CONTENT);
+        if (current instanceof ContentData)
+        {
+            used.add(((ContentData) current).getContentUrl());
+        }
+        // the references from the versions selected, any other reference is from another node
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        for (int index = 0; index < contents.length; index++)
+        {
+            if (contents[index] == null)
+            {
+                continue;
+            }
+            String contentUrl = contents[index].getContentUrl();
+            if (!selected[index])
+            {
+                used.add(contentUrl);
+            }
+            else if (contentUrl != null)
+            {
+                Integer count = references.get(contentUrl);
+                references.put(contentUrl, count == null ? 1 : count + 1);
+            }
+        }
+        ContentReferenceCounter referenceCounter = new ContentReferenceCounter(dataSource);
+        List<String> contentUrls = new ArrayList<String>();
+        for (int index = 0; index < contents.length; index++)
+        {
+            if (!selected[index] || offloaded[index] || contents[index] == null
+                    || contents[index].getContentUrl() == null || !used.add(contents[index].getContentUrl()))
+            {
+                continue;
+            }
+            String contentUrl = contents[index].getContentUrl();
+            if (referenceCounter.countReferences(contentUrl) > references.get(contentUrl))
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Node " + currentNode.getId() + " - content " + contentUrl
+                            + " shared with another node, not offloaded");
+                }
+                continue;
+            }
+            contentUrls.add(contentUrl);
+        }
+        return contentUrls;
+    }
+
+    /**
+     * Mark the versions of a plan with vcl:contentOffloaded instead of deleting them, their content is moved to the
+     * offload directory once the transaction has committed
+     * 
+     * @return 0, no version is deleted
+     */
+    private int offloadVersions(final VersionDeletionPlan plan, VersionHistory history,
+            final VersionCleanerResult result)
+    {
+        Set<String> contentUrls = new HashSet<String>(plan.getContentUrls());
+        final List<NodeRef> marked = new ArrayList<NodeRef>();
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(VersionCleanerModel.PROP_OFFLOAD_DATE, new Date());
+        for (String label : plan.getLabels())
+        {
+            NodeRef frozenRef = history.getVersion(label).getFrozenStateNodeRef();
+            Serializable content = nodeService.getProperty(frozenRef, ContentModel.PROP_CONTENT);
+            // the versions whose content is still used stay unmarked, they are looked at again by the next runs
+            if (!(content instanceof ContentData) || ((ContentData) content).getContentUrl() == null
+                    || contentUrls.contains(((ContentData) content).getContentUrl()))
+            {
+                nodeService.addAspect(frozenRef, VersionCleanerModel.ASPECT_CONTENT_OFFLOADED, properties);
+                marked.add(frozenRef);
+            }
+        }
+        if (!contentUrls.isEmpty())
+        {
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+                {
+                    @Override
+                    public void afterCommit()
+                    {
+                        moveContent(plan, marked, result);
+                    }
+                });
+        }
+        return 0;
+    }
+
+    /**
+     * Move the content of the versions marked by a committed transaction. If a content cannot be moved, the marks
+     * are removed so that the next run tries again.
+     */
+    private void moveContent(VersionDeletionPlan plan, final List<NodeRef> marked, VersionCleanerResult result)
+    {
+        VersionContentOffloader offloader = new VersionContentOffloader(new File(contentStoreDirectory), new File(
+                offloadDirectory));
+        for (String contentUrl : plan.getContentUrls())
+        {
+            try
+            {
+                long bytes = offloader.offload(contentUrl);
+                if (bytes > 0L)
+                {
+                    result.addContentOffloaded(bytes);
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Node " + plan.getNodeRef().getId() + " - content " + contentUrl
+                                + " offloaded");
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to offload the content " + contentUrl + " of " + plan.getNodeRef() + ": " + e);
+                result.addErrors(1);
+                RetryingTransactionCallback<Void> unmarkCallback = new RetryingTransactionCallback<Void>()
+                    {
+                        public Void execute() throws Throwable
                         {
-                            if (logger.isDebugEnabled())
+                            for (NodeRef frozenRef : marked)
                             {
-                                logger.debug("Node " + currentNode.getId() + " - Version "
-                                        + versions.get(index).getVersionLabel() + " is greater than "
-                                        + maxVersionsToKeep + " - deleting.");
-                            }
-                            for (VersionStoreCleanerListener listener : listeners)
-                            {
-                                listener.beforeDelete(versionService.getVersionHistory(currentNode));
+                                if (nodeService.exists(frozenRef))
+                                {
+                                    nodeService.removeAspect(frozenRef, VersionCleanerModel.ASPECT_CONTENT_OFFLOADED);
+                                }
                             }
-                            versionService.deleteVersion(currentNode, versions.get(index));
+                            return null;
                         }
+                    };
+                transactionService.getRetryingTransactionHelper().doInTransaction(unmarkCallback, false, true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply a plan computed in an earlier read-only transaction. If the history has changed since, the node is
+     * planned again in this transaction.
+     * 
+     * @return the number of versions deleted
+     */
+    private int applyPlan(VersionDeletionPlan plan, Date deleteOlder, VersionRetentionPlanner planner,
+            VersionCleanerResult result)
+    {
+        NodeRef currentNode = plan.getNodeRef();
+        if (!nodeService.exists(currentNode))
+        {
+            return 0;
+        }
+        long loadStart = System.nanoTime();
+        VersionHistory history = versionService.getVersionHistory(currentNode);
+        if (!plan.matches(history))
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Version history of " + currentNode + " changed since it was planned, planning again");
+            }
+            getTxnResult(result).addStalePlan();
+            return cleanNode(currentNode, deleteOlder, planner, result);
+        }
+        tracer.nodeInTransaction();
+        long deleteStart = System.nanoTime();
+        int deleted = deleteVersions(plan, history, result);
+        tracer.nodeCleaned(currentNode, plan.getVersionCount(), deleted, deleteStart - loadStart, 0L,
+                System.nanoTime() - deleteStart);
+        return deleted;
+    }
+
+    /**
+     * Unit of work resolving node database IDs lazily and cleaning them with a {@link NodeVersionCleaner}. When a
+     * visited set is given, the nodes already cleaned during the run are skipped; a node is only added to the set
+     * once its transaction has committed so that retried transactions clean it again.
+     */
+    private class NodeIdVersionCleaner implements BatchProcessWorker<Long>
+    {
+        private final NodeVersionCleaner nodeVersionCleaner;
+        private final NodeIdBitmap visited;
+        private final VersionCleanerResult result;
+
+        NodeIdVersionCleaner(NodeVersionCleaner nodeVersionCleaner, NodeIdBitmap visited, VersionCleanerResult result)
+        {
+            this.nodeVersionCleaner = nodeVersionCleaner;
+            this.visited = visited;
+            this.result = result;
+        }
+
+        public String getIdentifier(Long entry)
+        {
+            return entry.toString();
+        }
+
+        public void process(Long nodeId) throws Throwable
+        {
+            Set<Long> txnVisited = null;
+            if (visited != null)
+            {
+                txnVisited = getTxnVisited(visited);
+                if (visited.contains(nodeId) || txnVisited.contains(nodeId))
+                {
+                    getTxnResult(result).addDuplicateSuppressed();
+                    return;
+                }
+            }
+            NodeRef currentNode = nodeService.getNodeRef(nodeId);
+            if (currentNode == null)
+            {
+                // deleted since the page was read
+                return;
+            }
+            if (nodeVersionCleaner.clean(currentNode) && txnVisited != null)
+            {
+                // only once cleaned, the nodes skipped on a stop request are cleaned by the resumed run
+                txnVisited.add(nodeId);
+            }
+        }
+
+        @Override
+        public void beforeProcess() throws Throwable
+        {
+        }
+
+        @Override
+        public void afterProcess() throws Throwable
+        {
+        }
+    }
 
-                        // Now Check the remaining versions to see if they are old enough to get rid of
-                        // but only if there are more than minVersionsToKeep left
-                        // Lets be sure we keep a least minVersionsToKeep
-                        if (versions.size() <= minVersionsToKeep)
-                            return;
+    /**
+     * Unit of work cleaning a group of nodes built by the {@link ParentPartitioner} in one transaction. The nodes
+     * of the groups whose transaction committed are counted so that a failed group counts one error per node.
+     */
+    private class NodeIdGroupCleaner implements BatchProcessWorker<List<Long>>
+    {
+        private final NodeIdVersionCleaner unitOfWork;
+        private final AtomicInteger committed = new AtomicInteger();
 
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("Checking remaining versions.");
-                        }
-                        
-                        //****
-                        history = versionService.getVersionHistory(currentNode);
-                        if (history == null)
-                            return;
-                        versions = new ArrayList<Version>(history.getAllVersions());
-                        Collections.sort(versions, VERSION_DATE_COMPARATOR);
-                        //***
-                        //for (int index =0 ; index < versions.size() - minVersionsToKeep; index++)
-                        //for (int index = minVersionsToKeep; index < versions.size() - prevDeletedVersions; index++)
-                        for (int index = minVersionsToKeep; index < versions.size() ; index++)
-                        {
-                            if (versions.get(index).getFrozenModifiedDate().before(deleteOlder))
-                            {
-                                if (logger.isDebugEnabled())
-                                {
-                                    logger.debug("Deleting version " + versions.get(index).getVersionLabel());
-                                }
-                                for (VersionStoreCleanerListener listener : listeners)
-                                {
-                                    listener.beforeDelete(versionService.getVersionHistory(currentNode));
-                                }
-                                versionService.deleteVersion(currentNode, versions.get(index));
+        NodeIdGroupCleaner(NodeIdVersionCleaner unitOfWork)
+        {
+            this.unitOfWork = unitOfWork;
+        }
 
-                            }
-                            else
-                            {
-                                if (logger.isDebugEnabled())
-                                {
-                                    logger.debug("Version " + versions.get(index).getVersionLabel()
-                                            + " is younger than " + deleteOlder.toString() + ". No more deletions");
-                                }
-                            }
-                        }
-                    }
+        public String getIdentifier(List<Long> entry)
+        {
+            return entry.size() + " nodes from " + entry.get(0);
+        }
 
+        public void process(final List<Long> group) throws Throwable
+        {
+            for (Long nodeId : group)
+            {
+                unitOfWork.process(nodeId);
+            }
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+                {
                     @Override
-                    public void beforeProcess() throws Throwable
+                    public void afterCommit()
                     {
-                        // TODO Auto-generated method stub
-                        
+                        committed.addAndGet(group.size());
                     }
+                });
+        }
 
-                    @Override
-                    public void afterProcess() throws Throwable
+        @Override
+        public void beforeProcess() throws Throwable
+        {
+        }
+
+        @Override
+        public void afterProcess() throws Throwable
+        {
+        }
+    }
+
+    /**
+     * @return the nodes cleaned by the current transaction, added to the visited set once it has committed
+     */
+    private static Set<Long> getTxnVisited(NodeIdBitmap visited)
+    {
+        Set<Long> txnVisited = AlfrescoTransactionSupport.getResource(VISITED_TXN_KEY);
+        if (txnVisited == null)
+        {
+            txnVisited = new HashSet<Long>();
+            AlfrescoTransactionSupport.bindResource(VISITED_TXN_KEY, txnVisited);
+            AlfrescoTransactionSupport.bindListener(new VisitedNodesListener(visited, txnVisited));
+        }
+        return txnVisited;
+    }
+
+    /**
+     * Unit of work applying the deletion plans computed in read-only transactions
+     */
+    private class VersionDeletionPlanApplier implements BatchProcessWorker<VersionDeletionPlan>
+    {
+        private final Date deleteOlder;
+        private final VersionRetentionPlanner planner;
+        private final NodeIdBitmap visited;
+        private final VersionCleanerResult result;
+        private final VersionCleanerRunToken token;
+
+        VersionDeletionPlanApplier(Date deleteOlder, VersionRetentionPlanner planner, NodeIdBitmap visited,
+                VersionCleanerResult result, VersionCleanerRunToken token)
+        {
+            this.deleteOlder = deleteOlder;
+            this.planner = planner;
+            this.visited = visited;
+            this.result = result;
+            this.token = token;
+        }
+
+        public String getIdentifier(VersionDeletionPlan entry)
+        {
+            return entry.getNodeRef().toString();
+        }
+
+        public void process(VersionDeletionPlan plan) throws Throwable
+        {
+            if (token.isStopRequested() || vmShutdownListener.isVmShuttingDown())
+            {
+                return;
+            }
+            authenticateAsSystemUser();
+            countTransaction(result);
+            getTxnResult(result).nodeProcessed(applyPlan(plan, deleteOlder, planner, result));
+            if (visited != null)
+            {
+                getTxnVisited(visited).add(plan.getNodeId());
+            }
+        }
+
+        @Override
+        public void beforeProcess() throws Throwable
+        {
+        }
+
+        @Override
+        public void afterProcess() throws Throwable
+        {
+        }
+    }
+
+    /**
+     * @return the counters of the current transaction, added to the result once it has committed so that a
+     *         retried or rolled back transaction counts nothing
+     */
+    private static VersionCleanerResult getTxnResult(VersionCleanerResult result)
+    {
+        Map<VersionCleanerResult, VersionCleanerResult> txnResults = AlfrescoTransactionSupport
+                .getResource(RESULT_TXN_KEY);
+        if (txnResults == null)
+        {
+            txnResults = new IdentityHashMap<VersionCleanerResult, VersionCleanerResult>();
+            AlfrescoTransactionSupport.bindResource(RESULT_TXN_KEY, txnResults);
+            AlfrescoTransactionSupport.bindListener(new TransactionResultsListener(txnResults));
+        }
+        VersionCleanerResult txnResult = txnResults.get(result);
+        if (txnResult == null)
+        {
+            txnResult = new VersionCleanerResult();
+            txnResults.put(result, txnResult);
+        }
+        return txnResult;
+    }
+
+    /**
+     * Count the outcome of the current transaction in the result, once per transaction
+     */
+    private static void countTransaction(VersionCleanerResult result)
+    {
+        if (AlfrescoTransactionSupport.getResource(OUTCOME_TXN_KEY) == null)
+        {
+            AlfrescoTransactionSupport.bindResource(OUTCOME_TXN_KEY, Boolean.TRUE);
+            AlfrescoTransactionSupport.bindListener(new TransactionOutcomeListener(result));
+        }
+    }
+
+    /**
+     * Counts the commits and rollbacks of the cleaning transactions, a retried transaction is rolled back first
+     */
+    private static class TransactionOutcomeListener extends TransactionListenerAdapter
+    {
+        private final VersionCleanerResult result;
+
+        TransactionOutcomeListener(VersionCleanerResult result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            result.transactionCompleted(true);
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            result.transactionCompleted(false);
+        }
+    }
+
+    /**
+     * Adds the counters of a transaction to the results once it has committed
+     */
+    private static class TransactionResultsListener extends TransactionListenerAdapter
+    {
+        private final Map<VersionCleanerResult, VersionCleanerResult> txnResults;
+
+        TransactionResultsListener(Map<VersionCleanerResult, VersionCleanerResult> txnResults)
+        {
+            this.txnResults = txnResults;
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            for (Map.Entry<VersionCleanerResult, VersionCleanerResult> txnResult : txnResults.entrySet())
+            {
+                txnResult.getKey().add(txnResult.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the nodes cleaned in a transaction to the visited set once it has committed
+     */
+    private static class VisitedNodesListener extends TransactionListenerAdapter
+    {
+        private final NodeIdBitmap visited;
+        private final Set<Long> txnVisited;
+
+        VisitedNodesListener(NodeIdBitmap visited, Set<Long> txnVisited)
+        {
+            this.visited = visited;
+            this.txnVisited = txnVisited;
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            visited.addAll(txnVisited);
+        }
+    }
+
+    /**
+     * Progress of the cleaning of one store of one tenant. The paging fields are only used by the thread reading
+     * the pages.
+     */
+    private class TenantStoreRun
+    {
+        private final String tenantDomain;
+        private final VersionCleanerStore store;
+        private final Date deleteOlder;
+        private final VersionRetentionPlanner planner;
+        private final VersionCleanerResult result;
+        private final VersionCleanerRunToken token;
+        private final NodeIdVersionCleaner unitOfWork;
+        /** cleans the nodes one per transaction instead of the batches when contended nodes are deferred */
+        private final IsolatedNodeCleaner isolated;
+        /** start of the pages queued that still have batches to clean */
+        private final ConcurrentSkipListSet<Integer> pagesInFlight = new ConcurrentSkipListSet<Integer>();
+        private int startingElement;
+        private long previousNumberFound = -1L;
+        /** all the pages have been read */
+        private boolean exhausted;
+
+        TenantStoreRun(String tenantDomain, VersionCleanerStore store, VersionCleanerResult result,
+                VersionCleanerRunToken token)
+        {
+            this.tenantDomain = tenantDomain;
+            this.store = store;
+            this.result = result;
+            this.token = token;
+            deleteOlder = store.getDeleteOlder();
+            planner = store.createPlanner();
+            NodeIdBitmap visited = trackVisitedNodes ? new NodeIdBitmap() : null;
+            isolated = deferContendedNodes ? new IsolatedNodeCleaner(deleteOlder, planner, visited, result, token)
+                    : null;
+            unitOfWork = new NodeIdVersionCleaner(new NodeVersionCleaner(deleteOlder, planner, result, token),
+                    visited, result);
+        }
+
+        @Override
+        public String toString()
+        {
+            return TenantService.DEFAULT_DOMAIN.equals(tenantDomain) ? store.getStore() : store.getStore() + " ("
+                    + tenantDomain + ")";
+        }
+    }
+
+    /**
+     * Candidates of a tenant store cleaned in one transaction: the entries from (inclusive) to to (exclusive) of
+     * a page
+     */
+    private static class TenantBatch
+    {
+        private final TenantStoreRun storeRun;
+        private final NodeIdBuffer nodeIds;
+        private final int from;
+        private final int to;
+        private final int pageStart;
+        /** batches of the page not cleaned yet, shared by the batches of the page */
+        private final AtomicInteger pageBatchesLeft;
+
+        TenantBatch(TenantStoreRun storeRun, NodeIdBuffer nodeIds, int from, int to, int pageStart,
+                AtomicInteger pageBatchesLeft)
+        {
+            this.storeRun = storeRun;
+            this.nodeIds = nodeIds;
+            this.from = from;
+            this.to = to;
+            this.pageStart = pageStart;
+            this.pageBatchesLeft = pageBatchesLeft;
+        }
+    }
+
+    /**
+     * One page of the candidate query
+     */
+    private static class CandidatePage
+    {
+        /** number of rows read from the result set */
+        private final int rows;
+        /** total number of candidates found by the query */
+        private final long numberFound;
+        private final NodeIdBuffer nodeIds;
+
+        CandidatePage(int rows, long numberFound, NodeIdBuffer nodeIds)
+        {
+            this.rows = rows;
+            this.numberFound = numberFound;
+            this.nodeIds = nodeIds;
+        }
+    }
+
+    /**
+     * Cleans nodes one per transaction when contended nodes are deferred. The transactions are run by the calling
+     * threads or by a pool, never inside a batch transaction, and are not retried: a node failing because of a
+     * concurrent update or a lock is deferred for a later retry, other failures and nodes that keep failing are
+     * recorded in the failure ledger. A node of the ledger is removed from it once cleaned.
+     */
+    private class IsolatedNodeCleaner
+    {
+        private final Date deleteOlder;
+        private final VersionRetentionPlanner planner;
+        private final NodeIdBitmap visited;
+        private final VersionCleanerResult result;
+        private final VersionCleanerRunToken token;
+        private final DeferredNodeQueue deferred = new DeferredNodeQueue(deferredBackoff);
+        /** nodes of the failure ledger when the cleaner was created */
+        private final Set<String> failedNodes;
+
+        IsolatedNodeCleaner(Date deleteOlder, VersionRetentionPlanner planner, NodeIdBitmap visited,
+                VersionCleanerResult result, VersionCleanerRunToken token)
+        {
+            this.deleteOlder = deleteOlder;
+            this.planner = planner;
+            this.visited = visited;
+            this.result = result;
+            this.token = token;
+            failedNodes = attributeService == null ? Collections.<String> emptySet() : getFailureLedger()
+                    .getFailures().keySet();
+        }
+
+        void cleanNodeIds(final List<Long> nodeIds, int threads)
+        {
+            runOnPool(threads, nodeIds.size(), new IndexedWork()
+                {
+                    public void run(int index)
                     {
-                        // TODO Auto-generated method stub
-                        
+                        cleanNodeId(nodeIds.get(index));
                     }
-                }
+                }, token);
+        }
 
-                NodeVersionCleaner unitOfWork = new NodeVersionCleaner();
+        void cleanNodes(final List<NodeRef> nodeRefs, int threads)
+        {
+            runOnPool(threads, nodeRefs.size(), new IndexedWork()
+                {
+                    public void run(int index)
+                    {
+                        clean(null, nodeRefs.get(index), null, 1);
+                    }
+                }, token);
+        }
 
-                groupProcessor.process(unitOfWork, true);
+        void applyPlans(final List<VersionDeletionPlan> plans, int threads)
+        {
+            runOnPool(threads, plans.size(), new IndexedWork()
+                {
+                    public void run(int index)
+                    {
+                        VersionDeletionPlan plan = plans.get(index);
+                        clean(plan.getNodeId(), plan.getNodeRef(), plan, 1);
+                    }
+                }, token);
+        }
 
-                startingElement += bigPageLen;
-                // Done
-                if (logger.isDebugEnabled())
+        void cleanNodeId(Long nodeId)
+        {
+            if (visited != null && visited.contains(nodeId))
+            {
+                result.addDuplicateSuppressed();
+                return;
+            }
+            clean(nodeId, null, null, 1);
+        }
+
+        /**
+         * Retry the deferred nodes as their backoff expires, until none is left
+         */
+        void retryDeferredNodes()
+        {
+            authenticateAsSystemUser();
+            long retryStart = System.currentTimeMillis();
+            try
+            {
+                DeferredNodeQueue.DeferredNode deferredNode;
+                while ((deferredNode = deferred.take()) != null)
                 {
-                    logger.debug("  Cleaning iteration:" + staticStartingElement);
+                    if (token.isStopRequested() || vmShutdownListener.isVmShuttingDown())
+                    {
+                        logger.info("Version cleanup stopped, " + (deferred.clear() + 1)
+                                + " deferred nodes not retried.");
+                        return;
+                    }
+                    clean(null, deferredNode.getNodeRef(), null, deferredNode.getAttempts() + 1);
                 }
-                if (nodesToCleaned.size() < bigPageLen)
-                    break;
             }
-            catch (VmShutdownException e)
+            catch (InterruptedException e)
             {
-                // Aborted
-                if (logger.isDebugEnabled())
+                logger.warn("Interrupted while waiting for deferred nodes, " + deferred.clear()
+                        + " nodes not retried.");
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                result.addPhaseTime("retry", System.currentTimeMillis() - retryStart);
+            }
+        }
+
+        /**
+         * Clean one node in its own transaction
+         * 
+         * @param nodeId the database ID of the node, resolved in the transaction when nodeRef is null
+         * @param attempt the number of this attempt, starting at 1
+         */
+        private void clean(final Long nodeId, NodeRef nodeRef, final VersionDeletionPlan plan, int attempt)
+        {
+            authenticateAsSystemUser();
+            final NodeRef[] currentNode = new NodeRef[] { nodeRef };
+            RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+            txnHelper.setMaxRetries(0);
+            RetryingTransactionCallback<Integer> cleanCallback = new RetryingTransactionCallback<Integer>()
                 {
-                    logger.debug("Version cleanup aborted.");
+                    public Integer execute() throws Throwable
+                    {
+                        if (currentNode[0] == null)
+                        {
+                            currentNode[0] = nodeService.getNodeRef(nodeId);
+                            if (currentNode[0] == null)
+                            {
+                                // deleted since the page was read
+                                return null;
+                            }
+                        }
+                        countTransaction(result);
+                        int deleted = plan != null ? applyPlan(plan, deleteOlder, planner, result) : cleanNode(
+                                currentNode[0], deleteOlder, planner, result);
+                        if (visited != null && nodeId != null)
+                        {
+                            getTxnVisited(visited).add(nodeId);
+                        }
+                        return deleted;
+                    }
+                };
+            try
+            {
+                Integer deleted = txnHelper.doInTransaction(cleanCallback, false, true);
+                if (deleted != null)
+                {
+                    result.nodeProcessed(deleted);
+                }
+                // failed in a previous run, the failures of this run are only recorded once the retries are over
+                if (currentNode[0] != null && failedNodes.contains(currentNode[0].toString()))
+                {
+                    getFailureLedger().clearFailure(currentNode[0]);
                 }
-                throw e;
             }
             catch (Throwable e)
             {
-                e.printStackTrace();
-                logger.warn("System shutting down during version cleaning at:" + staticStartingElement);
-                break;
+                if (currentNode[0] != null && isContention(e) && attempt <= deferredRetries)
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Deferring node " + currentNode[0] + " after attempt " + attempt + ": " + e);
+                    }
+                    deferred.defer(currentNode[0], e, attempt);
+                    result.addDeferred();
+                }
+                else
+                {
+                    logger.warn("Unable to clean node " + (currentNode[0] != null ? currentNode[0] : nodeId)
+                            + " after " + attempt + " attempt(s): " + e);
+                    result.addErrors(1);
+                    if (attributeService != null && currentNode[0] != null)
+                    {
+                        getFailureLedger().recordFailure(currentNode[0], e, attempt);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Unit of work applying the retention rules to one node per call. Once the run is asked to stop the
+     * remaining nodes are skipped so that the current transactions can commit quickly.
+     */
+    private class NodeVersionCleaner implements BatchProcessWorker<NodeRef>
+    {
+        private final Date deleteOlder;
+        private final VersionRetentionPlanner planner;
+        private final VersionCleanerResult result;
+        private final VersionCleanerRunToken token;
+
+        NodeVersionCleaner(Date deleteOlder, VersionRetentionPlanner planner, VersionCleanerResult result,
+                VersionCleanerRunToken token)
+        {
+            this.deleteOlder = deleteOlder;
+            this.planner = planner;
+            this.result = result;
+            this.token = token;
+        }
+
+        public String getIdentifier(NodeRef entry)
+        {
+            return entry.toString();
+        }
+
+        public void process(NodeRef currentNode) throws Throwable
+        {
+            clean(currentNode);
+        }
+
+        /**
+         * @return false when the node has been skipped because the run is stopping
+         */
+        boolean clean(NodeRef currentNode) throws Throwable
+        {
+            if (token.isStopRequested() || vmShutdownListener.isVmShuttingDown())
+            {
+                return false;
             }
+            authenticateAsSystemUser();
+            countTransaction(result);
+            getTxnResult(result).nodeProcessed(cleanNode(currentNode, deleteOlder, planner, result));
+            return true;
+        }
+
+        @Override
+        public void beforeProcess() throws Throwable
+        {
         }
 
+        @Override
+        public void afterProcess() throws Throwable
+        {
+        }
     }
 
-    private Collection<NodeRef> executeQuery(
+    /**
+     * Run one page of the candidate query and keep the database IDs of the nodes found. Nodes that have been
+     * deleted since they were indexed are not kept.
+     */
+    private CandidatePage executeQuery(
             StoreRef storeRef,
             SearchService searchService,
             String query,
@@ -566,21 +3821,33 @@ public class VersionCleanerParralel implements ApplicationEventPublisherAware
         //sp.setLanguage("lucene");
         sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
         sp.setSkipCount(startingElement);
-        // -1 unlimited result size
-        sp.setMaxItems(-1);
+        // only fetch the page
+        sp.setMaxItems(pageLen);
         sp.setQuery(query);
         ResultSet results = searchService.query(sp);
-        Collection<NodeRef> nodeToClean = new ArrayList<NodeRef>(pageLen);
+        NodeIdBuffer nodeToClean = new NodeIdBuffer(pageLen);
+        long numberFound;
         int i;
-        for (i = startingElement; i < startingElement + pageLen; i++)
+        try
         {
-            if (i - startingElement >= results.length())
-                break;
-            NodeRef nodeRef = results.getNodeRef(i - startingElement);
-            nodeToClean.add(nodeRef);
+            numberFound = results.getNumberFound();
+            for (i = startingElement; i < startingElement + pageLen; i++)
+            {
+                if (i - startingElement >= results.length())
+                    break;
+                NodeRef nodeRef = results.getNodeRef(i - startingElement);
+                NodeRef.Status status = nodeService.getNodeStatus(nodeRef);
+                if (status != null && !status.isDeleted())
+                {
+                    nodeToClean.add(status.getDbId());
+                }
+            }
+        }
+        finally
+        {
+            results.close();
         }
-        results.close();
-        return nodeToClean;
+        return new CandidatePage(i - startingElement, numberFound, nodeToClean);
     }
 
     /**
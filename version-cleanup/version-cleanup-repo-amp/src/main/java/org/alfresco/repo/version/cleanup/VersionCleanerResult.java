@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Summary of a version cleaning run. The counters are updated concurrently by the
+ * worker threads, so they can be read while the run is still in progress. The result of a part of a run, e.g.
+ * one tenant, forwards its counters to the result of the whole run.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerResult
+{
+    private final AtomicLong nodesProcessed = new AtomicLong();
+    private final AtomicLong nodesCleaned = new AtomicLong();
+    private final AtomicLong versionsDeleted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong nodesDeferred = new AtomicLong();
+    private final AtomicLong duplicatesSuppressed = new AtomicLong();
+    private final AtomicLong gapsDetected = new AtomicLong();
+    private final AtomicLong historiesNotLoaded = new AtomicLong();
+    private final AtomicLong versionsCollapsed = new AtomicLong();
+    private final AtomicLong stalePlans = new AtomicLong();
+    private final AtomicLong versionsOverBudget = new AtomicLong();
+    private final AtomicLong contentsOffloaded = new AtomicLong();
+    private final AtomicLong bytesOffloaded = new AtomicLong();
+    private final AtomicLong bytesDeleted = new AtomicLong();
+    private final AtomicLong transactionsCommitted = new AtomicLong();
+    private final AtomicLong transactionsRolledBack = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> phaseTimes = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile Date startDate;
+    private volatile Date endDate;
+    private final VersionCleanerResult parent;
+
+    public VersionCleanerResult()
+    {
+        this(null);
+    }
+
+    /**
+     * @param parent the result the counters are also added to, or null
+     */
+    public VersionCleanerResult(VersionCleanerResult parent)
+    {
+        this.parent = parent;
+    }
+
+    void start()
+    {
+        startDate = new Date();
+    }
+
+    void end()
+    {
+        endDate = new Date();
+    }
+
+    /**
+     * Record one node that has been checked and the number of versions deleted for it
+     */
+    void nodeProcessed(int deleted)
+    {
+        nodesProcessed.incrementAndGet();
+        if (deleted > 0)
+        {
+            nodesCleaned.incrementAndGet();
+            versionsDeleted.addAndGet(deleted);
+        }
+        if (parent != null)
+        {
+            parent.nodeProcessed(deleted);
+        }
+    }
+
+    void addErrors(int count)
+    {
+        errors.addAndGet(count);
+        if (parent != null)
+        {
+            parent.addErrors(count);
+        }
+    }
+
+    void addDeferred()
+    {
+        nodesDeferred.incrementAndGet();
+        if (parent != null)
+        {
+            parent.addDeferred();
+        }
+    }
+
+    void addDuplicateSuppressed()
+    {
+        duplicatesSuppressed.incrementAndGet();
+        if (parent != null)
+        {
+            parent.addDuplicateSuppressed();
+        }
+    }
+
+    void addGapsDetected(long count)
+    {
+        gapsDetected.addAndGet(count);
+        if (parent != null)
+        {
+            parent.addGapsDetected(count);
+        }
+    }
+
+    void addBytesDeleted(long bytes)
+    {
+        bytesDeleted.addAndGet(bytes);
+        if (parent != null)
+        {
+            parent.addBytesDeleted(bytes);
+        }
+    }
+
+    /**
+     * Add time spent in a phase of the run (query, clean, retry...)
+     */
+    void addPhaseTime(String phase, long millis)
+    {
+        getPhaseTime(phase).addAndGet(millis);
+        if (parent != null)
+        {
+            parent.addPhaseTime(phase, millis);
+        }
+    }
+
+    private AtomicLong getPhaseTime(String phase)
+    {
+        AtomicLong time = phaseTimes.get(phase);
+        if (time == null)
+        {
+            AtomicLong newTime = new AtomicLong();
+            time = phaseTimes.putIfAbsent(phase, newTime);
+            if (time == null)
+            {
+                time = newTime;
+            }
+        }
+        return time;
+    }
+
+    void addHistoryNotLoaded()
+    {
+        historiesNotLoaded.incrementAndGet();
+        if (parent != null)
+        {
+            parent.addHistoryNotLoaded();
+        }
+    }
+
+    void addVersionsCollapsed(int count)
+    {
+        versionsCollapsed.addAndGet(count);
+        if (parent != null)
+        {
+            parent.addVersionsCollapsed(count);
+        }
+    }
+
+    void addVersionsOverBudget(int count)
+    {
+        versionsOverBudget.addAndGet(count);
+        if (parent != null)
+        {
+            parent.addVersionsOverBudget(count);
+        }
+    }
+
+    void addContentOffloaded(long bytes)
+    {
+        contentsOffloaded.incrementAndGet();
+        bytesOffloaded.addAndGet(bytes);
+        if (parent != null)
+        {
+            parent.addContentOffloaded(bytes);
+        }
+    }
+
+    void addStalePlan()
+    {
+        stalePlans.incrementAndGet();
+        if (parent != null)
+        {
+            parent.addStalePlan();
+        }
+    }
+
+    /**
+     * Record the outcome of a cleaning transaction
+     */
+    void transactionCompleted(boolean committed)
+    {
+        (committed ? transactionsCommitted : transactionsRolledBack).incrementAndGet();
+        if (parent != null)
+        {
+            parent.transactionCompleted(committed);
+        }
+    }
+
+    /**
+     * Add the counters of another result, e.g. the ones collected by a transaction once it has committed
+     */
+    void add(VersionCleanerResult counts)
+    {
+        nodesProcessed.addAndGet(counts.getNodesProcessed());
+        nodesCleaned.addAndGet(counts.getNodesCleaned());
+        versionsDeleted.addAndGet(counts.getVersionsDeleted());
+        errors.addAndGet(counts.getErrors());
+        nodesDeferred.addAndGet(counts.getNodesDeferred());
+        duplicatesSuppressed.addAndGet(counts.getDuplicatesSuppressed());
+        gapsDetected.addAndGet(counts.getGapsDetected());
+        historiesNotLoaded.addAndGet(counts.getHistoriesNotLoaded());
+        versionsCollapsed.addAndGet(counts.getVersionsCollapsed());
+        stalePlans.addAndGet(counts.getStalePlans());
+        versionsOverBudget.addAndGet(counts.getVersionsOverBudget());
+        contentsOffloaded.addAndGet(counts.getContentsOffloaded());
+        bytesOffloaded.addAndGet(counts.getBytesOffloaded());
+        bytesDeleted.addAndGet(counts.getBytesDeleted());
+        transactionsCommitted.addAndGet(counts.getTransactionsCommitted());
+        transactionsRolledBack.addAndGet(counts.getTransactionsRolledBack());
+        for (Map.Entry<String, Long> phaseTime : counts.getPhaseTimes().entrySet())
+        {
+            getPhaseTime(phaseTime.getKey()).addAndGet(phaseTime.getValue());
+        }
+        if (parent != null)
+        {
+            parent.add(counts);
+        }
+    }
+
+    /**
+     * Number of nodes whose version history has been checked
+     */
+    public long getNodesProcessed()
+    {
+        return nodesProcessed.get();
+    }
+
+    /**
+     * Number of nodes that had at least one version deleted
+     */
+    public long getNodesCleaned()
+    {
+        return nodesCleaned.get();
+    }
+
+    /**
+     * Number of versions deleted
+     */
+    public long getVersionsDeleted()
+    {
+        return versionsDeleted.get();
+    }
+
+    /**
+     * Number of nodes that could not be cleaned
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /**
+     * Number of times a node has been deferred because of a concurrent update or a lock
+     */
+    public long getNodesDeferred()
+    {
+        return nodesDeferred.get();
+    }
+
+    /**
+     * Number of candidates skipped because they had already been cleaned during the run
+     */
+    public long getDuplicatesSuppressed()
+    {
+        return duplicatesSuppressed.get();
+    }
+
+    /**
+     * Number of candidates that may have been skipped because the candidate query results shifted between pages
+     */
+    public long getGapsDetected()
+    {
+        return gapsDetected.get();
+    }
+
+    /**
+     * Number of nodes found with nothing to delete from their version counts, without loading their history
+     */
+    public long getHistoriesNotLoaded()
+    {
+        return historiesNotLoaded.get();
+    }
+
+    /**
+     * Number of versions deleted because their content was identical to the one of the next newer version
+     */
+    public long getVersionsCollapsed()
+    {
+        return versionsCollapsed.get();
+    }
+
+    /**
+     * Number of versions deleted to fit their history in its size budget
+     */
+    public long getVersionsOverBudget()
+    {
+        return versionsOverBudget.get();
+    }
+
+    /**
+     * Number of content files moved to the offload directory
+     */
+    public long getContentsOffloaded()
+    {
+        return contentsOffloaded.get();
+    }
+
+    /**
+     * Size of the content files moved to the offload directory
+     */
+    public long getBytesOffloaded()
+    {
+        return bytesOffloaded.get();
+    }
+
+    /**
+     * Number of deletion plans found out of date in their write transaction because the history changed since it
+     * was read, the nodes have been planned again
+     */
+    public long getStalePlans()
+    {
+        return stalePlans.get();
+    }
+
+    /**
+     * Number of cleaning transactions committed
+     */
+    public long getTransactionsCommitted()
+    {
+        return transactionsCommitted.get();
+    }
+
+    /**
+     * Number of cleaning transactions rolled back, most of them retried because of a concurrent update or a lock
+     */
+    public long getTransactionsRolledBack()
+    {
+        return transactionsRolledBack.get();
+    }
+
+    /**
+     * Share of the cleaning transactions rolled back, between 0 and 1
+     */
+    public double getRetryRate()
+    {
+        long rolledBack = transactionsRolledBack.get();
+        long total = transactionsCommitted.get() + rolledBack;
+        return total == 0L ? 0.0 : (double) rolledBack / total;
+    }
+
+    /**
+     * Content size of the versions deleted. Content shared between versions is counted once per version.
+     */
+    public long getBytesDeleted()
+    {
+        return bytesDeleted.get();
+    }
+
+    /**
+     * Time spent in each phase of the run in milliseconds, summed over the threads
+     */
+    public Map<String, Long> getPhaseTimes()
+    {
+        Map<String, Long> times = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : phaseTimes.entrySet())
+        {
+            times.put(entry.getKey(), entry.getValue().get());
+        }
+        return times;
+    }
+
+    public Date getStartDate()
+    {
+        return startDate;
+    }
+
+    public Date getEndDate()
+    {
+        return endDate;
+    }
+
+    /**
+     * Duration of the run in milliseconds, or the elapsed time if it is still running
+     */
+    public long getDuration()
+    {
+        if (startDate == null)
+        {
+            return 0L;
+        }
+        long end = (endDate == null) ? System.currentTimeMillis() : endDate.getTime();
+        return end - startDate.getTime();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "VersionCleanerResult[nodesProcessed=" + getNodesProcessed() + ", nodesCleaned=" + getNodesCleaned()
+                + ", versionsDeleted=" + getVersionsDeleted() + ", bytesDeleted=" + getBytesDeleted() + ", errors="
+                + getErrors() + ", nodesDeferred=" + getNodesDeferred() + ", duplicatesSuppressed="
+                + getDuplicatesSuppressed() + ", gapsDetected=" + getGapsDetected() + ", historiesNotLoaded="
+                + getHistoriesNotLoaded() + ", versionsCollapsed=" + getVersionsCollapsed() + ", versionsOverBudget="
+                + getVersionsOverBudget() + ", contentsOffloaded=" + getContentsOffloaded() + ", bytesOffloaded="
+                + getBytesOffloaded() + ", stalePlans=" + getStalePlans() + ", transactionsCommitted="
+                + getTransactionsCommitted() + ", transactionsRolledBack=" + getTransactionsRolledBack()
+                + ", duration=" + getDuration() + "ms, phases=" + getPhaseTimes() + "]";
+    }
+}
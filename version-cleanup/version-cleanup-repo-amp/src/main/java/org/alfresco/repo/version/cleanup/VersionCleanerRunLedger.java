@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+
+/**
+ * Persistent history of the cleaning runs, kept with the {@link AttributeService} next to the failure ledger so
+ * that it survives restarts and is visible from every node of a cluster. One record is written per run, holding
+ * the counters of its {@link VersionCleanerResult}, its phase timings and the configuration used. Only the most
+ * recent records are kept.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerRunLedger
+{
+    private static final String KEY_RUNS = "runs";
+
+    public static final String START = "start";
+    public static final String END = "end";
+    public static final String DURATION = "duration";
+    public static final String STATUS = "status";
+    public static final String SERVER = "server";
+    public static final String NODES_PROCESSED = "nodesProcessed";
+    public static final String NODES_CLEANED = "nodesCleaned";
+    public static final String VERSIONS_DELETED = "versionsDeleted";
+    public static final String BYTES_DELETED = "bytesDeleted";
+    public static final String ERRORS = "errors";
+    public static final String NODES_DEFERRED = "nodesDeferred";
+    public static final String THROUGHPUT = "throughput";
+    public static final String RETRY_RATE = "retryRate";
+    public static final String THROUGHPUT_ALERT = "throughputAlert";
+    public static final String PHASES = "phases";
+    public static final String CONFIGURATION = "configuration";
+
+    private final AttributeService attributeService;
+    private final TransactionService transactionService;
+    private final int maxRuns;
+
+    /**
+     * @param maxRuns the number of records kept, the oldest ones are removed
+     */
+    public VersionCleanerRunLedger(AttributeService attributeService, TransactionService transactionService,
+            int maxRuns)
+    {
+        this.attributeService = attributeService;
+        this.transactionService = transactionService;
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Build the record of a run
+     *
+     * @param status completed, paused, cancelled or failed
+     * @param configuration the settings the run used
+     */
+    public static HashMap<String, Serializable> createRecord(VersionCleanerResult result, String status,
+            String server, HashMap<String, Serializable> configuration)
+    {
+        HashMap<String, Serializable> record = new HashMap<String, Serializable>();
+        record.put(START, result.getStartDate());
+        record.put(END, result.getEndDate());
+        record.put(DURATION, result.getDuration());
+        record.put(STATUS, status);
+        record.put(SERVER, server);
+        record.put(NODES_PROCESSED, result.getNodesProcessed());
+        record.put(NODES_CLEANED, result.getNodesCleaned());
+        record.put(VERSIONS_DELETED, result.getVersionsDeleted());
+        record.put(BYTES_DELETED, result.getBytesDeleted());
+        record.put(ERRORS, result.getErrors());
+        record.put(NODES_DEFERRED, result.getNodesDeferred());
+        record.put(THROUGHPUT, getThroughput(result.getNodesProcessed(), result.getDuration()));
+        record.put(RETRY_RATE, result.getRetryRate());
+        record.put(PHASES, new HashMap<String, Long>(result.getPhaseTimes()));
+        record.put(CONFIGURATION, configuration);
+        return record;
+    }
+
+    /**
+     * @return nodes processed per second
+     */
+    public static double getThroughput(long nodesProcessed, long duration)
+    {
+        return duration <= 0L ? 0.0 : nodesProcessed * 1000.0 / duration;
+    }
+
+    /**
+     * Store a record and remove the records beyond maxRuns
+     */
+    public void recordRun(final HashMap<String, Serializable> record)
+    {
+        final String key = String.format("%020d", ((Date) record.get(START)).getTime());
+        RetryingTransactionCallback<Void> recordCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.setAttribute(record, VersionCleanerFailureLedger.KEY_ROOT, KEY_RUNS, key);
+                    List<String> keys = new ArrayList<String>(readRuns().keySet());
+                    for (int i = 0; i < keys.size() - maxRuns; i++)
+                    {
+                        attributeService.removeAttribute(VersionCleanerFailureLedger.KEY_ROOT, KEY_RUNS, keys.get(i));
+                    }
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(recordCallback, false, true);
+    }
+
+    /**
+     * @return the records, newest first
+     */
+    public List<Map<String, Serializable>> getRuns()
+    {
+        RetryingTransactionCallback<List<Map<String, Serializable>>> readCallback;
+        readCallback = new RetryingTransactionCallback<List<Map<String, Serializable>>>()
+            {
+                public List<Map<String, Serializable>> execute() throws Throwable
+                {
+                    List<Map<String, Serializable>> runs = new ArrayList<Map<String, Serializable>>(readRuns()
+                            .values());
+                    Collections.reverse(runs);
+                    return runs;
+                }
+            };
+        return transactionService.getRetryingTransactionHelper().doInTransaction(readCallback, true);
+    }
+
+    /**
+     * @param window the number of previous runs considered
+     * @return the median throughput of the last completed runs having processed nodes, or 0 if there is none
+     */
+    public double getMedianThroughput(int window)
+    {
+        List<Double> throughputs = new ArrayList<Double>();
+        for (Map<String, Serializable> run : getRuns())
+        {
+            if (throughputs.size() >= window)
+            {
+                break;
+            }
+            Serializable throughput = run.get(THROUGHPUT);
+            Serializable nodes = run.get(NODES_PROCESSED);
+            if ("completed".equals(run.get(STATUS)) && throughput instanceof Double && nodes instanceof Long
+                    && (Long) nodes > 0L)
+            {
+                throughputs.add((Double) throughput);
+            }
+        }
+        if (throughputs.isEmpty())
+        {
+            return 0.0;
+        }
+        Double[] sorted = throughputs.toArray(new Double[throughputs.size()]);
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    /**
+     * Forget all the runs
+     */
+    public void clear()
+    {
+        RetryingTransactionCallback<Void> clearCallback = new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.removeAttributes(VersionCleanerFailureLedger.KEY_ROOT, KEY_RUNS);
+                    return null;
+                }
+            };
+        transactionService.getRetryingTransactionHelper().doInTransaction(clearCallback, false, true);
+    }
+
+    /**
+     * @return the records by key, oldest first
+     */
+    private TreeMap<String, Map<String, Serializable>> readRuns()
+    {
+        final TreeMap<String, Map<String, Serializable>> runs = new TreeMap<String, Map<String, Serializable>>();
+        attributeService.getAttributes(new AttributeService.AttributeQueryCallback()
+            {
+                @SuppressWarnings("unchecked")
+                public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                {
+                    runs.put((String) keys[2], (Map<String, Serializable>) value);
+                    return true;
+                }
+            }, VersionCleanerFailureLedger.KEY_ROOT, KEY_RUNS);
+        return runs;
+    }
+}
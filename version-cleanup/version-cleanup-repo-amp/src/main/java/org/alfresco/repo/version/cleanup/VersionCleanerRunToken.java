@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+/**
+ * Cooperative stop request shared between the cleaning loop and the worker threads. Workers check it between
+ * nodes: once a stop is requested the remaining nodes of the current batch are skipped, so the in-flight
+ * transactions commit quickly with the work already done.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerRunToken
+{
+    private static final int RUNNING = 0;
+    private static final int PAUSE_REQUESTED = 1;
+    private static final int CANCEL_REQUESTED = 2;
+
+    private volatile int state = RUNNING;
+
+    /**
+     * Stop the run, the position reached is kept so that the run can be resumed. A pending cancel wins over a
+     * pause.
+     */
+    public synchronized void pause()
+    {
+        if (state == RUNNING)
+        {
+            state = PAUSE_REQUESTED;
+        }
+    }
+
+    /**
+     * Stop the run and forget the position reached
+     */
+    public synchronized void cancel()
+    {
+        state = CANCEL_REQUESTED;
+    }
+
+    /**
+     * @return true if the workers should stop processing nodes
+     */
+    public boolean isStopRequested()
+    {
+        return state != RUNNING;
+    }
+
+    public boolean isPauseRequested()
+    {
+        return state == PAUSE_REQUESTED;
+    }
+
+    public boolean isCancelRequested()
+    {
+        return state == CANCEL_REQUESTED;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+/**
+ * Starts the version cleaner when the repository is idle, replacing a fixed cron trigger. Every checkInterval the
+ * scheduler measures the load of the repository and:
+ * <ul>
+ * <li>starts a run when it is inside one of the allowed time windows, the last run started more than runInterval
+ * ago and the load is below startLoadThreshold,</li>
+ * <li>pauses the running cleaner when the load goes above pauseLoadThreshold or the time window ends,</li>
+ * <li>resumes the paused run once the load is back below startLoadThreshold inside a time window.</li>
+ * </ul>
+ * The load is the highest of the database connection pool usage, the system load average per processor and the
+ * values of the additional {@link LoadProbe}s, between 0 (idle) and 1 (saturated).
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerScheduler extends AbstractLifecycleBean
+{
+    private static Log logger = LogFactory.getLog(VersionCleanerScheduler.class);
+
+    /**
+     * Additional measure of the load of the repository, e.g. a request rate relative to its usual peak
+     */
+    public interface LoadProbe
+    {
+        /**
+         * @return the load between 0 (idle) and 1 (saturated), or a negative value if unknown
+         */
+        double getLoad();
+    }
+
+    private VersionCleanerParralel versionCleaner;
+    private DataSource dataSource;
+    private List<LoadProbe> loadProbes = Collections.emptyList();
+    private boolean enabled = false;
+    private String timeWindows = "";
+    private long checkInterval = 60000L;
+    private long runInterval = 24L * 3600L * 1000L;
+    private double startLoadThreshold = 0.5;
+    private double pauseLoadThreshold = 0.8;
+
+    private int[][] windows = new int[0][];
+    private ScheduledExecutorService checker;
+    private ExecutorService runner;
+    private Future<?> currentRun;
+    private long lastRunStart;
+    private boolean pausedByScheduler;
+
+    /**
+     * @param versionCleaner the cleaner started
+     */
+    public void setVersionCleaner(VersionCleanerParralel versionCleaner)
+    {
+        this.versionCleaner = versionCleaner;
+    }
+
+    /**
+     * @param dataSource the repository data source, its connection pool usage is part of the load when it is a
+     *            commons-dbcp BasicDataSource
+     */
+    public void setDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param loadProbes additional load measures
+     */
+    public void setLoadProbes(List<LoadProbe> loadProbes)
+    {
+        this.loadProbes = loadProbes;
+    }
+
+    /**
+     * @param enabled if false the scheduler does nothing
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param timeWindows comma separated local time windows during which a run may be active, e.g.
+     *            "01:00-06:00,22:00-23:30". A window may span midnight ("22:00-04:00"). Empty for any time.
+     */
+    public void setTimeWindows(String timeWindows)
+    {
+        this.windows = parseTimeWindows(timeWindows);
+        this.timeWindows = timeWindows;
+    }
+
+    /**
+     * @param checkInterval milliseconds between two load checks
+     */
+    public void setCheckInterval(long checkInterval)
+    {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @param runInterval minimum milliseconds between the starts of two runs
+     */
+    public void setRunInterval(long runInterval)
+    {
+        this.runInterval = runInterval;
+    }
+
+    /**
+     * @param startLoadThreshold a run is started or resumed only when the load is below this value
+     */
+    public void setStartLoadThreshold(double startLoadThreshold)
+    {
+        this.startLoadThreshold = startLoadThreshold;
+    }
+
+    /**
+     * @param pauseLoadThreshold a running run is paused when the load goes above this value
+     */
+    public void setPauseLoadThreshold(double pauseLoadThreshold)
+    {
+        this.pauseLoadThreshold = pauseLoadThreshold;
+    }
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VersionCleanerScheduler"));
+        runner = Executors.newSingleThreadExecutor(new NamedThreadFactory("VersionCleanerRun"));
+        checker.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        check();
+                    }
+                    catch (Throwable e)
+                    {
+                        logger.error("Version cleaner scheduling failed", e);
+                    }
+                }
+            }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        logger.info("Version cleaner scheduler started, time windows: "
+                + (timeWindows.trim().length() == 0 ? "any" : timeWindows));
+    }
+
+    @Override
+    protected void onShutdown(ApplicationEvent event)
+    {
+        if (checker == null)
+        {
+            return;
+        }
+        checker.shutdownNow();
+        versionCleaner.pause();
+        runner.shutdown();
+    }
+
+    /**
+     * Start, pause or resume the cleaner according to the time and the load
+     */
+    synchronized void check()
+    {
+        boolean running = (currentRun != null && !currentRun.isDone())
+                || Boolean.TRUE.equals(versionCleaner.getIsRunning());
+        boolean inWindow = isInTimeWindow(Calendar.getInstance());
+        double load = getLoad();
+        if (running)
+        {
+            // paused already, waiting for the transactions in flight to end
+            if (!pausedByScheduler && (!inWindow || load > pauseLoadThreshold))
+            {
+                logger.info("Pausing the version cleaner, load " + load + (inWindow ? "" : ", outside time window"));
+                pausedByScheduler = true;
+                versionCleaner.pause();
+            }
+            return;
+        }
+        if (!inWindow || load >= startLoadThreshold)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Version cleaner not started, load " + load + (inWindow ? "" : ", outside time window"));
+            }
+            return;
+        }
+        if (pausedByScheduler)
+        {
+            pausedByScheduler = false;
+            logger.info("Resuming the version cleaner, load " + load);
+            start(true);
+        }
+        else if (System.currentTimeMillis() - lastRunStart >= runInterval)
+        {
+            lastRunStart = System.currentTimeMillis();
+            logger.info("Starting the version cleaner, load " + load);
+            start(false);
+        }
+    }
+
+    private void start(final boolean resume)
+    {
+        currentRun = runner.submit(new Runnable()
+            {
+                public void run()
+                {
+                    // the future is never read, the failures would be lost
+                    try
+                    {
+                        if (resume)
+                        {
+                            versionCleaner.resume();
+                        }
+                        else
+                        {
+                            versionCleaner.execute();
+                        }
+                    }
+                    catch (LockAcquisitionException e)
+                    {
+                        logger.warn("Version cleaner not started, it is running on another server: "
+                                + e.getMessage());
+                    }
+                    catch (Throwable e)
+                    {
+                        logger.error("Version cleaner run failed", e);
+                    }
+                }
+            });
+    }
+
+    /**
+     * @return the highest of the load measures, 0 if none is available
+     */
+    public double getLoad()
+    {
+        double load = 0.0;
+        if (dataSource instanceof BasicDataSource)
+        {
+            BasicDataSource pool = (BasicDataSource) dataSource;
+            if (pool.getMaxActive() > 0)
+            {
+                load = Math.max(load, (double) pool.getNumActive() / pool.getMaxActive());
+            }
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double systemLoad = os.getSystemLoadAverage();
+        if (systemLoad >= 0.0)
+        {
+            load = Math.max(load, systemLoad / os.getAvailableProcessors());
+        }
+        for (LoadProbe probe : loadProbes)
+        {
+            load = Math.max(load, probe.getLoad());
+        }
+        return load;
+    }
+
+    /**
+     * @return true if the time of day is inside one of the time windows, or if there is none
+     */
+    public boolean isInTimeWindow(Calendar now)
+    {
+        if (windows.length == 0)
+        {
+            return true;
+        }
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        for (int[] window : windows)
+        {
+            boolean inside = window[0] <= window[1] ? (minute >= window[0] && minute < window[1])
+                    : (minute >= window[0] || minute < window[1]);
+            if (inside)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the windows as start and end minutes of the day
+     */
+    public static int[][] parseTimeWindows(String timeWindows)
+    {
+        List<int[]> windows = new ArrayList<int[]>();
+        if (timeWindows != null)
+        {
+            for (String window : timeWindows.split(","))
+            {
+                window = window.trim();
+                if (window.length() == 0)
+                {
+                    continue;
+                }
+                String[] bounds = window.split("-");
+                if (bounds.length != 2)
+                {
+                    throw new AlfrescoRuntimeException("Invalid version cleaner time window: " + window);
+                }
+                windows.add(new int[] { parseMinute(bounds[0]), parseMinute(bounds[1]) });
+            }
+        }
+        return windows.toArray(new int[windows.size()][]);
+    }
+
+    private static int parseMinute(String time)
+    {
+        String[] parts = time.trim().split(":");
+        try
+        {
+            int hours = Integer.parseInt(parts[0]);
+            int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            if (parts.length > 2 || hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+            {
+                throw new NumberFormatException(time);
+            }
+            return hours * 60 + minutes;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new AlfrescoRuntimeException("Invalid version cleaner time: " + time);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+
+        NamedThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
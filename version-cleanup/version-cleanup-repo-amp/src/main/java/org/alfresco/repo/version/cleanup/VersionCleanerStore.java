@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.Date;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * A store scanned by the version cleaner with its own worker threads and, optionally, its own retention rules.
+ * The settings left unset are taken from the cleaner, e.g. to keep only the latest version of the nodes in the
+ * trashcan:
+ * 
+ * <pre>
+ * &lt;bean class="org.alfresco.repo.version.cleanup.VersionCleanerStore"&gt;
+ *    &lt;property name="store" value="archive://SpacesStore" /&gt;
+ *    &lt;property name="threadNumber" value="1" /&gt;
+ *    &lt;property name="minVersionsToKeep" value="1" /&gt;
+ *    &lt;property name="maxVersionsToKeep" value="1" /&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerStore
+{
+    private String store;
+    private Integer threadNumber;
+    private Integer minVersionsToKeep;
+    private Integer maxVersionsToKeep;
+    private Integer maxDaysToKeep;
+    private String thinningSchedule;
+
+    public VersionCleanerStore()
+    {
+    }
+
+    public VersionCleanerStore(String store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param store the store reference, e.g. workspace://SpacesStore or archive://SpacesStore
+     */
+    public void setStore(String store)
+    {
+        this.store = store;
+    }
+
+    public void setThreadNumber(Integer threadNumber)
+    {
+        this.threadNumber = threadNumber;
+    }
+
+    public void setMinVersionsToKeep(Integer minVersionsToKeep)
+    {
+        this.minVersionsToKeep = minVersionsToKeep;
+    }
+
+    public void setMaxVersionsToKeep(Integer maxVersionsToKeep)
+    {
+        this.maxVersionsToKeep = maxVersionsToKeep;
+    }
+
+    public void setMaxDaysToKeep(Integer maxDaysToKeep)
+    {
+        this.maxDaysToKeep = maxDaysToKeep;
+    }
+
+    /**
+     * @param thinningSchedule a {@link VersionThinningSchedule}, an empty string disables the thinning of the cleaner
+     *            for the store
+     */
+    public void setThinningSchedule(String thinningSchedule)
+    {
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    public String getStore()
+    {
+        return store;
+    }
+
+    public StoreRef getStoreRef()
+    {
+        return new StoreRef(store);
+    }
+
+    public Integer getThreadNumber()
+    {
+        return threadNumber;
+    }
+
+    public Integer getMinVersionsToKeep()
+    {
+        return minVersionsToKeep;
+    }
+
+    public Integer getMaxVersionsToKeep()
+    {
+        return maxVersionsToKeep;
+    }
+
+    public Integer getMaxDaysToKeep()
+    {
+        return maxDaysToKeep;
+    }
+
+    public String getThinningSchedule()
+    {
+        return thinningSchedule;
+    }
+
+    /**
+     * @return a copy of the store with the settings left unset taken from the defaults
+     */
+    VersionCleanerStore resolve(int defaultThreadNumber, int defaultMinVersionsToKeep,
+            int defaultMaxVersionsToKeep, int defaultMaxDaysToKeep, String defaultThinningSchedule)
+    {
+        if (store == null || store.trim().length() == 0)
+        {
+            throw new AlfrescoRuntimeException("Property 'store' of a version cleaner store must be set");
+        }
+        VersionCleanerStore resolved = new VersionCleanerStore(store.trim());
+        resolved.threadNumber = threadNumber == null ? defaultThreadNumber : threadNumber;
+        resolved.minVersionsToKeep = minVersionsToKeep == null ? defaultMinVersionsToKeep : minVersionsToKeep;
+        resolved.maxVersionsToKeep = maxVersionsToKeep == null ? defaultMaxVersionsToKeep : maxVersionsToKeep;
+        resolved.maxDaysToKeep = maxDaysToKeep == null ? defaultMaxDaysToKeep : maxDaysToKeep;
+        resolved.thinningSchedule = thinningSchedule == null ? defaultThinningSchedule : thinningSchedule;
+        // fail early on an invalid schedule
+        VersionThinningSchedule.parse(resolved.thinningSchedule);
+        if (resolved.minVersionsToKeep < 0 || resolved.minVersionsToKeep > resolved.maxVersionsToKeep)
+        {
+            throw new AlfrescoRuntimeException("Store " + store
+                    + ": 'minVersionsToKeep' must be 0 or greater and less than 'maxVersionsToKeep'");
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the retention rules of a resolved store
+     */
+    VersionRetentionPlanner createPlanner()
+    {
+        return new VersionRetentionPlanner(minVersionsToKeep, maxVersionsToKeep, VersionThinningSchedule
+                .parse(thinningSchedule));
+    }
+
+    /**
+     * @return the cutoff date of a resolved store, the versions older than it may be deleted
+     */
+    Date getDeleteOlder()
+    {
+        return new Date(System.currentTimeMillis() - (long) maxDaysToKeep * 3600L * 1000L * 24L);
+    }
+
+    @Override
+    public String toString()
+    {
+        return store + "[threads=" + threadNumber + ", min=" + minVersionsToKeep + ", max=" + maxVersionsToKeep
+                + ", days=" + maxDaysToKeep + (thinningSchedule == null || thinningSchedule.trim().length() == 0 ? ""
+                : ", thinning=" + thinningSchedule) + "]";
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Timing events of a cleaning run: candidate page queries, history load, plan and delete of each node, and
+ * transaction commits. The events are written at TRACE level to the log category of this class, so that they can
+ * be switched on for a single run without the debug output of the cleaner; when the category is off an event
+ * costs a level check. Independently of the level, a node taking more than slowNodeThreshold milliseconds is
+ * logged at WARN with its timing breakdown.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerTracer
+{
+    private static Log logger = LogFactory.getLog(VersionCleanerTracer.class);
+    private static final String COMMIT_TIMER_KEY = "VersionCleanerTracer.commitTimer";
+
+    private final long slowNodeThreshold;
+
+    /**
+     * @param slowNodeThreshold duration in milliseconds above which a node is logged at WARN, 0 to disable
+     */
+    public VersionCleanerTracer(long slowNodeThreshold)
+    {
+        this.slowNodeThreshold = slowNodeThreshold;
+    }
+
+    public boolean isTraceEnabled()
+    {
+        return logger.isTraceEnabled();
+    }
+
+    /**
+     * @param source the candidate source queried
+     * @param start the position of the page
+     * @param rows the number of rows read
+     * @param nanos the duration of the query
+     */
+    public void pageQueried(String source, long start, int rows, long nanos)
+    {
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("pageQuery source=" + source + " start=" + start + " rows=" + rows + " ms=" + millis(nanos));
+        }
+    }
+
+    /**
+     * @param versionCount the number of versions of the history
+     * @param deleted the number of versions deleted
+     * @param loadNanos the time taken to load and sort the history
+     * @param planNanos the time taken to decide which versions go
+     * @param deleteNanos the time taken by the deletions
+     */
+    public void nodeCleaned(NodeRef nodeRef, int versionCount, int deleted, long loadNanos, long planNanos,
+            long deleteNanos)
+    {
+        long totalNanos = loadNanos + planNanos + deleteNanos;
+        boolean slow = slowNodeThreshold > 0 && totalNanos >= slowNodeThreshold * 1000000L;
+        if (slow || logger.isTraceEnabled())
+        {
+            String event = "node=" + nodeRef + " versions=" + versionCount + " deleted=" + deleted + " ms="
+                    + millis(totalNanos) + " (load=" + millis(loadNanos) + " plan=" + millis(planNanos) + " delete="
+                    + millis(deleteNanos) + ")";
+            if (slow)
+            {
+                logger.warn("Slow version cleanup " + event);
+            }
+            else
+            {
+                logger.trace("nodeClean " + event);
+            }
+        }
+    }
+
+    /**
+     * Time the commit of the current transaction and count the nodes it cleans. Does nothing when tracing is off.
+     */
+    public void nodeInTransaction()
+    {
+        if (!logger.isTraceEnabled())
+        {
+            return;
+        }
+        CommitTimer timer = AlfrescoTransactionSupport.getResource(COMMIT_TIMER_KEY);
+        if (timer == null)
+        {
+            timer = new CommitTimer();
+            AlfrescoTransactionSupport.bindResource(COMMIT_TIMER_KEY, timer);
+            AlfrescoTransactionSupport.bindListener(timer);
+        }
+        timer.nodes++;
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.valueOf(Math.round(nanos / 100000.0) / 10.0);
+    }
+
+    private static class CommitTimer extends TransactionListenerAdapter
+    {
+        private int nodes;
+        private long commitStart;
+
+        @Override
+        public void beforeCommit(boolean readOnly)
+        {
+            commitStart = System.nanoTime();
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            logger.trace("commit nodes=" + nodes + " ms=" + millis(System.nanoTime() - commitStart));
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            logger.trace("rollback nodes=" + nodes);
+        }
+    }
+}
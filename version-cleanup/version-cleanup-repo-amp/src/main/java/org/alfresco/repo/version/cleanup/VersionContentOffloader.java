@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves content files from the primary file content store to a secondary directory, keeping their path relative
+ * to the store root. The content URLs do not change: the secondary directory is meant to be the root of a
+ * FileContentStore read as a secondary store of an AggregatingContentStore, so the moved content stays readable.
+ * <p>
+ * The files are copied with FileChannel.transferTo, which lets the operating system copy them without going
+ * through the heap, to a temporary file that is synced and renamed before the original is deleted: a content is
+ * always readable from one of the stores. Moving a content already moved, or moved by another thread, does nothing.
+ * Only the store:// URLs of a FileContentStore are moved.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionContentOffloader
+{
+    private static final String STORE_PROTOCOL = "store://";
+
+    private final File contentStoreRoot;
+    private final File offloadRoot;
+
+    /**
+     * @param contentStoreRoot the root of the primary store, e.g. dir.contentstore
+     * @param offloadRoot the root of the secondary store
+     */
+    public VersionContentOffloader(File contentStoreRoot, File offloadRoot)
+    {
+        this.contentStoreRoot = contentStoreRoot;
+        this.offloadRoot = offloadRoot;
+    }
+
+    /**
+     * @return the number of bytes moved, 0 if the content is not in the primary store
+     */
+    public long offload(String contentUrl) throws IOException
+    {
+        if (contentUrl == null || !contentUrl.startsWith(STORE_PROTOCOL))
+        {
+            return 0L;
+        }
+        String relativePath = contentUrl.substring(STORE_PROTOCOL.length());
+        if (relativePath.contains(".."))
+        {
+            throw new IOException("Invalid content URL: " + contentUrl);
+        }
+        File source = new File(contentStoreRoot, relativePath);
+        if (!source.isFile())
+        {
+            return 0L;
+        }
+        long size = source.length();
+        File target = new File(offloadRoot, relativePath);
+        if (!target.isFile() || target.length() != size)
+        {
+            copy(source, target);
+        }
+        if (!source.delete() && source.exists())
+        {
+            throw new IOException("Unable to delete " + source + " once moved to " + target);
+        }
+        return size;
+    }
+
+    private static void copy(File source, File target) throws IOException
+    {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+        {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+        // one temporary file per thread, the same content may be moved by two threads
+        File temporary = new File(directory, target.getName() + "." + Thread.currentThread().getId() + ".offload");
+        FileInputStream input = new FileInputStream(source);
+        try
+        {
+            FileOutputStream output = new FileOutputStream(temporary);
+            try
+            {
+                FileChannel inputChannel = input.getChannel();
+                FileChannel outputChannel = output.getChannel();
+                long size = inputChannel.size();
+                long position = 0L;
+                while (position < size)
+                {
+                    position += inputChannel.transferTo(position, size - position, outputChannel);
+                }
+                outputChannel.force(true);
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch (IOException e)
+        {
+            temporary.delete();
+            throw e;
+        }
+        finally
+        {
+            input.close();
+        }
+        if (!temporary.renameTo(target))
+        {
+            temporary.delete();
+            throw new IOException("Unable to rename " + temporary + " to " + target);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+
+/**
+ * The versions of a node to delete, computed from its version history. The history is identified by a cheap
+ * fingerprint, its number of versions and the label of its head version, so that a plan computed in a read-only
+ * transaction can be checked against the history read again in the write transaction: as versions are only added
+ * at the head or deleted, a history with the same fingerprint holds the same versions.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionDeletionPlan
+{
+    private final long nodeId;
+    private final NodeRef nodeRef;
+    private final int versionCount;
+    private final String headLabel;
+    private final List<String> labels;
+    private final int collapsed;
+    private final int overBudget;
+    private final long bytes;
+    private final List<String> contentUrls;
+
+    /**
+     * @param labels the labels of the versions to delete
+     * @param collapsed the number of versions deleted because they are identical to the next one
+     * @param overBudget the number of versions deleted to fit the history in its size budget
+     * @param bytes the content size of the versions to delete
+     * @param contentUrls the content to offload instead of deleting the versions, used by no version kept
+     */
+    public VersionDeletionPlan(long nodeId, NodeRef nodeRef, int versionCount, String headLabel, List<String> labels,
+            int collapsed, int overBudget, long bytes, List<String> contentUrls)
+    {
+        this.nodeId = nodeId;
+        this.nodeRef = nodeRef;
+        this.versionCount = versionCount;
+        this.headLabel = headLabel;
+        this.labels = labels;
+        this.collapsed = collapsed;
+        this.overBudget = overBudget;
+        this.bytes = bytes;
+        this.contentUrls = contentUrls;
+    }
+
+    public long getNodeId()
+    {
+        return nodeId;
+    }
+
+    public NodeRef getNodeRef()
+    {
+        return nodeRef;
+    }
+
+    public int getVersionCount()
+    {
+        return versionCount;
+    }
+
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    public int getCollapsed()
+    {
+        return collapsed;
+    }
+
+    public int getOverBudget()
+    {
+        return overBudget;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    public List<String> getContentUrls()
+    {
+        return contentUrls;
+    }
+
+    public boolean isEmpty()
+    {
+        return labels.isEmpty();
+    }
+
+    /**
+     * @return true if the history has not changed since the plan was computed
+     */
+    public boolean matches(VersionHistory history)
+    {
+        if (history == null)
+        {
+            return false;
+        }
+        Version head = history.getHeadVersion();
+        return head != null && history.getAllVersions().size() == versionCount
+                && head.getVersionLabel().equals(headLabel);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "VersionDeletionPlan[" + nodeRef + ", " + versionCount + " versions, head " + headLabel + ", delete "
+                + labels + "]";
+    }
+}
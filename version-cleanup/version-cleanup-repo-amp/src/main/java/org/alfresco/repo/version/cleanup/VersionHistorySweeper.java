@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.version.Version2Model;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEventPublisher;
+
+/**
+ * Finds and deletes the version histories that outlived their versioned node. The cleaner starts from the live
+ * versionable nodes so it never visits a history whose node has been purged, has lost the versionable aspect or
+ * has been left behind by a failed transaction. The sweeper reads the history nodes of version2Store instead,
+ * page by page in read-only transactions, and checks the node each history belongs to:
+ * <ul>
+ * <li>missing: the node does not exist anymore, neither live nor in the trashcan</li>
+ * <li>not versionable: the node exists but does not have the versionable aspect</li>
+ * <li>empty: the history has no version</li>
+ * </ul>
+ * The histories of archived nodes are kept as the nodes may be restored. The orphans found are then deleted in
+ * parallel batches, each history being checked again in the deleting transaction. The version store must be
+ * indexed.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionHistorySweeper
+{
+    private static Log logger = LogFactory.getLog(VersionHistorySweeper.class);
+
+    public enum Orphan
+    {
+        MISSING, NOT_VERSIONABLE, EMPTY
+    }
+
+    private final TransactionService transactionService;
+    private final SearchService searchService;
+    private final NodeService nodeService;
+    private final ApplicationEventPublisher applicationEventPublisher;
+    private final int pageLen;
+    private final int threadNumber;
+    private final int batchSize;
+    private final Runnable lockRefresher;
+
+    /**
+     * @param nodeService a node service able to read and write the version store directly
+     * @param lockRefresher run between the pages read and the pages deleted to keep the job lock of the caller
+     */
+    public VersionHistorySweeper(TransactionService transactionService, SearchService searchService,
+            NodeService nodeService, ApplicationEventPublisher applicationEventPublisher, int pageLen,
+            int threadNumber, int batchSize, Runnable lockRefresher)
+    {
+        this.transactionService = transactionService;
+        this.searchService = searchService;
+        this.nodeService = nodeService;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.pageLen = pageLen;
+        this.threadNumber = threadNumber;
+        this.batchSize = batchSize;
+        this.lockRefresher = lockRefresher;
+    }
+
+    /**
+     * Find the orphaned histories and, unless dryRun is set, delete them
+     *
+     * @param token checked between the pages and the histories, the sweep stops when a stop is requested
+     */
+    public SweepResult sweep(boolean dryRun, final VersionCleanerRunToken token)
+    {
+        final SweepResult result = new SweepResult(dryRun);
+        final String query = "TYPE:\"{" + Version2Model.NAMESPACE_URI + "}versionHistory\"";
+        final NodeIdBuffer orphans = new NodeIdBuffer(1024);
+        int startingElement = 0;
+        while (!token.isStopRequested())
+        {
+            lockRefresher.run();
+            final int staticStartingElement = startingElement;
+            RetryingTransactionCallback<Integer> pageCallback = new RetryingTransactionCallback<Integer>()
+                {
+                    public Integer execute() throws Throwable
+                    {
+                        return readPage(query, staticStartingElement, orphans, result);
+                    }
+                };
+            int rows = transactionService.getRetryingTransactionHelper().doInTransaction(pageCallback, true);
+            startingElement += rows;
+            if (rows < pageLen)
+            {
+                break;
+            }
+        }
+        logger.info("Orphaned version histories found: " + result);
+        if (dryRun || token.isStopRequested() || orphans.size() == 0)
+        {
+            return result;
+        }
+        BatchProcessWorker<Long> worker = new BatchProcessWorker<Long>()
+            {
+                public String getIdentifier(Long entry)
+                {
+                    return entry.toString();
+                }
+
+                public void beforeProcess() throws Throwable
+                {
+                }
+
+                public void process(Long historyId) throws Throwable
+                {
+                    if (token.isStopRequested())
+                    {
+                        return;
+                    }
+                    NodeRef historyRef = nodeService.getNodeRef(historyId);
+                    // the node may have been restored or versioned again since the history was read
+                    if (historyRef != null && checkHistory(historyRef) != null)
+                    {
+                        nodeService.deleteNode(historyRef);
+                        result.historiesDeleted.incrementAndGet();
+                    }
+                }
+
+                public void afterProcess() throws Throwable
+                {
+                }
+            };
+        List<Long> orphanIds = orphans.asList();
+        for (int from = 0; from < orphanIds.size() && !token.isStopRequested(); from += pageLen)
+        {
+            lockRefresher.run();
+            BatchProcessor<Long> groupProcessor = new BatchProcessor<Long>("VersionHistorySweeper",
+                    transactionService.getRetryingTransactionHelper(), orphanIds.subList(from,
+                            Math.min(from + pageLen, orphanIds.size())), threadNumber, batchSize,
+                    applicationEventPublisher, logger, 1000);
+            groupProcessor.process(worker, true);
+            result.errors.addAndGet(groupProcessor.getTotalErrors());
+        }
+        logger.info("Orphaned version histories swept: " + result);
+        return result;
+    }
+
+    private int readPage(String query, int startingElement, NodeIdBuffer orphans, SweepResult result)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(VersionStoreHelper.VERSION_STORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setSkipCount(startingElement);
+        sp.setMaxItems(pageLen);
+        sp.setQuery(query);
+        ResultSet results = searchService.query(sp);
+        try
+        {
+            for (int i = 0; i < results.length(); i++)
+            {
+                NodeRef historyRef = results.getNodeRef(i);
+                NodeRef.Status status = nodeService.getNodeStatus(historyRef);
+                if (status == null || status.isDeleted())
+                {
+                    continue;
+                }
+                result.historiesScanned.incrementAndGet();
+                Orphan orphan = checkHistory(historyRef);
+                if (orphan != null)
+                {
+                    result.add(orphan);
+                    orphans.add(status.getDbId());
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Orphaned version history " + historyRef + ": " + orphan);
+                    }
+                }
+            }
+            return results.length();
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+
+    /**
+     * @return why the history is orphaned or null if its node still needs it
+     */
+    Orphan checkHistory(NodeRef historyRef)
+    {
+        List<ChildAssociationRef> versions = nodeService.getChildAssocs(historyRef, RegexQNamePattern.MATCH_ALL,
+                RegexQNamePattern.MATCH_ALL, 1, false);
+        if (versions.isEmpty())
+        {
+            return Orphan.EMPTY;
+        }
+        // the frozen node reference gives the store of the node, the history itself only knows its UUID
+        Serializable frozenNodeRef = nodeService.getProperty(versions.get(0).getChildRef(),
+                Version2Model.PROP_QNAME_FROZEN_NODE_REF);
+        NodeRef versionedNodeRef;
+        if (frozenNodeRef instanceof NodeRef)
+        {
+            versionedNodeRef = (NodeRef) frozenNodeRef;
+        }
+        else
+        {
+            Serializable versionedNodeId = nodeService.getProperty(historyRef,
+                    Version2Model.PROP_QNAME_VERSIONED_NODE_ID);
+            if (versionedNodeId == null)
+            {
+                return null;
+            }
+            versionedNodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, versionedNodeId.toString());
+        }
+        NodeRef.Status status = nodeService.getNodeStatus(versionedNodeRef);
+        if (status == null || status.isDeleted())
+        {
+            NodeRef archivedNodeRef = new NodeRef(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, versionedNodeRef.getId());
+            return nodeService.exists(archivedNodeRef) ? null : Orphan.MISSING;
+        }
+        return nodeService.hasAspect(versionedNodeRef, ContentModel.ASPECT_VERSIONABLE) ? null
+                : Orphan.NOT_VERSIONABLE;
+    }
+
+    /**
+     * Summary of a sweep
+     */
+    public static class SweepResult
+    {
+        private final boolean dryRun;
+        private final AtomicLong historiesScanned = new AtomicLong();
+        private final AtomicLong missing = new AtomicLong();
+        private final AtomicLong notVersionable = new AtomicLong();
+        private final AtomicLong empty = new AtomicLong();
+        private final AtomicLong historiesDeleted = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        SweepResult(boolean dryRun)
+        {
+            this.dryRun = dryRun;
+        }
+
+        private void add(Orphan orphan)
+        {
+            switch (orphan)
+            {
+            case MISSING:
+                missing.incrementAndGet();
+                break;
+            case NOT_VERSIONABLE:
+                notVersionable.incrementAndGet();
+                break;
+            default:
+                empty.incrementAndGet();
+            }
+        }
+
+        public boolean isDryRun()
+        {
+            return dryRun;
+        }
+
+        public long getHistoriesScanned()
+        {
+            return historiesScanned.get();
+        }
+
+        /**
+         * Number of orphaned histories found, whatever the reason
+         */
+        public long getOrphansFound()
+        {
+            return missing.get() + notVersionable.get() + empty.get();
+        }
+
+        public long getMissing()
+        {
+            return missing.get();
+        }
+
+        public long getNotVersionable()
+        {
+            return notVersionable.get();
+        }
+
+        public long getEmpty()
+        {
+            return empty.get();
+        }
+
+        public long getHistoriesDeleted()
+        {
+            return historiesDeleted.get();
+        }
+
+        public long getErrors()
+        {
+            return errors.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "SweepResult[dryRun=" + dryRun + ", historiesScanned=" + getHistoriesScanned() + ", missing="
+                    + getMissing() + ", notVersionable=" + getNotVersionable() + ", empty=" + getEmpty()
+                    + ", historiesDeleted=" + getHistoriesDeleted() + ", errors=" + getErrors() + "]";
+        }
+    }
+}
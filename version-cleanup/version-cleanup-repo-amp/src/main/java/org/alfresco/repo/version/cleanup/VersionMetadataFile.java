@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compact columnar file of version metadata, written by the exporter and read by the offline simulator.
+ * <p>
+ * The file is a sequence of blocks holding whole version histories, so each block can be read and evaluated on
+ * its own. In a block the values are stored column by column: node IDs, history lengths, frozen dates, content
+ * sizes, version labels and content URLs. The numbers are written as variable length integers, the node IDs and
+ * the dates as the difference with the previous value, so most take one to three bytes. Each column is preceded
+ * by its length so that a reader can skip the columns it does not need. The versions of a history are stored
+ * newest first.
+ * <p>
+ * Layout: header (magic, format version, export date), blocks, block index (offset and length of each block),
+ * footer (block count, version count, index offset, magic).
+ *
+ * @author Philippe Dubois
+ */
+public class VersionMetadataFile
+{
+    private static final int MAGIC = 0x56434d44;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int FOOTER_LENGTH = 24;
+    private static final int COLUMNS = 6;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+    /**
+     * Writes the histories in blocks of about blockSize versions. Not thread safe.
+     */
+    public static class Writer implements Closeable
+    {
+        private final DataOutputStream out;
+        private final long exportDate;
+        private final int blockSize;
+        private final List<long[]> index = new ArrayList<long[]>();
+        private long position;
+        private long versionCount;
+        private int historyCount;
+        private int blockVersionCount;
+        private long previousNodeId;
+        private final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+
+        public Writer(File file, Date exportDate, int blockSize) throws IOException
+        {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            this.exportDate = exportDate.getTime();
+            this.blockSize = blockSize;
+            for (int column = 0; column < COLUMNS; column++)
+            {
+                columns[column] = new ByteArrayOutputStream();
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(this.exportDate);
+            position = HEADER_LENGTH;
+        }
+
+        /**
+         * Append the history of a node, the arrays being ordered newest first
+         *
+         * @param frozenModifiedDates may contain nulls
+         * @param contentUrls null for a version without content
+         */
+        public void append(long nodeId, String[] labels, Date[] frozenModifiedDates, long[] sizes,
+                String[] contentUrls) throws IOException
+        {
+            writeVarLong(columns[0], zigzag(nodeId - previousNodeId));
+            previousNodeId = nodeId;
+            writeVarLong(columns[1], frozenModifiedDates.length);
+            long previousDate = exportDate;
+            for (int index = 0; index < frozenModifiedDates.length; index++)
+            {
+                Date date = frozenModifiedDates[index];
+                if (date == null)
+                {
+                    writeVarLong(columns[2], 0L);
+                }
+                else
+                {
+                    writeVarLong(columns[2], zigzag(date.getTime() - previousDate) + 1L);
+                    previousDate = date.getTime();
+                }
+                writeVarLong(columns[3], zigzag(sizes[index]));
+                writeString(columns[4], labels[index]);
+                writeString(columns[5], contentUrls[index]);
+            }
+            historyCount++;
+            blockVersionCount += frozenModifiedDates.length;
+            versionCount += frozenModifiedDates.length;
+            if (blockVersionCount >= blockSize)
+            {
+                flushBlock();
+            }
+        }
+
+        public long getVersionCount()
+        {
+            return versionCount;
+        }
+
+        private void flushBlock() throws IOException
+        {
+            if (historyCount == 0)
+            {
+                return;
+            }
+            long start = position;
+            out.writeInt(historyCount);
+            out.writeInt(blockVersionCount);
+            position += 8;
+            for (ByteArrayOutputStream column : columns)
+            {
+                out.writeInt(column.size());
+                column.writeTo(out);
+                position += 4 + column.size();
+                column.reset();
+            }
+            index.add(new long[] { start, position - start });
+            historyCount = 0;
+            blockVersionCount = 0;
+            previousNodeId = 0L;
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                flushBlock();
+                long indexOffset = position;
+                for (long[] block : index)
+                {
+                    out.writeLong(block[0]);
+                    out.writeInt((int) block[1]);
+                }
+                out.writeInt(index.size());
+                out.writeLong(versionCount);
+                out.writeLong(indexOffset);
+                out.writeInt(MAGIC);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the blocks by position, {@link #readBlock(int, boolean)} can be called by several threads at once
+     */
+    public static class Reader implements Closeable
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long exportDate;
+        private final long versionCount;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        public Reader(File path) throws IOException
+        {
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            ByteBuffer header = read(0L, HEADER_LENGTH);
+            ByteBuffer footer = read(channel.size() - FOOTER_LENGTH, FOOTER_LENGTH);
+            if (header.getInt() != MAGIC || footer.getInt(FOOTER_LENGTH - 4) != MAGIC)
+            {
+                file.close();
+                throw new IOException("Not a version metadata file: " + path);
+            }
+            if (header.getInt() != FORMAT_VERSION)
+            {
+                file.close();
+                throw new IOException("Unsupported version metadata file format: " + path);
+            }
+            exportDate = header.getLong();
+            int blockCount = footer.getInt();
+            versionCount = footer.getLong();
+            long indexOffset = footer.getLong();
+            ByteBuffer index = read(indexOffset, blockCount * 12);
+            offsets = new long[blockCount];
+            lengths = new int[blockCount];
+            for (int block = 0; block < blockCount; block++)
+            {
+                offsets[block] = index.getLong();
+                lengths[block] = index.getInt();
+            }
+        }
+
+        public Date getExportDate()
+        {
+            return new Date(exportDate);
+        }
+
+        public long getVersionCount()
+        {
+            return versionCount;
+        }
+
+        public int getBlockCount()
+        {
+            return offsets.length;
+        }
+
+        /**
+         * @param withLabels if false the labels column is skipped
+         */
+        public Block readBlock(int block, boolean withLabels) throws IOException
+        {
+            ByteBuffer buffer = read(offsets[block], lengths[block]);
+            int historyCount = buffer.getInt();
+            int versionCount = buffer.getInt();
+            Block result = new Block(historyCount, versionCount);
+            // node IDs
+            buffer.getInt();
+            long nodeId = 0L;
+            for (int history = 0; history < historyCount; history++)
+            {
+                nodeId += unzigzag(readVarLong(buffer));
+                result.nodeIds[history] = nodeId;
+            }
+            // history lengths
+            buffer.getInt();
+            for (int history = 0; history < historyCount; history++)
+            {
+                result.historyStarts[history + 1] = result.historyStarts[history] + (int) readVarLong(buffer);
+            }
+            // frozen dates
+            buffer.getInt();
+            for (int history = 0; history < historyCount; history++)
+            {
+                long previousDate = exportDate;
+                int end = result.historyStarts[history + 1];
+                for (int version = result.historyStarts[history]; version < end; version++)
+                {
+                    long value = readVarLong(buffer);
+                    if (value == 0L)
+                    {
+                        result.frozenModifiedDates[version] = Long.MIN_VALUE;
+                    }
+                    else
+                    {
+                        previousDate += unzigzag(value - 1L);
+                        result.frozenModifiedDates[version] = previousDate;
+                    }
+                }
+            }
+            // sizes
+            buffer.getInt();
+            for (int version = 0; version < versionCount; version++)
+            {
+                result.sizes[version] = unzigzag(readVarLong(buffer));
+            }
+            // labels
+            int labelsLength = buffer.getInt();
+            if (withLabels)
+            {
+                result.labels = new String[versionCount];
+                for (int version = 0; version < versionCount; version++)
+                {
+                    result.labels[version] = readString(buffer);
+                }
+            }
+            else
+            {
+                buffer.position(buffer.position() + labelsLength);
+            }
+            // content URLs
+            buffer.getInt();
+            for (int version = 0; version < versionCount; version++)
+            {
+                result.contentUrls[version] = readString(buffer);
+            }
+            return result;
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new IOException("Unexpected end of the version metadata file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        public void close() throws IOException
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * The histories of one block
+     */
+    public static class Block
+    {
+        private final long[] nodeIds;
+        private final int[] historyStarts;
+        private final long[] frozenModifiedDates;
+        private final long[] sizes;
+        private final String[] contentUrls;
+        private String[] labels;
+
+        Block(int historyCount, int versionCount)
+        {
+            nodeIds = new long[historyCount];
+            historyStarts = new int[historyCount + 1];
+            frozenModifiedDates = new long[versionCount];
+            sizes = new long[versionCount];
+            contentUrls = new String[versionCount];
+        }
+
+        public int getHistoryCount()
+        {
+            return nodeIds.length;
+        }
+
+        public long getNodeId(int history)
+        {
+            return nodeIds[history];
+        }
+
+        /**
+         * @return the index of the newest version of the history
+         */
+        public int getHistoryStart(int history)
+        {
+            return historyStarts[history];
+        }
+
+        /**
+         * @return the index following the oldest version of the history
+         */
+        public int getHistoryEnd(int history)
+        {
+            return historyStarts[history + 1];
+        }
+
+        /**
+         * @return the frozen modified date of the version or null if it has none
+         */
+        public Date getFrozenModifiedDate(int version)
+        {
+            return frozenModifiedDates[version] == Long.MIN_VALUE ? null : new Date(frozenModifiedDates[version]);
+        }
+
+        public long getSize(int version)
+        {
+            return sizes[version];
+        }
+
+        public String getContentUrl(int version)
+        {
+            return contentUrls[version];
+        }
+
+        /**
+         * @return the label of the version, null if the labels have not been read
+         */
+        public String getLabel(int version)
+        {
+            return labels == null ? null : labels[version];
+        }
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0L)
+        {
+            out.write((int) ((value & 0x7FL) | 0x80L));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer)
+    {
+        long value = 0L;
+        int shift = 0;
+        byte read;
+        do
+        {
+            read = buffer.get();
+            value |= (long) (read & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((read & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Length + 1 followed by the UTF-8 bytes, 0 for null
+     */
+    private static void writeString(ByteArrayOutputStream out, String value)
+    {
+        if (value == null)
+        {
+            writeVarLong(out, 0L);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        int length = (int) readVarLong(buffer);
+        if (length == 0)
+        {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length - 1, UTF8);
+        buffer.position(buffer.position() + length - 1);
+        return value;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.Date;
+
+/**
+ * Decides which versions of a history are deleted, without touching the repository, so that the cleaner and the
+ * estimator apply the same rules. The versions are given newest first. A version is deleted if it is beyond
+ * maxVersionsToKeep, or if it is beyond minVersionsToKeep and older than the cutoff date.
+ * <p>
+ * When the versions identical to their newer neighbour are given, they are removed first and do not count in the
+ * ranks, so that they do not push the different revisions out of the versions kept. They are only kept when the
+ * history would otherwise be left with less than minVersionsToKeep versions.
+ * <p>
+ * With a {@link VersionThinningSchedule} the versions beyond minVersionsToKeep are kept if the schedule selects
+ * them, instead of the maxVersionsToKeep and cutoff date rules.
+ * <p>
+ * A size budget can then remove the oldest versions kept until the history fits it, see
+ * {@link #applySizeBudget(boolean[], long[], long)}.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionRetentionPlanner
+{
+    private final int minVersionsToKeep;
+    private final int maxVersionsToKeep;
+    private final VersionThinningSchedule thinningSchedule;
+
+    public VersionRetentionPlanner(int minVersionsToKeep, int maxVersionsToKeep)
+    {
+        this(minVersionsToKeep, maxVersionsToKeep, null);
+    }
+
+    /**
+     * @param thinningSchedule replaces the maxVersionsToKeep and cutoff date rules if not null
+     */
+    public VersionRetentionPlanner(int minVersionsToKeep, int maxVersionsToKeep,
+            VersionThinningSchedule thinningSchedule)
+    {
+        this.minVersionsToKeep = minVersionsToKeep;
+        this.maxVersionsToKeep = maxVersionsToKeep;
+        this.thinningSchedule = thinningSchedule;
+    }
+
+    /**
+     * @param frozenModifiedDates the frozen modified dates of the versions, newest first
+     * @param deleteOlder the cutoff date
+     * @return for each version true if it has to be deleted
+     */
+    public boolean[] plan(Date[] frozenModifiedDates, Date deleteOlder)
+    {
+        return plan(frozenModifiedDates, null, deleteOlder);
+    }
+
+    /**
+     * @param frozenModifiedDates the frozen modified dates of the versions, newest first
+     * @param identical for each version true if its content is identical to the one of the previous version, may
+     *            be null
+     * @param deleteOlder the cutoff date
+     * @return for each version true if it has to be deleted
+     */
+    public boolean[] plan(Date[] frozenModifiedDates, boolean[] identical, Date deleteOlder)
+    {
+        return plan(frozenModifiedDates, identical, deleteOlder, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now the time the ages of the thinning schedule are computed from, e.g. the date of an export
+     * @see #plan(Date[], boolean[], Date)
+     */
+    public boolean[] plan(Date[] frozenModifiedDates, boolean[] identical, Date deleteOlder, long now)
+    {
+        boolean[] delete = new boolean[frozenModifiedDates.length];
+        boolean[] thinned = thinningSchedule == null ? null : thinningSchedule.selectKept(frozenModifiedDates,
+                identical, now);
+        int rank = 0;
+        int kept = 0;
+        for (int index = 0; index < frozenModifiedDates.length; index++)
+        {
+            if (identical != null && identical[index])
+            {
+                continue;
+            }
+            if (thinned != null)
+            {
+                delete[index] = rank >= minVersionsToKeep && !thinned[index];
+            }
+            else
+            {
+                boolean older = frozenModifiedDates[index] != null && frozenModifiedDates[index].before(deleteOlder);
+                delete[index] = rank >= minVersionsToKeep && (rank >= maxVersionsToKeep || older);
+            }
+            rank++;
+            if (!delete[index])
+            {
+                kept++;
+            }
+        }
+        if (identical != null)
+        {
+            for (int index = 0; index < frozenModifiedDates.length; index++)
+            {
+                if (identical[index])
+                {
+                    delete[index] = kept >= minVersionsToKeep;
+                    if (!delete[index])
+                    {
+                        kept++;
+                    }
+                }
+            }
+        }
+        return delete;
+    }
+
+    /**
+     * Delete the oldest versions kept beyond minVersionsToKeep until the content size of the versions kept fits a
+     * budget. A content shared by several versions is counted for each of them.
+     *
+     * @param delete the plan of the history, updated
+     * @param sizes the content size of each version, newest first
+     * @param maxBytes the budget of the history, 0 for none
+     * @return the number of versions added to the plan
+     */
+    public int applySizeBudget(boolean[] delete, long[] sizes, long maxBytes)
+    {
+        if (maxBytes <= 0L)
+        {
+            return 0;
+        }
+        long total = 0L;
+        int kept = 0;
+        for (int index = 0; index < delete.length; index++)
+        {
+            if (!delete[index])
+            {
+                total += sizes[index];
+                kept++;
+            }
+        }
+        int added = 0;
+        for (int index = delete.length - 1; index >= 0 && total > maxBytes && kept > minVersionsToKeep; index--)
+        {
+            if (!delete[index])
+            {
+                delete[index] = true;
+                total -= sizes[index];
+                kept--;
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the number of versions plan would delete
+     */
+    public int countDeletions(Date[] frozenModifiedDates, Date deleteOlder)
+    {
+        int count = 0;
+        for (boolean deleted : plan(frozenModifiedDates, deleteOlder))
+        {
+            if (deleted)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the deletions from the size of the history alone: the versions older than the cutoff are the oldest
+     * ones, so the newest max(minVersionsToKeep, younger) versions are kept, up to maxVersionsToKeep.
+     *
+     * @param versionCount the number of versions of the history
+     * @param olderCount the number of versions older than the cutoff
+     * @return the number of versions plan would delete, the oldest ones. Not valid with a thinning schedule.
+     */
+    public int countDeletions(int versionCount, int olderCount)
+    {
+        int younger = Math.max(0, versionCount - olderCount);
+        int kept = Math.min(maxVersionsToKeep, Math.max(minVersionsToKeep, younger));
+        return Math.max(0, versionCount - kept);
+    }
+
+    public int getMinVersionsToKeep()
+    {
+        return minVersionsToKeep;
+    }
+
+    public int getMaxVersionsToKeep()
+    {
+        return maxVersionsToKeep;
+    }
+
+    /**
+     * @return the thinning schedule or null if the count and age rules apply
+     */
+    public VersionThinningSchedule getThinningSchedule()
+    {
+        return thinningSchedule;
+    }
+}
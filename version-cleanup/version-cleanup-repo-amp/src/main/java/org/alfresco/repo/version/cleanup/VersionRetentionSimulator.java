@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Replays a retention configuration over a {@link VersionMetadataFile} without a repository: each history of the
+ * file is planned with a {@link VersionRetentionPlanner} as the cleaner would do at the date of the export, and
+ * the versions and bytes that would be deleted are counted. The blocks of the file are read and evaluated in
+ * parallel by a fork/join pool.
+ * <p>
+ * The bytes freed only count the content URLs of the deleted versions that no kept version of the same history
+ * uses, content shared between nodes is not detected. The identical versions are found from the content URLs only.
+ * The file does not record the node types, so only a global history size budget can be simulated.
+ * <p>
+ * Usage: <code>java org.alfresco.repo.version.cleanup.VersionRetentionSimulator file [min=2] [max=5] [days=10]
+ * [thinning=1d:all,7d:1d] [collapse=true] [budget=2g] [threads=4]</code>
+ *
+ * @author Philippe Dubois
+ */
+public class VersionRetentionSimulator
+{
+    private static final long DAY = 24L * 3600L * 1000L;
+
+    private final VersionRetentionPlanner planner;
+    private final int maxDaysToKeep;
+    private final boolean collapseIdenticalVersions;
+    private final int threadNumber;
+    private long maxBytesPerHistory;
+
+    public VersionRetentionSimulator(VersionRetentionPlanner planner, int maxDaysToKeep,
+            boolean collapseIdenticalVersions, int threadNumber)
+    {
+        this.planner = planner;
+        this.maxDaysToKeep = maxDaysToKeep;
+        this.collapseIdenticalVersions = collapseIdenticalVersions;
+        this.threadNumber = Math.max(1, threadNumber);
+    }
+
+    /**
+     * @param maxBytesPerHistory the size budget of each history, 0 for none
+     */
+    public void setMaxBytesPerHistory(long maxBytesPerHistory)
+    {
+        this.maxBytesPerHistory = maxBytesPerHistory;
+    }
+
+    public SimulationResult simulate(File file) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        VersionMetadataFile.Reader reader = new VersionMetadataFile.Reader(file);
+        ForkJoinPool pool = new ForkJoinPool(threadNumber);
+        try
+        {
+            long now = reader.getExportDate().getTime();
+            Date deleteOlder = new Date(now - (long) maxDaysToKeep * DAY);
+            SimulationResult result = pool.invoke(new SimulateTask(reader, now, deleteOlder, 0, reader
+                    .getBlockCount()));
+            result.duration = System.currentTimeMillis() - start;
+            return result;
+        }
+        finally
+        {
+            pool.shutdown();
+            reader.close();
+        }
+    }
+
+    private SimulationResult simulateBlock(VersionMetadataFile.Reader reader, int blockIndex, long now,
+            Date deleteOlder)
+    {
+        VersionMetadataFile.Block block;
+        try
+        {
+            block = reader.readBlock(blockIndex, false);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to read block " + blockIndex + " of the version metadata", e);
+        }
+        IdenticalContentDetector detector = collapseIdenticalVersions ? new IdenticalContentDetector(null) : null;
+        SimulationResult result = new SimulationResult();
+        for (int history = 0; history < block.getHistoryCount(); history++)
+        {
+            int first = block.getHistoryStart(history);
+            int length = block.getHistoryEnd(history) - first;
+            Date[] dates = new Date[length];
+            String[] contentUrls = new String[length];
+            long[] sizes = new long[length];
+            for (int index = 0; index < length; index++)
+            {
+                dates[index] = block.getFrozenModifiedDate(first + index);
+                contentUrls[index] = block.getContentUrl(first + index);
+                sizes[index] = block.getSize(first + index);
+            }
+            boolean[] identical = detector == null ? null : detector.findIdentical(contentUrls, sizes);
+            boolean[] delete = planner.plan(dates, identical, deleteOlder, now);
+            planner.applySizeBudget(delete, sizes, maxBytesPerHistory);
+            Set<String> keptUrls = new HashSet<String>();
+            for (int index = 0; index < length; index++)
+            {
+                if (!delete[index] && contentUrls[index] != null)
+                {
+                    keptUrls.add(contentUrls[index]);
+                }
+            }
+            int deleted = 0;
+            for (int index = 0; index < length; index++)
+            {
+                if (!delete[index])
+                {
+                    continue;
+                }
+                deleted++;
+                result.bytesDeleted += sizes[index];
+                if (identical != null && identical[index])
+                {
+                    result.versionsCollapsed++;
+                }
+                // a URL is freed once, by the first deleted version using it
+                if (contentUrls[index] != null && keptUrls.add(contentUrls[index]))
+                {
+                    result.bytesFreed += sizes[index];
+                }
+            }
+            result.histories++;
+            result.versions += length;
+            result.versionsDeleted += deleted;
+            if (deleted > 0)
+            {
+                result.nodesCleaned++;
+            }
+        }
+        return result;
+    }
+
+    private class SimulateTask extends RecursiveTask<SimulationResult>
+    {
+        private static final long serialVersionUID = 1L;
+        private final VersionMetadataFile.Reader reader;
+        private final long now;
+        private final Date deleteOlder;
+        private final int from;
+        private final int to;
+
+        SimulateTask(VersionMetadataFile.Reader reader, long now, Date deleteOlder, int from, int to)
+        {
+            this.reader = reader;
+            this.now = now;
+            this.deleteOlder = deleteOlder;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SimulationResult compute()
+        {
+            if (to - from > 1)
+            {
+                int middle = (from + to) >>> 1;
+                SimulateTask left = new SimulateTask(reader, now, deleteOlder, from, middle);
+                left.fork();
+                SimulationResult result = new SimulateTask(reader, now, deleteOlder, middle, to).compute();
+                result.add(left.join());
+                return result;
+            }
+            return to > from ? simulateBlock(reader, from, now, deleteOlder) : new SimulationResult();
+        }
+    }
+
+    /**
+     * What a run would have deleted
+     */
+    public static class SimulationResult
+    {
+        private long histories;
+        private long versions;
+        private long nodesCleaned;
+        private long versionsDeleted;
+        private long versionsCollapsed;
+        private long bytesDeleted;
+        private long bytesFreed;
+        private long duration;
+
+        private void add(SimulationResult other)
+        {
+            histories += other.histories;
+            versions += other.versions;
+            nodesCleaned += other.nodesCleaned;
+            versionsDeleted += other.versionsDeleted;
+            versionsCollapsed += other.versionsCollapsed;
+            bytesDeleted += other.bytesDeleted;
+            bytesFreed += other.bytesFreed;
+        }
+
+        public long getHistories()
+        {
+            return histories;
+        }
+
+        public long getVersions()
+        {
+            return versions;
+        }
+
+        public long getNodesCleaned()
+        {
+            return nodesCleaned;
+        }
+
+        public long getVersionsDeleted()
+        {
+            return versionsDeleted;
+        }
+
+        public long getVersionsCollapsed()
+        {
+            return versionsCollapsed;
+        }
+
+        /**
+         * Content size of the versions deleted, like {@link VersionCleanerResult#getBytesDeleted()}
+         */
+        public long getBytesDeleted()
+        {
+            return bytesDeleted;
+        }
+
+        /**
+         * Content size of the URLs no longer used by the history once the versions are deleted
+         */
+        public long getBytesFreed()
+        {
+            return bytesFreed;
+        }
+
+        /**
+         * Duration of the simulation in milliseconds
+         */
+        public long getDuration()
+        {
+            return duration;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "SimulationResult[histories=" + histories + ", versions=" + versions + ", nodesCleaned="
+                    + nodesCleaned + ", versionsDeleted=" + versionsDeleted + ", versionsCollapsed="
+                    + versionsCollapsed + ", bytesDeleted=" + bytesDeleted + ", bytesFreed=" + bytesFreed
+                    + ", duration=" + duration + "ms]";
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: VersionRetentionSimulator file [min=2] [max=5] [days=10] "
+                    + "[thinning=1d:all,7d:1d,30d:7d,365d:30d] [collapse=true] [budget=2g] [threads=4]");
+            System.exit(1);
+        }
+        int min = 2;
+        int max = 5;
+        int days = 10;
+        String thinning = null;
+        boolean collapse = false;
+        long budget = 0L;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++)
+        {
+            String[] option = args[i].split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+            if ("min".equals(option[0]))
+            {
+                min = Integer.parseInt(value);
+            }
+            else if ("max".equals(option[0]))
+            {
+                max = Integer.parseInt(value);
+            }
+            else if ("days".equals(option[0]))
+            {
+                days = Integer.parseInt(value);
+            }
+            else if ("thinning".equals(option[0]))
+            {
+                thinning = value;
+            }
+            else if ("collapse".equals(option[0]))
+            {
+                collapse = Boolean.parseBoolean(value);
+            }
+            else if ("budget".equals(option[0]))
+            {
+                budget = HistorySizeBudget.parseSize(value);
+            }
+            else if ("threads".equals(option[0]))
+            {
+                threads = Integer.parseInt(value);
+            }
+            else
+            {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(min, max, VersionThinningSchedule
+                .parse(thinning));
+        VersionRetentionSimulator simulator = new VersionRetentionSimulator(planner, days, collapse, threads);
+        simulator.setMaxBytesPerHistory(budget);
+        SimulationResult result = simulator.simulate(new File(args[0]));
+        System.out.println(result);
+    }
+}
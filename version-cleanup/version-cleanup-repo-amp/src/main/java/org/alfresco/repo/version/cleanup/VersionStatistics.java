@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+/**
+ * Statistics of the version store estimated from a random sample of the versionable nodes, with the deletions,
+ * bytes and runtime projected for a retention policy. The intervals are 95% confidence intervals under the normal
+ * approximation; they are only meaningful for samples of a few hundred nodes or more.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionStatistics
+{
+    private static final double Z_95 = 1.96;
+
+    /** upper bounds of the history length buckets (number of versions) */
+    static final long[] HISTORY_LENGTH_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 500, Long.MAX_VALUE };
+    /** upper bounds of the version age buckets (days) */
+    static final long[] AGE_BOUNDS = { 7, 30, 90, 365, 730, 1825, Long.MAX_VALUE };
+    /** upper bounds of the version size buckets (bytes) */
+    static final long[] SIZE_BOUNDS = { 10240L, 102400L, 1048576L, 10485760L, 104857600L, Long.MAX_VALUE };
+
+    private final long populationSize;
+    private final int minVersionsToKeep;
+    private final int maxVersionsToKeep;
+    private final int maxDaysToKeep;
+    private final Histogram historyLengths;
+    private final Histogram versionAges;
+    private final Histogram versionSizes;
+    private final Projection versions;
+    private final Projection deletions;
+    private final Projection bytesDeleted;
+    private final long projectedRuntime;
+
+    VersionStatistics(long populationSize, int minVersionsToKeep, int maxVersionsToKeep, int maxDaysToKeep,
+            Histogram historyLengths, Histogram versionAges, Histogram versionSizes, Projection versions,
+            Projection deletions, Projection bytesDeleted, long projectedRuntime)
+    {
+        this.populationSize = populationSize;
+        this.minVersionsToKeep = minVersionsToKeep;
+        this.maxVersionsToKeep = maxVersionsToKeep;
+        this.maxDaysToKeep = maxDaysToKeep;
+        this.historyLengths = historyLengths;
+        this.versionAges = versionAges;
+        this.versionSizes = versionSizes;
+        this.versions = versions;
+        this.deletions = deletions;
+        this.bytesDeleted = bytesDeleted;
+        this.projectedRuntime = projectedRuntime;
+    }
+
+    /**
+     * Number of versionable nodes the sample was taken from
+     */
+    public long getPopulationSize()
+    {
+        return populationSize;
+    }
+
+    /**
+     * Number of nodes sampled
+     */
+    public long getSampleSize()
+    {
+        return historyLengths.getSampleSize();
+    }
+
+    public int getMinVersionsToKeep()
+    {
+        return minVersionsToKeep;
+    }
+
+    public int getMaxVersionsToKeep()
+    {
+        return maxVersionsToKeep;
+    }
+
+    public int getMaxDaysToKeep()
+    {
+        return maxDaysToKeep;
+    }
+
+    /**
+     * Distribution of the number of versions per node
+     */
+    public Histogram getHistoryLengths()
+    {
+        return historyLengths;
+    }
+
+    /**
+     * Distribution of the age of the versions in days
+     */
+    public Histogram getVersionAges()
+    {
+        return versionAges;
+    }
+
+    /**
+     * Distribution of the content size of the versions in bytes
+     */
+    public Histogram getVersionSizes()
+    {
+        return versionSizes;
+    }
+
+    /**
+     * Total number of versions in the repository
+     */
+    public Projection getVersions()
+    {
+        return versions;
+    }
+
+    /**
+     * Total number of versions the policy would delete
+     */
+    public Projection getDeletions()
+    {
+        return deletions;
+    }
+
+    /**
+     * Total content size of the versions the policy would delete. Content shared between versions is counted once
+     * per version, so this is an upper bound of the space released.
+     */
+    public Projection getBytesDeleted()
+    {
+        return bytesDeleted;
+    }
+
+    /**
+     * Projected duration of a full run in milliseconds
+     */
+    public long getProjectedRuntime()
+    {
+        return projectedRuntime;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("VersionStatistics[population=").append(populationSize).append(", sample=")
+                .append(getSampleSize()).append(", policy=").append(minVersionsToKeep).append('/')
+                .append(maxVersionsToKeep).append('/').append(maxDaysToKeep).append("d]\n");
+        sb.append("  versions: ").append(versions).append('\n');
+        sb.append("  deletions: ").append(deletions).append('\n');
+        sb.append("  bytes deleted: ").append(bytesDeleted).append('\n');
+        sb.append("  projected runtime: ").append(projectedRuntime / 1000L).append("s\n");
+        sb.append("  versions per node: ").append(historyLengths).append('\n');
+        sb.append("  version age (days): ").append(versionAges).append('\n');
+        sb.append("  version size (bytes): ").append(versionSizes);
+        return sb.toString();
+    }
+
+    /**
+     * Counts of sampled values per bucket. A bucket holds the values up to its bound and above the previous one.
+     */
+    public static class Histogram
+    {
+        private final long[] bounds;
+        private final long[] counts;
+        private long sampleSize;
+
+        Histogram(long[] bounds)
+        {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length];
+        }
+
+        void add(long value)
+        {
+            int bucket = 0;
+            while (bucket < bounds.length - 1 && value > bounds[bucket])
+            {
+                bucket++;
+            }
+            counts[bucket]++;
+            sampleSize++;
+        }
+
+        void addAll(Histogram other)
+        {
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] += other.counts[i];
+            }
+            sampleSize += other.sampleSize;
+        }
+
+        public int getBucketCount()
+        {
+            return bounds.length;
+        }
+
+        /**
+         * @return the upper bound (inclusive) of the bucket, Long.MAX_VALUE for the last one
+         */
+        public long getBound(int bucket)
+        {
+            return bounds[bucket];
+        }
+
+        public long getCount(int bucket)
+        {
+            return counts[bucket];
+        }
+
+        public long getSampleSize()
+        {
+            return sampleSize;
+        }
+
+        /**
+         * @return the share of the values in the bucket
+         */
+        public double getShare(int bucket)
+        {
+            return sampleSize == 0 ? 0.0 : (double) counts[bucket] / sampleSize;
+        }
+
+        /**
+         * @return half the width of the confidence interval of the share of the bucket
+         */
+        public double getMargin(int bucket)
+        {
+            if (sampleSize == 0)
+            {
+                return 0.0;
+            }
+            double share = getShare(bucket);
+            return Z_95 * Math.sqrt(share * (1.0 - share) / sampleSize);
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int bucket = 0; bucket < bounds.length; bucket++)
+            {
+                if (bucket > 0)
+                {
+                    sb.append(", ");
+                }
+                sb.append(bounds[bucket] == Long.MAX_VALUE ? ">" + bounds[bucket - 1] : "<=" + bounds[bucket]);
+                sb.append(": ").append(Math.round(getShare(bucket) * 1000.0) / 10.0).append("% +/-")
+                        .append(Math.round(getMargin(bucket) * 1000.0) / 10.0);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A repository total extrapolated from the per node mean of the sample
+     */
+    public static class Projection
+    {
+        private final long populationSize;
+        private final long sampleSize;
+        private final double mean;
+        private final double standardError;
+
+        /**
+         * @param sum sum of the per node values of the sample
+         * @param sumOfSquares sum of the squares of the per node values
+         */
+        Projection(long populationSize, long sampleSize, double sum, double sumOfSquares)
+        {
+            this.populationSize = populationSize;
+            this.sampleSize = sampleSize;
+            this.mean = sampleSize == 0 ? 0.0 : sum / sampleSize;
+            double variance = sampleSize < 2 ? 0.0 : (sumOfSquares - sampleSize * mean * mean) / (sampleSize - 1);
+            // finite population correction, the error is 0 when every node has been sampled
+            double correction = populationSize <= 1 ? 0.0 : Math.max(0.0, (double) (populationSize - sampleSize)
+                    / (populationSize - 1));
+            this.standardError = sampleSize == 0 ? 0.0 : Math.sqrt(Math.max(0.0, variance) / sampleSize
+                    * correction);
+        }
+
+        /**
+         * @return the mean per node
+         */
+        public double getMean()
+        {
+            return mean;
+        }
+
+        public long getTotal()
+        {
+            return Math.round(mean * populationSize);
+        }
+
+        public long getLow()
+        {
+            return Math.max(0L, Math.round((mean - Z_95 * standardError) * populationSize));
+        }
+
+        public long getHigh()
+        {
+            return Math.round((mean + Z_95 * standardError) * populationSize);
+        }
+
+        public long getSampleSize()
+        {
+            return sampleSize;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getTotal() + " [" + getLow() + ", " + getHigh() + "] (" + Math.round(mean * 100.0) / 100.0
+                    + " per node)";
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.transaction.TransactionService;
+
+/**
+ * Estimates the statistics of the version store from a uniform random sample of the nodes returned by the
+ * candidate query: random positions are drawn in the result set and each one is read with a query of one row. The
+ * sampled histories are loaded in parallel read-only transactions and evaluated with a
+ * {@link VersionRetentionPlanner}, nothing is deleted.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionStatisticsEstimator
+{
+    private static final long DAY = 24L * 3600L * 1000L;
+
+    private final TransactionService transactionService;
+    private final SearchService searchService;
+    private final NodeService nodeService;
+    private final VersionService versionService;
+    private final int threadNumber;
+    private final Random random = new Random();
+    private IdenticalContentDetector identicalContentDetector;
+    private HistorySizeBudget historySizeBudget;
+
+    public VersionStatisticsEstimator(TransactionService transactionService, SearchService searchService,
+            NodeService nodeService, VersionService versionService, int threadNumber)
+    {
+        this.transactionService = transactionService;
+        this.searchService = searchService;
+        this.nodeService = nodeService;
+        this.versionService = versionService;
+        this.threadNumber = Math.max(1, threadNumber);
+    }
+
+    /**
+     * @param identicalContentDetector if set, the versions identical to their newer neighbour are planned for
+     *            deletion first like the cleaner does
+     */
+    public void setIdenticalContentDetector(IdenticalContentDetector identicalContentDetector)
+    {
+        this.identicalContentDetector = identicalContentDetector;
+    }
+
+    /**
+     * @param historySizeBudget if set, the versions beyond the size budget of their history are planned for
+     *            deletion like the cleaner does
+     */
+    public void setHistorySizeBudget(HistorySizeBudget historySizeBudget)
+    {
+        this.historySizeBudget = historySizeBudget;
+    }
+
+    /**
+     * @param query the candidate query run in SpacesStore
+     * @param sampleSize the number of nodes to sample
+     * @param planner the retention policy evaluated
+     * @param maxDaysToKeep the age limit of the policy
+     * @param millisPerDeletion the time taken by the deletion of one version, for the runtime projection
+     * @param runThreads the number of threads of a cleaning run, for the runtime projection
+     */
+    public VersionStatistics estimate(final String query, int sampleSize, final VersionRetentionPlanner planner,
+            int maxDaysToKeep, double millisPerDeletion, int runThreads)
+    {
+        RetryingTransactionCallback<Long> countCallback = new RetryingTransactionCallback<Long>()
+            {
+                public Long execute() throws Throwable
+                {
+                    ResultSet results = searchService.query(createParameters(query, 0));
+                    try
+                    {
+                        return results.getNumberFound();
+                    }
+                    finally
+                    {
+                        results.close();
+                    }
+                }
+            };
+        long populationSize = transactionService.getRetryingTransactionHelper().doInTransaction(countCallback,
+                true);
+        int[] offsets = drawOffsets(populationSize, sampleSize);
+        final Date deleteOlder = new Date(System.currentTimeMillis() - (long) maxDaysToKeep * DAY);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadNumber);
+        List<Future<Sample>> futures = new ArrayList<Future<Sample>>();
+        Sample total = new Sample();
+        try
+        {
+            int chunkSize = Math.max(1, (offsets.length + threadNumber - 1) / threadNumber);
+            for (int from = 0; from < offsets.length; from += chunkSize)
+            {
+                final int[] chunk = Arrays.copyOfRange(offsets, from, Math.min(offsets.length, from + chunkSize));
+                futures.add(executor.submit(new Callable<Sample>()
+                    {
+                        public Sample call() throws Exception
+                        {
+                            return evaluate(query, chunk, planner, deleteOlder);
+                        }
+                    }));
+            }
+            for (Future<Sample> future : futures)
+            {
+                total.addAll(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Version statistics estimation interrupted", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Version statistics estimation failed", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        VersionStatistics.Projection deletions = new VersionStatistics.Projection(populationSize, total.nodes,
+                total.deletions, total.deletionSquares);
+        long projectedRuntime = 0L;
+        if (total.nodes > 0)
+        {
+            double millisPerNode = total.nanos / 1000000.0 / total.nodes;
+            projectedRuntime = Math.round((populationSize * millisPerNode + deletions.getTotal()
+                    * millisPerDeletion)
+                    / Math.max(1, runThreads));
+        }
+        return new VersionStatistics(populationSize, planner.getMinVersionsToKeep(),
+                planner.getMaxVersionsToKeep(), maxDaysToKeep, total.historyLengths, total.versionAges,
+                total.versionSizes, new VersionStatistics.Projection(populationSize, total.nodes, total.versions,
+                        total.versionSquares), deletions, new VersionStatistics.Projection(populationSize,
+                        total.nodes, total.bytes, total.byteSquares), projectedRuntime);
+    }
+
+    /**
+     * Draw distinct random positions in the result set, in increasing order
+     */
+    private int[] drawOffsets(long populationSize, int sampleSize)
+    {
+        int population = (int) Math.min(Integer.MAX_VALUE, populationSize);
+        if (sampleSize >= population)
+        {
+            int[] offsets = new int[population];
+            for (int i = 0; i < population; i++)
+            {
+                offsets[i] = i;
+            }
+            return offsets;
+        }
+        // Floyd's algorithm, sampleSize draws whatever the population size
+        Set<Integer> drawn = new HashSet<Integer>();
+        for (int i = population - sampleSize; i < population; i++)
+        {
+            int candidate = random.nextInt(i + 1);
+            drawn.add(drawn.contains(candidate) ? i : candidate);
+        }
+        List<Integer> sorted = new ArrayList<Integer>(drawn);
+        Collections.sort(sorted);
+        int[] offsets = new int[sorted.size()];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = sorted.get(i);
+        }
+        return offsets;
+    }
+
+    private Sample evaluate(final String query, final int[] offsets, final VersionRetentionPlanner planner,
+            final Date deleteOlder)
+    {
+        final RetryingTransactionCallback<Sample> evaluateCallback = new RetryingTransactionCallback<Sample>()
+            {
+                public Sample execute() throws Throwable
+                {
+                    Sample sample = new Sample();
+                    for (int offset : offsets)
+                    {
+                        NodeRef nodeRef = findNode(query, offset);
+                        if (nodeRef != null)
+                        {
+                            evaluateNode(nodeRef, planner, deleteOlder, sample);
+                        }
+                    }
+                    return sample;
+                }
+            };
+        return AuthenticationUtil.runAs(new RunAsWork<Sample>()
+            {
+                public Sample doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(evaluateCallback,
+                            true, true);
+                }
+            }, AuthenticationUtil.getSystemUserName());
+    }
+
+    private NodeRef findNode(String query, int offset)
+    {
+        ResultSet results = searchService.query(createParameters(query, offset));
+        try
+        {
+            // the result set may have shrunk since it was counted
+            return results.length() == 0 ? null : results.getNodeRef(0);
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+
+    private void evaluateNode(NodeRef nodeRef, VersionRetentionPlanner planner, Date deleteOlder, Sample sample)
+    {
+        long start = System.nanoTime();
+        if (!nodeService.exists(nodeRef))
+        {
+            return;
+        }
+        VersionHistory history = versionService.getVersionHistory(nodeRef);
+        List<Version> versions = history == null ? Collections.<Version> emptyList() : new ArrayList<Version>(
+                history.getAllVersions());
+        Collections.sort(versions, new VersionDateComparator());
+        Date[] dates = new Date[versions.size()];
+        long[] sizes = new long[versions.size()];
+        ContentData[] contents = new ContentData[versions.size()];
+        for (int index = 0; index < versions.size(); index++)
+        {
+            Version version = versions.get(index);
+            dates[index] = version.getFrozenModifiedDate();
+            Serializable content = nodeService.getProperty(version.getFrozenStateNodeRef(),
+                    ContentModel.PROP_CONTENT);
+            contents[index] = content instanceof ContentData ? (ContentData) content : null;
+            sizes[index] = contents[index] != null ? contents[index].getSize() : 0L;
+        }
+        boolean[] identical = identicalContentDetector == null ? null : identicalContentDetector
+                .findIdentical(contents);
+        boolean[] delete = planner.plan(dates, identical, deleteOlder);
+        if (historySizeBudget != null && historySizeBudget.isEnabled())
+        {
+            planner.applySizeBudget(delete, sizes, historySizeBudget.getMaxBytes(historySizeBudget.isPerType()
+                    ? nodeService.getType(nodeRef) : null));
+        }
+        sample.nanos += System.nanoTime() - start;
+
+        long now = System.currentTimeMillis();
+        int deletions = 0;
+        long bytes = 0L;
+        for (int index = 0; index < dates.length; index++)
+        {
+            if (dates[index] != null)
+            {
+                sample.versionAges.add((now - dates[index].getTime()) / DAY);
+            }
+            sample.versionSizes.add(sizes[index]);
+            if (delete[index])
+            {
+                deletions++;
+                bytes += sizes[index];
+            }
+        }
+        sample.historyLengths.add(dates.length);
+        sample.nodes++;
+        sample.versions += dates.length;
+        sample.versionSquares += (double) dates.length * dates.length;
+        sample.deletions += deletions;
+        sample.deletionSquares += (double) deletions * deletions;
+        sample.bytes += bytes;
+        sample.byteSquares += (double) bytes * bytes;
+    }
+
+    private static SearchParameters createParameters(String query, int offset)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "SpacesStore"));
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setSkipCount(offset);
+        sp.setMaxItems(1);
+        sp.setQuery(query);
+        return sp;
+    }
+
+    /**
+     * Sums collected by one thread
+     */
+    private static class Sample
+    {
+        private final VersionStatistics.Histogram historyLengths = new VersionStatistics.Histogram(
+                VersionStatistics.HISTORY_LENGTH_BOUNDS);
+        private final VersionStatistics.Histogram versionAges = new VersionStatistics.Histogram(
+                VersionStatistics.AGE_BOUNDS);
+        private final VersionStatistics.Histogram versionSizes = new VersionStatistics.Histogram(
+                VersionStatistics.SIZE_BOUNDS);
+        private long nodes;
+        private long nanos;
+        private double versions;
+        private double versionSquares;
+        private double deletions;
+        private double deletionSquares;
+        private double bytes;
+        private double byteSquares;
+
+        void addAll(Sample other)
+        {
+            historyLengths.addAll(other.historyLengths);
+            versionAges.addAll(other.versionAges);
+            versionSizes.addAll(other.versionSizes);
+            nodes += other.nodes;
+            nanos += other.nanos;
+            versions += other.versions;
+            versionSquares += other.versionSquares;
+            deletions += other.deletions;
+            deletionSquares += other.deletionSquares;
+            bytes += other.bytes;
+            byteSquares += other.byteSquares;
+        }
+    }
+}
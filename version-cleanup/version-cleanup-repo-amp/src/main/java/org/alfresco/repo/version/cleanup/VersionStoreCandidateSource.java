@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.version.Version2Model;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the candidates from the version store instead of the live nodes: the versions frozen before the cutoff
+ * date are queried in version2Store and resolved to the live node they belong to. A live node is returned once, and
+ * only if its history holds more than minVersionsToKeep versions, so only the nodes having versions to delete for
+ * their age are cleaned.
+ * <p>
+ * The version store must be indexed. The histories that are too long but have no old version are not found, so
+ * the maxVersionsToKeep limit is only applied to the nodes found for their age.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionStoreCandidateSource
+{
+    private static Log logger = LogFactory.getLog(VersionStoreCandidateSource.class);
+
+    private final TransactionService transactionService;
+    private final SearchService searchService;
+    private final NodeService nodeService;
+    private final VersionStoreHelper versionStoreHelper;
+    private final int pageLen;
+
+    public VersionStoreCandidateSource(TransactionService transactionService, SearchService searchService,
+            NodeService nodeService, int pageLen)
+    {
+        this.transactionService = transactionService;
+        this.searchService = searchService;
+        this.nodeService = nodeService;
+        this.versionStoreHelper = new VersionStoreHelper(nodeService);
+        this.pageLen = pageLen;
+    }
+
+    /**
+     * @return the version query selecting the versions frozen before the date
+     */
+    public static String getQuery(Date deleteOlder)
+    {
+        return "ASPECT:\"{" + Version2Model.NAMESPACE_URI + "}version\" AND @{" + Version2Model.NAMESPACE_URI
+                + "}frozenModified:[MIN TO \"" + ISO8601DateFormat.format(deleteOlder) + "\"]";
+    }
+
+    /**
+     * Read all the pages of old versions, appending the database IDs of the live nodes having versions to delete to
+     * the spill file page by page, so that only one page of IDs is held in memory
+     *
+     * @param candidates the file receiving the IDs, flushed by the caller
+     * @return false if the run has been stopped
+     */
+    public boolean findCandidates(Date deleteOlder, final int minVersionsToKeep, VersionCleanerRunToken token,
+            CandidateSpillFile candidates) throws IOException
+    {
+        final String query = getQuery(deleteOlder);
+        final NodeIdBitmap seen = new NodeIdBitmap();
+        int startingElement = 0;
+        long versionsFound = 0L;
+        while (true)
+        {
+            if (token.isStopRequested())
+            {
+                return false;
+            }
+            final int staticStartingElement = startingElement;
+            final NodeIdBuffer pageIds = new NodeIdBuffer(pageLen);
+            RetryingTransactionCallback<Integer> pageCallback = new RetryingTransactionCallback<Integer>()
+                {
+                    public Integer execute() throws Throwable
+                    {
+                        return readPage(query, staticStartingElement, minVersionsToKeep, seen, pageIds);
+                    }
+                };
+            int rows = transactionService.getRetryingTransactionHelper().doInTransaction(pageCallback, true);
+            // a node is marked seen once its page is read, a retried page is read again from scratch
+            for (int i = 0; i < pageIds.size(); i++)
+            {
+                if (seen.add(pageIds.get(i)))
+                {
+                    candidates.append(pageIds.get(i));
+                }
+            }
+            versionsFound += rows;
+            startingElement += rows;
+            if (rows < pageLen)
+            {
+                break;
+            }
+        }
+        logger.info("Versions older than " + deleteOlder + ": " + versionsFound + ", nodes to clean: "
+                + candidates.size());
+        return true;
+    }
+
+    private int readPage(String query, int startingElement, int minVersionsToKeep, NodeIdBitmap seen,
+            NodeIdBuffer candidates)
+    {
+        NodeIdBitmap pageSeen = new NodeIdBitmap();
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(VersionStoreHelper.VERSION_STORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setSkipCount(startingElement);
+        sp.setMaxItems(pageLen);
+        sp.setQuery(query);
+        ResultSet results = searchService.query(sp);
+        try
+        {
+            for (int i = 0; i < results.length(); i++)
+            {
+                Serializable frozenNodeRef = nodeService.getProperty(results.getNodeRef(i),
+                        Version2Model.PROP_QNAME_FROZEN_NODE_REF);
+                if (!(frozenNodeRef instanceof NodeRef))
+                {
+                    continue;
+                }
+                NodeRef.Status status = nodeService.getNodeStatus((NodeRef) frozenNodeRef);
+                if (status == null || status.isDeleted() || seen.contains(status.getDbId())
+                        || !pageSeen.add(status.getDbId()))
+                {
+                    continue;
+                }
+                // the old versions are the oldest of the history, some can go if it is longer than the minimum
+                if (versionStoreHelper.countVersions((NodeRef) frozenNodeRef) > minVersionsToKeep)
+                {
+                    candidates.add(status.getDbId());
+                }
+            }
+            return results.length();
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+}
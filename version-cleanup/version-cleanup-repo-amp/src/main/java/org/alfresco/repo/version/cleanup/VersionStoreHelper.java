@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.repo.version.Version2Model;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.util.ISO8601DateFormat;
+
+/**
+ * Cheap access to the structure of the version store (version2Store) without loading version histories: each
+ * versioned node has a version history node, child of the store root with an association named after the node
+ * UUID, and each version is a primary child of the history node.
+ * <p>
+ * The node service given must be able to read the version store directly, i.e. not the public NodeService.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionStoreHelper
+{
+    public static final StoreRef VERSION_STORE = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, Version2Model.STORE_ID);
+
+    /** Number of histories taken from the database and from the index to check the index */
+    private static final int SAMPLE_SIZE = 5;
+    private static final String HISTORY_QUERY = "TYPE:\"{" + Version2Model.NAMESPACE_URI + "}versionHistory\"";
+
+    private final NodeService nodeService;
+    private final SearchService searchService;
+
+    public VersionStoreHelper(NodeService nodeService)
+    {
+        this(nodeService, null);
+    }
+
+    /**
+     * @param searchService needed by the queries on the version store index
+     */
+    public VersionStoreHelper(NodeService nodeService, SearchService searchService)
+    {
+        this.nodeService = nodeService;
+        this.searchService = searchService;
+    }
+
+    public NodeRef getVersionStoreRoot()
+    {
+        return nodeService.getRootNode(VERSION_STORE);
+    }
+
+    /**
+     * @param nodeRef a versioned node
+     * @return the version history node of the node or null if the node has no history
+     */
+    public NodeRef getVersionHistoryNodeRef(NodeRef nodeRef)
+    {
+        List<ChildAssociationRef> histories = nodeService.getChildAssocs(getVersionStoreRoot(),
+                Version2Model.CHILD_QNAME_VERSION_HISTORIES, QName.createQName(Version2Model.NAMESPACE_URI,
+                        nodeRef.getId()));
+        return histories.isEmpty() ? null : histories.get(0).getChildRef();
+    }
+
+    /**
+     * @param nodeRef a versioned node
+     * @return the number of versions of the node, counted in the database
+     */
+    public int countVersions(NodeRef nodeRef)
+    {
+        NodeRef historyRef = getVersionHistoryNodeRef(nodeRef);
+        return historyRef == null ? 0 : nodeService.countChildAssocs(historyRef, true);
+    }
+
+    /**
+     * Count the versions of a history frozen before a date with a range query on the version store index
+     *
+     * @param historyRef a version history node
+     */
+    public int countVersionsOlderThan(NodeRef historyRef, Date date)
+    {
+        return count("PARENT:\"" + historyRef + "\" AND @{" + Version2Model.NAMESPACE_URI + "}frozenModified:[MIN TO \""
+                + ISO8601DateFormat.format(date) + "\"]");
+    }
+
+    /**
+     * Count the versions of a history in the version store index, equal to the number of children of the history
+     * when the index is up to date
+     *
+     * @param historyRef a version history node
+     */
+    public int countIndexedVersions(NodeRef historyRef)
+    {
+        return count("PARENT:\"" + historyRef + "\"");
+    }
+
+    /**
+     * Check that the version store is indexed: the number of histories found by the index must be the number of
+     * histories in the database, and the number of versions found by the index must be the number in the database
+     * for a sample of histories, the oldest ones and histories spread over the index
+     *
+     * @return false if the version store is not indexed, has no history or the query fails
+     */
+    public boolean isIndexed()
+    {
+        try
+        {
+            NodeRef rootRef = getVersionStoreRoot();
+            int historyCount = nodeService.countChildAssocs(rootRef, true);
+            if (historyCount == 0 || count(HISTORY_QUERY) != historyCount)
+            {
+                return false;
+            }
+            List<NodeRef> sample = new ArrayList<NodeRef>();
+            for (ChildAssociationRef history : nodeService.getChildAssocs(rootRef, RegexQNamePattern.MATCH_ALL,
+                    RegexQNamePattern.MATCH_ALL, SAMPLE_SIZE, false))
+            {
+                sample.add(history.getChildRef());
+            }
+            for (int i = 0; i < SAMPLE_SIZE; i++)
+            {
+                NodeRef historyRef = getIndexedHistory((int) ((long) historyCount * i / SAMPLE_SIZE));
+                if (historyRef != null && !sample.contains(historyRef))
+                {
+                    sample.add(historyRef);
+                }
+            }
+            for (NodeRef historyRef : sample)
+            {
+                if (countIndexedVersions(historyRef) != nodeService.countChildAssocs(historyRef, true))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            // no query support for the store
+            return false;
+        }
+    }
+
+    private NodeRef getIndexedHistory(int skipCount)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(VERSION_STORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setSkipCount(skipCount);
+        sp.setMaxItems(1);
+        sp.setQuery(HISTORY_QUERY);
+        ResultSet results = searchService.query(sp);
+        try
+        {
+            return results.length() == 0 ? null : results.getNodeRef(0);
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+
+    private int count(String query)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(VERSION_STORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setMaxItems(1);
+        sp.setQuery(query);
+        ResultSet results = searchService.query(sp);
+        try
+        {
+            return (int) results.getNumberFound();
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Grandfather-father-son thinning: the older a version, the sparser the versions kept. The schedule is a comma
+ * separated list of tiers <code>age:interval</code>, e.g. <code>1d:all,7d:1d,30d:7d,365d:30d</code> keeps every
+ * version of the last day, one version per day for a week, one per week for a month and one per month for a year.
+ * The versions older than the last tier are not kept. The units are h (hour), d (day), w (week), m (30 days) and y
+ * (365 days).
+ * <p>
+ * The intervals are aligned on the epoch (UTC days) rather than on the time of the run, so a version kept by a run
+ * is kept by the next ones until it moves to a sparser tier. The newest version of each interval is kept.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionThinningSchedule
+{
+    private static final long HOUR = 3600L * 1000L;
+    private static final long DAY = 24L * HOUR;
+
+    private final String schedule;
+    private final List<Tier> tiers;
+
+    private VersionThinningSchedule(String schedule, List<Tier> tiers)
+    {
+        this.schedule = schedule;
+        this.tiers = tiers;
+    }
+
+    /**
+     * @return the schedule or null if the string is empty
+     * @throws AlfrescoRuntimeException if the schedule is not valid
+     */
+    public static VersionThinningSchedule parse(String schedule)
+    {
+        if (schedule == null || schedule.trim().length() == 0)
+        {
+            return null;
+        }
+        List<Tier> tiers = new ArrayList<Tier>();
+        for (String tier : schedule.split(","))
+        {
+            String[] parts = tier.trim().split(":");
+            if (parts.length != 2)
+            {
+                throw new AlfrescoRuntimeException("Invalid thinning tier '" + tier + "', expected age:interval");
+            }
+            long maxAge = parseDuration(parts[0]);
+            long interval = "all".equalsIgnoreCase(parts[1].trim()) ? 0L : parseDuration(parts[1]);
+            if (interval < 0L || maxAge <= 0L)
+            {
+                throw new AlfrescoRuntimeException("Invalid thinning tier '" + tier + "'");
+            }
+            tiers.add(new Tier(maxAge, interval));
+        }
+        Collections.sort(tiers, new Comparator<Tier>()
+            {
+                public int compare(Tier tier1, Tier tier2)
+                {
+                    return tier1.maxAge < tier2.maxAge ? -1 : (tier1.maxAge == tier2.maxAge ? 0 : 1);
+                }
+            });
+        return new VersionThinningSchedule(schedule.trim(), tiers);
+    }
+
+    private static long parseDuration(String duration)
+    {
+        String value = duration.trim();
+        if (value.length() < 2)
+        {
+            throw new AlfrescoRuntimeException("Invalid thinning duration '" + duration + "'");
+        }
+        long unit;
+        switch (Character.toLowerCase(value.charAt(value.length() - 1)))
+        {
+        case 'h':
+            unit = HOUR;
+            break;
+        case 'd':
+            unit = DAY;
+            break;
+        case 'w':
+            unit = 7L * DAY;
+            break;
+        case 'm':
+            unit = 30L * DAY;
+            break;
+        case 'y':
+            unit = 365L * DAY;
+            break;
+        default:
+            throw new AlfrescoRuntimeException("Invalid thinning duration '" + duration + "', unit h, d, w, m or y");
+        }
+        try
+        {
+            return Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new AlfrescoRuntimeException("Invalid thinning duration '" + duration + "'", e);
+        }
+    }
+
+    /**
+     * Choose the versions kept in one pass over the versions
+     *
+     * @param frozenModifiedDates the frozen modified dates of the versions, newest first
+     * @param skipped the versions left out of the selection, may be null
+     * @param now the time the ages are computed from
+     * @return for each version true if it is kept by the schedule. A version without date is kept.
+     */
+    public boolean[] selectKept(Date[] frozenModifiedDates, boolean[] skipped, long now)
+    {
+        boolean[] kept = new boolean[frozenModifiedDates.length];
+        Tier lastTier = null;
+        long lastInterval = Long.MIN_VALUE;
+        for (int index = 0; index < frozenModifiedDates.length; index++)
+        {
+            if (skipped != null && skipped[index])
+            {
+                continue;
+            }
+            Date date = frozenModifiedDates[index];
+            if (date == null)
+            {
+                kept[index] = true;
+                continue;
+            }
+            Tier tier = getTier(now - date.getTime());
+            if (tier == null)
+            {
+                continue;
+            }
+            if (tier.interval == 0L)
+            {
+                kept[index] = true;
+                continue;
+            }
+            // sorted newest first: the first version met in an interval is its newest one
+            long interval = Math.floorDiv(date.getTime(), tier.interval);
+            if (tier != lastTier || interval != lastInterval)
+            {
+                kept[index] = true;
+                lastTier = tier;
+                lastInterval = interval;
+            }
+        }
+        return kept;
+    }
+
+    private Tier getTier(long age)
+    {
+        for (Tier tier : tiers)
+        {
+            if (age <= tier.maxAge)
+            {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return schedule;
+    }
+
+    private static class Tier
+    {
+        private final long maxAge;
+        private final long interval;
+
+        Tier(long maxAge, long interval)
+        {
+            this.maxAge = maxAge;
+            this.interval = interval;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import org.alfresco.repo.version.cleanup.VersionCleanerParralel;
+import org.alfresco.repo.version.cleanup.VersionCleanerResult;
 import org.alfresco.repo.version.cleanup.demoamp.DemoComponent;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.MimetypeMap;
@@ -456,5 +457,28 @@ public class DemoComponentTest {
         
         
      }
+    
+    @Test
+    public void testCleanSubtree() throws Exception
+    {
+        // increase the number of versions above the limit specified by maxVersionsToKeep 
+        for(int i = NUMBER_INITIAL_OF_VERSIONS; i < versionCleanerParralel.getMaxVersionsToKeep() + VERSION_NUMBER_INCREASE - 1 ; i ++ )
+        {
+            createNextGeneration(listOfNodeRef);
+        }
+        versionCleanerParralel.setMaxDaysToKeep(100);
+        
+        // only clean the test folder
+        VersionCleanerResult result = versionCleanerParralel.cleanSubtree(testFolderNodeRef);
+        System.out.println("Targeted cleaning:" + result);
+        assertEquals(NUMBER_OF_TESTING_NODES, result.getNodesProcessed());
+        assertEquals(0, result.getErrors());
+        for (int i = 0; i < listOfNodeRef.size(); i++)
+        {
+            int numberOfVersions = versionService.getVersionHistory(listOfNodeRef.get(i)).getAllVersions().size();
+            assertEquals(versionCleanerParralel.getMaxVersionsToKeep() == numberOfVersions, true);
+        }
+     }
+     
      
     }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.version.cleanup.CandidateSpillFile;
+import org.alfresco.repo.version.cleanup.NodeIdBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of the {@link CandidateSpillFile} written and read across its read windows of 64K IDs.
+ *
+ * @author Philippe Dubois
+ */
+public class CandidateSpillFileTest
+{
+    private static final int COUNT = 1000000;
+
+    private File directory;
+
+    @Before
+    public void before() throws IOException
+    {
+        directory = Files.createTempDirectory("version-cleaner").toFile();
+    }
+
+    @After
+    public void after()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReadAcrossWindows() throws IOException
+    {
+        CandidateSpillFile spillFile = write(COUNT);
+        try
+        {
+            assertEquals(COUNT, spillFile.size());
+            spillFile.flush();
+            assertEquals(COUNT * 8L, spillFile.getFile().length());
+            for (int index = 0; index < COUNT; index++)
+            {
+                assertEquals(id(index), spillFile.get(index));
+            }
+            // going back and forth between windows
+            for (int index : new int[] { COUNT - 1, 0, 65535, 65536, 65535, 131072, 999999, 65537 })
+            {
+                assertEquals(id(index), spillFile.get(index));
+            }
+            NodeIdBuffer segment = spillFile.read(65530, 65546);
+            assertEquals(16, segment.size());
+            for (int index = 0; index < 16; index++)
+            {
+                assertEquals(id(65530 + index), segment.get(index));
+            }
+        }
+        finally
+        {
+            spillFile.delete();
+        }
+        assertFalse(spillFile.getFile().exists());
+    }
+
+    @Test
+    public void testWorkProviderCoversTheRange() throws IOException
+    {
+        CandidateSpillFile spillFile = write(200000);
+        try
+        {
+            BatchProcessWorkProvider<Long> provider = spillFile.getWorkProvider(60000, 140001, 5000);
+            assertEquals(80001, provider.getTotalEstimatedWorkSize());
+            long expected = 60000;
+            for (Collection<Long> work = provider.getNextWork(); !work.isEmpty(); work = provider.getNextWork())
+            {
+                assertTrue(work.size() <= 5000);
+                for (Long id : work)
+                {
+                    assertEquals(id(expected++), id.longValue());
+                }
+            }
+            assertEquals(140001, expected);
+        }
+        finally
+        {
+            spillFile.delete();
+        }
+    }
+
+    @Test
+    public void testOutOfRange() throws IOException
+    {
+        CandidateSpillFile spillFile = write(10);
+        try
+        {
+            for (long index : new long[] { -1L, 10L })
+            {
+                try
+                {
+                    spillFile.get(index);
+                    fail("Index accepted: " + index);
+                }
+                catch (IndexOutOfBoundsException e)
+                {
+                    // expected
+                }
+            }
+        }
+        finally
+        {
+            spillFile.delete();
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException
+    {
+        CandidateSpillFile spillFile = write(100000);
+        spillFile.flush();
+        File file = spillFile.getFile();
+        CandidateSpillFile reopened = CandidateSpillFile.open(file, 100000);
+        try
+        {
+            assertEquals(100000, reopened.size());
+            assertEquals(id(99999), reopened.get(99999));
+            assertEquals(id(0), reopened.get(0));
+        }
+        finally
+        {
+            reopened.delete();
+        }
+        try
+        {
+            CandidateSpillFile.open(file, 100000);
+            fail("Missing file opened");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReopenTruncatedFile() throws IOException
+    {
+        CandidateSpillFile spillFile = write(1000);
+        spillFile.flush();
+        try
+        {
+            CandidateSpillFile.open(spillFile.getFile(), 1001);
+            fail("Truncated file opened");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        finally
+        {
+            spillFile.delete();
+        }
+    }
+
+    @Test
+    public void testDeleteStale() throws IOException
+    {
+        CandidateSpillFile kept = CandidateSpillFile.create(directory);
+        CandidateSpillFile.create(directory);
+        CandidateSpillFile.create(directory);
+        File other = new File(directory, "other.ids");
+        other.createNewFile();
+        assertEquals(2, CandidateSpillFile.deleteStale(directory, kept.getFile()));
+        assertTrue(kept.getFile().exists());
+        assertTrue(other.exists());
+        assertEquals(2, directory.listFiles().length);
+        kept.delete();
+    }
+
+    /**
+     * @return a spill file of count IDs, the first half appended one by one and the second half from a buffer
+     */
+    private CandidateSpillFile write(int count) throws IOException
+    {
+        CandidateSpillFile spillFile = CandidateSpillFile.create(directory);
+        for (int index = 0; index < count / 2; index++)
+        {
+            spillFile.append(id(index));
+        }
+        NodeIdBuffer buffer = new NodeIdBuffer(count - count / 2);
+        for (int index = count / 2; index < count; index++)
+        {
+            buffer.add(id(index));
+        }
+        spillFile.append(buffer);
+        return spillFile;
+    }
+
+    /**
+     * @return the ID stored at an index, negative and large ones included
+     */
+    private static long id(long index)
+    {
+        return index % 3 == 0 ? Long.MAX_VALUE - index : index * 7L - 1000L;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.version.cleanup.CostBasedBatchProcessor;
+import org.alfresco.repo.version.cleanup.CostBasedBatchProcessor.CostEstimator;
+import org.alfresco.repo.version.cleanup.VersionStoreHelper;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Unit tests of the {@link CostBasedBatchProcessor} run against an {@link InMemoryRepository}, the cost of a node
+ * being its number of versions.
+ *
+ * @author Philippe Dubois
+ */
+public class CostBasedBatchProcessorTest
+{
+    private static final String ENTRIES_KEY = "CostBasedBatchProcessorTest.entries";
+    private static final int WORKER_THREADS = 3;
+    private static final int COST_BUDGET = 30;
+
+    private InMemoryRepository repository;
+    private List<NodeRef> nodeRefs;
+    private Set<NodeRef> expensiveNodes;
+
+    @Before
+    public void before()
+    {
+        repository = new InMemoryRepository();
+        nodeRefs = new ArrayList<NodeRef>();
+        expensiveNodes = new HashSet<NodeRef>();
+        for (int i = 0; i < 200; i++)
+        {
+            NodeRef nodeRef = repository.createNode();
+            int versions = i % 20 == 0 ? 40 : 2;
+            for (int j = 0; j < versions; j++)
+            {
+                repository.createVersion(nodeRef);
+            }
+            nodeRefs.add(nodeRef);
+            if (versions > COST_BUDGET)
+            {
+                expensiveNodes.add(nodeRef);
+            }
+        }
+    }
+
+    @Test
+    public void testExpensiveNodesIsolatedAndNodesProcessedOnce()
+    {
+        RecordingWorker worker = new RecordingWorker(nodeRefs.get(7), new ConcurrencyFailureException("contention"));
+        CostBasedBatchProcessor<NodeRef> processor = createProcessor();
+        assertEquals(200, processor.process(nodeRefs, new VersionCountEstimator(), worker));
+        assertEquals(200, processor.getSuccessfullyProcessedEntries());
+        assertEquals(0, processor.getTotalErrors());
+
+        // the transaction of the node failing once has been retried, only the committed ones are counted
+        Map<NodeRef, Integer> processed = new HashMap<NodeRef, Integer>();
+        for (List<NodeRef> committed : worker.committed)
+        {
+            for (NodeRef nodeRef : committed)
+            {
+                Integer count = processed.get(nodeRef);
+                processed.put(nodeRef, count == null ? 1 : count + 1);
+            }
+            if (!Collections.disjoint(committed, expensiveNodes))
+            {
+                assertEquals(1, committed.size());
+            }
+            else
+            {
+                // 15 nodes of cost 2 fill the budget
+                assertTrue(committed.size() <= 15);
+            }
+        }
+        assertEquals(200, processed.size());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(Integer.valueOf(1), processed.get(nodeRef));
+        }
+        // an expensive node closes the packet being filled: each run of 19 cheap nodes takes 2 transactions
+        assertEquals(10 + 10 * 2, worker.committed.size());
+        assertTrue(worker.threads.size() <= WORKER_THREADS);
+    }
+
+    @Test
+    public void testFailedTransactionCountsItsEntries()
+    {
+        NodeRef failing = nodeRefs.get(20);
+        RecordingWorker worker = new RecordingWorker(failing, new IllegalStateException("broken"));
+        worker.failures = Integer.MAX_VALUE;
+        CostBasedBatchProcessor<NodeRef> processor = createProcessor();
+        processor.process(nodeRefs, new VersionCountEstimator(), worker);
+        // the failing node is expensive so alone in its transaction
+        assertEquals(1, processor.getTotalErrors());
+        assertEquals(199, processor.getSuccessfullyProcessedEntries());
+        for (List<NodeRef> committed : worker.committed)
+        {
+            assertTrue(!committed.contains(failing));
+        }
+    }
+
+    private CostBasedBatchProcessor<NodeRef> createProcessor()
+    {
+        return new CostBasedBatchProcessor<NodeRef>("CostBasedBatchProcessorTest", repository
+                .getTransactionService().getRetryingTransactionHelper(), WORKER_THREADS, COST_BUDGET, 50,
+                LogFactory.getLog(CostBasedBatchProcessorTest.class));
+    }
+
+    private class VersionCountEstimator implements CostEstimator<NodeRef>
+    {
+        private final VersionStoreHelper helper = new VersionStoreHelper(repository.getNodeService());
+
+        public int estimateCost(NodeRef nodeRef)
+        {
+            return helper.countVersions(nodeRef);
+        }
+    }
+
+    /**
+     * Records the entries of each committed transaction and the threads running them, one node fails a number of
+     * times
+     */
+    private static class RecordingWorker extends BatchProcessWorkerAdaptor<NodeRef>
+    {
+        private final List<List<NodeRef>> committed = Collections.synchronizedList(new ArrayList<List<NodeRef>>());
+        private final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        private final NodeRef failingNode;
+        private final RuntimeException failure;
+        private int failures = 1;
+
+        RecordingWorker(NodeRef failingNode, RuntimeException failure)
+        {
+            this.failingNode = failingNode;
+            this.failure = failure;
+        }
+
+        public void process(NodeRef nodeRef) throws Throwable
+        {
+            threads.add(Thread.currentThread());
+            List<NodeRef> entries = AlfrescoTransactionSupport.getResource(ENTRIES_KEY);
+            if (entries == null)
+            {
+                final List<NodeRef> txnEntries = new ArrayList<NodeRef>();
+                AlfrescoTransactionSupport.bindResource(ENTRIES_KEY, txnEntries);
+                AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+                    {
+                        @Override
+                        public void afterCommit()
+                        {
+                            committed.add(txnEntries);
+                        }
+                    });
+                entries = txnEntries;
+            }
+            entries.add(nodeRef);
+            synchronized (this)
+            {
+                if (nodeRef.equals(failingNode) && failures > 0)
+                {
+                    failures--;
+                    throw failure;
+                }
+            }
+        }
+    }
+}
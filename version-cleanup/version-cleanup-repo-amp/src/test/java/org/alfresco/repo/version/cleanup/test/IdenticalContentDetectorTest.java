@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.alfresco.repo.version.cleanup.IdenticalContentDetector;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of the comparison of the content of neighbour versions done by {@link IdenticalContentDetector}, the
+ * content is read from an {@link InMemoryRepository}.
+ *
+ * @author Philippe Dubois
+ */
+public class IdenticalContentDetectorTest
+{
+    private InMemoryRepository repository;
+    private IdenticalContentDetector detector;
+
+    @Before
+    public void before()
+    {
+        repository = new InMemoryRepository();
+        detector = new IdenticalContentDetector(repository.getContentService());
+    }
+
+    @Test
+    public void testSameUrl()
+    {
+        assertArrayEquals(new boolean[] { false, true, true }, detector.findIdentical(new ContentData[] {
+                content("store://a", 10L), content("store://a", 10L), content("store://a", 10L) }));
+        // settled without reading the content
+        assertTrue(repository.getContentReads().isEmpty());
+    }
+
+    @Test
+    public void testSameSizeSameBytes()
+    {
+        repository.putContent("store://a", "same bytes".getBytes());
+        repository.putContent("store://b", "same bytes".getBytes());
+        repository.putContent("store://c", "same bytes".getBytes());
+        assertArrayEquals(new boolean[] { false, true, true }, detector.findIdentical(new ContentData[] {
+                content("store://a", 10L), content("store://b", 10L), content("store://c", 10L) }));
+        // each content is digested once
+        assertEquals(Arrays.asList("store://a", "store://b", "store://c"), repository.getContentReads());
+    }
+
+    @Test
+    public void testSameSizeDifferentBytes()
+    {
+        repository.putContent("store://a", "some bytes".getBytes());
+        repository.putContent("store://b", "same bytes".getBytes());
+        repository.putContent("store://c", "same bytes".getBytes());
+        assertArrayEquals(new boolean[] { false, false, true }, detector.findIdentical(new ContentData[] {
+                content("store://a", 10L), content("store://b", 10L), content("store://c", 10L) }));
+    }
+
+    @Test
+    public void testDifferentSizes()
+    {
+        repository.putContent("store://a", "short".getBytes());
+        repository.putContent("store://b", "longer bytes".getBytes());
+        assertArrayEquals(new boolean[] { false, false }, detector.findIdentical(new ContentData[] {
+                content("store://a", 5L), content("store://b", 12L) }));
+        // the sizes differ, the content is not read
+        assertTrue(repository.getContentReads().isEmpty());
+    }
+
+    @Test
+    public void testNullContent()
+    {
+        assertArrayEquals(new boolean[] { false, false, false, false }, detector.findIdentical(new ContentData[] {
+                null, content("store://a", 10L), null, content(null, 0L) }));
+        assertArrayEquals(new boolean[] { false, false }, detector.findIdentical(new ContentData[] { null, null }));
+        assertArrayEquals(new boolean[0], detector.findIdentical(new ContentData[0]));
+    }
+
+    @Test
+    public void testMissingContent()
+    {
+        repository.putContent("store://a", "same bytes".getBytes());
+        // store://b cannot be read, the versions are considered different
+        assertArrayEquals(new boolean[] { false, false }, detector.findIdentical(new ContentData[] {
+                content("store://a", 10L), content("store://b", 10L) }));
+    }
+
+    @Test
+    public void testWithoutContentService()
+    {
+        IdenticalContentDetector urlOnly = new IdenticalContentDetector(null);
+        assertArrayEquals(new boolean[] { false, true, false }, urlOnly.findIdentical(new ContentData[] {
+                content("store://a", 10L), content("store://a", 10L), content("store://b", 10L) }));
+    }
+
+    private static ContentData content(String contentUrl, long size)
+    {
+        return new ContentData(contentUrl, "text/plain", size, "UTF-8");
+    }
+}
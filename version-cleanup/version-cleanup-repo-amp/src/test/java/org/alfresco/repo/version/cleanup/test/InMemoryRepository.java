@@ -0,0 +1,1756 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+import javax.transaction.UserTransaction;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.Tenant;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.version.Version2Model;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.lock.NodeLockedException;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.descriptor.Descriptor;
+import org.alfresco.service.descriptor.DescriptorService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.QNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.transaction.SpringAwareUserTransaction;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.TransactionDefinition;
+
+/**
+ * A repository held in memory, with fake NodeService, VersionService, SearchService, TransactionService,
+ * JobLockService, DescriptorService, ContentService, AttributeService, TenantAdminService and DataSource good
+ * enough to drive the version cleaner without a server. The services are dynamic proxies: the methods used by the
+ * cleaner are implemented, the other ones throw an UnsupportedOperationException.
+ * <p>
+ * The version histories can be read and changed by several threads at once; a version deleted from a stale
+ * history raises a ConcurrencyFailureException so that the transaction is retried, like an optimistic locking
+ * failure would. A latency can be added to every service call, or to the calls of one method, to simulate a slow
+ * database. The changes made through the services are undone when their transaction rolls back, so that a
+ * retried transaction starts again from the same state; they are seen by the other transactions before the
+ * commit. A version deletion can be made to fail with a ConcurrencyFailureException once the version has been
+ * removed, for some nodes or at random, to simulate contention. Deleting a version can also take the row of the
+ * parent folder of the node until the end of the transaction, a transaction needing a row held by another one
+ * then fails with a ConcurrencyFailureException.
+ * <p>
+ * Each version history is a node of the version store, child of its root and named after the ID of the versioned
+ * node; its children are the frozen nodes of the versions. The node service lists and counts them, and deleting the
+ * history node deletes the history.
+ * <p>
+ * Only the query selecting the versionable nodes is supported by the search service in SpacesStore, its results are
+ * the live versionable nodes of the store ordered by database ID. In the version store the search service finds the
+ * histories by type, the versions of a history by parent and the versions by aspect, optionally frozen before a
+ * date. The nodes created while {@link #setIndexing(boolean)} is off are not found until {@link #indexAll()}.
+ * Likewise the data source only answers the query counting the references to a content URL, from the content
+ * properties of the live nodes and of the versions. The content service reads the bytes given by
+ * {@link #putContent(String, byte[])}, the other URLs do not exist.
+ * <p>
+ * Multi-tenancy is enabled once a tenant is added with {@link #addTenant(String, boolean)}. A node belongs to the
+ * tenant of the user creating it, e.g. under {@link TenantUtil#runAsSystemTenant}, and the query of the
+ * versionable nodes only finds the nodes of the tenant of the current user.
+ *
+ * @author Philippe Dubois
+ */
+public class InMemoryRepository
+{
+    public static final StoreRef SPACES_STORE = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "SpacesStore");
+    public static final StoreRef VERSION_STORE = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "version2Store");
+    private static final String PARENT_ROWS_KEY = "InMemoryRepository.parentRows";
+    private static final String UNDO_KEY = "InMemoryRepository.undo";
+    private static final String VERSION_STORE_NS = "{" + Version2Model.NAMESPACE_URI + "}";
+    private static final Pattern PARENT_QUERY = Pattern.compile("PARENT:\"([^\"]+)\"");
+    private static final Pattern FROZEN_BEFORE = Pattern.compile("frozenModified:\\[MIN TO \"([^\"]+)\"\\]");
+
+    private final AtomicLong nextDbId = new AtomicLong(1L);
+    private final AtomicLong nextContentId = new AtomicLong(1L);
+    private final AtomicLong serviceCalls = new AtomicLong();
+    private final ConcurrentMap<NodeRef, InMemoryNode> nodes = new ConcurrentHashMap<NodeRef, InMemoryNode>();
+    private final ConcurrentMap<Long, InMemoryNode> nodesById = new ConcurrentHashMap<Long, InMemoryNode>();
+    private final ConcurrentMap<NodeRef, InMemoryVersionHistory> histories =
+            new ConcurrentHashMap<NodeRef, InMemoryVersionHistory>();
+    private final ConcurrentMap<NodeRef, InMemoryVersionHistory> historyNodes =
+            new ConcurrentHashMap<NodeRef, InMemoryVersionHistory>();
+    private final ConcurrentMap<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+    private final InMemoryTransactionManager transactionManager = new InMemoryTransactionManager();
+    private volatile boolean lockedNodesRejectDeletes = false;
+    private volatile boolean parentRowContention = false;
+    private final ConcurrentMap<NodeRef, Set<NodeRef>> parentRows = new ConcurrentHashMap<NodeRef, Set<NodeRef>>();
+    private final AtomicLong parentRowConflicts = new AtomicLong();
+    private final ConcurrentMap<NodeRef, AtomicInteger> contentions = new ConcurrentHashMap<NodeRef, AtomicInteger>();
+    private volatile double contentionRate = 0.0;
+    private final AtomicLong contentionFailures = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private volatile boolean indexing = true;
+    private final Map<String, Boolean> tenants = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>());
+
+    private final NodeService nodeService = fake(NodeService.class, new NodeServiceFake());
+    private final VersionService versionService = fake(VersionService.class, new VersionServiceFake());
+    private final SearchService searchService = fake(SearchService.class, new SearchServiceFake());
+    private final TransactionService transactionService = fake(TransactionService.class,
+            new TransactionServiceFake());
+    private final JobLockService jobLockService = fake(JobLockService.class, new JobLockServiceFake());
+    private final DescriptorService descriptorService = fake(DescriptorService.class, new DescriptorServiceFake());
+    private final DataSource dataSource = fake(DataSource.class, new DataSourceFake());
+    private final ContentService contentService = fake(ContentService.class, new ContentServiceFake());
+    private final AttributeService attributeService = fake(AttributeService.class, new AttributeServiceFake());
+    private final TenantAdminService tenantAdminService = fake(TenantAdminService.class,
+            new TenantAdminServiceFake());
+    private final ConcurrentMap<List<Serializable>, byte[]> attributes =
+            new ConcurrentHashMap<List<Serializable>, byte[]>();
+    private final AtomicLong nextAttributeId = new AtomicLong(1L);
+    private final ConcurrentMap<List<Serializable>, Long> attributeIds =
+            new ConcurrentHashMap<List<Serializable>, Long>();
+    private final ConcurrentMap<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+    private final List<String> contentReads = Collections.synchronizedList(new ArrayList<String>());
+
+    public NodeService getNodeService()
+    {
+        return nodeService;
+    }
+
+    public VersionService getVersionService()
+    {
+        return versionService;
+    }
+
+    public SearchService getSearchService()
+    {
+        return searchService;
+    }
+
+    public TransactionService getTransactionService()
+    {
+        return transactionService;
+    }
+
+    public JobLockService getJobLockService()
+    {
+        return jobLockService;
+    }
+
+    public DescriptorService getDescriptorService()
+    {
+        return descriptorService;
+    }
+
+    public DataSource getDataSource()
+    {
+        return dataSource;
+    }
+
+    public ContentService getContentService()
+    {
+        return contentService;
+    }
+
+    public AttributeService getAttributeService()
+    {
+        return attributeService;
+    }
+
+    public TenantAdminService getTenantAdminService()
+    {
+        return tenantAdminService;
+    }
+
+    /**
+     * Add a tenant, multi-tenancy is enabled from then on
+     */
+    public void addTenant(String tenantDomain, boolean enabled)
+    {
+        tenants.put(tenantDomain, enabled);
+    }
+
+    /**
+     * Store the bytes of a content URL, read by the content service
+     */
+    public void putContent(String contentUrl, byte[] bytes)
+    {
+        contents.put(contentUrl, bytes);
+    }
+
+    /**
+     * @return the URLs of the contents read so far, in order
+     */
+    public List<String> getContentReads()
+    {
+        synchronized (contentReads)
+        {
+            return new ArrayList<String>(contentReads);
+        }
+    }
+
+    /**
+     * Add a latency to every service call
+     */
+    public void setLatency(long millis)
+    {
+        latencies.put("*", millis);
+    }
+
+    /**
+     * Add a latency to the calls of a method of any of the services, e.g. deleteVersion
+     */
+    public void setLatency(String methodName, long millis)
+    {
+        latencies.put(methodName, millis);
+    }
+
+    /**
+     * @param lockedNodesRejectDeletes if true deleting a version of a locked node fails with a NodeLockedException
+     */
+    public void setLockedNodesRejectDeletes(boolean lockedNodesRejectDeletes)
+    {
+        this.lockedNodesRejectDeletes = lockedNodesRejectDeletes;
+    }
+
+    /**
+     * @param parentRowContention if true deleting a version takes the row of the parent of the node until the end of
+     *            the transaction
+     */
+    public void setParentRowContention(boolean parentRowContention)
+    {
+        this.parentRowContention = parentRowContention;
+    }
+
+    /**
+     * @return the number of version deletions that failed because another transaction held the parent row
+     */
+    public long getParentRowConflicts()
+    {
+        return parentRowConflicts.get();
+    }
+
+    /**
+     * Make the next deletions of versions of a node fail with a ConcurrencyFailureException, once the version has
+     * been removed so that the transaction has to undo it
+     */
+    public void addContention(NodeRef nodeRef, int failures)
+    {
+        contentions.put(nodeRef, new AtomicInteger(failures));
+    }
+
+    /**
+     * @param contentionRate the share of the version deletions failing with a ConcurrencyFailureException, once the
+     *            version has been removed
+     */
+    public void setContentionRate(double contentionRate)
+    {
+        this.contentionRate = contentionRate;
+    }
+
+    /**
+     * @return the number of version deletions failed by {@link #addContention(NodeRef, int)} or the contention rate
+     */
+    public long getContentionFailures()
+    {
+        return contentionFailures.get();
+    }
+
+    /**
+     * @return the number of transactions whose changes have been undone
+     */
+    public long getRollbacks()
+    {
+        return rollbacks.get();
+    }
+
+    /**
+     * @param indexing if false the nodes created from now on are not found by the search service, like nodes the
+     *            index has not caught up with
+     */
+    public void setIndexing(boolean indexing)
+    {
+        this.indexing = indexing;
+    }
+
+    /**
+     * Make all the nodes found by the search service
+     */
+    public void indexAll()
+    {
+        for (InMemoryNode node : nodes.values())
+        {
+            node.indexed = true;
+        }
+    }
+
+    /**
+     * @return the number of service calls made so far
+     */
+    public long getServiceCalls()
+    {
+        return serviceCalls.get();
+    }
+
+    /**
+     * Create a versionable content node without version
+     */
+    public NodeRef createNode()
+    {
+        return createNode(ContentModel.TYPE_CONTENT);
+    }
+
+    /**
+     * Create a versionable content node without version in a folder
+     */
+    public NodeRef createNode(NodeRef folderRef)
+    {
+        NodeRef nodeRef = createNode(ContentModel.TYPE_CONTENT);
+        nodes.get(nodeRef).parent = folderRef;
+        return nodeRef;
+    }
+
+    /**
+     * Create a folder, it is not versionable
+     */
+    public NodeRef createFolder()
+    {
+        InMemoryNode folder = addNode(SPACES_STORE);
+        folder.type = ContentModel.TYPE_FOLDER;
+        folder.setProperty(ContentModel.PROP_NAME, "folder" + folder.dbId);
+        return folder.nodeRef;
+    }
+
+    /**
+     * Create a versionable node of a type without version
+     */
+    public NodeRef createNode(QName type)
+    {
+        return createNode(SPACES_STORE, type);
+    }
+
+    /**
+     * Create a versionable node of a type without version in a store
+     */
+    public NodeRef createNode(StoreRef storeRef, QName type)
+    {
+        InMemoryNode node = addNode(storeRef);
+        node.type = type;
+        node.setProperty(ContentModel.PROP_NAME, "node" + node.dbId);
+        node.aspects.add(ContentModel.ASPECT_VERSIONABLE);
+        return node.nodeRef;
+    }
+
+    /**
+     * Create a new version of a node with new content, frozen now
+     */
+    public Version createVersion(NodeRef nodeRef)
+    {
+        return createVersion(nodeRef, new Date(), "store://test/" + nextContentId.incrementAndGet() + ".bin", 1024L);
+    }
+
+    /**
+     * Create a new version of a node, it becomes the head of the history
+     */
+    public Version createVersion(NodeRef nodeRef, Date frozenModified, String contentUrl, long size)
+    {
+        InMemoryNode node = getLiveNode(nodeRef);
+        InMemoryNode frozenNode = addNode(VERSION_STORE);
+        ContentData content = new ContentData(contentUrl, "application/octet-stream", size, "UTF-8");
+        frozenNode.setProperty(ContentModel.PROP_CONTENT, content);
+        frozenNode.setProperty(Version2Model.PROP_QNAME_FROZEN_NODE_REF, nodeRef);
+        frozenNode.setProperty(Version2Model.PROP_QNAME_FROZEN_MODIFIED, frozenModified);
+        frozenNode.aspects.add(Version2Model.ASPECT_VERSION);
+        node.setProperty(ContentModel.PROP_CONTENT, content);
+        InMemoryVersionHistory history;
+        synchronized (histories)
+        {
+            history = histories.get(nodeRef);
+            if (history == null)
+            {
+                history = new InMemoryVersionHistory(nodeRef);
+                histories.put(nodeRef, history);
+                historyNodes.put(history.historyNode.nodeRef, history);
+            }
+        }
+        frozenNode.parent = history.historyNode.nodeRef;
+        return history.add(nodeRef, frozenNode.nodeRef, frozenModified);
+    }
+
+    public int getVersionCount(NodeRef nodeRef)
+    {
+        InMemoryVersionHistory history = histories.get(nodeRef);
+        return history == null ? 0 : history.size();
+    }
+
+    /**
+     * @return the node of the version history of a node in the version store, null if it has none
+     */
+    public NodeRef getVersionHistoryNodeRef(NodeRef nodeRef)
+    {
+        InMemoryVersionHistory history = histories.get(nodeRef);
+        return history == null ? null : history.historyNode.nodeRef;
+    }
+
+    public void lock(NodeRef nodeRef, String owner)
+    {
+        InMemoryNode node = getLiveNode(nodeRef);
+        node.lockOwner = owner;
+        node.aspects.add(ContentModel.ASPECT_LOCKABLE);
+    }
+
+    public void unlock(NodeRef nodeRef)
+    {
+        InMemoryNode node = getLiveNode(nodeRef);
+        node.lockOwner = null;
+        node.aspects.remove(ContentModel.ASPECT_LOCKABLE);
+    }
+
+    /**
+     * Check out a node: it is locked and a working copy is created
+     *
+     * @return the working copy
+     */
+    public NodeRef checkout(NodeRef nodeRef)
+    {
+        InMemoryNode node = getLiveNode(nodeRef);
+        synchronized (node)
+        {
+            if (node.workingCopy != null)
+            {
+                throw new NodeLockedException(nodeRef);
+            }
+            InMemoryNode workingCopy = addNode(SPACES_STORE);
+            workingCopy.aspects.add(ContentModel.ASPECT_WORKING_COPY);
+            node.workingCopy = workingCopy.nodeRef;
+            node.aspects.add(ContentModel.ASPECT_CHECKED_OUT);
+            node.lockOwner = "checkout";
+            return workingCopy.nodeRef;
+        }
+    }
+
+    /**
+     * Check in the working copy of a node: a new version is created and the working copy deleted
+     */
+    public Version checkin(NodeRef nodeRef)
+    {
+        InMemoryNode node = getLiveNode(nodeRef);
+        synchronized (node)
+        {
+            if (node.workingCopy == null)
+            {
+                throw new IllegalStateException("Node not checked out: " + nodeRef);
+            }
+            nodesById.get(nodes.get(node.workingCopy).dbId).deleted = true;
+            node.workingCopy = null;
+            node.aspects.remove(ContentModel.ASPECT_CHECKED_OUT);
+            node.lockOwner = null;
+        }
+        return createVersion(nodeRef);
+    }
+
+    /**
+     * Delete a node, its version history is kept
+     */
+    public void deleteNode(NodeRef nodeRef)
+    {
+        getLiveNode(nodeRef).deleted = true;
+    }
+
+    private InMemoryNode addNode(StoreRef storeRef)
+    {
+        long dbId = nextDbId.getAndIncrement();
+        InMemoryNode node = new InMemoryNode(dbId, new NodeRef(storeRef, UUID.randomUUID().toString()));
+        node.indexed = indexing;
+        node.tenantDomain = getCurrentTenantDomain();
+        nodes.put(node.nodeRef, node);
+        nodesById.put(dbId, node);
+        return node;
+    }
+
+    /**
+     * @return the tenant of the current user, the default tenant if there is no user or no tenant
+     */
+    private static String getCurrentTenantDomain()
+    {
+        return getUserTenantDomain(AuthenticationUtil.getRunAsUser());
+    }
+
+    private static String getUserTenantDomain(String username)
+    {
+        int separator = username == null ? -1 : username.lastIndexOf(TenantService.SEPARATOR);
+        return separator < 0 ? TenantService.DEFAULT_DOMAIN : username.substring(separator + 1);
+    }
+
+    /**
+     * Take the row of the parent of a node for the current transaction
+     */
+    private void lockParentRow(InMemoryNode node)
+    {
+        if (node.parent == null)
+        {
+            return;
+        }
+        Set<NodeRef> held = AlfrescoTransactionSupport.getResource(PARENT_ROWS_KEY);
+        if (held == null)
+        {
+            final Set<NodeRef> txnHeld = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+            AlfrescoTransactionSupport.bindResource(PARENT_ROWS_KEY, txnHeld);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+                {
+                    @Override
+                    public void afterCommit()
+                    {
+                        releaseParentRows(txnHeld);
+                    }
+
+                    @Override
+                    public void afterRollback()
+                    {
+                        releaseParentRows(txnHeld);
+                    }
+                });
+            held = txnHeld;
+        }
+        Set<NodeRef> owner = parentRows.putIfAbsent(node.parent, held);
+        if (owner != null && owner != held)
+        {
+            parentRowConflicts.incrementAndGet();
+            throw new ConcurrencyFailureException("Row of " + node.parent + " held by another transaction");
+        }
+        held.add(node.parent);
+    }
+
+    /**
+     * Record how to undo a change of the current transaction, the changes are undone newest first if it rolls back
+     */
+    private void recordUndo(Runnable undo)
+    {
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            return;
+        }
+        List<Runnable> undoLog = AlfrescoTransactionSupport.getResource(UNDO_KEY);
+        if (undoLog == null)
+        {
+            final List<Runnable> txnUndoLog = new ArrayList<Runnable>();
+            AlfrescoTransactionSupport.bindResource(UNDO_KEY, txnUndoLog);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+                {
+                    @Override
+                    public void afterRollback()
+                    {
+                        for (int index = txnUndoLog.size() - 1; index >= 0; index--)
+                        {
+                            txnUndoLog.get(index).run();
+                        }
+                        rollbacks.incrementAndGet();
+                    }
+                });
+            undoLog = txnUndoLog;
+        }
+        undoLog.add(undo);
+    }
+
+    /**
+     * Record the state of a node before the current transaction changes it
+     */
+    private void recordUndo(final InMemoryNode node)
+    {
+        final Map<QName, Serializable> properties = node.getProperties();
+        final Set<QName> aspects = new HashSet<QName>(node.aspects);
+        final boolean deleted = node.deleted;
+        recordUndo(new Runnable()
+            {
+                public void run()
+                {
+                    node.restore(properties, aspects, deleted);
+                }
+            });
+    }
+
+    /**
+     * Fail the deletion of a version of a node if contention has been added to it or at the contention rate
+     */
+    private void failOnContention(NodeRef nodeRef)
+    {
+        boolean fail = false;
+        AtomicInteger failures = contentions.get(nodeRef);
+        if (failures != null)
+        {
+            int left;
+            do
+            {
+                left = failures.get();
+            }
+            while (left > 0 && !failures.compareAndSet(left, left - 1));
+            fail = left > 0;
+        }
+        if (!fail && contentionRate > 0.0)
+        {
+            fail = ThreadLocalRandom.current().nextDouble() < contentionRate;
+        }
+        if (fail)
+        {
+            contentionFailures.incrementAndGet();
+            throw new ConcurrencyFailureException("Concurrent update of " + nodeRef);
+        }
+    }
+
+    private void releaseParentRows(Set<NodeRef> held)
+    {
+        for (NodeRef parentRef : held)
+        {
+            parentRows.remove(parentRef, held);
+        }
+    }
+
+    private InMemoryNode getLiveNode(NodeRef nodeRef)
+    {
+        InMemoryNode node = nodes.get(nodeRef);
+        if (node == null || node.deleted)
+        {
+            throw new IllegalArgumentException("Node does not exist: " + nodeRef);
+        }
+        return node;
+    }
+
+    /**
+     * Wrap an implementation in a proxy of the service interface, the methods are matched by name and parameter
+     * types
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T fake(final Class<T> serviceInterface, final Object implementation)
+    {
+        return (T) Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] { serviceInterface },
+                new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            if (method.getDeclaringClass() == Object.class)
+                            {
+                                if ("equals".equals(method.getName()))
+                                {
+                                    return proxy == args[0];
+                                }
+                                if ("hashCode".equals(method.getName()))
+                                {
+                                    return System.identityHashCode(proxy);
+                                }
+                                return implementation.toString();
+                            }
+                            Method target;
+                            try
+                            {
+                                target = implementation.getClass().getMethod(method.getName(),
+                                        method.getParameterTypes());
+                            }
+                            catch (NoSuchMethodException e)
+                            {
+                                throw new UnsupportedOperationException(serviceInterface.getSimpleName() + "."
+                                        + method.getName() + " is not implemented by the in-memory repository");
+                            }
+                            serviceCalls.incrementAndGet();
+                            Long latency = latencies.get(method.getName());
+                            if (latency == null)
+                            {
+                                latency = latencies.get("*");
+                            }
+                            if (latency != null && latency > 0L)
+                            {
+                                Thread.sleep(latency);
+                            }
+                            target.setAccessible(true);
+                            try
+                            {
+                                return target.invoke(implementation, args);
+                            }
+                            catch (InvocationTargetException e)
+                            {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+    }
+
+    private static class InMemoryNode
+    {
+        private final long dbId;
+        private final NodeRef nodeRef;
+        private final Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        private final Set<QName> aspects = Collections.newSetFromMap(new ConcurrentHashMap<QName, Boolean>());
+        private volatile boolean deleted;
+        private volatile boolean indexed;
+        private volatile String tenantDomain = TenantService.DEFAULT_DOMAIN;
+        private volatile String lockOwner;
+        private volatile QName type = ContentModel.TYPE_CMOBJECT;
+        private volatile NodeRef parent;
+        private NodeRef workingCopy;
+
+        InMemoryNode(long dbId, NodeRef nodeRef)
+        {
+            this.dbId = dbId;
+            this.nodeRef = nodeRef;
+        }
+
+        synchronized Serializable getProperty(QName name)
+        {
+            return properties.get(name);
+        }
+
+        synchronized Map<QName, Serializable> getProperties()
+        {
+            return new HashMap<QName, Serializable>(properties);
+        }
+
+        synchronized void setProperty(QName name, Serializable value)
+        {
+            properties.put(name, value);
+        }
+
+        synchronized void restore(Map<QName, Serializable> properties, Set<QName> aspects, boolean deleted)
+        {
+            this.properties.clear();
+            this.properties.putAll(properties);
+            this.aspects.retainAll(aspects);
+            this.aspects.addAll(aspects);
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * The versions of a node, newest first, and the node holding them in the version store
+     */
+    private class InMemoryVersionHistory
+    {
+        private final NodeRef versionedNodeRef;
+        private final InMemoryNode historyNode;
+        private final List<Version> versions = new ArrayList<Version>();
+        private int nextLabel = 0;
+
+        InMemoryVersionHistory(NodeRef versionedNodeRef)
+        {
+            this.versionedNodeRef = versionedNodeRef;
+            historyNode = addNode(VERSION_STORE);
+            historyNode.type = Version2Model.TYPE_QNAME_VERSION_HISTORY;
+            historyNode.setProperty(Version2Model.PROP_QNAME_VERSIONED_NODE_ID, versionedNodeRef.getId());
+        }
+
+        /**
+         * @return the name of the history under the root of the version store
+         */
+        QName getAssocQName()
+        {
+            return QName.createQName(Version2Model.NAMESPACE_URI, versionedNodeRef.getId());
+        }
+
+        synchronized Version add(NodeRef versionedNodeRef, NodeRef frozenStateNodeRef, Date frozenModified)
+        {
+            Version version = fake(Version.class, new VersionFake("1." + nextLabel++, versionedNodeRef,
+                    frozenStateNodeRef, frozenModified));
+            versions.add(0, version);
+            return version;
+        }
+
+        /**
+         * @return the version removed
+         */
+        synchronized Version remove(String label)
+        {
+            for (int index = 0; index < versions.size(); index++)
+            {
+                if (versions.get(index).getVersionLabel().equals(label))
+                {
+                    nodes.get(versions.get(index).getFrozenStateNodeRef()).deleted = true;
+                    return versions.remove(index);
+                }
+            }
+            // deleted by another transaction since the history was read
+            throw new ConcurrencyFailureException("Version " + label + " no longer exists");
+        }
+
+        /**
+         * Put back a version removed by a transaction rolled back, in the place of its label
+         */
+        synchronized void restore(Version version)
+        {
+            int number = getLabelNumber(version.getVersionLabel());
+            int index = 0;
+            while (index < versions.size() && getLabelNumber(versions.get(index).getVersionLabel()) > number)
+            {
+                index++;
+            }
+            versions.add(index, version);
+            nodes.get(version.getFrozenStateNodeRef()).deleted = false;
+        }
+
+        private int getLabelNumber(String label)
+        {
+            return Integer.parseInt(label.substring(label.indexOf('.') + 1));
+        }
+
+        synchronized int size()
+        {
+            return versions.size();
+        }
+
+        synchronized List<Version> snapshot()
+        {
+            return new ArrayList<Version>(versions);
+        }
+    }
+
+    public static class VersionFake
+    {
+        private final String label;
+        private final NodeRef versionedNodeRef;
+        private final NodeRef frozenStateNodeRef;
+        private final Date frozenModified;
+        private final Date created = new Date();
+
+        VersionFake(String label, NodeRef versionedNodeRef, NodeRef frozenStateNodeRef, Date frozenModified)
+        {
+            this.label = label;
+            this.versionedNodeRef = versionedNodeRef;
+            this.frozenStateNodeRef = frozenStateNodeRef;
+            this.frozenModified = frozenModified;
+        }
+
+        public String getVersionLabel()
+        {
+            return label;
+        }
+
+        public NodeRef getVersionedNodeRef()
+        {
+            return versionedNodeRef;
+        }
+
+        public NodeRef getFrozenStateNodeRef()
+        {
+            return frozenStateNodeRef;
+        }
+
+        public Date getFrozenModifiedDate()
+        {
+            return frozenModified;
+        }
+
+        public Date getCreatedDate()
+        {
+            return created;
+        }
+
+        public Serializable getVersionProperty(String name)
+        {
+            return null;
+        }
+
+        public Map<String, Serializable> getVersionProperties()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Version[" + label + ", " + versionedNodeRef + "]";
+        }
+    }
+
+    public static class VersionHistoryFake
+    {
+        private final List<Version> versions;
+
+        VersionHistoryFake(List<Version> versions)
+        {
+            this.versions = versions;
+        }
+
+        public Collection<Version> getAllVersions()
+        {
+            return Collections.unmodifiableList(versions);
+        }
+
+        public Version getHeadVersion()
+        {
+            return versions.get(0);
+        }
+
+        public Version getRootVersion()
+        {
+            return versions.get(versions.size() - 1);
+        }
+
+        public Version getVersion(String label)
+        {
+            for (Version version : versions)
+            {
+                if (version.getVersionLabel().equals(label))
+                {
+                    return version;
+                }
+            }
+            return null;
+        }
+    }
+
+    public class NodeServiceFake
+    {
+        public boolean exists(NodeRef nodeRef)
+        {
+            InMemoryNode node = nodes.get(nodeRef);
+            return node != null && !node.deleted;
+        }
+
+        public NodeRef.Status getNodeStatus(NodeRef nodeRef)
+        {
+            InMemoryNode node = nodes.get(nodeRef);
+            return node == null ? null : new NodeRef.Status(node.dbId, nodeRef, "txn", 1L, node.deleted);
+        }
+
+        public NodeRef getNodeRef(Long dbId)
+        {
+            InMemoryNode node = nodesById.get(dbId);
+            return node == null || node.deleted ? null : node.nodeRef;
+        }
+
+        public QName getType(NodeRef nodeRef)
+        {
+            return getLiveNode(nodeRef).type;
+        }
+
+        public ChildAssociationRef getPrimaryParent(NodeRef nodeRef)
+        {
+            InMemoryNode node = getLiveNode(nodeRef);
+            return new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, node.parent, QName.createQName(
+                    NamespaceService.CONTENT_MODEL_1_0_URI, "node" + node.dbId), nodeRef);
+        }
+
+        public Serializable getProperty(NodeRef nodeRef, QName name)
+        {
+            return getLiveNode(nodeRef).getProperty(name);
+        }
+
+        public Map<QName, Serializable> getProperties(NodeRef nodeRef)
+        {
+            return getLiveNode(nodeRef).getProperties();
+        }
+
+        public void setProperty(NodeRef nodeRef, QName name, Serializable value)
+        {
+            InMemoryNode node = getLiveNode(nodeRef);
+            recordUndo(node);
+            node.setProperty(name, value);
+        }
+
+        public boolean hasAspect(NodeRef nodeRef, QName aspect)
+        {
+            return getLiveNode(nodeRef).aspects.contains(aspect);
+        }
+
+        public Set<QName> getAspects(NodeRef nodeRef)
+        {
+            return new HashSet<QName>(getLiveNode(nodeRef).aspects);
+        }
+
+        public void addAspect(NodeRef nodeRef, QName aspect, Map<QName, Serializable> properties)
+        {
+            InMemoryNode node = getLiveNode(nodeRef);
+            recordUndo(node);
+            node.aspects.add(aspect);
+            if (properties != null)
+            {
+                for (Map.Entry<QName, Serializable> property : properties.entrySet())
+                {
+                    node.setProperty(property.getKey(), property.getValue());
+                }
+            }
+        }
+
+        public void removeAspect(NodeRef nodeRef, QName aspect)
+        {
+            InMemoryNode node = getLiveNode(nodeRef);
+            recordUndo(node);
+            node.aspects.remove(aspect);
+        }
+
+        public void deleteNode(NodeRef nodeRef)
+        {
+            InMemoryNode node = getLiveNode(nodeRef);
+            recordUndo(node);
+            node.deleted = true;
+            final InMemoryVersionHistory history = historyNodes.get(nodeRef);
+            if (history != null && histories.remove(history.versionedNodeRef, history))
+            {
+                recordUndo(new Runnable()
+                    {
+                        public void run()
+                        {
+                            histories.putIfAbsent(history.versionedNodeRef, history);
+                        }
+                    });
+            }
+        }
+
+        public NodeRef getRootNode(StoreRef storeRef)
+        {
+            return new NodeRef(storeRef, "root");
+        }
+
+        public List<ChildAssociationRef> getChildAssocs(NodeRef nodeRef, QNamePattern typeQNamePattern,
+                QNamePattern qnamePattern)
+        {
+            return getChildAssocs(nodeRef, typeQNamePattern, qnamePattern, Integer.MAX_VALUE, true);
+        }
+
+        /**
+         * The children of the root of the version store are the histories ordered by database ID, the children of a
+         * history are its versions, newest first
+         */
+        public List<ChildAssociationRef> getChildAssocs(NodeRef nodeRef, QNamePattern typeQNamePattern,
+                QNamePattern qnamePattern, int maxResults, boolean preload)
+        {
+            List<ChildAssociationRef> assocs = new ArrayList<ChildAssociationRef>();
+            if (nodeRef.equals(getRootNode(VERSION_STORE)))
+            {
+                List<InMemoryVersionHistory> sorted = new ArrayList<InMemoryVersionHistory>(histories.values());
+                Collections.sort(sorted, new Comparator<InMemoryVersionHistory>()
+                    {
+                        public int compare(InMemoryVersionHistory history1, InMemoryVersionHistory history2)
+                        {
+                            return Long.compare(history1.historyNode.dbId, history2.historyNode.dbId);
+                        }
+                    });
+                for (InMemoryVersionHistory history : sorted)
+                {
+                    addChildAssoc(assocs, typeQNamePattern, qnamePattern, Version2Model.CHILD_QNAME_VERSION_HISTORIES,
+                            nodeRef, history.getAssocQName(), history.historyNode.nodeRef);
+                }
+            }
+            else
+            {
+                InMemoryVersionHistory history = historyNodes.get(nodeRef);
+                if (history != null && !history.historyNode.deleted)
+                {
+                    for (Version version : history.snapshot())
+                    {
+                        addChildAssoc(assocs, typeQNamePattern, qnamePattern, Version2Model.CHILD_QNAME_VERSIONS,
+                                nodeRef, QName.createQName(Version2Model.NAMESPACE_URI, version.getVersionLabel()),
+                                version.getFrozenStateNodeRef());
+                    }
+                }
+            }
+            return assocs.size() > maxResults ? new ArrayList<ChildAssociationRef>(assocs.subList(0, maxResults))
+                    : assocs;
+        }
+
+        public int countChildAssocs(NodeRef nodeRef, boolean isPrimary)
+        {
+            if (nodeRef.equals(getRootNode(VERSION_STORE)))
+            {
+                return histories.size();
+            }
+            InMemoryVersionHistory history = historyNodes.get(nodeRef);
+            return history == null ? 0 : history.size();
+        }
+
+        private void addChildAssoc(List<ChildAssociationRef> assocs, QNamePattern typeQNamePattern,
+                QNamePattern qnamePattern, QName typeQName, NodeRef parentRef, QName qname, NodeRef childRef)
+        {
+            if (typeQNamePattern.isMatch(typeQName) && qnamePattern.isMatch(qname))
+            {
+                assocs.add(new ChildAssociationRef(typeQName, parentRef, qname, childRef));
+            }
+        }
+    }
+
+    public class VersionServiceFake
+    {
+        public StoreRef getVersionStoreReference()
+        {
+            return VERSION_STORE;
+        }
+
+        public VersionHistory getVersionHistory(NodeRef nodeRef)
+        {
+            InMemoryVersionHistory history = histories.get(nodeRef);
+            List<Version> versions = history == null ? null : history.snapshot();
+            return versions == null || versions.isEmpty() ? null : fake(VersionHistory.class,
+                    new VersionHistoryFake(versions));
+        }
+
+        public Version getCurrentVersion(NodeRef nodeRef)
+        {
+            VersionHistory history = getVersionHistory(nodeRef);
+            return history == null ? null : history.getHeadVersion();
+        }
+
+        public Version createVersion(NodeRef nodeRef, Map<String, Serializable> versionProperties)
+        {
+            return InMemoryRepository.this.createVersion(nodeRef);
+        }
+
+        public void deleteVersion(NodeRef nodeRef, Version version)
+        {
+            InMemoryNode node = nodes.get(nodeRef);
+            if (lockedNodesRejectDeletes && node != null && node.lockOwner != null)
+            {
+                throw new NodeLockedException(nodeRef);
+            }
+            if (parentRowContention && node != null)
+            {
+                lockParentRow(node);
+            }
+            final InMemoryVersionHistory history = histories.get(nodeRef);
+            if (history == null)
+            {
+                throw new ConcurrencyFailureException("No version history for " + nodeRef);
+            }
+            final Version removed = history.remove(version.getVersionLabel());
+            recordUndo(new Runnable()
+                {
+                    public void run()
+                    {
+                        history.restore(removed);
+                    }
+                });
+            failOnContention(nodeRef);
+        }
+
+        public void deleteVersionHistory(final NodeRef nodeRef)
+        {
+            final InMemoryVersionHistory removed = histories.remove(nodeRef);
+            if (removed != null)
+            {
+                recordUndo(removed.historyNode);
+                removed.historyNode.deleted = true;
+                recordUndo(new Runnable()
+                    {
+                        public void run()
+                        {
+                            histories.putIfAbsent(nodeRef, removed);
+                        }
+                    });
+            }
+        }
+    }
+
+    public class SearchServiceFake
+    {
+        public ResultSet query(SearchParameters sp)
+        {
+            StoreRef storeRef = sp.getStores().isEmpty() ? SPACES_STORE : sp.getStores().get(0);
+            List<InMemoryNode> matches = new ArrayList<InMemoryNode>();
+            if (sp.getQuery() != null && storeRef.equals(VERSION_STORE))
+            {
+                matches = queryVersionStore(sp.getQuery());
+            }
+            else if (sp.getQuery() != null && sp.getQuery().contains("}versionable\""))
+            {
+                for (InMemoryNode node : nodes.values())
+                {
+                    if (!node.deleted && node.nodeRef.getStoreRef().equals(storeRef)
+                            && node.aspects.contains(ContentModel.ASPECT_VERSIONABLE)
+                            && node.tenantDomain.equals(getCurrentTenantDomain()))
+                    {
+                        matches.add(node);
+                    }
+                }
+            }
+            Collections.sort(matches, new Comparator<InMemoryNode>()
+                {
+                    public int compare(InMemoryNode node1, InMemoryNode node2)
+                    {
+                        return node1.dbId < node2.dbId ? -1 : (node1.dbId == node2.dbId ? 0 : 1);
+                    }
+                });
+            int from = Math.min(Math.max(0, sp.getSkipCount()), matches.size());
+            int to = sp.getMaxItems() < 0 ? matches.size() : Math.min(matches.size(), from + sp.getMaxItems());
+            List<NodeRef> page = new ArrayList<NodeRef>(to - from);
+            for (InMemoryNode node : matches.subList(from, to))
+            {
+                page.add(node.nodeRef);
+            }
+            return fake(ResultSet.class, new ResultSetFake(page, matches.size()));
+        }
+
+        private List<InMemoryNode> queryVersionStore(String query)
+        {
+            Matcher frozenBefore = FROZEN_BEFORE.matcher(query);
+            Date date = frozenBefore.find() ? ISO8601DateFormat.parse(frozenBefore.group(1)) : null;
+            Matcher parent = PARENT_QUERY.matcher(query);
+            NodeRef parentRef = parent.find() ? new NodeRef(parent.group(1)) : null;
+            boolean histories = query.startsWith("TYPE:\"" + VERSION_STORE_NS + "versionHistory\"");
+            boolean versions = query.startsWith("ASPECT:\"" + VERSION_STORE_NS + "version\"");
+            if (!histories && !versions && parentRef == null)
+            {
+                throw new UnsupportedOperationException("Query not supported by the in-memory repository: " + query);
+            }
+            List<InMemoryNode> matches = new ArrayList<InMemoryNode>();
+            for (InMemoryNode node : nodes.values())
+            {
+                if (node.deleted || !node.indexed || !node.nodeRef.getStoreRef().equals(VERSION_STORE))
+                {
+                    continue;
+                }
+                if (histories)
+                {
+                    if (Version2Model.TYPE_QNAME_VERSION_HISTORY.equals(node.type))
+                    {
+                        matches.add(node);
+                    }
+                    continue;
+                }
+                Date frozenModified = (Date) node.getProperty(Version2Model.PROP_QNAME_FROZEN_MODIFIED);
+                if (node.aspects.contains(Version2Model.ASPECT_VERSION)
+                        && (parentRef == null || parentRef.equals(node.parent))
+                        && (date == null || !frozenModified.after(date)))
+                {
+                    matches.add(node);
+                }
+            }
+            return matches;
+        }
+    }
+
+    public static class ResultSetFake
+    {
+        private final List<NodeRef> nodeRefs;
+        private final long numberFound;
+
+        ResultSetFake(List<NodeRef> nodeRefs, long numberFound)
+        {
+            this.nodeRefs = nodeRefs;
+            this.numberFound = numberFound;
+        }
+
+        public int length()
+        {
+            return nodeRefs.size();
+        }
+
+        public NodeRef getNodeRef(int index)
+        {
+            return nodeRefs.get(index);
+        }
+
+        public List<NodeRef> getNodeRefs()
+        {
+            return nodeRefs;
+        }
+
+        public long getNumberFound()
+        {
+            return numberFound;
+        }
+
+        public boolean hasMore()
+        {
+            return false;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    public class TransactionServiceFake
+    {
+        public boolean isReadOnly()
+        {
+            return false;
+        }
+
+        public boolean getAllowWrite()
+        {
+            return true;
+        }
+
+        /**
+         * @return a new helper, like the transaction service of the repository, so that changing its settings does
+         *         not change the other ones
+         */
+        public RetryingTransactionHelper getRetryingTransactionHelper()
+        {
+            RetryingTransactionHelper retryingTransactionHelper = new RetryingTransactionHelper();
+            retryingTransactionHelper.setTransactionService(transactionService);
+            retryingTransactionHelper.setMaxRetries(20);
+            retryingTransactionHelper.setMinRetryWaitMs(1);
+            retryingTransactionHelper.setMaxRetryWaitMs(50);
+            retryingTransactionHelper.setRetryWaitIncrementMs(1);
+            return retryingTransactionHelper;
+        }
+
+        public UserTransaction getUserTransaction()
+        {
+            return getUserTransaction(false);
+        }
+
+        public UserTransaction getUserTransaction(boolean readOnly)
+        {
+            return getUserTransaction(readOnly, false);
+        }
+
+        public UserTransaction getUserTransaction(boolean readOnly, boolean ignoreSystemReadOnly)
+        {
+            return new SpringAwareUserTransaction(transactionManager, readOnly,
+                    TransactionDefinition.ISOLATION_DEFAULT, TransactionDefinition.PROPAGATION_REQUIRED,
+                    TransactionDefinition.TIMEOUT_DEFAULT);
+        }
+
+        public UserTransaction getNonPropagatingUserTransaction()
+        {
+            return getNonPropagatingUserTransaction(false);
+        }
+
+        public UserTransaction getNonPropagatingUserTransaction(boolean readOnly)
+        {
+            return getNonPropagatingUserTransaction(readOnly, false);
+        }
+
+        public UserTransaction getNonPropagatingUserTransaction(boolean readOnly, boolean ignoreSystemReadOnly)
+        {
+            return new SpringAwareUserTransaction(transactionManager, readOnly,
+                    TransactionDefinition.ISOLATION_DEFAULT, TransactionDefinition.PROPAGATION_REQUIRES_NEW,
+                    TransactionDefinition.TIMEOUT_DEFAULT);
+        }
+    }
+
+    public static class JobLockServiceFake
+    {
+        private final Map<QName, String> tokens = new HashMap<QName, String>();
+        private final Map<QName, Long> expiries = new HashMap<QName, Long>();
+
+        public synchronized String getLock(QName lockQName, long timeToLive)
+        {
+            Long expiry = expiries.get(lockQName);
+            if (expiry != null && expiry > System.currentTimeMillis())
+            {
+                throw new LockAcquisitionException("Lock " + lockQName + " is held");
+            }
+            String token = UUID.randomUUID().toString();
+            tokens.put(lockQName, token);
+            expiries.put(lockQName, System.currentTimeMillis() + timeToLive);
+            return token;
+        }
+
+        public synchronized void refreshLock(String lockToken, QName lockQName, long timeToLive)
+        {
+            if (!lockToken.equals(tokens.get(lockQName)))
+            {
+                throw new LockAcquisitionException("Lock " + lockQName + " is not held by " + lockToken);
+            }
+            expiries.put(lockQName, System.currentTimeMillis() + timeToLive);
+        }
+
+        public synchronized boolean releaseLock(String lockToken, QName lockQName)
+        {
+            if (!lockToken.equals(tokens.get(lockQName)))
+            {
+                return false;
+            }
+            tokens.remove(lockQName);
+            expiries.remove(lockQName);
+            return true;
+        }
+    }
+
+    /**
+     * The attributes are kept serialized, like in the database, and their changes are undone on rollback
+     */
+    public class AttributeServiceFake
+    {
+        public void setAttribute(Serializable value, Serializable... keys)
+        {
+            final List<Serializable> key = Arrays.asList(keys);
+            final byte[] previous = attributes.put(key, serialize(value));
+            attributeIds.putIfAbsent(key, nextAttributeId.getAndIncrement());
+            recordUndo(new Runnable()
+                {
+                    public void run()
+                    {
+                        restoreAttribute(key, previous);
+                    }
+                });
+        }
+
+        public Serializable getAttribute(Serializable... keys)
+        {
+            byte[] value = attributes.get(Arrays.asList(keys));
+            return value == null ? null : deserialize(value);
+        }
+
+        public boolean exists(Serializable... keys)
+        {
+            return attributes.containsKey(Arrays.asList(keys));
+        }
+
+        /**
+         * Give the attributes whose keys start with the keys given, ordered by ID
+         */
+        public void getAttributes(AttributeService.AttributeQueryCallback callback, Serializable... keys)
+        {
+            List<List<Serializable>> matches = new ArrayList<List<Serializable>>();
+            for (List<Serializable> key : attributes.keySet())
+            {
+                if (key.size() > keys.length && key.subList(0, keys.length).equals(Arrays.asList(keys)))
+                {
+                    matches.add(key);
+                }
+            }
+            Collections.sort(matches, new Comparator<List<Serializable>>()
+                {
+                    public int compare(List<Serializable> key1, List<Serializable> key2)
+                    {
+                        return Long.compare(getId(key1), getId(key2));
+                    }
+                });
+            for (List<Serializable> key : matches)
+            {
+                byte[] value = attributes.get(key);
+                if (value != null && !callback.handleAttribute(getId(key), deserialize(value), key
+                        .toArray(new Serializable[key.size()])))
+                {
+                    return;
+                }
+            }
+        }
+
+        public void removeAttribute(Serializable... keys)
+        {
+            final List<Serializable> key = Arrays.asList(keys);
+            final byte[] previous = attributes.remove(key);
+            recordUndo(new Runnable()
+                {
+                    public void run()
+                    {
+                        restoreAttribute(key, previous);
+                    }
+                });
+        }
+
+        public void removeAttributes(Serializable... keys)
+        {
+            for (List<Serializable> key : new ArrayList<List<Serializable>>(attributes.keySet()))
+            {
+                if (key.size() >= keys.length && key.subList(0, keys.length).equals(Arrays.asList(keys)))
+                {
+                    removeAttribute(key.toArray(new Serializable[key.size()]));
+                }
+            }
+        }
+
+        private long getId(List<Serializable> key)
+        {
+            Long id = attributeIds.get(key);
+            return id == null ? 0L : id;
+        }
+    }
+
+    private void restoreAttribute(List<Serializable> key, byte[] value)
+    {
+        if (value == null)
+        {
+            attributes.remove(key);
+        }
+        else
+        {
+            attributes.put(key, value);
+        }
+    }
+
+    private static byte[] serialize(Serializable value)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Attribute not serializable: " + value, e);
+        }
+    }
+
+    private static Serializable deserialize(byte[] value)
+    {
+        try
+        {
+            return (Serializable) new ObjectInputStream(new ByteArrayInputStream(value)).readObject();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public class TenantAdminServiceFake
+    {
+        public boolean isEnabled()
+        {
+            return !tenants.isEmpty();
+        }
+
+        public String getUserDomain(String username)
+        {
+            return getUserTenantDomain(username);
+        }
+
+        public String getDomainUser(String baseUsername, String tenantDomain)
+        {
+            return TenantService.DEFAULT_DOMAIN.equals(tenantDomain) ? baseUsername : baseUsername
+                    + TenantService.SEPARATOR + tenantDomain;
+        }
+
+        public List<Tenant> getAllTenants()
+        {
+            List<Tenant> all = new ArrayList<Tenant>();
+            synchronized (tenants)
+            {
+                for (Map.Entry<String, Boolean> tenant : tenants.entrySet())
+                {
+                    all.add(new Tenant(tenant.getKey(), tenant.getValue(), null, null));
+                }
+            }
+            return all;
+        }
+    }
+
+    public class DescriptorServiceFake
+    {
+        public Descriptor getCurrentRepositoryDescriptor()
+        {
+            return fake(Descriptor.class, new DescriptorFake());
+        }
+
+        public Descriptor getServerDescriptor()
+        {
+            return getCurrentRepositoryDescriptor();
+        }
+    }
+
+    public class ContentServiceFake
+    {
+        public ContentReader getRawReader(String contentUrl)
+        {
+            return fake(ContentReader.class, new ContentReaderFake(contentUrl));
+        }
+    }
+
+    public class ContentReaderFake
+    {
+        private final String contentUrl;
+
+        ContentReaderFake(String contentUrl)
+        {
+            this.contentUrl = contentUrl;
+        }
+
+        public boolean exists()
+        {
+            return contents.containsKey(contentUrl);
+        }
+
+        public long getSize()
+        {
+            byte[] bytes = contents.get(contentUrl);
+            return bytes == null ? 0L : bytes.length;
+        }
+
+        public InputStream getContentInputStream()
+        {
+            contentReads.add(contentUrl);
+            return new ByteArrayInputStream(contents.get(contentUrl));
+        }
+    }
+
+    public class DataSourceFake
+    {
+        public Connection getConnection()
+        {
+            return fake(Connection.class, new ConnectionFake());
+        }
+    }
+
+    public class ConnectionFake
+    {
+        public PreparedStatement prepareStatement(String sql)
+        {
+            return fake(PreparedStatement.class, new StatementFake());
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * The statement counting the content properties referencing a content URL, given its short form and CRC
+     */
+    public class StatementFake
+    {
+        private String contentUrlShort;
+        private long contentUrlCrc;
+
+        public void setString(int index, String value)
+        {
+            contentUrlShort = value;
+        }
+
+        public void setLong(int index, long value)
+        {
+            contentUrlCrc = value;
+        }
+
+        public java.sql.ResultSet executeQuery()
+        {
+            int references = 0;
+            for (InMemoryNode node : nodes.values())
+            {
+                Serializable content = node.getProperty(ContentModel.PROP_CONTENT);
+                if (!node.deleted && content instanceof ContentData)
+                {
+                    String contentUrl = ((ContentData) content).getContentUrl();
+                    if (contentUrl != null && ContentUrlEntity.getContentUrlShort(contentUrl).equals(contentUrlShort)
+                            && ContentUrlEntity.getContentUrlCrc(contentUrl) == contentUrlCrc)
+                    {
+                        references++;
+                    }
+                }
+            }
+            return fake(java.sql.ResultSet.class, new CountFake(references));
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    public static class CountFake
+    {
+        private final int count;
+        private boolean read;
+
+        CountFake(int count)
+        {
+            this.count = count;
+        }
+
+        public boolean next()
+        {
+            boolean hasNext = !read;
+            read = true;
+            return hasNext;
+        }
+
+        public int getInt(int index)
+        {
+            return count;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    public static class DescriptorFake
+    {
+        public String getVersionMajor()
+        {
+            return "5";
+        }
+
+        public String getVersionMinor()
+        {
+            return "1";
+        }
+
+        public String getVersion()
+        {
+            return "5.1.0 (in memory)";
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Transaction manager without resources: it only drives the Spring transaction synchronization, so that the
+ * Alfresco transaction support (resources, listeners, commit callbacks) and the RetryingTransactionHelper work as
+ * in the repository. Nothing is rolled back here, the {@link InMemoryRepository} undoes the changes of a
+ * failed transaction from its rollback listener.
+ *
+ * @author Philippe Dubois
+ */
+public class InMemoryTransactionManager extends AbstractPlatformTransactionManager
+{
+    private static final long serialVersionUID = 1L;
+
+    /** number of transactions begun and not completed in the current thread, suspended ones included */
+    private final transient ThreadLocal<int[]> depth = new ThreadLocal<int[]>()
+        {
+            @Override
+            protected int[] initialValue()
+            {
+                return new int[1];
+            }
+        };
+
+    public InMemoryTransactionManager()
+    {
+        setTransactionSynchronization(SYNCHRONIZATION_ALWAYS);
+    }
+
+    @Override
+    protected Object doGetTransaction()
+    {
+        return new InMemoryTransaction(depth.get()[0] > 0);
+    }
+
+    @Override
+    protected boolean isExistingTransaction(Object transaction)
+    {
+        return ((InMemoryTransaction) transaction).existing;
+    }
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition)
+    {
+        ((InMemoryTransaction) transaction).begun = true;
+        depth.get()[0]++;
+    }
+
+    @Override
+    protected Object doSuspend(Object transaction)
+    {
+        return transaction;
+    }
+
+    @Override
+    protected void doResume(Object transaction, Object suspendedResources)
+    {
+    }
+
+    @Override
+    protected void doCommit(DefaultTransactionStatus status)
+    {
+    }
+
+    @Override
+    protected void doRollback(DefaultTransactionStatus status)
+    {
+    }
+
+    @Override
+    protected void doSetRollbackOnly(DefaultTransactionStatus status)
+    {
+    }
+
+    @Override
+    protected void doCleanupAfterCompletion(Object transaction)
+    {
+        if (((InMemoryTransaction) transaction).begun)
+        {
+            depth.get()[0]--;
+        }
+    }
+
+    private static class InMemoryTransaction
+    {
+        private final boolean existing;
+        private boolean begun;
+
+        InMemoryTransaction(boolean existing)
+        {
+            this.existing = existing;
+        }
+    }
+}
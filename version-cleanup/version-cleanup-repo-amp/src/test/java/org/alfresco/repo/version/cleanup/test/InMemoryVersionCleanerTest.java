@@ -0,0 +1,1071 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.tenant.TenantUtil.TenantRunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.version.cleanup.CandidateSpillFile;
+import org.alfresco.repo.version.cleanup.VersionCleanerFailureLedger;
+import org.alfresco.repo.version.cleanup.VersionCleanerModel;
+import org.alfresco.repo.version.cleanup.VersionCleanerParralel;
+import org.alfresco.repo.version.cleanup.VersionCleanerResult;
+import org.alfresco.repo.version.cleanup.VersionCleanerRunLedger;
+import org.alfresco.repo.version.cleanup.VersionCleanerStore;
+import org.alfresco.repo.version.cleanup.VersionHistorySweeper;
+import org.alfresco.repo.version.cleanup.VersionStatistics;
+import org.alfresco.repo.version.cleanup.VersionStoreCleanerListener;
+import org.alfresco.repo.version.cleanup.VersionStoreHelper;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+import org.alfresco.service.namespace.QName;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Unit tests of the version cleaner run against an {@link InMemoryRepository}, they need no Alfresco server.
+ *
+ * @author Philippe Dubois
+ */
+public class InMemoryVersionCleanerTest
+{
+    private static final long HOUR = 3600L * 1000L;
+    private static final long DAY = 24L * HOUR;
+
+    private InMemoryRepository repository;
+    private VersionCleanerParralel cleaner;
+
+    @Before
+    public void before()
+    {
+        repository = new InMemoryRepository();
+        cleaner = createCleaner(repository);
+    }
+
+    /**
+     * @return a cleaner wired to the services of the repository
+     */
+    public static VersionCleanerParralel createCleaner(InMemoryRepository repository)
+    {
+        VersionCleanerParralel cleaner = new VersionCleanerParralel();
+        cleaner.setNodeService(repository.getNodeService());
+        cleaner.setVersionService(repository.getVersionService());
+        cleaner.setSearchService(repository.getSearchService());
+        cleaner.setTransactionService(repository.getTransactionService());
+        cleaner.setJobLockService(repository.getJobLockService());
+        cleaner.setDescriptorService(repository.getDescriptorService());
+        cleaner.setDataSource(repository.getDataSource());
+        cleaner.setApplicationEventPublisher(new ApplicationEventPublisher()
+            {
+                public void publishEvent(ApplicationEvent event)
+                {
+                }
+            });
+        return cleaner;
+    }
+
+    @Test
+    public void testMaxVersionsToKeep()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 10, new Date());
+        cleaner.setMinVersionsToKeep(2);
+        cleaner.setMaxVersionsToKeep(5);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(5, repository.getVersionCount(nodeRef));
+        }
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(20L, result.getNodesProcessed());
+        assertEquals(100L, result.getVersionsDeleted());
+        assertEquals(0L, result.getErrors());
+    }
+
+    @Test
+    public void testMaxDaysToKeepHonoursMinVersions()
+    {
+        List<NodeRef> nodeRefs = createNodes(10, 6, new Date(System.currentTimeMillis() - 100L * DAY));
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            repository.createVersion(nodeRef);
+            repository.createVersion(nodeRef);
+        }
+        cleaner.setMinVersionsToKeep(3);
+        cleaner.setMaxVersionsToKeep(50);
+        cleaner.setMaxDaysToKeep(30);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            // the 2 recent versions and the newest old one
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+        assertEquals(50L, cleaner.getLastResult().getVersionsDeleted());
+    }
+
+    @Test
+    public void testNodesWithinLimitsAreUntouched()
+    {
+        List<NodeRef> nodeRefs = createNodes(5, 4, new Date());
+        cleaner.setMinVersionsToKeep(2);
+        cleaner.setMaxVersionsToKeep(5);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+        assertEquals(0L, cleaner.getLastResult().getNodesCleaned());
+    }
+
+    @Test
+    public void testParallelRunWithLatency()
+    {
+        List<NodeRef> nodeRefs = createNodes(200, 8, new Date());
+        repository.setLatency("deleteVersion", 1L);
+        repository.setLatency("getVersionHistory", 2L);
+        cleaner.setThreadNumber(4);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(3);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(200L, result.getNodesCleaned());
+        assertEquals(1000L, result.getVersionsDeleted());
+        assertEquals(0L, result.getErrors());
+    }
+
+    @Test
+    public void testPlanInReadOnlyTransactions()
+    {
+        List<NodeRef> nodeRefs = createNodes(150, 9, new Date());
+        List<NodeRef> unchanged = createNodes(10, 3, new Date());
+        cleaner.setThreadNumber(3);
+        cleaner.setPlanInReadOnlyTransactions(true);
+        cleaner.setPlanChunkSize(40);
+        cleaner.setPlanApplyBatchSize(25);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+        for (NodeRef nodeRef : unchanged)
+        {
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(160L, result.getNodesProcessed());
+        assertEquals(750L, result.getVersionsDeleted());
+        assertEquals(0L, result.getStalePlans());
+    }
+
+    @Test
+    public void testHistorySizeBudget()
+    {
+        List<NodeRef> contents = createNodes(10, 8, new Date());
+        List<NodeRef> others = createNodes(QName.createQName("{test}document"), 10, 8, new Date());
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(50);
+        // the versions are 1k each
+        cleaner.setMaxBytesPerHistory("2k");
+        cleaner.setMaxBytesPerHistoryByType(Collections.singletonMap(ContentModel.TYPE_CONTENT.toString(), "5k"));
+        cleaner.execute();
+        for (NodeRef nodeRef : contents)
+        {
+            assertEquals(5, repository.getVersionCount(nodeRef));
+        }
+        for (NodeRef nodeRef : others)
+        {
+            assertEquals(2, repository.getVersionCount(nodeRef));
+        }
+        assertEquals(90L, cleaner.getLastResult().getVersionsOverBudget());
+        assertEquals(90L * 1024L, cleaner.getLastResult().getBytesDeleted());
+    }
+
+    @Test
+    public void testHistorySizeBudgetKeepsMinVersions()
+    {
+        List<NodeRef> nodeRefs = createNodes(5, 6, new Date());
+        cleaner.setMinVersionsToKeep(3);
+        cleaner.setMaxVersionsToKeep(50);
+        cleaner.setMaxBytesPerHistory("1000");
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+    }
+
+    @Test
+    public void testThinningSchedule()
+    {
+        long now = System.currentTimeMillis();
+        List<NodeRef> recentNodeRefs = new ArrayList<NodeRef>();
+        List<NodeRef> oldNodeRefs = new ArrayList<NodeRef>();
+        for (int i = 0; i < 10; i++)
+        {
+            NodeRef nodeRef = repository.createNode();
+            // 3 versions a few days old then, for half of the nodes, 3 versions of the last day, oldest first
+            long[] ages = i < 5 ? new long[] { 5L * DAY, 4L * DAY, 3L * DAY, 3L * HOUR, 2L * HOUR, HOUR }
+                    : new long[] { 5L * DAY, 4L * DAY, 3L * DAY };
+            for (long age : ages)
+            {
+                repository.createVersion(nodeRef, new Date(now - age), "store://test/" + i + "/" + age + ".bin",
+                        1024L);
+            }
+            (i < 5 ? recentNodeRefs : oldNodeRefs).add(nodeRef);
+        }
+        // maxVersionsToKeep is replaced by the schedule, minVersionsToKeep still applies
+        cleaner.setMinVersionsToKeep(2);
+        cleaner.setMaxVersionsToKeep(2);
+        cleaner.setThinningSchedule("1d:all");
+        cleaner.execute();
+        for (NodeRef nodeRef : recentNodeRefs)
+        {
+            for (Version version : repository.getVersionService().getVersionHistory(nodeRef).getAllVersions())
+            {
+                assertTrue(version.getFrozenModifiedDate().getTime() > now - DAY);
+            }
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+        for (NodeRef nodeRef : oldNodeRefs)
+        {
+            assertEquals(2, repository.getVersionCount(nodeRef));
+        }
+        assertEquals(20L, cleaner.getLastResult().getVersionsDeleted());
+    }
+
+    @Test
+    public void testCollapseIdenticalVersions()
+    {
+        Date now = new Date();
+        List<NodeRef> revisedNodeRefs = new ArrayList<NodeRef>();
+        List<NodeRef> unchangedNodeRefs = new ArrayList<NodeRef>();
+        for (int i = 0; i < 5; i++)
+        {
+            // oldest first: c, b, b again at another URL, a, a saved again without change
+            NodeRef nodeRef = repository.createNode();
+            repository.putContent("store://test/" + i + "/b1.bin", "revision b".getBytes());
+            repository.putContent("store://test/" + i + "/b2.bin", "revision b".getBytes());
+            repository.createVersion(nodeRef, now, "store://test/" + i + "/c.bin", 8L);
+            repository.createVersion(nodeRef, now, "store://test/" + i + "/b1.bin", 10L);
+            repository.createVersion(nodeRef, now, "store://test/" + i + "/b2.bin", 10L);
+            repository.createVersion(nodeRef, now, "store://test/" + i + "/a.bin", 12L);
+            repository.createVersion(nodeRef, now, "store://test/" + i + "/a.bin", 12L);
+            revisedNodeRefs.add(nodeRef);
+            // the same content in every version
+            NodeRef unchanged = repository.createNode();
+            for (int j = 0; j < 4; j++)
+            {
+                repository.createVersion(unchanged, now, "store://test/" + i + "/same.bin", 12L);
+            }
+            unchangedNodeRefs.add(unchanged);
+        }
+        cleaner.setContentService(repository.getContentService());
+        cleaner.setCollapseIdenticalVersions(true);
+        cleaner.setMinVersionsToKeep(2);
+        cleaner.setMaxVersionsToKeep(2);
+        cleaner.execute();
+        for (NodeRef nodeRef : revisedNodeRefs)
+        {
+            // the copies do not count in maxVersionsToKeep: a and b are kept, not a twice
+            List<String> kept = new ArrayList<String>();
+            for (Version version : repository.getVersionService().getVersionHistory(nodeRef).getAllVersions())
+            {
+                kept.add(((ContentData) repository.getNodeService().getProperty(version.getFrozenStateNodeRef(),
+                        ContentModel.PROP_CONTENT)).getContentUrl().replaceAll(".*/", ""));
+            }
+            assertEquals(Arrays.asList("a.bin", "b2.bin"), kept);
+        }
+        for (NodeRef nodeRef : unchangedNodeRefs)
+        {
+            // minVersionsToKeep is honoured with identical versions
+            assertEquals(2, repository.getVersionCount(nodeRef));
+        }
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(5L * 3L + 5L * 2L, result.getVersionsDeleted());
+        assertEquals(5L * 2L + 5L * 2L, result.getVersionsCollapsed());
+    }
+
+    @Test
+    public void testOffloadVersionContent() throws IOException
+    {
+        File root = Files.createTempDirectory("version-cleaner").toFile();
+        File contentStore = new File(root, "contentstore");
+        File offload = new File(root, "offload");
+        try
+        {
+            List<NodeRef> nodeRefs = createNodes(5, 4, new Date());
+            for (int i = 0; i < 5; i++)
+            {
+                for (int j = 0; j < 4; j++)
+                {
+                    File content = new File(contentStore, "test/" + i + "/" + j + ".bin");
+                    content.getParentFile().mkdirs();
+                    Files.write(content.toPath(), new byte[1024]);
+                }
+            }
+            // another node shares the content of the oldest version of the first node
+            NodeRef sharing = repository.createNode();
+            repository.createVersion(sharing, new Date(), "store://test/0/0.bin", 1024L);
+            cleaner.setMinVersionsToKeep(1);
+            cleaner.setMaxVersionsToKeep(2);
+            cleaner.setOffloadVersionContent(true);
+            cleaner.setContentStoreDirectory(contentStore.getPath());
+            cleaner.setOffloadDirectory(offload.getPath());
+            cleaner.execute();
+            for (NodeRef nodeRef : nodeRefs)
+            {
+                assertEquals(4, repository.getVersionCount(nodeRef));
+            }
+            for (int i = 0; i < 5; i++)
+            {
+                // the two oldest versions are moved and marked, the newest ones and the shared content stay
+                List<Version> versions = new ArrayList<Version>(repository.getVersionService().getVersionHistory(
+                        nodeRefs.get(i)).getAllVersions());
+                for (int j = 0; j < 4; j++)
+                {
+                    boolean moved = j < 2 && (i > 0 || j > 0);
+                    assertEquals(!moved, new File(contentStore, "test/" + i + "/" + j + ".bin").exists());
+                    assertEquals(moved, new File(offload, "test/" + i + "/" + j + ".bin").exists());
+                    assertEquals(moved, repository.getNodeService().hasAspect(versions.get(3 - j)
+                            .getFrozenStateNodeRef(), VersionCleanerModel.ASPECT_CONTENT_OFFLOADED));
+                }
+            }
+            VersionCleanerResult result = cleaner.getLastResult();
+            assertEquals(0L, result.getVersionsDeleted());
+            assertEquals(9L, result.getContentsOffloaded());
+            assertEquals(9L * 1024L, result.getBytesOffloaded());
+            assertEquals(0L, result.getErrors());
+            // the marked versions are skipped, the shared content is still left alone
+            cleaner.execute();
+            assertEquals(0L, cleaner.getLastResult().getContentsOffloaded());
+            assertEquals(0L, cleaner.getLastResult().getErrors());
+            assertTrue(new File(contentStore, "test/0/0.bin").exists());
+        }
+        finally
+        {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testRetriedBatchCountedOnce()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 6, new Date());
+        // the last node of the batch fails once, after the other nodes have been cleaned
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(new FailingListener(
+                nodeRefs.get(19), new ConcurrencyFailureException("Concurrent update"), 1)));
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(20L, result.getNodesProcessed());
+        assertEquals(40L, result.getVersionsDeleted());
+        assertEquals(1L, result.getTransactionsRolledBack());
+        assertEquals(1L, result.getTransactionsCommitted());
+        assertEquals(0L, result.getErrors());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+    }
+
+    @Test
+    public void testRolledBackDeletionsAreUndone()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 6, new Date());
+        // the deletions of the first attempts are undone, the retries delete the same versions again
+        repository.addContention(nodeRefs.get(19), 2);
+        repository.addContention(nodeRefs.get(10), 1);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(3L, repository.getContentionFailures());
+        assertEquals(3L, repository.getRollbacks());
+        assertEquals(3L, result.getTransactionsRolledBack());
+        assertEquals(40L, result.getVersionsDeleted());
+        assertEquals(40L * 1024L, result.getBytesDeleted());
+        assertEquals(20L, result.getNodesCleaned());
+    }
+
+    @Test
+    public void testFailedBatchIsUndone()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 6, new Date());
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(new FailingListener(
+                nodeRefs.get(19), new IllegalStateException("Broken node"), Integer.MAX_VALUE)));
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(6, repository.getVersionCount(nodeRef));
+        }
+        assertEquals(0L, cleaner.getLastResult().getVersionsDeleted());
+    }
+
+    @Test
+    public void testFailedBatchCountsNothing()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 6, new Date());
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(new FailingListener(
+                nodeRefs.get(19), new IllegalStateException("Broken node"), Integer.MAX_VALUE)));
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(0L, result.getNodesProcessed());
+        assertEquals(0L, result.getVersionsDeleted());
+        assertEquals(0L, result.getBytesDeleted());
+        assertEquals(20L, result.getErrors());
+        assertEquals(1L, result.getTransactionsRolledBack());
+    }
+
+    @Test
+    public void testAgeOnlyFastPathSkipsHistories()
+    {
+        List<Integer> versionCounts = new ArrayList<Integer>();
+        VersionCleanerResult result = cleanAgeOnlyNodes(true, versionCounts);
+        List<Integer> referenceCounts = new ArrayList<Integer>();
+        VersionCleanerResult reference = cleanAgeOnlyNodes(false, referenceCounts);
+
+        // only the long indexed histories with nothing to delete are not loaded
+        assertEquals(5L, result.getHistoriesNotLoaded());
+        assertEquals(0L, reference.getHistoriesNotLoaded());
+        assertEquals(5L * 24L, result.getVersionsDeleted());
+        assertEquals(reference.getVersionsDeleted(), result.getVersionsDeleted());
+        assertEquals(reference.getNodesProcessed(), result.getNodesProcessed());
+        assertEquals(0L, result.getErrors());
+        assertEquals(referenceCounts, versionCounts);
+    }
+
+    /**
+     * Clean long histories with and without old versions, short histories and a long history missing from the index
+     *
+     * @return the result of the run, the numbers of versions left are added to versionCounts
+     */
+    private VersionCleanerResult cleanAgeOnlyNodes(boolean ageOnlyFastPath, List<Integer> versionCounts)
+    {
+        repository = new InMemoryRepository();
+        cleaner = createCleaner(repository);
+        List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+        nodeRefs.addAll(createNodes(5, 25, new Date()));
+        List<NodeRef> oldNodeRefs = createNodes(5, 25, new Date(System.currentTimeMillis() - 100L * DAY));
+        for (NodeRef nodeRef : oldNodeRefs)
+        {
+            repository.createVersion(nodeRef);
+        }
+        nodeRefs.addAll(oldNodeRefs);
+        // below ageOnlyFastPathMinVersions
+        nodeRefs.addAll(createNodes(5, 5, new Date()));
+        // the newest version of the last history is not indexed yet, the history is not in the sample of isIndexed
+        NodeRef laggingNodeRef = createNodes(1, 24, new Date()).get(0);
+        repository.setIndexing(false);
+        repository.createVersion(laggingNodeRef);
+        repository.setIndexing(true);
+        nodeRefs.add(laggingNodeRef);
+
+        cleaner.setMinVersionsToKeep(2);
+        cleaner.setMaxVersionsToKeep(100);
+        cleaner.setMaxDaysToKeep(30);
+        cleaner.setAgeOnlyFastPath(ageOnlyFastPath);
+        cleaner.execute();
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            versionCounts.add(repository.getVersionCount(nodeRef));
+        }
+        return cleaner.getLastResult();
+    }
+
+    @Test
+    public void testVersionStoreIndexCheckedOnSeveralHistories()
+    {
+        List<NodeRef> nodeRefs = createNodes(20, 3, new Date());
+        VersionStoreHelper helper = new VersionStoreHelper(repository.getNodeService(), repository.getSearchService());
+        assertTrue(helper.isIndexed());
+
+        // a history created after the first ones is missing from the index
+        repository.setIndexing(false);
+        createNodes(1, 3, new Date());
+        assertFalse(helper.isIndexed());
+        repository.indexAll();
+        assertTrue(helper.isIndexed());
+
+        // a version added to a history sampled from the index is missing from the index
+        repository.setIndexing(false);
+        repository.createVersion(nodeRefs.get(8));
+        assertFalse(helper.isIndexed());
+        repository.indexAll();
+        assertTrue(helper.isIndexed());
+    }
+
+    @Test
+    public void testVersionStoreCandidatesSpilledAndCleaned() throws IOException
+    {
+        List<NodeRef> oldNodeRefs = createNodes(10, 8, new Date(System.currentTimeMillis() - 100L * DAY));
+        List<NodeRef> newNodeRefs = createNodes(10, 8, new Date());
+        File spillDirectory = Files.createTempDirectory("version-cleaner").toFile();
+        try
+        {
+            cleaner.setVersionStoreCandidates(true);
+            cleaner.setSpillDirectory(spillDirectory.getPath());
+            // the old versions of a node are spread over several pages of the query
+            cleaner.setBigPageLen(3);
+            cleaner.setMinVersionsToKeep(2);
+            cleaner.setMaxVersionsToKeep(100);
+            cleaner.setMaxDaysToKeep(30);
+            cleaner.execute();
+
+            VersionCleanerResult result = cleaner.getLastResult();
+            assertEquals(10L, result.getNodesProcessed());
+            assertEquals(10L * 6L, result.getVersionsDeleted());
+            assertEquals(0L, result.getErrors());
+            for (NodeRef nodeRef : oldNodeRefs)
+            {
+                assertEquals(2, repository.getVersionCount(nodeRef));
+            }
+            for (NodeRef nodeRef : newNodeRefs)
+            {
+                assertEquals(8, repository.getVersionCount(nodeRef));
+            }
+            assertEquals(0, spillDirectory.list().length);
+        }
+        finally
+        {
+            delete(spillDirectory);
+        }
+    }
+
+    @Test
+    public void testStaleSpillFilesOnlyDeletedBySpilledRuns() throws IOException
+    {
+        List<NodeRef> nodeRefs = createNodes(10, 6, new Date());
+        File spillDirectory = Files.createTempDirectory("version-cleaner").toFile();
+        try
+        {
+            CandidateSpillFile stale = CandidateSpillFile.create(spillDirectory);
+            stale.append(1L);
+            stale.flush();
+            cleaner.setAttributeService(repository.getAttributeService());
+            cleaner.setSpillDirectory(spillDirectory.getPath());
+            cleaner.setMinVersionsToKeep(1);
+            cleaner.setMaxVersionsToKeep(5);
+            cleaner.execute();
+            assertEquals(10L, cleaner.getLastResult().getNodesProcessed());
+            assertTrue(stale.getFile().exists());
+
+            cleaner.setSpillCandidates(true);
+            cleaner.setMaxVersionsToKeep(4);
+            cleaner.execute();
+            assertEquals(10L, cleaner.getLastResult().getNodesProcessed());
+            assertEquals(10L, cleaner.getLastResult().getVersionsDeleted());
+            assertEquals(0, spillDirectory.list().length);
+            for (NodeRef nodeRef : nodeRefs)
+            {
+                assertEquals(4, repository.getVersionCount(nodeRef));
+            }
+        }
+        finally
+        {
+            delete(spillDirectory);
+        }
+    }
+
+    @Test
+    public void testPausedRunResumesWithoutCleaningNodesAgain()
+    {
+        List<NodeRef> nodeRefs = createNodes(100, 6, new Date());
+        CleanedNodesListener listener = new CleanedNodesListener(50, new Runnable()
+            {
+                public void run()
+                {
+                    cleaner.pause();
+                }
+            });
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(listener));
+        cleaner.setThreadNumber(1);
+        cleaner.setBigPageLen(40);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        VersionCleanerResult paused = cleaner.getLastResult();
+        assertEquals(50L, paused.getNodesProcessed());
+        assertTrue(cleaner.getIsPaused());
+
+        cleaner.resume();
+        VersionCleanerResult resumed = cleaner.getLastResult();
+        assertFalse(cleaner.getIsPaused());
+        // the second page is restarted, its first 10 nodes were cleaned before the pause
+        assertEquals(50L, resumed.getNodesProcessed());
+        assertEquals(10L, resumed.getDuplicatesSuppressed());
+        assertEquals(200L, paused.getVersionsDeleted() + resumed.getVersionsDeleted());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+            assertEquals(1, listener.cleaned.get(nodeRef).size());
+        }
+    }
+
+    @Test
+    public void testCancelledRunCommitsTransactionsInFlight()
+    {
+        List<NodeRef> nodeRefs = createNodes(30, 6, new Date());
+        CleanedNodesListener listener = new CleanedNodesListener(8, new Runnable()
+            {
+                public void run()
+                {
+                    cleaner.cancel();
+                }
+            });
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(listener));
+        cleaner.setThreadNumber(1);
+        // 3 nodes of cost 6 per transaction
+        cleaner.setCostBasedScheduling(true);
+        cleaner.setTransactionCostBudget(18);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        VersionCleanerResult result = cleaner.getLastResult();
+        // the transaction of the eighth node skips its last node and commits, no transaction starts after it
+        assertEquals(8L, result.getNodesProcessed());
+        assertEquals(16L, result.getVersionsDeleted());
+        assertEquals(3L, result.getTransactionsCommitted());
+        assertEquals(0L, result.getTransactionsRolledBack());
+        assertEquals(0L, result.getErrors());
+        assertEquals(3, listener.transactions.size());
+        assertEquals(0, listener.transactionsStartedAfterAction);
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(listener.cleaned.containsKey(nodeRef) ? 4 : 6, repository.getVersionCount(nodeRef));
+        }
+        assertFalse(cleaner.getIsPaused());
+
+        // the position is forgotten, the next run cleans all the nodes
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> emptyList());
+        cleaner.execute();
+        assertEquals(30L, cleaner.getLastResult().getNodesProcessed());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+    }
+
+    @Test
+    public void testContendedNodesDeferredThenRecorded()
+    {
+        List<NodeRef> nodeRefs = createNodes(10, 6, new Date());
+        NodeRef retried = nodeRefs.get(3);
+        NodeRef failing = nodeRefs.get(7);
+        repository.addContention(retried, 2);
+        repository.addContention(failing, Integer.MAX_VALUE);
+        cleaner.setAttributeService(repository.getAttributeService());
+        cleaner.setDeferContendedNodes(true);
+        cleaner.setDeferredRetries(3);
+        cleaner.setDeferredBackoff(10L);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        VersionCleanerResult result = cleaner.getLastResult();
+        // deferred twice then cleaned, deferred 3 times then recorded at the fourth failure
+        assertEquals(2L + 3L, result.getNodesDeferred());
+        assertEquals(2L + 4L, repository.getContentionFailures());
+        assertEquals(1L, result.getErrors());
+        assertEquals(9L, result.getNodesProcessed());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(nodeRef.equals(failing) ? 6 : 4, repository.getVersionCount(nodeRef));
+        }
+        Map<String, Map<String, Serializable>> failedNodes = cleaner.getFailedNodes();
+        assertEquals(Collections.singleton(failing.toString()), failedNodes.keySet());
+        assertEquals(4, failedNodes.get(failing.toString()).get(VersionCleanerFailureLedger.ATTEMPTS));
+
+        // cleaned at the first attempt of the next run, it leaves the ledger
+        repository.addContention(failing, 0);
+        cleaner.execute();
+        assertEquals(0L, cleaner.getLastResult().getNodesDeferred());
+        assertEquals(4, repository.getVersionCount(failing));
+        assertTrue(cleaner.getFailedNodes().isEmpty());
+    }
+
+    @Test
+    public void testStoreRulesApplied()
+    {
+        StoreRef archiveStore = new StoreRef(StoreRef.PROTOCOL_ARCHIVE, "SpacesStore");
+        List<NodeRef> nodeRefs = createNodes(10, 6, new Date());
+        List<NodeRef> archivedNodeRefs = new ArrayList<NodeRef>();
+        for (int i = 0; i < 10; i++)
+        {
+            NodeRef nodeRef = repository.createNode(archiveStore, ContentModel.TYPE_CONTENT);
+            for (int j = 0; j < 6; j++)
+            {
+                repository.createVersion(nodeRef);
+            }
+            archivedNodeRefs.add(nodeRef);
+        }
+        VersionCleanerStore archive = new VersionCleanerStore(archiveStore.toString());
+        archive.setThreadNumber(1);
+        archive.setMaxVersionsToKeep(1);
+        cleaner.setStores(Arrays.asList(new VersionCleanerStore(InMemoryRepository.SPACES_STORE.toString()),
+                archive));
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+
+        VersionCleanerResult result = cleaner.getLastResult();
+        assertEquals(20L, result.getNodesProcessed());
+        assertEquals(10L * 2L + 10L * 5L, result.getVersionsDeleted());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+        }
+        for (NodeRef nodeRef : archivedNodeRefs)
+        {
+            assertEquals(1, repository.getVersionCount(nodeRef));
+        }
+    }
+
+    @Test
+    public void testPausedTenantRunResumesFromCheckpoint()
+    {
+        repository.addTenant("acme", true);
+        repository.addTenant("globex", true);
+        repository.addTenant("disabled", false);
+        final List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+        for (String tenantDomain : Arrays.asList(TenantService.DEFAULT_DOMAIN, "acme", "globex", "disabled"))
+        {
+            nodeRefs.addAll(TenantUtil.runAsSystemTenant(new TenantRunAsWork<List<NodeRef>>()
+                {
+                    public List<NodeRef> doWork() throws Exception
+                    {
+                        return createNodes(30, 6, new Date());
+                    }
+                }, tenantDomain));
+        }
+        // the workers take the batches of the tenants in turn: the first page of the default tenant is cleaned
+        // after 20 nodes, the second one cannot be before 30
+        CleanedNodesListener listener = new CleanedNodesListener(25, new Runnable()
+            {
+                public void run()
+                {
+                    cleaner.pause();
+                }
+            });
+        cleaner.setListeners(Collections.<VersionStoreCleanerListener> singletonList(listener));
+        cleaner.setTenantAdminService(repository.getTenantAdminService());
+        cleaner.setCleanAllTenants(true);
+        cleaner.setThreadNumber(1);
+        cleaner.setTenantPageLen(10);
+        cleaner.setTenantBatchSize(5);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.execute();
+        assertTrue(cleaner.getIsPaused());
+        long pausedProcessed = cleaner.getLastResult().getNodesProcessed();
+        assertTrue(pausedProcessed >= 25L && pausedProcessed < 90L);
+
+        cleaner.resume();
+        assertFalse(cleaner.getIsPaused());
+        Map<String, VersionCleanerResult> tenantResults = cleaner.getLastTenantResults();
+        assertEquals(Arrays.asList(TenantService.DEFAULT_DOMAIN, "acme", "globex"), new ArrayList<String>(
+                tenantResults.keySet()));
+        // the default tenant restarts at its second page, the other tenants at the page they were cleaning
+        assertEquals(20L, tenantResults.get(TenantService.DEFAULT_DOMAIN).getNodesProcessed());
+        assertTrue(cleaner.getLastResult().getNodesProcessed() < 90L);
+        for (NodeRef nodeRef : nodeRefs.subList(0, 90))
+        {
+            assertEquals(4, repository.getVersionCount(nodeRef));
+            assertEquals(1, listener.cleaned.get(nodeRef).size());
+        }
+        for (NodeRef nodeRef : nodeRefs.subList(90, 120))
+        {
+            assertEquals(6, repository.getVersionCount(nodeRef));
+        }
+    }
+
+    @Test
+    public void testEstimateOfEveryNodeIsExact()
+    {
+        List<NodeRef> longNodeRefs = createNodes(30, 10, new Date());
+        createNodes(30, 2, new Date());
+        VersionStatistics statistics = cleaner.estimate(100, 1, 4, 30);
+
+        assertEquals(60L, statistics.getPopulationSize());
+        assertEquals(60L, statistics.getSampleSize());
+        assertEquals(30L * 10L + 30L * 2L, statistics.getVersions().getTotal());
+        // every node sampled, the bounds are the exact totals
+        assertEquals(30L * 6L, statistics.getDeletions().getLow());
+        assertEquals(30L * 6L, statistics.getDeletions().getTotal());
+        assertEquals(30L * 6L, statistics.getDeletions().getHigh());
+        assertEquals(30L * 6L * 1024L, statistics.getBytesDeleted().getTotal());
+        assertEquals(60L, statistics.getHistoryLengths().getSampleSize());
+        assertEquals(10, repository.getVersionCount(longNodeRefs.get(0)));
+    }
+
+    @Test
+    public void testEstimateOfSampleWithinBounds()
+    {
+        List<NodeRef> nodeRefs = createNodes(400, 10, new Date());
+        createNodes(100, 2, new Date(System.currentTimeMillis() - 100L * DAY));
+        VersionStatistics statistics = cleaner.estimate(100, 1, 4, 30);
+
+        assertEquals(500L, statistics.getPopulationSize());
+        assertEquals(100L, statistics.getSampleSize());
+        // each node has 6 or 1 versions to delete, 2500 in all
+        VersionStatistics.Projection deletions = statistics.getDeletions();
+        assertTrue(deletions.getLow() <= deletions.getTotal() && deletions.getTotal() <= deletions.getHigh());
+        assertTrue(deletions.getTotal() >= 500L && deletions.getTotal() <= 500L * 6L);
+        assertTrue(deletions.getHigh() > deletions.getLow());
+        // the 95% interval is about 4 standard errors wide, the estimate is within 8 of them of the real total
+        assertTrue(Math.abs(deletions.getTotal() - 2500L) <= 2L * (deletions.getHigh() - deletions.getLow()));
+        assertEquals(10, repository.getVersionCount(nodeRefs.get(0)));
+    }
+
+    @Test
+    public void testOrphanedHistoriesSwept()
+    {
+        List<NodeRef> nodeRefs = createNodes(10, 3, new Date());
+        // two nodes purged with their history left behind, one node no longer versionable, one empty history
+        repository.deleteNode(nodeRefs.get(0));
+        repository.deleteNode(nodeRefs.get(1));
+        repository.getNodeService().removeAspect(nodeRefs.get(2), ContentModel.ASPECT_VERSIONABLE);
+        NodeRef emptyNodeRef = nodeRefs.get(3);
+        for (Version version : repository.getVersionService().getVersionHistory(emptyNodeRef).getAllVersions())
+        {
+            repository.getVersionService().deleteVersion(emptyNodeRef, version);
+        }
+        NodeRef emptyHistoryRef = repository.getVersionHistoryNodeRef(emptyNodeRef);
+        NodeRef missingHistoryRef = repository.getVersionHistoryNodeRef(nodeRefs.get(0));
+
+        VersionHistorySweeper.SweepResult dryRun = cleaner.sweepOrphanedHistories(true);
+        assertEquals(10L, dryRun.getHistoriesScanned());
+        assertEquals(2L, dryRun.getMissing());
+        assertEquals(1L, dryRun.getNotVersionable());
+        assertEquals(1L, dryRun.getEmpty());
+        assertEquals(0L, dryRun.getHistoriesDeleted());
+        assertTrue(repository.getNodeService().exists(emptyHistoryRef));
+
+        VersionHistorySweeper.SweepResult sweep = cleaner.sweepOrphanedHistories(false);
+        assertEquals(4L, sweep.getOrphansFound());
+        assertEquals(4L, sweep.getHistoriesDeleted());
+        assertEquals(0L, sweep.getErrors());
+        assertFalse(repository.getNodeService().exists(emptyHistoryRef));
+        assertFalse(repository.getNodeService().exists(missingHistoryRef));
+        assertEquals(0, repository.getVersionCount(nodeRefs.get(2)));
+        for (NodeRef nodeRef : nodeRefs.subList(4, 10))
+        {
+            assertEquals(3, repository.getVersionCount(nodeRef));
+        }
+
+        VersionHistorySweeper.SweepResult next = cleaner.sweepOrphanedHistories(true);
+        assertEquals(6L, next.getHistoriesScanned());
+        assertEquals(0L, next.getOrphansFound());
+    }
+
+    @Test
+    public void testRunRecordedAndThroughputAlertRaised()
+    {
+        createNodes(20, 6, new Date());
+        cleaner.setAttributeService(repository.getAttributeService());
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(4);
+        cleaner.setThroughputWindow(3);
+        cleaner.execute();
+
+        List<Map<String, Serializable>> runs = cleaner.getRunHistory();
+        assertEquals(1, runs.size());
+        Map<String, Serializable> run = runs.get(0);
+        assertEquals("completed", run.get(VersionCleanerRunLedger.STATUS));
+        assertEquals(20L, run.get(VersionCleanerRunLedger.NODES_PROCESSED));
+        assertEquals(40L, run.get(VersionCleanerRunLedger.VERSIONS_DELETED));
+        assertEquals(Boolean.FALSE, run.get(VersionCleanerRunLedger.THROUGHPUT_ALERT));
+        assertEquals(4, ((Map<?, ?>) run.get(VersionCleanerRunLedger.CONFIGURATION)).get("maxVersionsToKeep"));
+
+        // two earlier runs far faster than this repository can be, the median of the last three runs is theirs
+        VersionCleanerRunLedger ledger = new VersionCleanerRunLedger(repository.getAttributeService(),
+                repository.getTransactionService(), 100);
+        for (int i = 0; i < 2; i++)
+        {
+            HashMap<String, Serializable> fastRun = new HashMap<String, Serializable>();
+            fastRun.put(VersionCleanerRunLedger.START, new Date(System.currentTimeMillis() - (10L - i) * DAY));
+            fastRun.put(VersionCleanerRunLedger.STATUS, "completed");
+            fastRun.put(VersionCleanerRunLedger.NODES_PROCESSED, 1000000000L);
+            fastRun.put(VersionCleanerRunLedger.THROUGHPUT, 1.0E9);
+            ledger.recordRun(fastRun);
+        }
+        createNodes(20, 6, new Date());
+        cleaner.execute();
+
+        runs = cleaner.getRunHistory();
+        assertEquals(4, runs.size());
+        assertEquals(20L, runs.get(0).get(VersionCleanerRunLedger.NODES_CLEANED));
+        assertEquals(Boolean.TRUE, runs.get(0).get(VersionCleanerRunLedger.THROUGHPUT_ALERT));
+        assertEquals(Boolean.FALSE, runs.get(1).get(VersionCleanerRunLedger.THROUGHPUT_ALERT));
+    }
+
+    /**
+     * Records the transactions deleting versions of each node, runs an action once a number of nodes have been
+     * cleaned
+     */
+    private static class CleanedNodesListener implements VersionStoreCleanerListener
+    {
+        private final Map<NodeRef, Set<String>> cleaned = new HashMap<NodeRef, Set<String>>();
+        private final Set<String> transactions = new HashSet<String>();
+        private final int actionAfter;
+        private final Runnable action;
+        private boolean actionRun;
+        private int transactionsStartedAfterAction;
+
+        CleanedNodesListener(int actionAfter, Runnable action)
+        {
+            this.actionAfter = actionAfter;
+            this.action = action;
+        }
+
+        public void beforeDelete(Version version)
+        {
+        }
+
+        public synchronized void beforeDelete(VersionHistory versionHistory)
+        {
+            // called for each version deleted
+            NodeRef nodeRef = versionHistory.getHeadVersion().getVersionedNodeRef();
+            String transaction = AlfrescoTransactionSupport.getTransactionId();
+            Set<String> nodeTransactions = cleaned.get(nodeRef);
+            if (nodeTransactions == null)
+            {
+                nodeTransactions = new HashSet<String>();
+                cleaned.put(nodeRef, nodeTransactions);
+            }
+            nodeTransactions.add(transaction);
+            if (transactions.add(transaction) && actionRun)
+            {
+                transactionsStartedAfterAction++;
+            }
+            if (cleaned.size() == actionAfter && !actionRun)
+            {
+                actionRun = true;
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Fails the deletions of the versions of one node a number of times
+     */
+    private static class FailingListener implements VersionStoreCleanerListener
+    {
+        private final NodeRef nodeRef;
+        private final RuntimeException failure;
+        private int failures;
+
+        FailingListener(NodeRef nodeRef, RuntimeException failure, int failures)
+        {
+            this.nodeRef = nodeRef;
+            this.failure = failure;
+            this.failures = failures;
+        }
+
+        public void beforeDelete(Version version)
+        {
+        }
+
+        public synchronized void beforeDelete(VersionHistory versionHistory)
+        {
+            if (failures > 0 && versionHistory.getHeadVersion().getVersionedNodeRef().equals(nodeRef))
+            {
+                failures--;
+                throw failure;
+            }
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private List<NodeRef> createNodes(int nodeCount, int versionCount, Date frozenModified)
+    {
+        return createNodes(ContentModel.TYPE_CONTENT, nodeCount, versionCount, frozenModified);
+    }
+
+    private List<NodeRef> createNodes(QName type, int nodeCount, int versionCount, Date frozenModified)
+    {
+        List<NodeRef> nodeRefs = new ArrayList<NodeRef>(nodeCount);
+        for (int i = 0; i < nodeCount; i++)
+        {
+            NodeRef nodeRef = repository.createNode(type);
+            for (int j = 0; j < versionCount; j++)
+            {
+                repository.createVersion(nodeRef, frozenModified, "store://test/" + i + "/" + j + ".bin", 1024L);
+            }
+            nodeRefs.add(nodeRef);
+        }
+        return nodeRefs;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.repo.version.cleanup.NodeIdBitmap;
+import org.junit.Test;
+
+/**
+ * Unit tests of the set of visited nodes {@link NodeIdBitmap}, its array and bitmap chunks and the IDs at the
+ * chunk and Long boundaries.
+ *
+ * @author Philippe Dubois
+ */
+public class NodeIdBitmapTest
+{
+    @Test
+    public void testArrayChunkBecomesBitmap()
+    {
+        NodeIdBitmap bitmap = new NodeIdBitmap();
+        long base = 7L << 16;
+        // every 16th ID so that the chunk holds 4096 IDs before switching
+        for (long low = 0; low < 4096 * 16; low += 16)
+        {
+            assertTrue(bitmap.add(base + low));
+        }
+        assertEquals(4096, bitmap.size());
+        assertEquals(2L * 4096, bitmap.getMemoryUsage());
+
+        assertTrue(bitmap.add(base + 1));
+        assertEquals(4097, bitmap.size());
+        assertEquals(8192L, bitmap.getMemoryUsage());
+
+        for (long low = 0; low < 65536; low++)
+        {
+            assertEquals("ID " + low, low % 16 == 0 || low == 1, bitmap.contains(base + low));
+        }
+        assertFalse(bitmap.contains(base - 1));
+        assertFalse(bitmap.contains(base + 65536));
+
+        // the bitmap keeps accepting new IDs and rejecting duplicates
+        assertTrue(bitmap.add(base + 65535));
+        assertFalse(bitmap.add(base + 65535));
+        assertFalse(bitmap.add(base + 16));
+        assertEquals(4098, bitmap.size());
+        assertEquals(8192L, bitmap.getMemoryUsage());
+    }
+
+    @Test
+    public void testDuplicates()
+    {
+        NodeIdBitmap bitmap = new NodeIdBitmap();
+        assertTrue(bitmap.add(42L));
+        assertTrue(bitmap.add(41L));
+        assertFalse(bitmap.add(42L));
+        assertFalse(bitmap.add(41L));
+        assertEquals(2, bitmap.size());
+        assertEquals(4L, bitmap.getMemoryUsage());
+    }
+
+    @Test
+    public void testBoundaries()
+    {
+        long[] ids = { 0L, 1L, 65535L, 65536L, 65537L, -1L, -65536L, -65537L, Long.MAX_VALUE, Long.MAX_VALUE - 1,
+                Long.MIN_VALUE, Long.MIN_VALUE + 1, Integer.MAX_VALUE + 1L };
+        List<Long> values = new ArrayList<Long>();
+        for (long id : ids)
+        {
+            values.add(id);
+        }
+        NodeIdBitmap bitmap = new NodeIdBitmap();
+        bitmap.addAll(values);
+        // duplicates in the collection are counted once
+        bitmap.addAll(Arrays.asList(0L, Long.MAX_VALUE, Long.MIN_VALUE));
+        assertEquals(ids.length, bitmap.size());
+        for (long id : ids)
+        {
+            assertTrue("ID " + id, bitmap.contains(id));
+        }
+        // neighbours in the same or the next chunk are not confused with the IDs
+        long[] absent = { 2L, 65534L, 65538L, -2L, -65535L, Long.MAX_VALUE - 2, Long.MIN_VALUE + 2,
+                Long.MAX_VALUE - 65536, Long.MIN_VALUE + 65536, Integer.MAX_VALUE };
+        for (long id : absent)
+        {
+            assertFalse("ID " + id, bitmap.contains(id));
+        }
+    }
+
+    @Test
+    public void testSequentialIds()
+    {
+        NodeIdBitmap bitmap = new NodeIdBitmap();
+        for (long id = 1; id <= 1000000; id++)
+        {
+            bitmap.add(id);
+        }
+        assertEquals(1000000, bitmap.size());
+        // 16 chunks, all of them bitmaps
+        assertEquals(16 * 8192L, bitmap.getMemoryUsage());
+        assertFalse(bitmap.contains(0L));
+        assertTrue(bitmap.contains(1000000L));
+        assertFalse(bitmap.contains(1000001L));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.version.cleanup.NodeIdBuffer;
+import org.junit.Test;
+
+/**
+ * Unit tests of the primitive list of node IDs {@link NodeIdBuffer}.
+ *
+ * @author Philippe Dubois
+ */
+public class NodeIdBufferTest
+{
+    @Test
+    public void testGrowth()
+    {
+        NodeIdBuffer buffer = new NodeIdBuffer(0);
+        for (long id = 0; id < 100000; id++)
+        {
+            buffer.add(id * 3L);
+        }
+        assertEquals(100000, buffer.size());
+        for (int index = 0; index < 100000; index++)
+        {
+            assertEquals(index * 3L, buffer.get(index));
+        }
+        List<Long> list = buffer.asList();
+        assertEquals(100000, list.size());
+        assertEquals(Long.valueOf(299997L), list.get(99999));
+    }
+
+    @Test
+    public void testLongBoundaries()
+    {
+        NodeIdBuffer buffer = new NodeIdBuffer(2);
+        long[] ids = { Long.MIN_VALUE, -1L, 0L, Long.MAX_VALUE };
+        for (long id : ids)
+        {
+            buffer.add(id);
+        }
+        for (int index = 0; index < ids.length; index++)
+        {
+            assertEquals(ids[index], buffer.get(index));
+        }
+    }
+
+    @Test
+    public void testOutOfRange()
+    {
+        NodeIdBuffer buffer = new NodeIdBuffer(100);
+        buffer.add(1L);
+        try
+        {
+            // beyond the size though within the capacity
+            buffer.get(1);
+            fail("Index accepted");
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWorkProvider()
+    {
+        NodeIdBuffer buffer = new NodeIdBuffer(16);
+        for (long id = 0; id < 12; id++)
+        {
+            buffer.add(id);
+        }
+        BatchProcessWorkProvider<Long> provider = buffer.getWorkProvider(5);
+        assertEquals(12, provider.getTotalEstimatedWorkSize());
+        List<Integer> chunkSizes = new ArrayList<Integer>();
+        List<Long> ids = new ArrayList<Long>();
+        for (Collection<Long> work = provider.getNextWork(); !work.isEmpty(); work = provider.getNextWork())
+        {
+            chunkSizes.add(work.size());
+            ids.addAll(work);
+        }
+        assertEquals("[5, 5, 2]", chunkSizes.toString());
+        assertEquals(buffer.asList(), ids);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.alfresco.repo.version.cleanup.NodeIdBuffer;
+import org.alfresco.repo.version.cleanup.ParentPartitioner;
+import org.junit.Test;
+
+/**
+ * Unit tests of the grouping of the candidates by parent done by {@link ParentPartitioner}.
+ *
+ * @author Philippe Dubois
+ */
+public class ParentPartitionerTest
+{
+    @Test
+    public void testSiblingsAreCleanedTogether()
+    {
+        // nodes 1 to 6 in folders 10 and 20, interleaved in the index
+        List<List<Long>> batches = pack(new long[] { 1, 2, 3, 4, 5, 6 }, new long[] { 10, 20, 10, 20, 10, 20 }, 3);
+        assertEquals("[[1, 3, 5], [2, 4, 6]]", batches.toString());
+    }
+
+    @Test
+    public void testSmallParentsShareBatches()
+    {
+        List<List<Long>> batches = pack(new long[] { 1, 2, 3, 4, 5 }, new long[] { 10, 20, 30, 20, 40 }, 3);
+        // a parent is not split to fill a batch
+        assertEquals("[[1, 2, 4], [3, 5]]", batches.toString());
+    }
+
+    @Test
+    public void testLargeParentBatchesAreSpread()
+    {
+        List<List<Long>> batches = pack(new long[] { 1, 2, 3, 4, 5, 6, 7, 8 }, new long[] { 10, 10, 10, 10, 20, 20,
+                20, 20 }, 2);
+        // the second batch of each parent comes after the first batch of all of them
+        assertEquals("[[1, 2], [5, 6], [3, 4], [7, 8]]", batches.toString());
+    }
+
+    @Test
+    public void testUnknownParents()
+    {
+        List<List<Long>> batches = pack(new long[] { 1, 2, 3 }, new long[] { -1, 10, -1 }, 5);
+        assertEquals("[[1, 3, 2]]", batches.toString());
+    }
+
+    private static List<List<Long>> pack(long[] ids, long[] parentIds, int batchSize)
+    {
+        NodeIdBuffer nodeIds = new NodeIdBuffer(ids.length);
+        for (long id : ids)
+        {
+            nodeIds.add(id);
+        }
+        return ParentPartitioner.pack(nodeIds, parentIds, batchSize);
+    }
+}
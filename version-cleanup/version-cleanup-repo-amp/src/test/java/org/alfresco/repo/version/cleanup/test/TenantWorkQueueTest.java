@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.version.cleanup.TenantWorkQueue;
+import org.junit.Test;
+
+/**
+ * Unit tests of the fair scheduling of the tenants by {@link TenantWorkQueue}.
+ *
+ * @author Philippe Dubois
+ */
+public class TenantWorkQueueTest
+{
+    @Test
+    public void testTenantsAreServedInTurn() throws InterruptedException
+    {
+        TenantWorkQueue<String> queue = new TenantWorkQueue<String>();
+        for (int i = 0; i < 4; i++)
+        {
+            queue.put("big", "big" + i);
+        }
+        queue.put("small", "small0");
+        queue.put("", "default0");
+        List<String> taken = new ArrayList<String>();
+        for (int i = 0; i < 6; i++)
+        {
+            taken.add(queue.take());
+        }
+        assertEquals("[big0, small0, default0, big1, big2, big3]", taken.toString());
+        assertEquals(0, queue.size("big"));
+    }
+
+    @Test
+    public void testTenantQueuedAgainWaitsForItsTurn() throws InterruptedException
+    {
+        TenantWorkQueue<String> queue = new TenantWorkQueue<String>();
+        queue.put("a", "a0");
+        queue.put("b", "b0");
+        assertEquals("a0", queue.take());
+        // a has nothing left, it goes after b
+        queue.put("a", "a1");
+        queue.put("b", "b1");
+        assertEquals("b0", queue.take());
+        assertEquals("a1", queue.take());
+        assertEquals("b1", queue.take());
+    }
+
+    @Test
+    public void testCloseReleasesTheWorkers() throws InterruptedException
+    {
+        TenantWorkQueue<String> queue = new TenantWorkQueue<String>();
+        queue.put("a", "a0");
+        queue.put("a", "a1");
+        queue.close();
+        assertEquals("a0", queue.take());
+        assertEquals(1, queue.clear());
+        assertNull(queue.take());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.version.cleanup.VersionCleanerScheduler;
+import org.alfresco.repo.version.cleanup.VersionCleanerScheduler.LoadProbe;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Test;
+
+/**
+ * Unit tests of the time windows and of the load measured by {@link VersionCleanerScheduler}.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerSchedulerTest
+{
+    @Test
+    public void testParseTimeWindows()
+    {
+        int[][] windows = VersionCleanerScheduler.parseTimeWindows(" 01:00-06:00, 22:00-23:30,,7-8");
+        assertEquals(3, windows.length);
+        assertArrayEquals(new int[] { 60, 360 }, windows[0]);
+        assertArrayEquals(new int[] { 1320, 1410 }, windows[1]);
+        assertArrayEquals(new int[] { 420, 480 }, windows[2]);
+        assertArrayEquals(new int[] { 1320, 240 }, VersionCleanerScheduler.parseTimeWindows("22:00-04:00")[0]);
+        assertEquals(0, VersionCleanerScheduler.parseTimeWindows("").length);
+        assertEquals(0, VersionCleanerScheduler.parseTimeWindows(null).length);
+    }
+
+    @Test
+    public void testInvalidTimeWindows()
+    {
+        for (String timeWindows : Arrays.asList("01:00", "01:00-02:00-03:00", "25:00-26:00", "01:60-02:00",
+                "a-b", "01:00:00-02:00"))
+        {
+            try
+            {
+                VersionCleanerScheduler.parseTimeWindows(timeWindows);
+                fail("Accepted " + timeWindows);
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIsInTimeWindow()
+    {
+        VersionCleanerScheduler scheduler = new VersionCleanerScheduler();
+        scheduler.setTimeWindows("01:00-06:00,22:00-23:30");
+        assertFalse(scheduler.isInTimeWindow(at(0, 59)));
+        assertTrue(scheduler.isInTimeWindow(at(1, 0)));
+        assertTrue(scheduler.isInTimeWindow(at(5, 59)));
+        // the end is excluded
+        assertFalse(scheduler.isInTimeWindow(at(6, 0)));
+        assertFalse(scheduler.isInTimeWindow(at(12, 0)));
+        assertTrue(scheduler.isInTimeWindow(at(22, 30)));
+        assertFalse(scheduler.isInTimeWindow(at(23, 30)));
+    }
+
+    @Test
+    public void testTimeWindowCrossingMidnight()
+    {
+        VersionCleanerScheduler scheduler = new VersionCleanerScheduler();
+        scheduler.setTimeWindows("22:00-04:00");
+        assertFalse(scheduler.isInTimeWindow(at(21, 59)));
+        assertTrue(scheduler.isInTimeWindow(at(22, 0)));
+        assertTrue(scheduler.isInTimeWindow(at(23, 59)));
+        assertTrue(scheduler.isInTimeWindow(at(0, 0)));
+        assertTrue(scheduler.isInTimeWindow(at(3, 59)));
+        assertFalse(scheduler.isInTimeWindow(at(4, 0)));
+        assertFalse(scheduler.isInTimeWindow(at(12, 0)));
+    }
+
+    @Test
+    public void testNoTimeWindowIsAnyTime()
+    {
+        VersionCleanerScheduler scheduler = new VersionCleanerScheduler();
+        scheduler.setTimeWindows("");
+        assertTrue(scheduler.isInTimeWindow(at(0, 0)));
+        assertTrue(scheduler.isInTimeWindow(at(13, 37)));
+    }
+
+    @Test
+    public void testLoadIsTheHighestMeasure()
+    {
+        VersionCleanerScheduler scheduler = new VersionCleanerScheduler();
+        scheduler.setDataSource(new BasicDataSource()
+            {
+                @Override
+                public int getNumActive()
+                {
+                    return 6;
+                }
+
+                @Override
+                public int getMaxActive()
+                {
+                    return 8;
+                }
+            });
+        double poolLoad = scheduler.getLoad();
+        assertTrue(poolLoad >= 0.75);
+
+        scheduler.setLoadProbes(Arrays.asList(probe(0.95), probe(-1.0)));
+        assertTrue(scheduler.getLoad() >= 0.95);
+
+        // an unknown measure does not lower the load
+        scheduler.setLoadProbes(Collections.singletonList(probe(-1.0)));
+        assertTrue(scheduler.getLoad() >= 0.75);
+    }
+
+    private static LoadProbe probe(final double load)
+    {
+        return new LoadProbe()
+            {
+                public double getLoad()
+                {
+                    return load;
+                }
+            };
+    }
+
+    private static Calendar at(int hour, int minute)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        return calendar;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.version.cleanup.VersionCleanerParralel;
+import org.alfresco.repo.version.cleanup.VersionCleanerResult;
+import org.alfresco.service.cmr.lock.NodeLockedException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+/**
+ * Runs the version cleaner with several threads while writer threads keep creating versions, checking out,
+ * checking in and locking a part of the nodes. At the end no history may have fewer than minVersionsToKeep
+ * versions, and the nodes no writer touched must have at most maxVersionsToKeep versions. A part of the version
+ * deletions also fail as if another transaction had updated the node: the contended nodes are deferred, and the
+ * versions counted as deleted must be the ones missing from the histories. The throughput of the cleaner under
+ * contention is logged.
+ * <p>
+ * The rate of transactions rolled back by the contention on the parent folders is also measured with and without
+ * grouping the candidates by parent. The folders are small enough for each one to be cleaned in a single batch:
+ * grouped, no two transactions may take the row of the same folder.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionCleanerStressTest
+{
+    private static Log logger = LogFactory.getLog(VersionCleanerStressTest.class);
+
+    private static final int STABLE_NODES = 600;
+    private static final int HOT_NODES = 200;
+    private static final int INITIAL_VERSIONS = 12;
+    private static final int WRITERS = 6;
+    private static final int MIN_VERSIONS = 2;
+    private static final int MAX_VERSIONS = 5;
+    private static final int FOLDERS = 24;
+    /** half of the default partitionBatchSize, more than 5000 nodes in all so the ungrouped page has two batches */
+    private static final int NODES_PER_FOLDER = 250;
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final Set<NodeRef> touchedNodes = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong versionsCreated = new AtomicLong();
+    private volatile boolean cleaning = true;
+
+    @Test
+    public void testRetentionUnderConcurrentWriters() throws InterruptedException
+    {
+        List<NodeRef> stableNodes = createNodes(STABLE_NODES);
+        List<NodeRef> hotNodes = createNodes(HOT_NODES);
+        repository.setLockedNodesRejectDeletes(true);
+        repository.setLatency("deleteVersion", 1L);
+        repository.setContentionRate(0.01);
+
+        VersionCleanerParralel cleaner = InMemoryVersionCleanerTest.createCleaner(repository);
+        cleaner.setThreadNumber(4);
+        cleaner.setMinVersionsToKeep(MIN_VERSIONS);
+        cleaner.setMaxVersionsToKeep(MAX_VERSIONS);
+        cleaner.setDeferContendedNodes(true);
+        cleaner.setDeferredBackoff(5L);
+        // the injected contention alone hardly ever fails a stable node that many times
+        cleaner.setDeferredRetries(5);
+
+        List<Thread> writers = new ArrayList<Thread>(WRITERS);
+        for (int i = 0; i < WRITERS; i++)
+        {
+            Thread writer = new Thread(new Writer(hotNodes, new Random(i)), "writer-" + i);
+            writers.add(writer);
+            writer.start();
+        }
+        try
+        {
+            cleaner.execute();
+        }
+        finally
+        {
+            cleaning = false;
+            for (Thread writer : writers)
+            {
+                writer.join();
+            }
+        }
+
+        VersionCleanerResult result = cleaner.getLastResult();
+        double throughput = result.getDuration() == 0L ? 0.0 : result.getNodesProcessed() * 1000.0
+                / result.getDuration();
+        logger.info("Cleaner under contention: " + result);
+        logger.info(String.format("%.1f nodes/s, %d writes by %d writers, %d nodes touched", throughput,
+                writes.get(), WRITERS, touchedNodes.size()));
+
+        for (NodeRef nodeRef : stableNodes)
+        {
+            checkRetention(nodeRef, true);
+        }
+        for (NodeRef nodeRef : hotNodes)
+        {
+            checkRetention(nodeRef, !touchedNodes.contains(nodeRef));
+        }
+        long remaining = 0L;
+        for (NodeRef nodeRef : stableNodes)
+        {
+            remaining += repository.getVersionCount(nodeRef);
+        }
+        for (NodeRef nodeRef : hotNodes)
+        {
+            remaining += repository.getVersionCount(nodeRef);
+        }
+        long created = (STABLE_NODES + HOT_NODES) * INITIAL_VERSIONS + versionsCreated.get();
+        assertEquals(created - remaining, result.getVersionsDeleted());
+        assertEquals(STABLE_NODES + HOT_NODES, result.getNodesProcessed() + result.getErrors());
+        // every failed attempt is deferred, or counted as an error once the retries are exhausted
+        assertTrue(repository.getContentionFailures() > 0L);
+        assertTrue(result.getNodesDeferred() > 0L);
+        assertTrue(result.getNodesDeferred() + result.getErrors() >= repository.getContentionFailures());
+        assertTrue(throughput > 0.0);
+    }
+
+    @Test
+    public void testRetriedBatchesUnderContention()
+    {
+        List<NodeRef> nodeRefs = createNodes(STABLE_NODES);
+        repository.setContentionRate(0.005);
+
+        VersionCleanerParralel cleaner = InMemoryVersionCleanerTest.createCleaner(repository);
+        cleaner.setThreadNumber(4);
+        cleaner.setMinVersionsToKeep(MIN_VERSIONS);
+        cleaner.setMaxVersionsToKeep(MAX_VERSIONS);
+        cleaner.setPlanInReadOnlyTransactions(true);
+        cleaner.setPlanApplyBatchSize(10);
+        cleaner.execute();
+
+        VersionCleanerResult result = cleaner.getLastResult();
+        logger.info("Cleaner with injected contention: " + result + ", " + repository.getContentionFailures()
+                + " contention failures");
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            assertEquals(MAX_VERSIONS, repository.getVersionCount(nodeRef));
+        }
+        assertTrue(repository.getContentionFailures() > 0L);
+        // a transaction fails at its first contended deletion and is retried from the original histories
+        assertEquals(repository.getContentionFailures(), result.getTransactionsRolledBack());
+        assertEquals(repository.getContentionFailures(), repository.getRollbacks());
+        assertEquals(STABLE_NODES * (INITIAL_VERSIONS - MAX_VERSIONS), result.getVersionsDeleted());
+        assertEquals(STABLE_NODES, result.getNodesCleaned());
+        assertEquals(0L, result.getErrors());
+        double retryRate = (double) result.getTransactionsRolledBack()
+                / (result.getTransactionsRolledBack() + result.getTransactionsCommitted());
+        assertEquals(retryRate, result.getRetryRate(), 1e-9);
+    }
+
+    @Test
+    public void testPartitionByParentReducesRetries()
+    {
+        VersionCleanerResult unpartitioned = cleanFolders(false);
+        VersionCleanerResult partitioned = cleanFolders(true);
+        logger.info(String.format("Retry rate without partitioning %.1f%% (%d rolled back), by parent %.1f%% (%d)",
+                unpartitioned.getRetryRate() * 100.0, unpartitioned.getTransactionsRolledBack(),
+                partitioned.getRetryRate() * 100.0, partitioned.getTransactionsRolledBack()));
+        assertEquals(0L, partitioned.getTransactionsRolledBack());
+        assertTrue(unpartitioned.getTransactionsRolledBack() > partitioned.getTransactionsRolledBack());
+    }
+
+    /**
+     * Clean versioned nodes spread over a few folders, deleting a version takes the row of the folder. Deleting a
+     * version is slowed down so that the ungrouped batches run at the same time.
+     */
+    private VersionCleanerResult cleanFolders(boolean partitionByParent)
+    {
+        InMemoryRepository folderRepository = new InMemoryRepository();
+        List<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+        List<NodeRef> folderRefs = new ArrayList<NodeRef>();
+        for (int i = 0; i < FOLDERS; i++)
+        {
+            folderRefs.add(folderRepository.createFolder());
+        }
+        Date frozenModified = new Date();
+        // siblings are not next to each other in the index
+        for (int i = 0; i < FOLDERS * NODES_PER_FOLDER; i++)
+        {
+            NodeRef nodeRef = folderRepository.createNode(folderRefs.get(i % FOLDERS));
+            for (int j = 0; j < 2; j++)
+            {
+                folderRepository.createVersion(nodeRef, frozenModified, "store://folders/" + i + "/" + j + ".bin",
+                        512L);
+            }
+            nodeRefs.add(nodeRef);
+        }
+        folderRepository.setParentRowContention(true);
+        folderRepository.setLatency("deleteVersion", 1L);
+
+        VersionCleanerParralel cleaner = InMemoryVersionCleanerTest.createCleaner(folderRepository);
+        cleaner.setThreadNumber(4);
+        cleaner.setMinVersionsToKeep(1);
+        cleaner.setMaxVersionsToKeep(1);
+        cleaner.setPartitionByParent(partitionByParent);
+        cleaner.execute();
+
+        VersionCleanerResult result = cleaner.getLastResult();
+        logger.info("Cleaner with partitionByParent=" + partitionByParent + ": " + result + ", "
+                + folderRepository.getParentRowConflicts() + " parent row conflicts");
+        // each rolled back transaction met one row held by another one, its deletions have been undone
+        assertEquals(folderRepository.getParentRowConflicts(), result.getTransactionsRolledBack());
+        long remaining = 0L;
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            remaining += folderRepository.getVersionCount(nodeRef);
+        }
+        assertEquals(2L * nodeRefs.size() - remaining, result.getVersionsDeleted());
+        if (partitionByParent)
+        {
+            assertEquals("Two transactions took the row of the same folder", 0L,
+                    folderRepository.getParentRowConflicts());
+            for (NodeRef nodeRef : nodeRefs)
+            {
+                assertEquals(nodeRef + " not cleaned", 1, folderRepository.getVersionCount(nodeRef));
+            }
+        }
+        return result;
+    }
+
+    private void checkRetention(NodeRef nodeRef, boolean untouched)
+    {
+        int versions = repository.getVersionCount(nodeRef);
+        assertTrue(nodeRef + " has " + versions + " versions, less than " + MIN_VERSIONS,
+                versions >= MIN_VERSIONS);
+        if (untouched)
+        {
+            assertTrue(nodeRef + " has " + versions + " versions, more than " + MAX_VERSIONS,
+                    versions <= MAX_VERSIONS);
+        }
+    }
+
+    private List<NodeRef> createNodes(int count)
+    {
+        List<NodeRef> nodeRefs = new ArrayList<NodeRef>(count);
+        Date frozenModified = new Date();
+        for (int i = 0; i < count; i++)
+        {
+            NodeRef nodeRef = repository.createNode();
+            for (int j = 0; j < INITIAL_VERSIONS; j++)
+            {
+                repository.createVersion(nodeRef, frozenModified, "store://stress/" + i + "/" + j + ".bin", 512L);
+            }
+            nodeRefs.add(nodeRef);
+        }
+        return nodeRefs;
+    }
+
+    /**
+     * Keeps changing random nodes until the cleaner has finished
+     */
+    private class Writer implements Runnable
+    {
+        private final List<NodeRef> nodeRefs;
+        private final Random random;
+
+        Writer(List<NodeRef> nodeRefs, Random random)
+        {
+            this.nodeRefs = nodeRefs;
+            this.random = random;
+        }
+
+        public void run()
+        {
+            while (cleaning)
+            {
+                NodeRef nodeRef = nodeRefs.get(random.nextInt(nodeRefs.size()));
+                // marked before the change so the check never misses it
+                touchedNodes.add(nodeRef);
+                try
+                {
+                    switch (random.nextInt(3))
+                    {
+                    case 0:
+                        repository.createVersion(nodeRef);
+                        versionsCreated.incrementAndGet();
+                        break;
+                    case 1:
+                        repository.checkout(nodeRef);
+                        pause();
+                        repository.checkin(nodeRef);
+                        versionsCreated.incrementAndGet();
+                        break;
+                    default:
+                        repository.lock(nodeRef, Thread.currentThread().getName());
+                        pause();
+                        repository.unlock(nodeRef);
+                        break;
+                    }
+                    writes.incrementAndGet();
+                }
+                catch (NodeLockedException e)
+                {
+                    // already checked out by another writer
+                }
+            }
+        }
+
+        private void pause()
+        {
+            try
+            {
+                Thread.sleep(random.nextInt(3));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.alfresco.repo.version.cleanup.VersionMetadataFile;
+import org.alfresco.repo.version.cleanup.VersionRetentionPlanner;
+import org.alfresco.repo.version.cleanup.VersionRetentionSimulator;
+import org.alfresco.repo.version.cleanup.VersionRetentionSimulator.SimulationResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of the {@link VersionMetadataFile} format and of the {@link VersionRetentionSimulator} replaying it.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionMetadataFileTest
+{
+    private static final long DAY = 24L * 3600L * 1000L;
+    private static final Date EXPORT_DATE = new Date(20000L * DAY);
+
+    private File file;
+
+    @Before
+    public void before() throws IOException
+    {
+        file = File.createTempFile("version-metadata", ".bin");
+    }
+
+    @After
+    public void after()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        // node IDs going down and up, dates around the export date, nulls and non ASCII strings
+        long[] nodeIds = { 1000L, 3L, Long.MAX_VALUE / 2L, 0L, 999L };
+        String[][] labels = { { "1.2", "1.1", "1.0" }, { "2.0" }, { "1.1", "1.0" }, {}, { "\u00e9.1", "1.0", "0.9",
+                "0.1" } };
+        Date[][] dates = { { day(-1), day(-2), day(-300) }, { null }, { day(5), null }, {},
+                { day(0), day(-1), day(-1), new Date(0L) } };
+        long[][] sizes = { { 10L, 0L, 123456789012L }, { 7L }, { 1L, 2L }, {}, { 5L, 5L, 5L, 5L } };
+        String[][] contentUrls = { { "store://a", null, "store://c" }, { null }, { "store://d", "store://d" }, {},
+                { "store://\u00fc", "", "store://e", "store://e" } };
+        VersionMetadataFile.Writer writer = new VersionMetadataFile.Writer(file, EXPORT_DATE, 3);
+        try
+        {
+            for (int history = 0; history < nodeIds.length; history++)
+            {
+                writer.append(nodeIds[history], labels[history], dates[history], sizes[history],
+                        contentUrls[history]);
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        VersionMetadataFile.Reader reader = new VersionMetadataFile.Reader(file);
+        try
+        {
+            assertEquals(EXPORT_DATE, reader.getExportDate());
+            assertEquals(10L, reader.getVersionCount());
+            // a block is closed once it holds 3 versions
+            assertEquals(3, reader.getBlockCount());
+            for (boolean withLabels : new boolean[] { true, false })
+            {
+                int history = 0;
+                for (int blockIndex = 0; blockIndex < reader.getBlockCount(); blockIndex++)
+                {
+                    VersionMetadataFile.Block block = reader.readBlock(blockIndex, withLabels);
+                    for (int blockHistory = 0; blockHistory < block.getHistoryCount(); blockHistory++, history++)
+                    {
+                        assertEquals(nodeIds[history], block.getNodeId(blockHistory));
+                        int start = block.getHistoryStart(blockHistory);
+                        assertEquals(dates[history].length, block.getHistoryEnd(blockHistory) - start);
+                        for (int version = 0; version < dates[history].length; version++)
+                        {
+                            String name = "history " + history + " version " + version;
+                            assertEquals(name, dates[history][version], block.getFrozenModifiedDate(start + version));
+                            assertEquals(name, sizes[history][version], block.getSize(start + version));
+                            assertEquals(name, contentUrls[history][version], block.getContentUrl(start + version));
+                            if (withLabels)
+                            {
+                                assertEquals(name, labels[history][version], block.getLabel(start + version));
+                            }
+                            else
+                            {
+                                assertNull(name, block.getLabel(start + version));
+                            }
+                        }
+                    }
+                }
+                assertEquals(nodeIds.length, history);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        new VersionMetadataFile.Writer(file, EXPORT_DATE, 10).close();
+        VersionMetadataFile.Reader reader = new VersionMetadataFile.Reader(file);
+        try
+        {
+            assertEquals(0, reader.getBlockCount());
+            assertEquals(0L, reader.getVersionCount());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testNotAMetadataFile() throws IOException
+    {
+        Files.write(file.toPath(), new byte[64]);
+        try
+        {
+            new VersionMetadataFile.Reader(file).close();
+            fail("File accepted");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSimulator() throws IOException
+    {
+        VersionMetadataFile.Writer writer = new VersionMetadataFile.Writer(file, EXPORT_DATE, 2);
+        try
+        {
+            // 5 recent versions, the 2 beyond maxVersionsToKeep are deleted
+            writer.append(10L, new String[] { "1.4", "1.3", "1.2", "1.1", "1.0" }, new Date[] { day(-1), day(-2),
+                    day(-3), day(-4), day(-5) }, new long[] { 100L, 100L, 100L, 100L, 100L }, new String[] {
+                    "store://u1", "store://u2", "store://u3", "store://u4", "store://u5" });
+            // 3 old versions, the second one a copy of the first, only the newest is kept by minVersionsToKeep
+            writer.append(5L, new String[] { "1.2", "1.1", "1.0" }, new Date[] { day(-20), day(-30), day(-40) },
+                    new long[] { 50L, 50L, 70L }, new String[] { "store://a", "store://a", "store://b" });
+            // a version without date nor content
+            writer.append(7L, new String[] { "1.0" }, new Date[] { null }, new long[] { 0L }, new String[] { null });
+        }
+        finally
+        {
+            writer.close();
+        }
+        VersionRetentionSimulator simulator = new VersionRetentionSimulator(new VersionRetentionPlanner(1, 3), 10,
+                true, 2);
+        SimulationResult result = simulator.simulate(file);
+        assertEquals(3L, result.getHistories());
+        assertEquals(9L, result.getVersions());
+        assertEquals(2L, result.getNodesCleaned());
+        assertEquals(4L, result.getVersionsDeleted());
+        assertEquals(1L, result.getVersionsCollapsed());
+        assertEquals(200L + 120L, result.getBytesDeleted());
+        // store://a is still used by the version kept
+        assertEquals(200L + 70L, result.getBytesFreed());
+
+        // the first history no longer fits in 150 bytes, it is cut down to minVersionsToKeep
+        simulator.setMaxBytesPerHistory(150L);
+        result = simulator.simulate(file);
+        assertEquals(6L, result.getVersionsDeleted());
+        assertEquals(400L + 120L, result.getBytesDeleted());
+        assertEquals(400L + 70L, result.getBytesFreed());
+    }
+
+    private static Date day(int days)
+    {
+        return new Date(EXPORT_DATE.getTime() + days * DAY);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.alfresco.repo.version.cleanup.VersionRetentionPlanner;
+import org.alfresco.repo.version.cleanup.VersionThinningSchedule;
+import org.junit.Test;
+
+/**
+ * Unit tests of the retention rules applied by {@link VersionRetentionPlanner}, with and without a thinning
+ * schedule.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionRetentionPlannerTest
+{
+    private static final long HOUR = 3600L * 1000L;
+    private static final long DAY = 24L * HOUR;
+    private static final long NOW = 20000L * DAY + 12L * HOUR;
+
+    @Test
+    public void testMaxVersionsAndCutoff()
+    {
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(1, 3);
+        Date[] dates = ages(1, 2, 3, 40, 50);
+        Date deleteOlder = new Date(NOW - 30L * DAY);
+        assertArrayEquals(new boolean[] { false, false, false, true, true }, planner.plan(dates, null, deleteOlder,
+                NOW));
+        // all the versions old, the newest one is kept by minVersionsToKeep
+        assertArrayEquals(new boolean[] { false, true, true }, planner.plan(ages(40, 50, 60), null, deleteOlder,
+                NOW));
+    }
+
+    @Test
+    public void testCountDeletionsFromSizesMatchesPlan()
+    {
+        Date deleteOlder = new Date(NOW - 30L * DAY);
+        for (int min = 0; min < 4; min++)
+        {
+            for (int max = min; max < 6; max++)
+            {
+                VersionRetentionPlanner planner = new VersionRetentionPlanner(min, max);
+                for (int older = 0; older <= 5; older++)
+                {
+                    int[] days = new int[5];
+                    for (int index = 0; index < 5; index++)
+                    {
+                        days[index] = index < 5 - older ? index + 1 : 40 + index;
+                    }
+                    int planned = 0;
+                    for (boolean deleted : planner.plan(ages(days), null, deleteOlder, NOW))
+                    {
+                        planned += deleted ? 1 : 0;
+                    }
+                    assertEquals("min " + min + ", max " + max + ", older " + older, planned, planner
+                            .countDeletions(5, older));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalVersionsDoNotCountInMaxVersions()
+    {
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(1, 2);
+        Date[] dates = ages(1, 2, 3, 4, 5);
+        boolean[] identical = { false, true, false, true, false };
+        // the copies go first, then the revisions beyond maxVersionsToKeep
+        assertArrayEquals(new boolean[] { false, true, false, true, true }, planner.plan(dates, identical, new Date(
+                NOW - 30L * DAY), NOW));
+    }
+
+    @Test
+    public void testIdenticalVersionsKeptForMinVersions()
+    {
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(3, 10);
+        Date[] dates = ages(1, 2, 3, 4);
+        boolean[] identical = { false, true, true, true };
+        // a single revision, the newest copies are kept to reach minVersionsToKeep
+        assertArrayEquals(new boolean[] { false, false, false, true }, planner.plan(dates, identical, new Date(
+                NOW - 30L * DAY), NOW));
+    }
+
+    @Test
+    public void testThinningReplacesMaxAndCutoff()
+    {
+        // maxVersionsToKeep 1 and everything past the cutoff, the schedule still keeps the versions of the week
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(0, 1, VersionThinningSchedule.parse("7d:all"));
+        Date[] dates = ages(1, 2, 3, 10);
+        assertArrayEquals(new boolean[] { false, false, false, true }, planner.plan(dates, null, new Date(NOW), NOW));
+    }
+
+    @Test
+    public void testMinVersionsWinsOverThinning()
+    {
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(3, 10, VersionThinningSchedule.parse("1d:all"));
+        // none of the versions is kept by the schedule
+        Date[] dates = ages(10, 11, 12, 13, 14);
+        assertArrayEquals(new boolean[] { false, false, false, true, true }, planner.plan(dates, null, new Date(
+                NOW), NOW));
+    }
+
+    @Test
+    public void testThinnedVersionsWithinMinVersionsAreKept()
+    {
+        // one version per week beyond a day, the newest 2 versions are kept whatever their age
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(2, 10, VersionThinningSchedule
+                .parse("1d:all,365d:7d"));
+        Date[] dates = { new Date(NOW - 2L * DAY), new Date(NOW - 2L * DAY - HOUR), new Date(NOW - 2L * DAY
+                - 2L * HOUR), new Date(NOW - 60L * DAY) };
+        assertArrayEquals(new boolean[] { false, false, true, false }, planner.plan(dates, null, new Date(NOW),
+                NOW));
+    }
+
+    @Test
+    public void testSizeBudgetKeepsMinVersions()
+    {
+        VersionRetentionPlanner planner = new VersionRetentionPlanner(2, 10);
+        boolean[] delete = new boolean[4];
+        assertEquals(2, planner.applySizeBudget(delete, new long[] { 100L, 100L, 100L, 100L }, 50L));
+        assertArrayEquals(new boolean[] { false, false, true, true }, delete);
+    }
+
+    /**
+     * @return the dates of versions the given number of days old, newest first
+     */
+    private static Date[] ages(int... days)
+    {
+        Date[] dates = new Date[days.length];
+        for (int index = 0; index < days.length; index++)
+        {
+            dates[index] = new Date(NOW - days[index] * DAY);
+        }
+        return dates;
+    }
+}
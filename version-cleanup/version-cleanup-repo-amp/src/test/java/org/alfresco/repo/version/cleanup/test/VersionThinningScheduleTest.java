@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2005-2007 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL, you may redistribute this Program in connection with Free/Libre
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's
+ * FLOSS exception.  You should have recieved a copy of the text describing
+ * the FLOSS exception, and it is also available here:
+ * http://www.alfresco.com/legal/licensing
+ */
+package org.alfresco.repo.version.cleanup.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.version.cleanup.VersionThinningSchedule;
+import org.junit.Test;
+
+/**
+ * Unit tests of the parsing of a {@link VersionThinningSchedule} and of the versions it keeps.
+ *
+ * @author Philippe Dubois
+ */
+public class VersionThinningScheduleTest
+{
+    private static final long HOUR = 3600L * 1000L;
+    private static final long DAY = 24L * HOUR;
+    /** noon UTC, in the middle of a day interval */
+    private static final long NOW = 20000L * DAY + 12L * HOUR;
+
+    @Test
+    public void testUnits()
+    {
+        assertKeptUpTo("1h:all", HOUR);
+        assertKeptUpTo("1d:all", DAY);
+        assertKeptUpTo("1w:all", 7L * DAY);
+        assertKeptUpTo("1m:all", 30L * DAY);
+        assertKeptUpTo("1y:all", 365L * DAY);
+        assertKeptUpTo("36H:ALL", 36L * HOUR);
+        assertKeptUpTo(" 2d : all ", 2L * DAY);
+    }
+
+    @Test
+    public void testMalformedTiers()
+    {
+        for (String schedule : new String[] { "7d", "7d:1d:1h", "7d:1x", "7d:", "d:1d", "x7d:all", "0d:all",
+                "7d:-1d", "1d:all,,7d:1d" })
+        {
+            try
+            {
+                VersionThinningSchedule.parse(schedule);
+                fail("Schedule accepted: " + schedule);
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testEmptySchedule()
+    {
+        assertNull(VersionThinningSchedule.parse(null));
+        assertNull(VersionThinningSchedule.parse(""));
+        assertNull(VersionThinningSchedule.parse("  "));
+    }
+
+    @Test
+    public void testTiersInAnyOrder()
+    {
+        VersionThinningSchedule schedule = VersionThinningSchedule.parse("30d:1d,1d:all");
+        // hourly versions over 3 days
+        Date[] dates = hourly(72);
+        boolean[] kept = schedule.selectKept(dates, null, NOW);
+        assertArrayEquals(VersionThinningSchedule.parse("1d:all,30d:1d").selectKept(dates, null, NOW), kept);
+    }
+
+    @Test
+    public void testNewestVersionOfEachIntervalIsKept()
+    {
+        VersionThinningSchedule schedule = VersionThinningSchedule.parse("1d:all,30d:1d");
+        Date[] dates = hourly(24 * 5);
+        boolean[] kept = schedule.selectKept(dates, null, NOW);
+        long lastDay = Long.MIN_VALUE;
+        for (int index = 0; index < dates.length; index++)
+        {
+            long time = dates[index].getTime();
+            if (NOW - time <= DAY)
+            {
+                assertTrue("version " + index, kept[index]);
+            }
+            else
+            {
+                // the intervals are UTC days, the first version met in a day is its newest one
+                long day = Math.floorDiv(time, DAY);
+                assertEquals("version " + index, day != lastDay, kept[index]);
+                lastDay = day;
+            }
+        }
+    }
+
+    @Test
+    public void testKeepersAreStableAcrossRuns()
+    {
+        VersionThinningSchedule schedule = VersionThinningSchedule.parse("1d:all,7d:1d,30d:7d");
+        Date[] dates = hourly(24 * 20);
+        boolean[] kept = schedule.selectKept(dates, null, NOW);
+        // an hour later the versions kept in a sparse tier are the same, aligned on the epoch and not on the run
+        boolean[] keptLater = schedule.selectKept(dates, null, NOW + HOUR);
+        for (int index = 0; index < dates.length; index++)
+        {
+            long age = NOW - dates[index].getTime();
+            if (age > 2L * DAY && age < 6L * DAY)
+            {
+                assertEquals("version " + index, kept[index], keptLater[index]);
+            }
+        }
+    }
+
+    @Test
+    public void testOldVersionsAndUndatedVersions()
+    {
+        VersionThinningSchedule schedule = VersionThinningSchedule.parse("1d:all");
+        Date[] dates = { new Date(NOW - HOUR), null, new Date(NOW - 2L * DAY) };
+        // beyond the last tier a version is not kept, a version without date is
+        assertArrayEquals(new boolean[] { true, true, false }, schedule.selectKept(dates, null, NOW));
+    }
+
+    @Test
+    public void testSkippedVersionsDoNotKeepTheirInterval()
+    {
+        VersionThinningSchedule schedule = VersionThinningSchedule.parse("30d:1d");
+        Date[] dates = { new Date(NOW - 3L * DAY), new Date(NOW - 3L * DAY - HOUR), new Date(NOW - 4L * DAY) };
+        assertArrayEquals(new boolean[] { true, false, true }, schedule.selectKept(dates, null, NOW));
+        // the newest version of the day is skipped, the next one of the day is kept instead
+        assertArrayEquals(new boolean[] { false, true, true }, schedule.selectKept(dates, new boolean[] { true,
+                false, false }, NOW));
+    }
+
+    private static void assertKeptUpTo(String schedule, long maxAge)
+    {
+        Date[] dates = { new Date(NOW - maxAge + 1L), new Date(NOW - maxAge), new Date(NOW - maxAge - 1L) };
+        assertArrayEquals(schedule, new boolean[] { true, true, false }, VersionThinningSchedule.parse(schedule)
+                .selectKept(dates, null, NOW));
+    }
+
+    /**
+     * @return the dates of versions created every hour before NOW, newest first
+     */
+    private static Date[] hourly(int count)
+    {
+        Date[] dates = new Date[count];
+        for (int index = 0; index < count; index++)
+        {
+            dates[index] = new Date(NOW - index * HOUR - HOUR / 2L);
+        }
+        return dates;
+    }
+}